@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -13,17 +15,27 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeBulkLoader;
+import simpledb.index.BTreeFile;
+import simpledb.index.HashIndexFile;
+import simpledb.index.LsmFile;
+import simpledb.index.SecondaryIndex;
 import simpledb.optimizer.LogicalPlan;
 import simpledb.optimizer.TableStats;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
 import simpledb.storage.IntField;
 import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class Parser {
     static boolean explain = false;
+    // 每个查询可以在内存中保存的页数，由 -memory 参数设置
+    static int memoryPages = LogicalPlan.DEFAULT_MEMORY_PAGES;
 
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
@@ -143,6 +155,7 @@ public class Parser {
         List<ZFromItem> from = q.getFrom();
         LogicalPlan lp = new LogicalPlan();
         lp.setQuery(q.toString());
+        lp.setMemoryPages(memoryPages);
         // walk through tables in the FROM clause
         for (int i = 0; i < from.size(); i++) {
             ZFromItem fromIt = from.get(i);
@@ -258,18 +271,15 @@ public class Parser {
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             List<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.get(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -277,6 +287,8 @@ public class Parser {
 
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
+    // 当前语句的LIMIT和OFFSET，-1表示没有LIMIT
+    private int limit = -1, offset = 0;
 
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
@@ -284,6 +296,8 @@ public class Parser {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit >= 0)
+            lp.setLimit(limit, offset);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -424,17 +438,19 @@ public class Parser {
     }
 
     public void handleTransactStatement(ZTransactStmt s)
-            throws IOException,
+            throws IOException, TransactionAbortedException,
             simpledb.ParsingException {
         switch (s.getStmtType()) {
             case "COMMIT":
                 if (curtrans == null)
                     throw new ParsingException(
                             "No transaction is currently running");
-                curtrans.commit();
+                Transaction t = curtrans;
                 curtrans = null;
                 inUserTrans = false;
-                System.out.println("Transaction " + curtrans.getId().getId()
+                // 乐观事务验证失败时，commit已经回滚了事务
+                t.commit();
+                System.out.println("Transaction " + t.getId().getId()
                         + " committed.");
                 break;
             case "ROLLBACK":
@@ -463,18 +479,154 @@ public class Parser {
         }
     }
 
+    /**
+     * CREATE INDEX name ON table (field [, field ...]) [INCLUDE (field [, field ...])]
+     * [USING BTREE|HASH] [FILLFACTOR f]. ZQL does not know this statement, so it
+     * is recognized before the statement is given to ZQL.
+     */
+    private static final Pattern CREATE_INDEX = Pattern.compile(
+            "\\s*create\\s+index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(\\s*([\\w.]+(?:\\s*,\\s*[\\w.]+)*)\\s*\\)"
+                    + "(?:\\s+include\\s*\\(\\s*([\\w.]+(?:\\s*,\\s*[\\w.]+)*)\\s*\\))?"
+                    + "(?:\\s+using\\s+(btree|hash))?"
+                    + "(?:\\s+fillfactor\\s+([0-9.]+))?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Build a B+ tree index on one or several fields of a table, given as a
+     * comma separated list. An index on a heap table is a secondary index,
+     * registered with the catalog and maintained on every insert and delete.
+     * A hash index on a heap table is a secondary index on one field whose
+     * entries are stored in a HashIndexFile. A B+ tree index on one field of
+     * a table stored in another file is a copy of the table keyed on the
+     * field, added to the catalog as a new table with the given name; hash
+     * indexes and indexes on several fields of such a table are rejected.
+     * The table is read within tid, so writers of the table wait until the
+     * index has been built.
+     * <p>
+     * The fields listed in include, a comma separated list or null, are copied
+     * into the entries of a secondary index, so that queries reading only them
+     * and the key are answered from the index alone. The copies of a table
+     * already carry every field, so include is ignored for them.
+     */
+    public void handleCreateIndexStatement(String name, String table, String field, String include,
+            boolean hash, double fillFactor, TransactionId tid) throws DbException,
+            simpledb.ParsingException, IOException,
+            simpledb.transaction.TransactionAbortedException {
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(table);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : " + table);
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        String[] fields = field.split("\\s*,\\s*");
+        int[] keyFields = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            try {
+                keyFields[i] = file.getTupleDesc().fieldNameToIndex(fields[i]);
+            } catch (NoSuchElementException e) {
+                throw new simpledb.ParsingException("Unknown field " + fields[i] + " in table " + table);
+            }
+        }
+        int keyField = keyFields[0];
+        if (hash && keyFields.length > 1)
+            throw new simpledb.ParsingException("hash indexes are keyed on a single field");
+        // 只有堆文件的元组位置不变，多字段索引和哈希索引只能建成二级索引
+        if (!(file instanceof HeapFile) && keyFields.length > 1)
+            throw new simpledb.ParsingException("indexes on several fields are only supported on heap tables");
+        if (!(file instanceof HeapFile) && hash)
+            throw new simpledb.ParsingException("hash indexes are only supported on heap tables");
+        List<Integer> included = new ArrayList<>();
+        for (String inc : include == null ? new String[0] : include.split("\\s*,\\s*")) {
+            int i;
+            try {
+                i = file.getTupleDesc().fieldNameToIndex(inc);
+            } catch (NoSuchElementException e) {
+                throw new simpledb.ParsingException("Unknown field " + inc + " in table " + table);
+            }
+            // 键本身已经在索引项里了
+            if (Arrays.stream(keyFields).noneMatch(k -> k == i) && !included.contains(i))
+                included.add(i);
+        }
+
+        // 索引文件放在表文件旁边
+        File dir = null;
+        if (file instanceof HeapFile)
+            dir = ((HeapFile) file).getFile().getAbsoluteFile().getParentFile();
+        else if (file instanceof BTreeFile)
+            dir = ((BTreeFile) file).getFile().getAbsoluteFile().getParentFile();
+        else if (file instanceof HashIndexFile)
+            dir = ((HashIndexFile) file).getFile().getAbsoluteFile().getParentFile();
+        else if (file instanceof LsmFile)
+            dir = ((LsmFile) file).getFile().getAbsoluteFile().getParentFile();
+        File indexFile = new File(dir, name + ".idx");
+
+        DbFile idx;
+        int numPages;
+        if (file instanceof HeapFile) {
+            int[] inc = included.stream().mapToInt(Integer::intValue).toArray();
+            SecondaryIndex index = hash
+                    ? SecondaryIndex.createHash(tid, name, (HeapFile) file, keyField, inc, indexFile, fillFactor)
+                    : SecondaryIndex.create(tid, name, (HeapFile) file, keyFields, inc, indexFile, fillFactor);
+            Database.getCatalog().addIndex(index);
+            idx = index.getFile();
+            numPages = index.numPages();
+        } else {
+            BTreeFile bf = BTreeBulkLoader.createIndex(tid, file, keyField, indexFile, fillFactor);
+            Database.getCatalog().addTable(bf, name,
+                    Database.getCatalog().getPrimaryKey(tableId));
+            idx = bf;
+            numPages = bf.numPages();
+        }
+        TableStats.setTableStats(name, new TableStats(idx.getId(), TableStats.IOCOSTPERPAGE));
+        System.out.println("Created index " + name + " on " + table + "("
+                + field + ") with " + numPages + " pages");
+    }
+
+    /**
+     * SELECT ... LIMIT n [OFFSET m]. ZQL does not know LIMIT, so a LIMIT
+     * clause at the end of a statement is cut off before the statement is
+     * given to ZQL; group 1 is the rest of the statement.
+     */
+    private static final Pattern LIMIT = Pattern.compile(
+            "(.*?)\\s+limit\\s+(\\d{1,9})(?:\\s+offset\\s+(\\d{1,9}))?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /**
+     * Remember the LIMIT clause of a statement, for the query it is handled
+     * as, and return the statement without it.
+     */
+    private String stripLimit(String s) {
+        Matcher m = LIMIT.matcher(s);
+        if (!m.matches()) {
+            limit = -1;
+            offset = 0;
+            return s;
+        }
+        limit = Integer.parseInt(m.group(2));
+        offset = m.group(3) == null ? 0 : Integer.parseInt(m.group(3));
+        return m.group(1) + ";";
+    }
+
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
+        s = stripLimit(s);
         ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (limit >= 0)
+                    lp.setLimit(limit, offset);
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
                     "Invalid SQL expression: \n \t " + e);
+        } finally {
+            limit = -1;
+            offset = 0;
         }
 
         throw new simpledb.ParsingException(
@@ -490,7 +642,53 @@ public class Parser {
     }
 
     public void processNextStatement(String s) {
-        processNextStatement(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
+        Matcher m = CREATE_INDEX.matcher(s);
+        if (!m.matches()) {
+            s = stripLimit(s);
+            try {
+                processNextStatement(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
+            } finally {
+                limit = -1;
+                offset = 0;
+            }
+            return;
+        }
+
+        if (!this.inUserTrans) {
+            curtrans = new Transaction();
+            curtrans.start();
+            System.out.println("Started a new transaction tid = "
+                    + curtrans.getId().getId());
+        }
+        try {
+            double fillFactor = m.group(6) == null ? BTreeBulkLoader.DEFAULT_FILL_FACTOR
+                    : Double.parseDouble(m.group(6));
+            handleCreateIndexStatement(m.group(1), m.group(2), m.group(3), m.group(4),
+                    "hash".equalsIgnoreCase(m.group(5)), fillFactor, curtrans.getId());
+            if (!inUserTrans) {
+                curtrans.commit();
+                System.out.println("Transaction "
+                        + curtrans.getId().getId() + " committed.");
+            }
+        } catch (Throwable a) {
+            // Whenever error happens, abort the current transaction
+            try {
+                curtrans.abort();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            System.out.println("Transaction " + curtrans.getId().getId()
+                    + " aborted because of unhandled error");
+            this.inUserTrans = false;
+            if (a instanceof simpledb.ParsingException
+                    || a instanceof IllegalArgumentException)
+                System.out.println("Invalid SQL expression: \n \t" + a.getMessage());
+            else
+                a.printStackTrace();
+        } finally {
+            if (!inUserTrans)
+                curtrans = null;
+        }
     }
 
     public void processNextStatement(InputStream is) {
@@ -556,6 +754,8 @@ public class Parser {
 
         } catch (IOException | DbException e) {
             e.printStackTrace();
+        } catch (TransactionAbortedException e) {
+            System.out.println("Transaction aborted because it failed validation");
         } catch (simpledb.ParsingException e) {
             System.out
                     .println("Invalid SQL expression: \n \t" + e.getMessage());
@@ -567,11 +767,12 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "create index", "on",
+            "using", "btree", "hash", "fillfactor", "order by", "limit", "offset" };
 
     public static void main(String[] argv) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 6) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -581,7 +782,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-memory pages] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
@@ -611,6 +812,15 @@ public class Parser {
                     }
                     queryFile = argv[i];
 
+                } else if (argv[i].equals("-memory")) {
+                    try {
+                        memoryPages = Integer.parseInt(argv[++i]);
+                    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                        System.out.println("Expected number of pages after -memory\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    System.out.println("Query memory budget: " + memoryPages + " pages.");
                 } else {
                     System.out.println("Unknown argument " + argv[i] + "\n "
                             + usage);
@@ -660,7 +870,6 @@ public class Parser {
                     buffer.append(line, 0, split + 1);
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes(StandardCharsets.UTF_8);
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
@@ -669,8 +878,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
@@ -1,6 +1,8 @@
 package simpledb.common;
 
 import simpledb.common.Type;
+import simpledb.index.LsmFile;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
@@ -12,6 +14,7 @@ import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -31,12 +34,14 @@ public class Catalog {
     private final Map<Integer,DbFile> dbFileMap;
     private final Map<Integer,String> nameMap;
     private final Map<Integer,String> pkMap;
-
+    // 表id -> 表上的二级索引
+    private final Map<Integer,List<SecondaryIndex>> indexMap;
 
     public Catalog() {
         dbFileMap = new ConcurrentHashMap<>();
         nameMap = new ConcurrentHashMap<>();
         pkMap = new ConcurrentHashMap<>();
+        indexMap = new ConcurrentHashMap<>();
     }
 
 
@@ -60,6 +65,7 @@ public class Catalog {
                 dbFileMap.remove(id);
                 nameMap.remove(id);
                 pkMap.remove(id);
+                indexMap.remove(id);
             }
         }
 
@@ -131,6 +137,29 @@ public class Catalog {
         return pkMap.get(tableid);
     }
 
+    /**
+     * Add a secondary index to the catalog. The file of the index is added as
+     * a table named after the index, so that its pages can be read through
+     * the buffer pool; from then on the index is maintained by every insert
+     * into and delete from its table.
+     * @param index the index to add
+     * @throws NoSuchElementException if the indexed table doesn't exist
+     */
+    public void addIndex(SecondaryIndex index) {
+        if(!dbFileMap.containsKey(index.getTableId()))
+            throw new NoSuchElementException();
+        addTable(index.getFile(), index.getName());
+        indexMap.computeIfAbsent(index.getTableId(), id -> new CopyOnWriteArrayList<>()).add(index);
+    }
+
+    /**
+     * @return the secondary indexes on the specified table; an empty list if there are none
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> indexes = indexMap.get(tableid);
+        return indexes == null ? Collections.emptyList() : indexes;
+    }
+
     public Iterator<Integer> tableIdIterator() {
         return dbFileMap.keySet().iterator();
     }
@@ -145,10 +174,14 @@ public class Catalog {
         dbFileMap.clear();
         nameMap.clear();
         pkMap.clear();
+        indexMap.clear();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Tables are stored in HeapFiles, unless the line of the table ends with
+     * "lsm", in which case the table is stored in an LsmFile keyed on its
+     * primary key.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -191,8 +224,19 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
-                addTable(tabHf,name,primaryKey);
+                // 行末的lsm表示表存成以主键为key的LSM树
+                String storage = line.substring(line.indexOf(")") + 1).trim();
+                DbFile file;
+                if (storage.equalsIgnoreCase("lsm")) {
+                    if (primaryKey.isEmpty()) {
+                        System.out.println("LSM table " + name + " needs a primary key");
+                        System.exit(0);
+                    }
+                    file = new LsmFile(new File(baseFolder+"/"+name + ".lsm"), names.indexOf(primaryKey), t);
+                } else {
+                    file = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                }
+                addTable(file,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
@@ -0,0 +1,276 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * BitmapHeapScan reads the tuples of a HeapFile matching a condition on its
+ * secondary indexes in two phases. First the RecordIds matching the condition
+ * are collected from the indexes into a {@link PageBitmap}; then the heap
+ * pages are visited in physical order, each one only once, reading a few
+ * pages ahead with {@link BufferPool#prefetch}.
+ * <p>
+ * Compared with {@link IndexHeapScan}, which fetches the heap page of every
+ * match in key order, this pays off as soon as several matches share a page,
+ * e.g. for range predicates. Conditions on several indexes of the table are
+ * combined with {@link BitmapCondition#and} and {@link BitmapCondition#or}.
+ * Tuples are returned in physical order, not in key order.
+ */
+public class BitmapHeapScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of heap pages read ahead of the scan */
+    public static final int DEFAULT_READ_AHEAD = 8;
+
+    /**
+     * A condition on the secondary indexes of one table, evaluated to the
+     * bitmap of matching RecordIds.
+     */
+    public static abstract class BitmapCondition {
+        /**
+         * @return the id of the table the condition is on
+         */
+        public abstract int getTableId();
+
+        /**
+         * @return the RecordIds of the tuples matching this condition, read within tid
+         */
+        public abstract PageBitmap evaluate(TransactionId tid) throws DbException, TransactionAbortedException;
+
+        /**
+         * @return the condition matching the tuples whose entries in index satisfy ipred
+         */
+        public static BitmapCondition index(SecondaryIndex index, IndexPredicate ipred) {
+            return new IndexCondition(index, ipred);
+        }
+
+        /**
+         * @return the condition matching the tuples matching all of conds
+         */
+        public static BitmapCondition and(BitmapCondition... conds) {
+            return new CombinedCondition(true, conds);
+        }
+
+        /**
+         * @return the condition matching the tuples matching any of conds
+         */
+        public static BitmapCondition or(BitmapCondition... conds) {
+            return new CombinedCondition(false, conds);
+        }
+    }
+
+    private static class IndexCondition extends BitmapCondition {
+        private final SecondaryIndex index;
+        private final IndexPredicate ipred;
+
+        IndexCondition(SecondaryIndex index, IndexPredicate ipred) {
+            this.index = index;
+            this.ipred = ipred;
+        }
+
+        public int getTableId() {
+            return index.getTableId();
+        }
+
+        public PageBitmap evaluate(TransactionId tid) throws DbException, TransactionAbortedException {
+            PageBitmap bitmap = new PageBitmap();
+            DbFileIterator it = index.iterator(tid, ipred);
+            it.open();
+            while (it.hasNext())
+                bitmap.add(index.getRecordId(it.next()));
+            it.close();
+            return bitmap;
+        }
+
+        public String toString() {
+            return index.getName() + " " + ipred.getOp() + " " + ipred.getField();
+        }
+    }
+
+    private static class CombinedCondition extends BitmapCondition {
+        private final boolean and;
+        private final BitmapCondition[] conds;
+
+        CombinedCondition(boolean and, BitmapCondition[] conds) {
+            if (conds.length == 0)
+                throw new IllegalArgumentException("no conditions to combine");
+            for (BitmapCondition c : conds) {
+                if (c.getTableId() != conds[0].getTableId())
+                    throw new IllegalArgumentException("conditions are on different tables");
+            }
+            this.and = and;
+            this.conds = conds;
+        }
+
+        public int getTableId() {
+            return conds[0].getTableId();
+        }
+
+        public PageBitmap evaluate(TransactionId tid) throws DbException, TransactionAbortedException {
+            PageBitmap bitmap = conds[0].evaluate(tid);
+            for (int i = 1; i < conds.length; i++) {
+                // AND的结果已经为空时不用再读其它索引
+                if (and && bitmap.numPages() == 0)
+                    break;
+                PageBitmap b = conds[i].evaluate(tid);
+                bitmap = and ? bitmap.and(b) : bitmap.or(b);
+            }
+            return bitmap;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder("(");
+            for (int i = 0; i < conds.length; i++) {
+                if (i > 0)
+                    sb.append(and ? " AND " : " OR ");
+                sb.append(conds[i]);
+            }
+            return sb.append(")").toString();
+        }
+    }
+
+    private final TransactionId tid;
+    private final BitmapCondition cond;
+    private final String tableAlias;
+    private final int readAhead;
+    private final TupleDesc td;
+
+    private PageBitmap bitmap;
+    private List<Integer> pageNos;
+    private int pos;          // 下一个要读的页在pageNos中的下标
+    private int prefetched;   // pageNos中已经预读过的页数
+    private HeapPage page;
+    private BitSet slots;
+    private int slot;
+    private Tuple next = null;
+
+    /**
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableAlias
+     *            the alias of the table; the returned tupleDesc has fields
+     *            named tableAlias.fieldName
+     * @param cond
+     *            the condition the returned tuples match
+     * @param readAhead
+     *            how many heap pages to read ahead of the scan
+     */
+    public BitmapHeapScan(TransactionId tid, String tableAlias, BitmapCondition cond, int readAhead) {
+        this.tid = tid;
+        this.cond = cond;
+        this.tableAlias = tableAlias;
+        this.readAhead = Math.max(1, readAhead);
+
+        TupleDesc base = Database.getCatalog().getTupleDesc(cond.getTableId());
+        Type[] types = new Type[base.numFields()];
+        String[] names = new String[base.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = base.getFieldType(i);
+            names[i] = tableAlias + "." + base.getFieldName(i);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    public BitmapHeapScan(TransactionId tid, String tableAlias, BitmapCondition cond) {
+        this(tid, tableAlias, cond, DEFAULT_READ_AHEAD);
+    }
+
+    /**
+     * @return the name of the table this operator scans
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(cond.getTableId());
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    public BitmapCondition getCondition() {
+        return cond;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        bitmap = cond.evaluate(tid);
+        pageNos = bitmap.pageNumbers();
+        pos = 0;
+        prefetched = 0;
+        page = null;
+        next = null;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    private Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (true) {
+            if (page != null) {
+                slot = slots.nextSetBit(slot + 1);
+                if (slot >= 0) {
+                    Tuple t = page.getTuple(slot);
+                    if (t != null)
+                        return t;
+                    continue;
+                }
+                page = null;
+            }
+            if (pos >= pageNos.size())
+                return null;
+            if (pos >= prefetched) {
+                // 按物理顺序预读接下来的几页
+                int end = Math.min(pageNos.size(), pos + readAhead);
+                List<PageId> pids = new ArrayList<>(end - pos);
+                for (int i = pos; i < end; i++)
+                    pids.add(new HeapPageId(cond.getTableId(), pageNos.get(i)));
+                Database.getBufferPool().prefetch(tid, pids);
+                prefetched = end;
+            }
+            int pageNo = pageNos.get(pos++);
+            page = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(cond.getTableId(), pageNo), Permissions.READ_ONLY);
+            slots = bitmap.slots(pageNo);
+            slot = -1;
+        }
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (bitmap == null)
+            throw new IllegalStateException("Operator not yet open");
+        if (next == null)
+            next = fetchNext();
+        return next != null;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = next;
+        next = null;
+        return t;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        bitmap = null;
+        pageNos = null;
+        page = null;
+        next = null;
+    }
+}
@@ -0,0 +1,249 @@
+package simpledb.execution;
+
+import simpledb.storage.BufferPool;
+import simpledb.storage.CloseableIterator;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * ExternalSort sorts a stream of tuples that may not fit in memory.
+ * <p>
+ * Tuples are collected in memory until they fill the given number of pages;
+ * the buffer is then sorted and written out as a run to a {@link SpillFile}.
+ * {@link #iterator()} merges the runs with a loser tree. Reading a run takes
+ * a page of memory, so at most memoryPages - 1 runs are merged at once;
+ * if there are more, groups of adjacent runs are first merged into longer
+ * runs. If the input fits in memory no run is written and the tuples are
+ * sorted in place.
+ */
+public class ExternalSort implements Closeable {
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final int maxTuples;
+    private final int fanIn;
+    private final List<Tuple> buffer = new ArrayList<>();
+    private final List<SpillFile> runs = new ArrayList<>();
+    // iterator()返回的归并，close时关闭它们打开的run
+    private final List<LoserTree> merges = new ArrayList<>();
+    private long size = 0;
+
+    /**
+     * @param td the schema of the tuples to sort
+     * @param comparator the sort order
+     * @param memoryPages how many pages worth of tuples may be kept in memory
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator, int memoryPages) {
+        this.td = td;
+        this.comparator = comparator;
+        this.maxTuples = memoryTuples(td, memoryPages);
+        this.fanIn = Math.max(2, memoryPages - 1);
+    }
+
+    /**
+     * Convert a memory budget in pages into a number of tuples, counting
+     * each tuple with its header bit as on a heap page. Operators that keep
+     * tuples in memory, and the planner when it sizes them, all use this.
+     *
+     * @param td the schema of the tuples kept in memory
+     * @param memoryPages the memory budget in pages; at least one page is used
+     * @return how many tuples of schema td fit in memoryPages pages, at least 1
+     */
+    public static int memoryTuples(TupleDesc td, int memoryPages) {
+        int tuplesPerPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        return Math.max(1, memoryPages) * Math.max(1, tuplesPerPage);
+    }
+
+    /**
+     * @return the number of tuples added so far
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of sorted runs spilled to disk so far
+     */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    public void add(Tuple t) throws IOException {
+        buffer.add(t);
+        size++;
+        if (buffer.size() >= maxTuples)
+            spill();
+    }
+
+    private void spill() throws IOException {
+        buffer.sort(comparator);
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : buffer)
+            run.add(t);
+        buffer.clear();
+        runs.add(run);
+    }
+
+    /**
+     * Return the tuples added so far in sorted order. No more tuples may be
+     * added afterwards; the iterator may be requested again to read the
+     * tuples once more. Close the iterator to release the files it reads
+     * if it is not read to the end.
+     */
+    public CloseableIterator<Tuple> iterator() throws IOException {
+        if (runs.isEmpty()) {
+            buffer.sort(comparator);
+            Iterator<Tuple> it = buffer.iterator();
+            return new CloseableIterator<Tuple>() {
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                public Tuple next() {
+                    return it.next();
+                }
+
+                public void close() {
+                }
+            };
+        }
+        if (!buffer.isEmpty())
+            spill();
+        // 每个run读的时候要一页缓冲区，run太多时先把相邻的run合并，减少归并的路数
+        while (runs.size() > fanIn) {
+            List<SpillFile> merged = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += fanIn) {
+                List<SpillFile> group = runs.subList(i, Math.min(runs.size(), i + fanIn));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                SpillFile run = new SpillFile(td);
+                try (CloseableIterator<Tuple> it = merge(group)) {
+                    while (it.hasNext())
+                        run.add(it.next());
+                }
+                for (SpillFile f : group)
+                    f.close();
+                merged.add(run);
+            }
+            runs.clear();
+            runs.addAll(merged);
+        }
+        LoserTree merge = merge(runs);
+        merges.add(merge);
+        return merge;
+    }
+
+    /**
+     * @return the maximum number of runs merged at once
+     */
+    public int fanIn() {
+        return fanIn;
+    }
+
+    private LoserTree merge(List<SpillFile> group) throws IOException {
+        List<CloseableIterator<Tuple>> its = new ArrayList<>();
+        for (SpillFile run : group)
+            its.add(run.iterator());
+        return new LoserTree(its);
+    }
+
+    /**
+     * A k-way merge of sorted runs using a loser tree. Each internal node of
+     * the tree remembers the run that lost the comparison there, and
+     * tree[0] the overall winner, so replacing the winner with the next tuple
+     * of its run takes one comparison per level, log2(k) in all, against the
+     * two a binary heap needs per level.
+     */
+    private class LoserTree implements CloseableIterator<Tuple> {
+        private final List<CloseableIterator<Tuple>> its;
+        // current[i]是第i个run当前的tuple，run读完后为null，比所有tuple都大
+        private final Tuple[] current;
+        private final int[] tree;
+
+        LoserTree(List<CloseableIterator<Tuple>> its) {
+            this.its = its;
+            int k = its.size();
+            current = new Tuple[k];
+            tree = new int[k];
+            for (int i = 0; i < k; i++)
+                current[i] = its.get(i).hasNext() ? its.get(i).next() : null;
+            tree[0] = build(1);
+        }
+
+        /**
+         * Play the matches below node; the leaves are nodes k to 2k-1.
+         * @return the winner
+         */
+        private int build(int node) {
+            int k = current.length;
+            if (node >= k)
+                return node - k;
+            int l = build(2 * node), r = build(2 * node + 1);
+            if (beats(l, r)) {
+                tree[node] = r;
+                return l;
+            }
+            tree[node] = l;
+            return r;
+        }
+
+        private boolean beats(int a, int b) {
+            if (current[a] == null)
+                return false;
+            if (current[b] == null)
+                return true;
+            int c = comparator.compare(current[a], current[b]);
+            // 相等时按run的顺序，保证排序是稳定的
+            return c != 0 ? c < 0 : a < b;
+        }
+
+        public boolean hasNext() {
+            return current[tree[0]] != null;
+        }
+
+        public Tuple next() {
+            int w = tree[0];
+            Tuple t = current[w];
+            if (t == null)
+                throw new NoSuchElementException();
+            current[w] = its.get(w).hasNext() ? its.get(w).next() : null;
+            // 从叶子向上重新比赛，只和每层的败者比较
+            int k = current.length;
+            for (int node = (w + k) / 2; node > 0; node /= 2) {
+                if (beats(tree[node], w)) {
+                    int loser = w;
+                    w = tree[node];
+                    tree[node] = loser;
+                }
+            }
+            tree[0] = w;
+            return t;
+        }
+
+        public void close() {
+            for (CloseableIterator<Tuple> it : its)
+                it.close();
+            Arrays.fill(current, null);
+            merges.remove(this);
+        }
+    }
+
+    /**
+     * Release the memory, close the iterators handed out by
+     * {@link #iterator()} and delete the runs of this sort.
+     */
+    public void close() {
+        for (LoserTree merge : new ArrayList<>(merges))
+            merge.close();
+        buffer.clear();
+        for (SpillFile run : runs)
+            run.close();
+        runs.clear();
+    }
+}
@@ -2,27 +2,84 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.SpillFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements an equality join as a hybrid hash
+ * join. One child, the build side, is loaded into an in-memory hash table
+ * on its join field, and the tuples of the other child, the probe side,
+ * look up their matches in it.
+ * <p>
+ * The hash table may hold a given number of pages of build tuples. If the
+ * build side does not fit, both children are split into partitions on a
+ * hash of the join field: the first partition stays in memory and is joined
+ * while the probe side is read, the others are written to
+ * {@link SpillFile}s and joined one at a time afterwards. A spilled
+ * partition that still does not fit is partitioned again with a different
+ * hash; a partition that cannot be split because most of its tuples share
+ * one key is joined in memory-sized chunks of build tuples, reading its
+ * probe partition once per chunk.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
+    /** pages of build tuples kept in memory when no budget is given */
+    public static final int DEFAULT_MEMORY_PAGES = 16;
+    /** the maximum number of partitions the children are split into at once */
+    public static final int MAX_PARTITIONS = 64;
+    // 分区的最大递归层数，超过后按块连接
+    private static final int MAX_LEVELS = 4;
+
     private final JoinPredicate pred;
     private OpIterator child1, child2;
     private final TupleDesc comboTD;
-    transient private Tuple t1 = null;
-    transient private Tuple t2 = null;
+    private final int memoryPages;
+    private final boolean buildRight;
+
+    /**
+     * A pair of spilled partitions of the build and the probe side.
+     */
+    private static class Partition {
+        final SpillFile build, probe;
+        final int level;
+
+        Partition(SpillFile build, SpillFile probe, int level) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+        }
+
+        void close() {
+            build.close();
+            probe.close();
+        }
+    }
+
+    // 内存中的哈希表，以及它最多能放的tuple数
+    private final Map<Field, List<Tuple>> map = new HashMap<>();
+    transient private int maxTuples;
+    // 读子节点时溢出到磁盘的分区；memPartition是留在内存中的分区，-1表示没有
+    transient private SpillFile[] buildSpills, probeSpills;
+    transient private int memPartition;
+    transient private Deque<Partition> partitions;
+    // 正在连接的溢出分区：buildIt不为null时还有没装入内存的build tuple
+    transient private Partition current;
+    transient private Iterator<Tuple> buildIt, probeIt;
+    transient private Tuple probeTuple;
+    transient private Iterator<Tuple> matches;
+    transient private boolean spilled;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
-     * on
-     * 
+     * on. The hash table is built on child1 and may hold
+     * {@link #DEFAULT_MEMORY_PAGES} pages of tuples.
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -31,9 +88,32 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_PAGES, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param memoryPages
+     *            how many pages worth of build tuples the hash table may hold
+     * @param buildRight
+     *            whether to build the hash table on child2 and probe it with
+     *            child1, rather than the other way around; the smaller child
+     *            should be the build side
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryPages,
+            boolean buildRight) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.memoryPages = Math.max(1, memoryPages);
+        this.buildRight = buildRight;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -44,7 +124,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -54,48 +134,195 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
-    final Map<Object, List<Tuple>> map = new HashMap<>();
-    public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
-        }
-        return cnt > 0;
+    /**
+     * @return how many pages worth of build tuples the hash table may hold
+     */
+    public int getMemoryPages() {
+        return memoryPages;
+    }
 
+    /**
+     * @return whether the hash table is built on child2
+     */
+    public boolean buildsRight() {
+        return buildRight;
+    }
+
+    /**
+     * @return whether the last run of the join had to spill partitions to
+     *         disk because the build side did not fit in memory
+     */
+    public boolean hasSpilled() {
+        return spilled;
+    }
+
+    private OpIterator buildChild() {
+        return buildRight ? child2 : child1;
+    }
+
+    private OpIterator probeChild() {
+        return buildRight ? child1 : child2;
+    }
+
+    private int buildField() {
+        return buildRight ? pred.getField2() : pred.getField1();
+    }
+
+    private int probeField() {
+        return buildRight ? pred.getField1() : pred.getField2();
+    }
+
+    /**
+     * @return the partition of n the key belongs to at the given level of
+     *         partitioning; every level uses a different hash function
+     */
+    static int partition(Field key, int level, int n) {
+        int h = key.hashCode() + level * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, n);
+    }
+
+    private int fanout() {
+        return Math.max(2, Math.min(memoryPages, MAX_PARTITIONS));
+    }
+
+    private void add(Tuple t) {
+        map.computeIfAbsent(t.getField(buildField()), k -> new ArrayList<>()).add(t);
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        maxTuples = ExternalSort.memoryTuples(buildChild().getTupleDesc(), memoryPages);
+        partitions = new ArrayDeque<>();
+        build();
         super.open();
     }
 
+    /**
+     * Read the build child into the hash table, and into spill files once it
+     * does not fit.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        map.clear();
+        buildSpills = probeSpills = null;
+        memPartition = -1;
+        spilled = false;
+        int inMemory = 0;
+        try {
+            OpIterator child = buildChild();
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                if (buildSpills == null) {
+                    add(t);
+                    if (++inMemory > maxTuples)
+                        inMemory = startPartitioning();
+                    continue;
+                }
+                int part = partition(t.getField(buildField()), 0, buildSpills.length);
+                if (part != memPartition) {
+                    buildSpills[part].add(t);
+                } else {
+                    add(t);
+                    // 留在内存中的分区也放不下了，把它也写到磁盘上
+                    if (++inMemory > maxTuples) {
+                        for (List<Tuple> l : map.values()) {
+                            for (Tuple m : l)
+                                buildSpills[memPartition].add(m);
+                        }
+                        map.clear();
+                        memPartition = -1;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            closeSpills();
+            throw new DbException("cannot spill hash join partition: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Split the hash table into partitions: the first one stays in memory,
+     * the others are written to spill files.
+     *
+     * @return the number of tuples left in memory
+     */
+    private int startPartitioning() throws IOException {
+        spilled = true;
+        int n = fanout();
+        buildSpills = new SpillFile[n];
+        probeSpills = new SpillFile[n];
+        for (int i = 0; i < n; i++) {
+            buildSpills[i] = new SpillFile(buildChild().getTupleDesc());
+            probeSpills[i] = new SpillFile(probeChild().getTupleDesc());
+        }
+        memPartition = 0;
+        int inMemory = 0;
+        Iterator<Map.Entry<Field, List<Tuple>>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Field, List<Tuple>> e = it.next();
+            int part = partition(e.getKey(), 0, n);
+            if (part == memPartition) {
+                inMemory += e.getValue().size();
+                continue;
+            }
+            for (Tuple t : e.getValue())
+                buildSpills[part].add(t);
+            it.remove();
+        }
+        return inMemory;
+    }
+
     public void close() {
         super.close();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
+        closeSpills();
+        this.probeTuple = null;
+        this.matches = null;
         this.map.clear();
     }
 
-    public void rewind() throws DbException, TransactionAbortedException {
-        child1.rewind();
-        child2.rewind();
+    private void closeSpills() {
+        if (buildSpills != null) {
+            for (int i = 0; i < buildSpills.length; i++) {
+                buildSpills[i].close();
+                probeSpills[i].close();
+            }
+        }
+        buildSpills = probeSpills = null;
+        if (partitions != null) {
+            for (Partition p : partitions)
+                p.close();
+            partitions.clear();
+        }
+        if (current != null)
+            current.close();
+        current = null;
+        buildIt = probeIt = null;
     }
 
-    transient Iterator<Tuple> listIt = null;
+    public void rewind() throws DbException, TransactionAbortedException {
+        probeTuple = null;
+        matches = null;
+        super.close();
+        if (!spilled) {
+            // 整个build端都在内存中，只需要重新读probe端
+            probeChild().rewind();
+        } else {
+            closeSpills();
+            child1.rewind();
+            child2.rewind();
+            build();
+        }
+        super.open();
+    }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -111,13 +338,146 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() {
-        t1 = listIt.next();
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        try {
+            while (true) {
+                if (matches != null && matches.hasNext())
+                    return merge(probeTuple, matches.next());
+                matches = null;
+                Tuple t = nextProbe();
+                if (t == null) {
+                    if (!nextPass())
+                        return null;
+                    continue;
+                }
+                Field f = t.getField(probeField());
+                // 属于溢出分区的probe tuple先写到磁盘上，之后再连接
+                if (buildSpills != null) {
+                    int part = partition(f, 0, buildSpills.length);
+                    if (part != memPartition) {
+                        probeSpills[part].add(t);
+                        continue;
+                    }
+                }
+                List<Tuple> l = map.get(f);
+                if (l != null) {
+                    probeTuple = t;
+                    matches = l.iterator();
+                }
+            }
+        } catch (IOException e) {
+            closeSpills();
+            throw new DbException("cannot spill hash join partition: " + e.getMessage());
+        }
+    }
+
+    private Tuple nextProbe() throws DbException, TransactionAbortedException {
+        if (current == null)
+            return probeChild().hasNext() ? probeChild().next() : null;
+        return probeIt.hasNext() ? probeIt.next() : null;
+    }
+
+    /**
+     * Set up the next pass over a probe partition: the next chunk of build
+     * tuples of the current partition, or the next spilled partition.
+     *
+     * @return false if all partitions have been joined
+     */
+    private boolean nextPass() throws IOException {
+        if (current != null && buildIt != null) {
+            loadChunk();
+            probeIt = current.probe.iterator();
+            return true;
+        }
+        if (current != null)
+            current.close();
+        current = null;
+        if (buildSpills != null) {
+            // 读完probe端后，把溢出的分区留到之后连接
+            for (int i = 0; i < buildSpills.length; i++) {
+                if (i == memPartition || buildSpills[i].size() == 0 || probeSpills[i].size() == 0) {
+                    buildSpills[i].close();
+                    probeSpills[i].close();
+                } else {
+                    partitions.push(new Partition(buildSpills[i], probeSpills[i], 0));
+                }
+            }
+            buildSpills = probeSpills = null;
+            memPartition = -1;
+        }
+        while (!partitions.isEmpty()) {
+            Partition p = partitions.pop();
+            if (p.build.size() <= maxTuples || p.level >= MAX_LEVELS) {
+                // 放得下的分区直接装入内存，放不下又不能再分的分区分块连接
+                current = p;
+                buildIt = p.build.iterator();
+                loadChunk();
+                probeIt = p.probe.iterator();
+                return true;
+            }
+            repartition(p);
+        }
+        return false;
+    }
+
+    /**
+     * Load the next chunk of build tuples of the current partition into the
+     * hash table.
+     */
+    private void loadChunk() {
+        map.clear();
+        int n = 0;
+        while (n < maxTuples && buildIt.hasNext()) {
+            add(buildIt.next());
+            n++;
+        }
+        if (!buildIt.hasNext())
+            buildIt = null;
+    }
+
+    /**
+     * Split a spilled partition that does not fit in memory into partitions
+     * with the hash function of the next level.
+     */
+    private void repartition(Partition p) throws IOException {
+        int n = fanout();
+        SpillFile[] builds = new SpillFile[n];
+        SpillFile[] probes = new SpillFile[n];
+        for (int i = 0; i < n; i++) {
+            builds[i] = new SpillFile(p.build.getTupleDesc());
+            probes[i] = new SpillFile(p.probe.getTupleDesc());
+        }
+        Iterator<Tuple> it = p.build.iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            builds[partition(t.getField(buildField()), p.level + 1, n)].add(t);
+        }
+        it = p.probe.iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            probes[partition(t.getField(probeField()), p.level + 1, n)].add(t);
+        }
+        long size = p.build.size();
+        p.close();
+        for (int i = 0; i < n; i++) {
+            if (builds[i].size() == 0 || probes[i].size() == 0) {
+                builds[i].close();
+                probes[i].close();
+                continue;
+            }
+            // 所有tuple都落到同一个分区说明它们的key基本相同，再分也没有用
+            int level = builds[i].size() == size ? MAX_LEVELS : p.level + 1;
+            partitions.push(new Partition(builds[i], probes[i], level));
+        }
+    }
 
+    private Tuple merge(Tuple probe, Tuple build) {
+        Tuple t1 = buildRight ? probe : build;
+        Tuple t2 = buildRight ? build : probe;
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
 
@@ -128,36 +488,6 @@ public class HashEquiJoin extends Operator {
         for (int i = 0; i < td2n; i++)
             t.setField(td1n + i, t2.getField(i));
         return t;
-
-    }
-
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
-        }
-
-        return null;
     }
 
     @Override
@@ -170,5 +500,5 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
 }
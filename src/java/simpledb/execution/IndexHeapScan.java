@@ -0,0 +1,137 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapPage;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * IndexHeapScan reads the tuples of a HeapFile that match an index predicate
+ * by looking up their RecordIds in a {@link SecondaryIndex} and fetching each
+ * tuple from its heap page. Tuples are returned in key order, unless the
+ * index is a hash index.
+ * <p>
+ * Every match costs a page fetch, so this only pays off for selective
+ * predicates; {@link simpledb.optimizer.LogicalPlan#physicalPlan} picks it
+ * over a {@link SeqScan} based on {@link simpledb.optimizer.TableStats}.
+ */
+public class IndexHeapScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final SecondaryIndex index;
+    private final IndexPredicate ipred;
+    private final String tableAlias;
+    private final TupleDesc td;
+    private transient DbFileIterator it;
+    private Tuple next = null;
+
+    /**
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to look up the tuples in
+     * @param tableAlias
+     *            the alias of the indexed table; the returned tupleDesc has
+     *            fields named tableAlias.fieldName
+     * @param ipred
+     *            the predicate on the indexed field
+     */
+    public IndexHeapScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+        this.tid = tid;
+        this.index = index;
+        this.ipred = ipred;
+        this.tableAlias = tableAlias;
+
+        TupleDesc base = Database.getCatalog().getTupleDesc(index.getTableId());
+        Type[] types = new Type[base.numFields()];
+        String[] names = new String[base.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = base.getFieldType(i);
+            names[i] = tableAlias + "." + base.getFieldName(i);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    /**
+     * @return the name of the table this operator scans
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    public IndexPredicate getPredicate() {
+        return ipred;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        it = index.iterator(tid, ipred);
+        it.open();
+        next = null;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    private Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (it.hasNext()) {
+            RecordId rid = index.getRecordId(it.next());
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+            Tuple t = page.getTuple(rid.getTupleNumber());
+            if (t != null)
+                return t;
+        }
+        return null;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (it == null)
+            throw new IllegalStateException("Operator not yet open");
+        if (next == null)
+            next = fetchNext();
+        return next != null;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = next;
+        next = null;
+        return t;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        if (it != null)
+            it.close();
+        it = null;
+        next = null;
+    }
+}
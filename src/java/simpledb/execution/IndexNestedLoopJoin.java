@@ -0,0 +1,318 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.CompositeKey;
+import simpledb.index.IndexFile;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins its outer child with a table stored in an
+ * {@link IndexFile} keyed on the join field of the inner side: instead of
+ * scanning the inner table, it looks up the matches of every outer tuple with
+ * {@link IndexFile#indexIterator}. A heap table is probed through a
+ * {@link SecondaryIndex} on its join field instead, fetching every match
+ * from its heap page.
+ * <p>
+ * Outer tuples are read in batches, and the tuples of a batch are sorted on
+ * the join field before probing, so that each distinct key of a batch is
+ * looked up once and consecutive lookups into a B+ tree touch neighbouring
+ * leaf pages. The output is therefore grouped by batch, not in the order of
+ * the outer child.
+ * <p>
+ * The inner child describes the inner relation but is never read: it must be
+ * a {@link SeqScan} of the inner table or a {@link BTreeScan} of the index
+ * file, possibly under some {@link Filter}s, whose predicates are applied to
+ * the tuples found by the lookups.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** number of outer tuples sorted and probed together */
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    private final int batchSize;
+
+    private final TransactionId tid;
+    // 内表存在索引文件里时是该文件，否则内表是堆文件，用它的二级索引查找
+    private final IndexFile file;
+    private final SecondaryIndex index;
+    // 内表上除了连接条件以外的过滤条件
+    private final List<Predicate> innerFilters;
+    // 内表是BTreeScan时它的索引条件
+    private final IndexPredicate scanPred;
+    // 从内表的key看过去的比较运算：inner.f2 innerOp outer.f1
+    private final Predicate.Op innerOp;
+
+    private final List<Tuple> batch = new ArrayList<>();
+    private int pos;
+    private Field lastKey;
+    private List<Tuple> matches;
+    private int matchPos;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            The scan of the right(inner) relation, see the class comment
+     * @param batchSize
+     *            The number of outer tuples to sort and probe together
+     * @throws IllegalArgumentException if child2 cannot be answered by
+     *            lookups on its index file, see {@link #canProbe}
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int batchSize) {
+        if (!canProbe(p, child2))
+            throw new IllegalArgumentException("the inner relation is not an index file keyed on the join field");
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batch size must be positive");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.batchSize = batchSize;
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this.innerOp = swap(p.getOperator());
+
+        innerFilters = new ArrayList<>();
+        OpIterator scan = child2;
+        while (scan instanceof Filter) {
+            innerFilters.add(((Filter) scan).getPredicate());
+            scan = ((Filter) scan).getChildren()[0];
+        }
+        if (scan instanceof BTreeScan) {
+            BTreeScan s = (BTreeScan) scan;
+            tid = s.getTransactionId();
+            file = (IndexFile) Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(s.getTableName()));
+            index = null;
+            scanPred = s.getPredicate();
+        } else {
+            SeqScan s = (SeqScan) scan;
+            scanPred = null;
+            tid = s.getTransactionId();
+            int tableId = Database.getCatalog().getTableId(s.getTableName());
+            DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+            if (f instanceof IndexFile) {
+                file = (IndexFile) f;
+                index = null;
+            } else {
+                file = null;
+                index = SecondaryIndex.lookupIndex(tableId, p.getField2(), innerOp);
+            }
+        }
+    }
+
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @return true if the inner relation child2 is a scan, possibly under
+     *   filters, of a table stored in an IndexFile keyed on the join field
+     *   that can search on the operator of p, or a sequential scan of a heap
+     *   table with a secondary index on the join field that can
+     */
+    public static boolean canProbe(JoinPredicate p, OpIterator child2) {
+        while (child2 instanceof Filter)
+            child2 = ((Filter) child2).getChildren()[0];
+        String tableName;
+        if (child2 instanceof SeqScan)
+            tableName = ((SeqScan) child2).getTableName();
+        else if (child2 instanceof BTreeScan)
+            tableName = ((BTreeScan) child2).getTableName();
+        else
+            return false;
+        int tableId = Database.getCatalog().getTableId(tableName);
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (f instanceof HeapFile && child2 instanceof SeqScan)
+            return SecondaryIndex.lookupIndex(tableId, p.getField2(), swap(p.getOperator())) != null;
+        return f instanceof IndexFile && ((IndexFile) f).keyField() == p.getField2()
+                && ((IndexFile) f).canSearch(swap(p.getOperator()));
+    }
+
+    /** @return op with its operands exchanged: a op b iff b swap(op) a */
+    private static Predicate.Op swap(Predicate.Op op) {
+        switch (op) {
+            case LESS_THAN: return Predicate.Op.GREATER_THAN;
+            case LESS_THAN_OR_EQ: return Predicate.Op.GREATER_THAN_OR_EQ;
+            case GREATER_THAN: return Predicate.Op.LESS_THAN;
+            case GREATER_THAN_OR_EQ: return Predicate.Op.LESS_THAN_OR_EQ;
+            default: return op;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        reset();
+        super.open();
+    }
+
+    private void reset() {
+        batch.clear();
+        pos = -1;
+        lastKey = null;
+        matches = null;
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        reset();
+    }
+
+    /**
+     * Read the next batch of outer tuples and sort it on the join field.
+     * @return false if the outer child has no more tuples
+     */
+    private boolean readBatch() throws DbException, TransactionAbortedException {
+        batch.clear();
+        while (batch.size() < batchSize && child1.hasNext())
+            batch.add(child1.next());
+        final int f1 = pred.getField1();
+        batch.sort((a, b) -> {
+            Field x = a.getField(f1), y = b.getField(f1);
+            if (x.equals(y))
+                return 0;
+            return x.compare(Predicate.Op.LESS_THAN, y) ? -1 : 1;
+        });
+        // 不同批次之间不复用查找结果
+        lastKey = null;
+        return !batch.isEmpty();
+    }
+
+    /**
+     * @return the key of an inner tuple in the index file
+     */
+    private Field innerKey(Tuple t) {
+        if (file instanceof BTreeFile)
+            return CompositeKey.keyOf(t, ((BTreeFile) file).keyFields());
+        return t.getField(file.keyField());
+    }
+
+    /**
+     * @return the tuples of the inner relation matching the outer key
+     */
+    private List<Tuple> probe(Field key) throws DbException, TransactionAbortedException {
+        List<Tuple> result = new ArrayList<>();
+        IndexPredicate ipred = new IndexPredicate(innerOp, key);
+        DbFileIterator it = index != null ? index.iterator(tid, ipred) : file.indexIterator(tid, ipred);
+        it.open();
+        try {
+            outer:
+            while (it.hasNext()) {
+                Tuple t = index != null ? fetch(it.next()) : it.next();
+                if (t == null || !t.getField(pred.getField2()).compare(innerOp, key))
+                    continue;
+                if (scanPred != null && !scanPred.matches(innerKey(t)))
+                    continue;
+                for (Predicate p : innerFilters) {
+                    if (!p.filter(t))
+                        continue outer;
+                }
+                result.add(t);
+            }
+        } finally {
+            it.close();
+        }
+        return result;
+    }
+
+    /**
+     * @return the heap tuple an entry of the secondary index points to, or
+     *   null if it has been deleted
+     */
+    private Tuple fetch(Tuple entry) throws DbException, TransactionAbortedException {
+        RecordId rid = index.getRecordId(entry);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+        return page.getTuple(rid.getTupleNumber());
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of an outer tuple with one of the inner
+     * tuples found by looking up its join field.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (matches != null && matchPos < matches.size()) {
+                Tuple left = batch.get(pos);
+                Tuple right = matches.get(matchPos++);
+                Tuple t = new Tuple(comboTD);
+                int n1 = left.getTupleDesc().numFields();
+                for (int i = 0; i < n1; i++)
+                    t.setField(i, left.getField(i));
+                for (int i = 0; i < right.getTupleDesc().numFields(); i++)
+                    t.setField(n1 + i, right.getField(i));
+                return t;
+            }
+            pos++;
+            if (pos >= batch.size()) {
+                if (!readBatch())
+                    return null;
+                pos = 0;
+            }
+            Field key = batch.get(pos).getField(pred.getField1());
+            if (lastKey == null || !lastKey.equals(key)) {
+                matches = probe(key);
+                lastKey = key;
+            }
+            matchPos = 0;
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
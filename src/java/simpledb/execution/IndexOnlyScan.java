@@ -0,0 +1,133 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * IndexOnlyScan reads the tuples of a HeapFile from the entries of a covering
+ * {@link SecondaryIndex} alone, without fetching any heap page. It returns
+ * only the fields the entries carry, the key and the included fields, in the
+ * order of the table, in key order of the index unless it is a hash index.
+ * <p>
+ * {@link simpledb.optimizer.LogicalPlan#physicalPlan} picks it when every
+ * field of the table the query refers to is carried by the index. The
+ * returned tuples have the RecordId of the heap tuple they stand for.
+ */
+public class IndexOnlyScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final SecondaryIndex index;
+    private final IndexPredicate ipred;
+    private final String tableAlias;
+    private final TupleDesc td;
+    // 返回的每个字段在索引项中的位置
+    private final int[] entryFields;
+    private transient DbFileIterator it;
+
+    /**
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the covering index to read
+     * @param tableAlias
+     *            the alias of the indexed table; the returned tupleDesc has
+     *            fields named tableAlias.fieldName
+     * @param ipred
+     *            the predicate on the indexed field, or null to read all
+     *            the entries
+     */
+    public IndexOnlyScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+        this.tid = tid;
+        this.index = index;
+        this.ipred = ipred;
+        this.tableAlias = tableAlias;
+
+        TupleDesc base = Database.getCatalog().getTupleDesc(index.getTableId());
+        List<Integer> fields = new ArrayList<>();
+        List<Type> types = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < base.numFields(); i++) {
+            int ef = index.entryField(i);
+            if (ef < 0)
+                continue;
+            fields.add(ef);
+            types.add(base.getFieldType(i));
+            names.add(tableAlias + "." + base.getFieldName(i));
+        }
+        this.entryFields = fields.stream().mapToInt(Integer::intValue).toArray();
+        this.td = new TupleDesc(types.toArray(new Type[0]), names.toArray(new String[0]));
+    }
+
+    /**
+     * @return the name of the table this operator scans
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the predicate on the indexed field, or null if all entries are read
+     */
+    public IndexPredicate getPredicate() {
+        return ipred;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        it = ipred == null ? index.getFile().iterator(tid) : index.iterator(tid, ipred);
+        it.open();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (it == null)
+            throw new IllegalStateException("Operator not yet open");
+        return it.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple entry = it.next();
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < entryFields.length; i++)
+            t.setField(i, entry.getField(entryFields[i]));
+        t.setRecordId(index.getRecordId(entry));
+        return t;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        if (it != null)
+            it.close();
+        it = null;
+    }
+}
@@ -1,11 +1,19 @@
 package simpledb.execution;
 
+import simpledb.index.CompositeKey;
 import simpledb.storage.Field;
 
 import java.io.Serializable;
 
 /**
  * IndexPredicate compares a field which has index on it against a given value
+ * <p>
+ * On a B+ tree keyed on several fields, the value may be a {@link CompositeKey}
+ * with as many fields as the tree or fewer: the leading fields of the key must
+ * then equal the leading fields of the value, and the next key field is
+ * compared with the last field of the value using op. For example, on a tree
+ * keyed on (customer, date), (GREATER_THAN, (7, 100)) matches customer = 7 and
+ * date &gt; 100, and (EQUALS, (7)) matches customer = 7.
  * @see IndexOpIterator
  */
 public class IndexPredicate implements Serializable {
@@ -37,6 +45,28 @@ public class IndexPredicate implements Serializable {
         return op;
     }
 
+    /**
+     * @return the leading key fields that must be equal to the value: all
+     *   the fields of the value but the last one, or null if the value has
+     *   a single field
+     */
+    public Field getPrefix() {
+        if (!(fieldvalue instanceof CompositeKey) || ((CompositeKey) fieldvalue).numFields() == 1)
+            return null;
+        CompositeKey key = (CompositeKey) fieldvalue;
+        return key.prefix(key.numFields() - 1);
+    }
+
+    /**
+     * @return true if key matches this predicate
+     */
+    public boolean matches(Field key) {
+        Field prefix = getPrefix();
+        if (prefix != null && !key.compare(Predicate.Op.EQUALS, prefix))
+            return false;
+        return key.compare(op, fieldvalue);
+    }
+
     /** Return true if the fieldvalue in the supplied predicate
         is satisfied by this predicate's fieldvalue and
         operator.
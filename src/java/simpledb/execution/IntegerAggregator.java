@@ -8,8 +8,6 @@ import simpledb.transaction.TransactionAbortedException;
 
 import java.util.*;
 
-import static simpledb.execution.Aggregator.Op.*;
-
 /**
  * Knows how to compute some aggregate over a set of IntFields.
  */
@@ -36,7 +34,16 @@ public class IntegerAggregator implements Aggregator {
     private final Type gbFieldType;
     private final int aField;
     private final Op op;
-    private final Map<Field,ArrayList<IntField>> map;
+    // 分组的key是int时用开放寻址的哈希表，避免装箱；其他类型的key用HashMap
+    private final IntGroupTable intGroups;
+    private final Map<Field, Integer> groups;
+    // 每个分组的累加值，下标是分组的编号，按分组第一次出现的顺序编号
+    private Field[] keys = new Field[16];
+    private long[] sums = new long[16];
+    private long[] counts = new long[16];
+    private int[] mins = new int[16];
+    private int[] maxs = new int[16];
+    private int numGroups = 0;
 
 
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
@@ -47,34 +54,142 @@ public class IntegerAggregator implements Aggregator {
                 this.gbFieldType = null;
             else
                 this.gbFieldType = gbfieldtype;
-            map = new HashMap<>();
+            intGroups = gbFieldType == Type.INT_TYPE ? new IntGroupTable() : null;
+            groups = intGroups == null ? new HashMap<>() : null;
     }
 
     /**
      * Merge a new tuple into the aggregate, grouping as indicated in the
-     * constructor
+     * constructor. Only the running sum, count, minimum and maximum of each
+     * group are kept, so the memory used grows with the number of groups,
+     * not with the number of tuples.
      * 
      * @param tup
      *            the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
+        int g;
         if(gbFiled == Aggregator.NO_GROUPING){
-            StringField noGB = new StringField("NoGB", 4);
-            if(map.isEmpty()){
-                ArrayList<IntField> intFields = new ArrayList<>();
-                intFields.add((IntField) tup.getField(aField));
-                map.put(noGB,intFields);
-            }else {
-                map.get(noGB).add((IntField) tup.getField(aField));
+            g = numGroups == 0 ? newGroup(null) : 0;
+        }else if(intGroups != null){
+            int key = ((IntField) tup.getField(gbFiled)).getValue();
+            g = intGroups.get(key);
+            if(g < 0){
+                g = newGroup(tup.getField(gbFiled));
+                intGroups.put(key, g);
             }
         }else {
-            if(!map.containsKey(tup.getField(gbFiled))){
-                ArrayList<IntField> intFields = new ArrayList<>();
-                intFields.add((IntField) tup.getField(aField));
-                map.put(tup.getField(gbFiled),intFields);
-            }else {
-                ArrayList<IntField> arr = map.get(tup.getField(gbFiled));
-                arr.add((IntField) tup.getField(aField));
+            Integer i = groups.get(tup.getField(gbFiled));
+            if(i == null){
+                i = newGroup(tup.getField(gbFiled));
+                groups.put(tup.getField(gbFiled), i);
+            }
+            g = i;
+        }
+        int v = ((IntField) tup.getField(aField)).getValue();
+        sums[g] += v;
+        counts[g]++;
+        if(v < mins[g])
+            mins[g] = v;
+        if(v > maxs[g])
+            maxs[g] = v;
+    }
+
+    /**
+     * @return the number of the new group with the given key
+     */
+    private int newGroup(Field key) {
+        if(numGroups == keys.length){
+            int n = keys.length * 2;
+            keys = Arrays.copyOf(keys, n);
+            sums = Arrays.copyOf(sums, n);
+            counts = Arrays.copyOf(counts, n);
+            mins = Arrays.copyOf(mins, n);
+            maxs = Arrays.copyOf(maxs, n);
+        }
+        keys[numGroups] = key;
+        mins[numGroups] = Integer.MAX_VALUE;
+        maxs[numGroups] = Integer.MIN_VALUE;
+        return numGroups++;
+    }
+
+    /**
+     * @return the aggregate value of group g
+     */
+    private int value(int g) throws DbException {
+        switch (op){
+            case MIN:
+                return mins[g];
+            case MAX:
+                return maxs[g];
+            case SUM:
+                return (int) sums[g];
+            case AVG:
+                return (int) (sums[g] / counts[g]);
+            case COUNT:
+                return (int) counts[g];
+            default:
+                throw new DbException(op+" is unimplemented");
+        }
+    }
+
+    /**
+     * A hash table from int group keys to group numbers, with open
+     * addressing and linear probing over primitive arrays, so that looking
+     * up a group neither boxes the key nor allocates.
+     */
+    private static class IntGroupTable implements java.io.Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private int[] keys = new int[32];
+        // 分组编号+1，0表示空槽
+        private int[] values = new int[32];
+        private int size = 0;
+
+        private static int slot(int key, int mask) {
+            // 打散key的高位，连续的key不会挤在一起
+            int h = key * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        /**
+         * @return the group number of key, or -1 if it has none
+         */
+        int get(int key) {
+            int mask = keys.length - 1;
+            for(int i = slot(key, mask); values[i] != 0; i = (i + 1) & mask){
+                if(keys[i] == key)
+                    return values[i] - 1;
+            }
+            return -1;
+        }
+
+        void put(int key, int group) {
+            // 装填因子超过一半时扩容
+            if(2 * (size + 1) > keys.length)
+                resize();
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while(values[i] != 0)
+                i = (i + 1) & mask;
+            keys[i] = key;
+            values[i] = group + 1;
+            size++;
+        }
+
+        private void resize() {
+            int[] oldKeys = keys, oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for(int j = 0; j < oldKeys.length; j++){
+                if(oldValues[j] == 0)
+                    continue;
+                int i = slot(oldKeys[j], mask);
+                while(values[i] != 0)
+                    i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
             }
         }
     }
@@ -99,88 +214,22 @@ public class IntegerAggregator implements Aggregator {
             public void open() throws DbException, TransactionAbortedException {
                 this.idx = 0;
                 arr = new ArrayList<>();
-                if(gbFiled == Aggregator.NO_GROUPING){
+                if(gbFiled == Aggregator.NO_GROUPING)
                     this.tupleDesc = new TupleDesc(new Type[]{Type.INT_TYPE});
+                else if(gbFieldType == Type.STRING_TYPE)
+                    this.tupleDesc = new TupleDesc(new Type[]{Type.STRING_TYPE,Type.INT_TYPE});
+                else
+                    this.tupleDesc = new TupleDesc(new Type[]{Type.INT_TYPE,Type.INT_TYPE});
+                // 只需要为每个分组生成一个结果tuple
+                for(int g = 0; g < numGroups; g++){
                     Tuple tuple = new Tuple(this.tupleDesc);
-                    ArrayList<IntField> list = map.get(new StringField("NoGB", 4));
-                    tuple.setField(0,list.get(0));
-                    this.arr.add(tuple);
-                    int sum = list.get(0).getValue();
-                    for (int i=1;i< list.size();i++){
-                        IntField tupleField = (IntField) tuple.getField(0);
-                        IntField listField = list.get(i);
-                        switch (op){
-                            case MIN:
-                                if(tupleField.compare(Predicate.Op.GREATER_THAN,listField))
-                                    tuple.setField(0,listField);
-                                break;
-                            case MAX:
-                                if(tupleField.compare(Predicate.Op.LESS_THAN,listField))
-                                    tuple.setField(0,listField);
-                                break;
-                            case AVG:
-                            case SUM:
-                                sum += listField.getValue();
-                                break;
-                            case COUNT:
-                                break;
-                            default:
-                                throw new DbException(op+" is unimplemented");
-                        }
-                    }
-                    if(op == SUM){
-                        tuple.setField(0,new IntField(sum));
-                    }
-                    if(op == AVG){
-                        tuple.setField(0,new IntField(sum/ list.size()));
-                    }
-                    if(op == Op.COUNT){
-                        tuple.setField(0,new IntField(list.size()));
-                    }
-                }else{
-                    if(gbFieldType == Type.STRING_TYPE)
-                        this.tupleDesc = new TupleDesc(new Type[]{Type.STRING_TYPE,Type.INT_TYPE});
-                    else
-                        this.tupleDesc = new TupleDesc(new Type[]{Type.INT_TYPE,Type.INT_TYPE});
-                    for(Field field: map.keySet()){
-                        ArrayList<IntField> intFields = map.get(field);
-                        Tuple tuple = new Tuple(this.tupleDesc);
-                        tuple.setField(0,field);
-                        tuple.setField(1, intFields.get(0));
-                        this.arr.add(tuple);
-                        int sum = intFields.get(0).getValue();
-                        for (int i=1;i<intFields.size();i++){
-                            IntField intField = intFields.get(i);
-                            IntField tupleField = (IntField) tuple.getField(1);
-                            switch (op){
-                                case MIN:
-                                    if(tupleField.compare(Predicate.Op.GREATER_THAN,intField))
-                                        tuple.setField(1,intField);
-                                    break;
-                                case MAX:
-                                    if(tupleField.compare(Predicate.Op.LESS_THAN,intField))
-                                        tuple.setField(1,intField);
-                                    break;
-                                case AVG:
-                                case SUM:
-                                    sum += intField.getValue();
-                                    break;
-                                case COUNT:
-                                    break;
-                                default:
-                                    throw new DbException(op+" is unimplemented");
-                            }
-                        }
-                        if(op == SUM){
-                            tuple.setField(1,new IntField(sum));
-                        }
-                        if(op == AVG){
-                            tuple.setField(1,new IntField(sum/intFields.size()));
-                        }
-                        if(op == Op.COUNT){
-                            tuple.setField(1,new IntField(intFields.size()));
-                        }
+                    if(gbFiled == Aggregator.NO_GROUPING){
+                        tuple.setField(0, new IntField(value(g)));
+                    }else {
+                        tuple.setField(0, keys[g]);
+                        tuple.setField(1, new IntField(value(g)));
                     }
+                    this.arr.add(tuple);
                 }
                 this.isOpen = true;
             }
@@ -9,18 +9,32 @@ import simpledb.storage.TupleDesc;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation as a block
+ * nested-loop join: it reads a block of outer tuples that fills a given
+ * number of pages into memory, then scans the inner relation once for the
+ * whole block, so the inner relation is read once per block instead of once
+ * per outer tuple.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
+    /** pages of outer tuples buffered in a block when no budget is given */
+    public static final int DEFAULT_BLOCK_PAGES = 16;
+
     private OpIterator[] opIterators = new OpIterator[2];
     private final JoinPredicate joinPredicate;
-    private volatile boolean initial = false;
-    private ThreadLocal<Tuple> leftThreadLocal = new ThreadLocal<>();
+    private final int blockPages;
+    private transient TupleDesc td;
+    // 当前块中的外表tuple，以及正在和它们比较的内表tuple
+    private final List<Tuple> block = new ArrayList<>();
+    private transient Tuple right;
+    private transient int blockPos;
+    private transient boolean rewindInner;
+
     /**
      * Constructor. Accepts two children to join and the predicate to join them
-     * on
+     * on. Blocks of {@link #DEFAULT_BLOCK_PAGES} pages of outer tuples are
+     * used.
      * 
      * @param p
      *            The predicate to use to join the children
@@ -30,9 +44,34 @@ public class Join extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public Join(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param blockPages
+     *            how many pages worth of outer tuples may be kept in memory;
+     *            the inner relation is scanned once per block
+     */
+    public Join(JoinPredicate p, OpIterator child1, OpIterator child2, int blockPages) {
         this.joinPredicate = p;
         this.opIterators[0] = child1;
         this.opIterators[1] = child2;
+        this.blockPages = Math.max(1, blockPages);
+    }
+
+    /**
+     * @return how many pages worth of outer tuples are kept in memory
+     */
+    public int getBlockPages() {
+        return blockPages;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -67,21 +106,54 @@ public class Join extends Operator {
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
-        super.open();
         opIterators[0].open();
         opIterators[1].open();
+        td = getTupleDesc();
+        resetBlock();
+        super.open();
     }
 
     public void close() {
         super.close();
         opIterators[0].close();
         opIterators[1].close();
+        block.clear();
+        right = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        super.open();
         opIterators[0].rewind();
         opIterators[1].rewind();
+        resetBlock();
+        super.close();
+        super.open();
+    }
+
+    private void resetBlock() {
+        block.clear();
+        right = null;
+        blockPos = 0;
+        rewindInner = false;
+    }
+
+    /**
+     * Read the next block of outer tuples and rewind the inner relation if it
+     * has been scanned for an earlier block.
+     *
+     * @return false if there are no more outer tuples
+     */
+    private boolean readBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        right = null;
+        if (!opIterators[0].hasNext())
+            return false;
+        int max = ExternalSort.memoryTuples(opIterators[0].getTupleDesc(), blockPages);
+        while (block.size() < max && opIterators[0].hasNext())
+            block.add(opIterators[0].next());
+        if (rewindInner)
+            opIterators[1].rewind();
+        rewindInner = true;
+        return true;
     }
 
     /**
@@ -90,6 +162,9 @@ public class Join extends Operator {
      * satisfies the join predicate. There are many possible implementations;
      * the simplest is a nested loops join.
      * <p>
+     * Within a block, the matches are returned in the order of the inner
+     * relation.
+     * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
      * relation. Therefore, if an equality predicate is used there will be two
@@ -103,48 +178,39 @@ public class Join extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        Tuple left = null;
-        Tuple right = null;
-        // 判断 opIterators[0].hasNext() || opIterators[1].hasNext() 是让 opIterators[0]拿出最后一个元素后可以再遍历一遍 opIterators[1]中的元素
-        outer:while(opIterators[0].hasNext() || opIterators[1].hasNext()){
-            if(initial==false || !opIterators[1].hasNext()){
-                initial = true;
-                if(!opIterators[1].hasNext())
-                    opIterators[1].rewind();
-                leftThreadLocal.set(opIterators[0].next());
-            }
-            left = leftThreadLocal.get();
-            right = null;
-            if(left != null){
-                while (opIterators[1].hasNext()){
-                    right = opIterators[1].next();
-                    if(right != null){
-                        if(joinPredicate.filter(left,right)){
-                            break outer;
-                        }else {
-                            right = null;
-                        }
-                    }
+        while (true) {
+            // 把当前的内表tuple和块中剩下的外表tuple逐个比较
+            if (right != null) {
+                while (blockPos < block.size()) {
+                    Tuple left = block.get(blockPos++);
+                    if (joinPredicate.filter(left, right))
+                        return merge(left, right);
                 }
+                right = null;
             }
-        }
-        if(left == null || right == null){
-            return null;
-        }else{
-            Tuple tuple = new Tuple(this.getTupleDesc());
-            Iterator<Field> lIter = left.fields();
-            Iterator<Field> rIter = right.fields();
-            int idx = 0;
-            while (lIter.hasNext()){
-                tuple.setField(idx++,lIter.next());
-            }
-            while (rIter.hasNext()){
-                tuple.setField(idx++,rIter.next());
+            if (!block.isEmpty() && opIterators[1].hasNext()) {
+                right = opIterators[1].next();
+                blockPos = 0;
+            } else if (!readBlock()) {
+                return null;
             }
-            return tuple;
         }
     }
 
+    private Tuple merge(Tuple left, Tuple right) {
+        Tuple tuple = new Tuple(td);
+        Iterator<Field> lIter = left.fields();
+        Iterator<Field> rIter = right.fields();
+        int idx = 0;
+        while (lIter.hasNext()){
+            tuple.setField(idx++,lIter.next());
+        }
+        while (rIter.hasNext()){
+            tuple.setField(idx++,rIter.next());
+        }
+        return tuple;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return this.opIterators;
@@ -0,0 +1,105 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Limit is an operator that implements LIMIT ... OFFSET: it skips the first
+ * offset tuples of its child and returns at most limit of the tuples after
+ * them.
+ * <p>
+ * Once limit tuples have been returned the child is not asked for more, so
+ * a pipelined child, such as a scan with filters, stops reading its table
+ * early.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private final int limit;
+    private final int offset;
+    private transient int returned;
+
+    /**
+     * Constructor.
+     *
+     * @param limit
+     *            the maximum number of tuples to return
+     * @param offset
+     *            the number of tuples to skip first
+     * @param child
+     *            the tuples to limit
+     * @throws IllegalArgumentException if limit or offset is negative
+     */
+    public Limit(int limit, int offset, OpIterator child) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("LIMIT and OFFSET cannot be negative");
+        this.limit = limit;
+        this.offset = offset;
+        this.child = child;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        returned = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        returned = 0;
+        super.close();
+        super.open();
+    }
+
+    /**
+     * Returns the next tuple after the first offset ones, or null once limit
+     * tuples have been returned or the child has no more tuples.
+     */
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        // 够数之后不再调用child.hasNext()，否则Filter之类的算子会一直扫描到表的末尾
+        if (returned >= limit)
+            return null;
+        if (returned == 0) {
+            for (int i = 0; i < offset && child.hasNext(); i++)
+                child.next();
+        }
+        if (!child.hasNext())
+            return null;
+        returned++;
+        return child.next();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
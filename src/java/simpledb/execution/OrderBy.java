@@ -2,24 +2,35 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
-import simpledb.storage.Field;
+import simpledb.storage.CloseableIterator;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * The tuples are sorted on one or more fields with an {@link ExternalSort},
+ * so an input larger than the memory budget of the operator is written out
+ * in sorted runs that are merged when the tuples are read.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The default number of pages worth of tuples an OrderBy keeps in memory */
+    public static final int DEFAULT_MEMORY_PAGES = 64;
+
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
-    private final int orderByField;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
     private final String orderByFieldName;
-    private Iterator<Tuple> it;
+    private final int memoryPages;
+    private transient ExternalSort sort;
+    private transient CloseableIterator<Tuple> it;
     private final boolean asc;
 
     /**
@@ -33,27 +44,76 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[]{orderbyField}, new boolean[]{asc}, child, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Creates a new OrderBy node sorting the tuples from the iterator on
+     * several fields: tuples equal on the first field are ordered by the
+     * second one, and so on.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param ascs
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param memoryPages
+     *            how many pages worth of tuples may be kept in memory.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] ascs, OpIterator child, int memoryPages) {
+        if (orderbyFields.length == 0 || orderbyFields.length != ascs.length)
+            throw new IllegalArgumentException("need one sort order for each of at least one field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = ascs.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.asc = ascs[0];
+        this.memoryPages = memoryPages;
     }
     
+    /**
+     * @return true if the first sort field is in ascending order
+     */
     public boolean isASC()
     {
 	return this.asc;
     }
     
+    /**
+     * @return the first sort field
+     */
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
+
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    public boolean[] getAscs() {
+        return ascs.clone();
+    }
+
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    /**
+     * @return the number of sorted runs written to disk by the last open,
+     *         0 if the tuples were sorted in memory
+     */
+    public int numRuns() {
+        return sort == null ? 0 : sort.numRuns();
+    }
     
     public TupleDesc getTupleDesc() {
         return td;
@@ -62,21 +122,40 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        // 读入所有tuple排序，超出内存预算的部分按有序的run写到磁盘上
+        if (sort != null)
+            sort.close();
+        sort = new ExternalSort(td, new TupleComparator(orderByFields, ascs), memoryPages);
+        try {
+            while (child.hasNext())
+                sort.add(child.next());
+            it = sort.iterator();
+        } catch (IOException e) {
+            throw new DbException("failed to sort: " + e.getMessage());
+        }
         super.open();
     }
 
     public void close() {
         super.close();
+        if (it != null)
+            it.close();
         it = null;
+        if (sort != null) {
+            sort.close();
+            sort = null;
+        }
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException {
+        // 先关闭上一次归并打开的run
+        if (it != null)
+            it.close();
+        try {
+            it = sort.iterator();
+        } catch (IOException e) {
+            throw new DbException("failed to read sorted runs: " + e.getMessage());
+        }
     }
 
     /**
@@ -104,25 +183,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
@@ -0,0 +1,98 @@
+package simpledb.execution;
+
+import simpledb.storage.RecordId;
+
+import java.util.*;
+
+/**
+ * PageBitmap is a set of RecordIds of one table, kept as one bitmap of slots
+ * per page, with the pages in physical order. It is built from index lookups
+ * and lets {@link BitmapHeapScan} visit every heap page only once, in the
+ * order the pages are laid out on disk.
+ * <p>
+ * Bitmaps of several index lookups on the same table are combined with
+ * {@link #and} and {@link #or}.
+ */
+public class PageBitmap {
+    private final TreeMap<Integer, BitSet> pages = new TreeMap<>();
+
+    /**
+     * Add the tuple in the given slot of the given page to this bitmap.
+     */
+    public void add(int pageNo, int slot) {
+        pages.computeIfAbsent(pageNo, p -> new BitSet()).set(slot);
+    }
+
+    public void add(RecordId rid) {
+        add(rid.getPageId().getPageNumber(), rid.getTupleNumber());
+    }
+
+    public boolean contains(RecordId rid) {
+        BitSet slots = pages.get(rid.getPageId().getPageNumber());
+        return slots != null && slots.get(rid.getTupleNumber());
+    }
+
+    /**
+     * @return the number of RecordIds in this bitmap
+     */
+    public int size() {
+        int n = 0;
+        for (BitSet slots : pages.values())
+            n += slots.cardinality();
+        return n;
+    }
+
+    /**
+     * @return the number of pages with at least one RecordId in this bitmap
+     */
+    public int numPages() {
+        return pages.size();
+    }
+
+    /**
+     * @return the page numbers of this bitmap in increasing order
+     */
+    public List<Integer> pageNumbers() {
+        return new ArrayList<>(pages.keySet());
+    }
+
+    /**
+     * @return the slots of the given page that are in this bitmap; must not be modified
+     */
+    public BitSet slots(int pageNo) {
+        BitSet slots = pages.get(pageNo);
+        return slots != null ? slots : new BitSet();
+    }
+
+    /**
+     * @return a new bitmap holding the RecordIds in both this bitmap and other
+     */
+    public PageBitmap and(PageBitmap other) {
+        PageBitmap result = new PageBitmap();
+        // 遍历较小的那个
+        PageBitmap small = pages.size() <= other.pages.size() ? this : other;
+        PageBitmap large = small == this ? other : this;
+        for (Map.Entry<Integer, BitSet> e : small.pages.entrySet()) {
+            BitSet slots = large.pages.get(e.getKey());
+            if (slots == null)
+                continue;
+            BitSet both = (BitSet) e.getValue().clone();
+            both.and(slots);
+            if (!both.isEmpty())
+                result.pages.put(e.getKey(), both);
+        }
+        return result;
+    }
+
+    /**
+     * @return a new bitmap holding the RecordIds in this bitmap, other, or both
+     */
+    public PageBitmap or(PageBitmap other) {
+        PageBitmap result = new PageBitmap();
+        for (Map.Entry<Integer, BitSet> e : pages.entrySet())
+            result.pages.put(e.getKey(), (BitSet) e.getValue().clone());
+        for (Map.Entry<Integer, BitSet> e : other.pages.entrySet())
+            result.pages.computeIfAbsent(e.getKey(), p -> new BitSet()).or(e.getValue());
+        return result;
+    }
+}
@@ -12,6 +12,7 @@ public class PlanCache {
     final Map<Set<LogicalJoinNode>,List<LogicalJoinNode>> bestOrders= new HashMap<>();
     final Map<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<>();
     final Map<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<>();
+    final Map<Set<LogicalJoinNode>,String> bestSortOrders = new HashMap<>();
     
     /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
@@ -22,9 +23,19 @@ public class PlanCache {
         @param order the ordering of the joins in the plan
     */
     public void addPlan(Set<LogicalJoinNode> s, double cost, int card, List<LogicalJoinNode> order) {
+        addPlan(s, cost, card, order, null);
+    }
+
+    /** Add a new plan for a particular join set as {@link #addPlan(Set, double, int, List)}, together
+        with the order its output is sorted in
+        @param sortedOn the field the output of the plan is sorted on, or null if it is not sorted
+    */
+    public void addPlan(Set<LogicalJoinNode> s, double cost, int card, List<LogicalJoinNode> order,
+                        String sortedOn) {
         bestOrders.put(s,order);                        
         bestCosts.put(s,cost);
         bestCardinalities.put(s,card);
+        bestSortOrders.put(s,sortedOn);
     }
     
     /** Find the best join order in the cache for the specified plan 
@@ -50,4 +61,12 @@ public class PlanCache {
     public int getCard(Set<LogicalJoinNode> s) {
         return bestCardinalities.get(s);
     }
+
+    /** Find the field the output of the best plan in the cache for the specified join set is sorted on
+        @param s the set of joins to look up the sort order for
+        @return the field the best plan for s is sorted on, or null if it is not sorted
+    */
+    public String getSortOrder(Set<LogicalJoinNode> s) {
+        return bestSortOrders.get(s);
+    }
 }
@@ -66,6 +66,13 @@ public class SeqScan implements OpIterator {
         return tableAlias;
     }
 
+    /**
+     * @return the transaction this scan runs in
+     */
+    public TransactionId getTransactionId() {
+        return transactionId;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      * @param tableid
@@ -0,0 +1,460 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.CloseableIterator;
+import simpledb.storage.DbFile;
+import simpledb.storage.Field;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two children that both return their tuples in
+ * ascending order of their join fields, reading each of them once.
+ * <p>
+ * For an equality predicate the children are merged: the inner tuples that
+ * share a key are buffered while the outer tuples with that key are joined
+ * with them, so duplicate keys on both sides are handled. For a range
+ * predicate the matches of an outer tuple are a prefix (outer &gt; inner) or
+ * a suffix (outer &lt; inner) of the inner relation, whose bounds only move
+ * forward as the outer key grows: inner tuples are added to the back of the
+ * buffered window as they start to match, and dropped from its front once
+ * they no longer can. NOT_EQUALS and LIKE are not supported.
+ * <p>
+ * The window keeps at most memoryPages pages of inner tuples in memory; once
+ * it grows beyond them, its older part is written to {@link SpillFile}s of
+ * that size and read again for every outer tuple it matches.
+ * <p>
+ * The output is in ascending order of the outer join field. Use
+ * {@link #canMerge} to check that two plans arrive sorted.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int DEFAULT_MEMORY_PAGES = 16;
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    private final int memoryPages;
+
+    // 当前外表tuple匹配的内表tuple窗口：较早的部分按段写到磁盘上，之后的在inner中
+    private final List<SpillFile> spilled = new ArrayList<>();
+    private final List<Tuple> inner = new ArrayList<>();
+    // spilled第一段中已经移出窗口的tuple数
+    private transient long dropped;
+    // inner中已经移出窗口的tuple数，只在没有写到磁盘的段时使用
+    private transient int start;
+    private transient int maxTuples;
+    private transient Tuple pending;
+    private transient Tuple left;
+    private transient CloseableIterator<Tuple> matches;
+
+    /**
+     * Constructor. The window of inner tuples may hold
+     * {@link #DEFAULT_MEMORY_PAGES} pages of tuples in memory.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join, in ascending
+     *            order of its join field
+     * @param child2
+     *            Iterator for the right(inner) relation to join, in ascending
+     *            order of its join field
+     * @throws IllegalArgumentException if the predicate is NOT_EQUALS or LIKE
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join, in ascending
+     *            order of its join field
+     * @param child2
+     *            Iterator for the right(inner) relation to join, in ascending
+     *            order of its join field
+     * @param memoryPages
+     *            how many pages worth of inner tuples the window of matches
+     *            may keep in memory
+     * @throws IllegalArgumentException if the predicate is NOT_EQUALS or LIKE
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryPages) {
+        if (!canMerge(p.getOperator()))
+            throw new IllegalArgumentException("cannot merge on " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.memoryPages = Math.max(1, memoryPages);
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return how many pages worth of inner tuples are kept in memory
+     */
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    /**
+     * @return true if a merge join can evaluate the operator
+     */
+    public static boolean canMerge(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
+    /**
+     * @return true if the operator of p can be merged and both children
+     *         return their tuples in ascending order of their join fields,
+     *         see {@link #sortedOn}
+     */
+    public static boolean canMerge(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!canMerge(p.getOperator()))
+            return false;
+        String s1 = sortedOn(child1), s2 = sortedOn(child2);
+        return s1 != null && s1.equals(child1.getTupleDesc().getFieldName(p.getField1()))
+                && s2 != null && s2.equals(child2.getTupleDesc().getFieldName(p.getField2()));
+    }
+
+    /**
+     * Find the field a plan returns its tuples in ascending order of, from
+     * the operators it is built of:
+     * <ul>
+     * <li>scans of a {@link BTreeFile} return the tuples in order of its
+     *   first key field, unless they scan it in descending order,
+     * <li>scans of a B+ tree secondary index, {@link IndexHeapScan} and
+     *   {@link IndexOnlyScan}, return them in order of the indexed field,
+     * <li>an ascending {@link OrderBy} or {@link TopN} sorts them,
+     * <li>a SortMergeJoin returns them in order of its outer join field, and
+     *   so does an {@link IndexNestedLoopJoin} whose outer child is sorted on
+     *   its join field,
+     * <li>{@link Filter}, {@link Project} and {@link Limit} keep the order of
+     *   their child.
+     * </ul>
+     *
+     * @return the name of the field, or null if the plan is not known to
+     *         return its tuples in order
+     */
+    public static String sortedOn(OpIterator plan) {
+        if (plan instanceof Filter || plan instanceof Project || plan instanceof Limit) {
+            String name = sortedOn(((Operator) plan).getChildren()[0]);
+            if (name == null)
+                return null;
+            // 投影可能去掉了排序字段
+            for (int i = 0; i < plan.getTupleDesc().numFields(); i++) {
+                if (name.equals(plan.getTupleDesc().getFieldName(i)))
+                    return name;
+            }
+            return null;
+        }
+        if (plan instanceof SeqScan)
+            return btreeOrder(((SeqScan) plan).getTableName(), plan.getTupleDesc());
+        if (plan instanceof BTreeScan) {
+            BTreeScan scan = (BTreeScan) plan;
+            return scan.isDescending() ? null : btreeOrder(scan.getTableName(), plan.getTupleDesc());
+        }
+        // 哈希索引的项没有顺序
+        if (plan instanceof IndexHeapScan) {
+            IndexHeapScan scan = (IndexHeapScan) plan;
+            return scan.getIndex().isHash() ? null : plan.getTupleDesc().getFieldName(scan.getIndex().getKeyField());
+        }
+        if (plan instanceof IndexOnlyScan) {
+            IndexOnlyScan scan = (IndexOnlyScan) plan;
+            if (scan.getIndex().isHash())
+                return null;
+            String key = Database.getCatalog().getTupleDesc(scan.getIndex().getTableId())
+                    .getFieldName(scan.getIndex().getKeyField());
+            return scan.getAlias() + "." + key;
+        }
+        if (plan instanceof OrderBy) {
+            OrderBy o = (OrderBy) plan;
+            return o.isASC() ? o.getOrderFieldName() : null;
+        }
+        if (plan instanceof TopN) {
+            TopN o = (TopN) plan;
+            return o.getAscs()[0] ? plan.getTupleDesc().getFieldName(o.getOrderByFields()[0]) : null;
+        }
+        if (plan instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) plan;
+            return j.getJoinField1Name();
+        }
+        if (plan instanceof IndexNestedLoopJoin) {
+            // 每批外表tuple按连接字段稳定排序，外表本来就按连接字段有序时顺序不变
+            IndexNestedLoopJoin j = (IndexNestedLoopJoin) plan;
+            String name = j.getJoinField1Name();
+            return name.equals(sortedOn(j.getChildren()[0])) ? name : null;
+        }
+        return null;
+    }
+
+    private static String btreeOrder(String tableName, TupleDesc td) {
+        DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(tableName));
+        if (!(f instanceof BTreeFile))
+            return null;
+        return td.getFieldName(((BTreeFile) f).keyField());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        maxTuples = ExternalSort.memoryTuples(child2.getTupleDesc(), memoryPages);
+        reset();
+        super.open();
+    }
+
+    private void reset() {
+        clearWindow();
+        pending = null;
+        left = null;
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        reset();
+        super.close();
+        super.open();
+    }
+
+    /**
+     * @return the next inner tuple, without consuming it, or null if the
+     *         inner child has no more tuples
+     */
+    private Tuple peekInner() throws DbException, TransactionAbortedException {
+        if (pending == null && child2.hasNext())
+            pending = child2.next();
+        return pending;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of an outer tuple with one of the inner
+     * tuples matching it, in ascending order of the outer join field.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        try {
+            while (true) {
+                if (matches != null && matches.hasNext())
+                    return merge(left, matches.next());
+                if (!child1.hasNext())
+                    return null;
+                Tuple next = child1.next();
+                if (pred.getOperator() == Predicate.Op.EQUALS)
+                    findGroup(left, next);
+                else
+                    findRange(next);
+                left = next;
+                matches = new WindowIterator();
+            }
+        } catch (IOException e) {
+            clearWindow();
+            throw new DbException("cannot spill merge join window: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Make the window hold the inner tuples with the join key of the outer
+     * tuple next, unless it already holds them for the previous outer tuple.
+     */
+    private void findGroup(Tuple previous, Tuple next) throws DbException, TransactionAbortedException,
+            IOException {
+        Field key = next.getField(pred.getField1());
+        if (previous != null && previous.getField(pred.getField1()).equals(key))
+            return;
+        clearWindow();
+        Tuple t;
+        while ((t = peekInner()) != null && t.getField(pred.getField2()).compare(Predicate.Op.LESS_THAN, key))
+            pending = null;
+        while ((t = peekInner()) != null && t.getField(pred.getField2()).equals(key)) {
+            addInner(t);
+            pending = null;
+        }
+    }
+
+    /**
+     * Make the window hold the inner tuples matching the outer tuple next
+     * under a range predicate, reading more inner tuples as needed.
+     */
+    private void findRange(Tuple next) throws DbException, TransactionAbortedException, IOException {
+        Predicate.Op op = pred.getOperator();
+        Tuple t;
+        if (op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ) {
+            // 匹配的是内表的前缀，随着外表key增大而变长，窗口里的tuple一直匹配
+            while ((t = peekInner()) != null && pred.filter(next, t)) {
+                addInner(t);
+                pending = null;
+            }
+        } else {
+            // 匹配的是内表的后缀，起点随着外表key增大而后移，窗口前面不再匹配的tuple移出
+            while ((t = peekInner()) != null) {
+                addInner(t);
+                pending = null;
+            }
+            dropNonMatching(next);
+        }
+    }
+
+    /**
+     * Add an inner tuple to the back of the window, first writing the part
+     * of the window held in memory to a new spill file if it is full.
+     */
+    private void addInner(Tuple t) throws IOException {
+        if (inner.size() - start >= maxTuples) {
+            SpillFile f = new SpillFile(child2.getTupleDesc());
+            spilled.add(f);
+            for (int i = start; i < inner.size(); i++)
+                f.add(inner.get(i));
+            inner.clear();
+            start = 0;
+        }
+        inner.add(t);
+    }
+
+    /**
+     * Drop the tuples at the front of the window that do not match the outer
+     * tuple next; under a LESS_THAN predicate they match no later outer tuple
+     * either.
+     */
+    private void dropNonMatching(Tuple next) throws IOException {
+        while (!spilled.isEmpty()) {
+            SpillFile f = spilled.get(0);
+            try (CloseableIterator<Tuple> it = f.iterator()) {
+                skip(it, dropped);
+                while (it.hasNext() && !pred.filter(next, it.next()))
+                    dropped++;
+            }
+            if (dropped < f.size())
+                return;
+            f.close();
+            spilled.remove(0);
+            dropped = 0;
+        }
+        while (start < inner.size() && !pred.filter(next, inner.get(start)))
+            start++;
+        // 移出的tuple过半时再压缩，避免每次都移动整个列表
+        if (start > inner.size() / 2) {
+            inner.subList(0, start).clear();
+            start = 0;
+        }
+    }
+
+    private static void skip(Iterator<Tuple> it, long n) {
+        for (long i = 0; i < n && it.hasNext(); i++)
+            it.next();
+    }
+
+    /**
+     * Empty the window, deleting its spill files.
+     */
+    private void clearWindow() {
+        if (matches != null)
+            matches.close();
+        matches = null;
+        for (SpillFile f : spilled)
+            f.close();
+        spilled.clear();
+        inner.clear();
+        dropped = 0;
+        start = 0;
+    }
+
+    /**
+     * Iterates over the tuples of the window: those of the spill files, in
+     * the order they were written, and then those held in memory.
+     */
+    private class WindowIterator implements CloseableIterator<Tuple> {
+        private int segment = 0;
+        private CloseableIterator<Tuple> it;
+        private int pos = start;
+
+        public boolean hasNext() {
+            while (true) {
+                if (it != null && it.hasNext())
+                    return true;
+                if (segment >= spilled.size())
+                    return pos < inner.size();
+                try {
+                    it = spilled.get(segment).iterator();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                if (segment++ == 0)
+                    skip(it, dropped);
+            }
+        }
+
+        public Tuple next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            if (it != null && it.hasNext())
+                return it.next();
+            return inner.get(pos++);
+        }
+
+        public void close() {
+            if (it != null)
+                it.close();
+            segment = spilled.size();
+            pos = inner.size();
+        }
+    }
+
+    private Tuple merge(Tuple left, Tuple right) {
+        Tuple t = new Tuple(comboTD);
+        int n1 = left.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            t.setField(i, left.getField(i));
+        for (int i = 0; i < right.getTupleDesc().numFields(); i++)
+            t.setField(n1 + i, right.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
@@ -0,0 +1,134 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * TopN returns the first n tuples of its child in the order of an ORDER BY
+ * on one or more fields, the same tuples an {@link OrderBy} followed by a
+ * {@link Limit} of n would return. Instead of sorting the whole input it
+ * keeps the n smallest tuples seen so far in a bounded heap, whose root is
+ * the largest of them and is replaced whenever a smaller tuple arrives, so
+ * it needs memory for n tuples and O(log n) work per input tuple.
+ * <p>
+ * Ties are broken by the order the child returns the tuples in, as in the
+ * stable sort of OrderBy.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private final TupleDesc td;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
+    private final int n;
+    private transient List<Tuple> result;
+    private transient Iterator<Tuple> it;
+
+    /**
+     * Constructor.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param ascs
+     *            for each field, true if the sort order is ascending.
+     * @param n
+     *            how many tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] ascs, int n, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != ascs.length)
+            throw new IllegalArgumentException("need one sort order for each of at least one field");
+        if (n < 0)
+            throw new IllegalArgumentException("n cannot be negative");
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = ascs.clone();
+        this.n = n;
+    }
+
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    public boolean[] getAscs() {
+        return ascs.clone();
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        Comparator<Tuple> order = new TupleComparator(orderByFields, ascs);
+        // 堆顶是目前保留的n个tuple中最大的；相等时后读到的更大，保证结果和稳定排序一致
+        PriorityQueue<Map.Entry<Long, Tuple>> heap = new PriorityQueue<>(Math.max(1, n),
+                (a, b) -> {
+                    int c = order.compare(b.getValue(), a.getValue());
+                    return c != 0 ? c : Long.compare(b.getKey(), a.getKey());
+                });
+        long seq = 0;
+        if (n > 0) {
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                if (heap.size() < n) {
+                    heap.add(new AbstractMap.SimpleEntry<>(seq++, t));
+                } else if (order.compare(t, heap.peek().getValue()) < 0) {
+                    heap.poll();
+                    heap.add(new AbstractMap.SimpleEntry<>(seq++, t));
+                }
+            }
+        }
+        result = new ArrayList<>(heap.size());
+        while (!heap.isEmpty())
+            result.add(heap.poll().getValue());
+        Collections.reverse(result);
+        it = result.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        result = null;
+        it = null;
+    }
+
+    public void rewind() {
+        it = result.iterator();
+    }
+
+    /**
+     * Returns the next of the first n tuples in order, or null if there are
+     * no more.
+     */
+    protected Tuple fetchNext() {
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
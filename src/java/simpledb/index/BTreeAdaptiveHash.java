@@ -0,0 +1,198 @@
+package simpledb.index;
+
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+
+import java.util.*;
+
+/**
+ * An adaptive hash index over the hot leaf pages of a BTreeFile: an in-memory
+ * map from a key to the leaf page and slot holding the first tuple with that
+ * key, so that an equality search for a hot key reads a single page instead of
+ * traversing the tree from the root.
+ * <p>
+ * The index is built from the searches themselves: once
+ * {@link #HOT_SEARCHES} equality searches have found their first tuple on
+ * the same leaf page, every key whose first tuple lies on that page is
+ * hashed. Entries are only hints. The BTreeFile drops the entries of the
+ * pages it splits, merges, redistributes or frees and the entry of every key
+ * it deletes, and a search through the index checks on the locked leaf page
+ * that the key still starts there before using it.
+ */
+public class BTreeAdaptiveHash {
+	/** the number of equality searches ending on a leaf page before its keys are hashed */
+	public static final int HOT_SEARCHES = 8;
+	/** the maximum number of keys hashed; the least recently used keys are dropped first */
+	public static final int MAX_KEYS = 1 << 16;
+	// 记录查找次数的叶子页数的上限，超过后从头开始计数
+	private static final int MAX_COUNTED_LEAVES = 1 << 12;
+
+	/**
+	 * A hashed key: the leaf page and the slot holding the first tuple with the key.
+	 */
+	static class Entry {
+		final BTreePageId leaf;
+		final int slot;
+
+		Entry(BTreePageId leaf, int slot) {
+			this.leaf = leaf;
+			this.slot = slot;
+		}
+	}
+
+	// 以下成员都由this保护
+	private final LinkedHashMap<Field, Entry> entries = new LinkedHashMap<Field, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Field, Entry> eldest) {
+			if(size() <= MAX_KEYS)
+				return false;
+			unlink(eldest.getKey(), eldest.getValue().leaf);
+			return true;
+		}
+	};
+	private final Map<BTreePageId, Set<Field>> keysByLeaf = new HashMap<>();
+	private final Map<BTreePageId, Integer> searches = new HashMap<>();
+	private boolean enabled = true;
+	private long hits = 0;
+
+	/**
+	 * @return the entry of key, or null if key is not hashed
+	 */
+	synchronized Entry get(Field key) {
+		return enabled ? entries.get(key) : null;
+	}
+
+	/**
+	 * Count an equality search that found the first tuple with its key on the
+	 * given leaf page, and hash the keys of the page once it is hot. The caller
+	 * must hold a lock on the page, which must not be dirty: pages dirtied by a
+	 * running transaction may be rolled back.
+	 */
+	synchronized void recordSearch(BTreeLeafPage leaf) {
+		if(!enabled)
+			return;
+		BTreePageId pid = leaf.getId();
+		if(searches.size() >= MAX_COUNTED_LEAVES && !searches.containsKey(pid))
+			searches.clear();
+		int n = searches.merge(pid, 1, Integer::sum);
+		if(n < HOT_SEARCHES)
+			return;
+		searches.remove(pid);
+
+		invalidate(pid);
+		// 只有在本页开始的key才能直接定位：前面有更小的key，或者本页是最左边的叶子页
+		Field prev = null;
+		boolean leftmost = leaf.getLeftSiblingId() == null;
+		Iterator<Tuple> it = leaf.iterator();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			Field key = leaf.getKey(t);
+			if(prev == null ? leftmost : prev.compare(Op.LESS_THAN, key))
+				put(key, new Entry(pid, t.getRecordId().getTupleNumber()));
+			prev = key;
+		}
+	}
+
+	private void put(Field key, Entry e) {
+		Entry old = entries.get(key);
+		if(old != null)
+			unlink(key, old.leaf);
+		entries.put(key, e);
+		keysByLeaf.computeIfAbsent(e.leaf, k -> new HashSet<>()).add(key);
+	}
+
+	private void unlink(Field key, BTreePageId leaf) {
+		Set<Field> keys = keysByLeaf.get(leaf);
+		if(keys != null) {
+			keys.remove(key);
+			if(keys.isEmpty())
+				keysByLeaf.remove(leaf);
+		}
+	}
+
+	/**
+	 * Record that an equality search for key used entry e, which now points
+	 * at the given slot.
+	 */
+	synchronized void hit(Field key, Entry e, int slot) {
+		hits++;
+		if(slot != e.slot && entries.get(key) == e)
+			entries.put(key, new Entry(e.leaf, slot));
+	}
+
+	/**
+	 * Drop the entry e of key, found to be stale by a search.
+	 */
+	synchronized void remove(Field key, Entry e) {
+		if(entries.get(key) == e) {
+			entries.remove(key);
+			unlink(key, e.leaf);
+		}
+	}
+
+	/**
+	 * Drop the entries of all keys hashed to the given leaf page, whose tuples
+	 * are being moved to or from other pages, and forget the searches counted
+	 * on it.
+	 */
+	synchronized void invalidate(BTreePageId leaf) {
+		searches.remove(leaf);
+		Set<Field> keys = keysByLeaf.remove(leaf);
+		if(keys != null) {
+			for(Field key : keys)
+				entries.remove(key);
+		}
+	}
+
+	/**
+	 * Drop the entry of key if it is hashed to the given leaf page, from which
+	 * a tuple with the key is being deleted.
+	 */
+	synchronized void invalidate(BTreePageId leaf, Field key) {
+		Entry e = entries.get(key);
+		if(e != null && e.leaf.equals(leaf)) {
+			entries.remove(key);
+			unlink(key, leaf);
+		}
+	}
+
+	/**
+	 * Drop all entries and counted searches.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		keysByLeaf.clear();
+		searches.clear();
+	}
+
+	/**
+	 * Turn the index on or off; turning it off drops all entries.
+	 */
+	public synchronized void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if(!enabled)
+			clear();
+	}
+
+	public synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the number of keys hashed
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of equality searches that started from an entry of
+	 *   this index instead of the root of the tree
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+}
@@ -0,0 +1,449 @@
+package simpledb.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.ExternalSort;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * BTreeBulkLoader builds a new BTreeFile bottom-up from tuples that are
+ * already sorted on the key field.
+ * <p>
+ * Since the number of tuples is known in advance, the shape of the whole
+ * tree is computed first: how many pages each level has, how many tuples or
+ * children go into each page, and which page number each page gets. Every
+ * page can then be written exactly once, with its parent and sibling
+ * pointers already set, while the tuples stream by. Only one page per level
+ * is kept in memory and the buffer pool is not used at all; the file must
+ * not be visible to other transactions until the build has finished.
+ * <p>
+ * Pages are filled up to the fill factor, leaving room for later inserts
+ * before the first splits. Tuples and children are spread evenly over the
+ * pages of a level, so no page but the root is less than half as full as the
+ * fill factor asks for.
+ * <p>
+ * Trees with compressed keys are built differently, since how many tuples
+ * fit on a page depends on their keys, see {@link #buildCompressed}.
+ *
+ * @see BTreeFileEncoder
+ */
+public class BTreeBulkLoader {
+
+	public static final double DEFAULT_FILL_FACTOR = 1.0;
+	/** pages of tuples the external sort of createIndex may keep in memory */
+	public static final int DEFAULT_SORT_PAGES = 64;
+
+	private final File f;
+	private final TupleDesc td;
+	private final int[] keyFields;
+	private final boolean compressKeys;
+	private final double fillFactor;
+	private final int npagebytes;
+	private final int leafCapacity;
+	private final int internalCapacity; // 每个内部页最多放多少个孩子
+
+	/**
+	 * One level of the tree being built. Level 0 holds the leaves.
+	 */
+	private static class Level {
+		final int firstPage;
+		final int numPages;
+		final long numItems;
+		int current = 0; // 正在填充的页
+		final List<Field> keys = new ArrayList<>();
+		final List<Integer> children = new ArrayList<>();
+
+		Level(int firstPage, int numPages, long numItems) {
+			this.firstPage = firstPage;
+			this.numPages = numPages;
+			this.numItems = numItems;
+		}
+
+		/** @return the number of items (tuples or children) on the jth page */
+		int pageSize(int j) {
+			long q = numItems / numPages;
+			long r = numItems % numPages;
+			return (int) (q + (j < r ? 1 : 0));
+		}
+
+		/** @return the index of the page holding the cth item */
+		int pageOf(long c) {
+			long q = numItems / numPages;
+			long r = numItems % numPages;
+			if(c < r * (q + 1))
+				return (int) (c / (q + 1));
+			return (int) (r + (c - r * (q + 1)) / q);
+		}
+	}
+
+	/**
+	 * @param f - the file to write the new B+ tree to; any existing content is lost
+	 * @param td - the tuple descriptor of the tuples
+	 * @param keyField - the field the B+ tree is keyed on
+	 * @param fillFactor - how full to make each page, between 0.5 and 1
+	 */
+	public BTreeBulkLoader(File f, TupleDesc td, int keyField, double fillFactor) {
+		this(f, td, new int[]{keyField}, fillFactor);
+	}
+
+	/**
+	 * @param f - the file to write the new B+ tree to; any existing content is lost
+	 * @param td - the tuple descriptor of the tuples
+	 * @param keyFields - the fields the B+ tree is keyed on, most significant first
+	 * @param fillFactor - how full to make each page, between 0.5 and 1
+	 */
+	public BTreeBulkLoader(File f, TupleDesc td, int[] keyFields, double fillFactor) {
+		this(f, td, keyFields, fillFactor, BTreeKeyCodec.compressByDefault(td, keyFields));
+	}
+
+	/**
+	 * @param f - the file to write the new B+ tree to; any existing content is lost
+	 * @param td - the tuple descriptor of the tuples
+	 * @param keyFields - the fields the B+ tree is keyed on, most significant first
+	 * @param fillFactor - how full to make each page, between 0.5 and 1
+	 * @param compressKeys - whether the pages store their keys compressed
+	 * @see BTreeFile#BTreeFile(File, int[], TupleDesc, boolean)
+	 */
+	public BTreeBulkLoader(File f, TupleDesc td, int[] keyFields, double fillFactor, boolean compressKeys) {
+		if(fillFactor < 0.5 || fillFactor > 1.0)
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1, not " + fillFactor);
+		this.f = f;
+		this.td = td;
+		this.keyFields = keyFields.clone();
+		this.compressKeys = compressKeys;
+		this.fillFactor = fillFactor;
+		this.npagebytes = BufferPool.getPageSize();
+
+		int nrecbytes = td.getSize();
+		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
+		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE;
+		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) / (nrecbytes * 8 + 1);
+		this.leafCapacity = Math.max(1, (int) (nrecords * fillFactor));
+
+		int nentrybytes = CompositeKey.getLen(td, keyFields) + BTreeInternalPage.INDEX_SIZE;
+		// pointerbytes: one extra child pointer, parent pointer, child page category
+		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1;
+		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) / (nentrybytes * 8 + 1);
+		// 至少4个孩子，保证平均分配后每个内部页都至少有一个key
+		this.internalCapacity = Math.max(4, (int) ((nentries + 1) * fillFactor));
+	}
+
+	/**
+	 * Build an index on one field of an existing table: all the tuples of the
+	 * table are read within tid, sorted on the key field with an external sort
+	 * using at most {@link #DEFAULT_SORT_PAGES} pages of memory, and written
+	 * to a new B+ tree file. The caller is responsible for adding the returned
+	 * file to the catalog once the build has succeeded.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param table - the table to index
+	 * @param keyField - the field to index
+	 * @param f - the file to write the new B+ tree to
+	 * @param fillFactor - how full to make each page, between 0.5 and 1
+	 * @return the new BTreeFile
+	 */
+	public static BTreeFile createIndex(TransactionId tid, DbFile table, int keyField, File f, double fillFactor)
+			throws DbException, TransactionAbortedException, IOException {
+		return createIndex(tid, table, new int[]{keyField}, f, fillFactor);
+	}
+
+	/**
+	 * Build an index on several fields of an existing table, ordered on the
+	 * first field, then on the second, and so on.
+	 * @see #createIndex(TransactionId, DbFile, int, File, double)
+	 *
+	 * @param keyFields - the fields to index, most significant first
+	 */
+	public static BTreeFile createIndex(TransactionId tid, DbFile table, int[] keyFields, File f, double fillFactor)
+			throws DbException, TransactionAbortedException, IOException {
+		BTreeBulkLoader loader = new BTreeBulkLoader(f, table.getTupleDesc(), keyFields, fillFactor);
+		try (ExternalSort sort = new ExternalSort(table.getTupleDesc(),
+				new BTreeFileEncoder.TupleComparator(keyFields), DEFAULT_SORT_PAGES)) {
+			DbFileIterator it = table.iterator(tid);
+			it.open();
+			while(it.hasNext())
+				sort.add(it.next());
+			it.close();
+			return loader.build(sort.iterator(), sort.size());
+		}
+	}
+
+	/**
+	 * Write a B+ tree containing the given tuples.
+	 *
+	 * @param tuples - the tuples, sorted on the key field
+	 * @param numTuples - the number of tuples
+	 * @return the new BTreeFile
+	 */
+	public BTreeFile build(Iterator<Tuple> tuples, long numTuples) throws IOException, DbException {
+		if(compressKeys)
+			return buildCompressed(tuples, numTuples);
+		List<Level> levels = new ArrayList<>();
+		if(numTuples > 0) {
+			int next = 1;
+			long items = numTuples;
+			int capacity = leafCapacity;
+			while(true) {
+				int pages = (int) ((items + capacity - 1) / capacity);
+				levels.add(new Level(next, pages, items));
+				next += pages;
+				if(pages == 1)
+					break;
+				items = pages;
+				capacity = internalCapacity;
+			}
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			raf.setLength(0);
+			if(levels.isEmpty()) {
+				raf.write(BTreeFileEncoder.convertToRootPtrPage(0, BTreePageId.LEAF, 0));
+			}
+			else {
+				Level root = levels.get(levels.size() - 1);
+				raf.write(BTreeFileEncoder.convertToRootPtrPage(root.firstPage,
+						levels.size() == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL, 0));
+
+				Level leaves = levels.get(0);
+				List<Tuple> page = new ArrayList<>();
+				long read = 0;
+				while(read < numTuples) {
+					if(!tuples.hasNext())
+						throw new DbException("expected " + numTuples + " tuples but only got " + read);
+					Tuple t = tuples.next();
+					read++;
+					page.add(t);
+					if(page.size() == leaves.pageSize(leaves.current)) {
+						writeLeafPage(raf, levels, page);
+						page.clear();
+					}
+				}
+			}
+		}
+		return new BTreeFile(f, keyFields, td, false);
+	}
+
+	/**
+	 * Write a B+ tree with compressed keys. How many tuples or children fit on
+	 * a page depends on their keys, so the shape of the tree is not known in
+	 * advance: the pages of a level are filled up to the fill factor one after
+	 * the other and numbered in that order, starting with the leaves, and the
+	 * parent pointers of a level are written once the level above it has been
+	 * built. Separators are suffix truncated as they are when leaves split.
+	 *
+	 * @param tuples - the tuples, sorted on the key field
+	 * @param numTuples - the number of tuples
+	 * @return the new BTreeFile
+	 */
+	private BTreeFile buildCompressed(Iterator<Tuple> tuples, long numTuples) throws IOException, DbException {
+		BTreeKeyCodec codec = new BTreeKeyCodec(td, keyFields);
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			raf.setLength(0);
+			raf.write(BTreeFileEncoder.convertToRootPtrPage(0, BTreePageId.LEAF, 0));
+			if(numTuples == 0)
+				return new BTreeFile(f, keyFields, td, true);
+
+			// 每一层的页号和每页之前的分隔key，第一页没有分隔key
+			List<Integer> pages = new ArrayList<>();
+			List<Field> separators = new ArrayList<>();
+			int limit = (int) (codec.leafCapacity() * fillFactor);
+			List<Tuple> page = new ArrayList<>();
+			byte[] prev = null;
+			int used = 0;
+			Field lastKey = null;
+			long read = 0;
+			while(read < numTuples) {
+				if(!tuples.hasNext())
+					throw new DbException("expected " + numTuples + " tuples but only got " + read);
+				Tuple t = tuples.next();
+				read++;
+				Field key = CompositeKey.keyOf(t, keyFields);
+				byte[] encoded = codec.encode(key);
+				int size = BTreeKeyCodec.keySize(prev, encoded) + codec.nonKeySize();
+				if(!page.isEmpty() && (used + size > limit || page.size() == codec.leafSlots())) {
+					// 还有下一页，右兄弟就是下一个页号
+					int pageNo = pages.size() + 1;
+					writePage(raf, pageNo, codec.leafPageData(0, pageNo - 1, pageNo + 1, page));
+					pages.add(pageNo);
+					page.clear();
+					separators.add(codec.separator(lastKey, key));
+					encoded = codec.encode(key);
+					prev = null;
+					used = 0;
+					size = BTreeKeyCodec.keySize(null, encoded) + codec.nonKeySize();
+				}
+				page.add(t);
+				used += size;
+				prev = encoded;
+				lastKey = key;
+			}
+			int pageNo = pages.size() + 1;
+			writePage(raf, pageNo, codec.leafPageData(0, pageNo - 1, 0, page));
+			pages.add(pageNo);
+			if(separators.size() < pages.size())
+				separators.add(0, null);
+
+			int childCategory = BTreePageId.LEAF;
+			int next = pageNo + 1;
+			limit = (int) (codec.internalCapacity() * fillFactor);
+			while(pages.size() > 1) {
+				// 把这一层的孩子分组，每组至少两个孩子
+				List<List<Integer>> groups = new ArrayList<>();
+				List<Integer> group = new ArrayList<>();
+				used = 0;
+				prev = null;
+				for(int i=0; i<pages.size(); i++) {
+					int size = 0;
+					byte[] encoded = null;
+					if(!group.isEmpty()) {
+						encoded = codec.encode(separators.get(i));
+						size = BTreeKeyCodec.keySize(prev, encoded) + BTreeInternalPage.INDEX_SIZE;
+						if(group.size() >= 2 && (used + size > limit || group.size() > codec.internalSlots())) {
+							groups.add(group);
+							group = new ArrayList<>();
+							used = 0;
+							encoded = null;
+							size = 0;
+						}
+					}
+					group.add(i);
+					used += size;
+					prev = encoded;
+				}
+				if(group.size() == 1 && groups.get(groups.size() - 1).size() > 2) {
+					List<Integer> last = groups.get(groups.size() - 1);
+					group.add(0, last.remove(last.size() - 1));
+				}
+				else if(group.size() == 1) {
+					groups.get(groups.size() - 1).addAll(group);
+					group = null;
+				}
+				if(group != null)
+					groups.add(group);
+
+				List<Integer> upPages = new ArrayList<>();
+				List<Field> upSeparators = new ArrayList<>();
+				for(List<Integer> g : groups) {
+					List<Field> keys = new ArrayList<>();
+					List<Integer> children = new ArrayList<>();
+					for(int i : g) {
+						if(!children.isEmpty())
+							keys.add(separators.get(i));
+						children.add(pages.get(i));
+					}
+					int parentNo = next++;
+					writePage(raf, parentNo, codec.internalPageData(0, childCategory, keys, children));
+					for(int child : children)
+						setParent(raf, child, parentNo);
+					upPages.add(parentNo);
+					upSeparators.add(separators.get(g.get(0)));
+				}
+				pages = upPages;
+				separators = upSeparators;
+				childCategory = BTreePageId.INTERNAL;
+			}
+
+			raf.seek(0);
+			raf.write(BTreeFileEncoder.convertToRootPtrPage(pages.get(0),
+					childCategory == BTreePageId.LEAF ? BTreePageId.LEAF : BTreePageId.INTERNAL, 0));
+		}
+		return new BTreeFile(f, keyFields, td, true);
+	}
+
+	/**
+	 * Overwrite the parent pointer, the first field of every B+ tree page, of a
+	 * page already written.
+	 */
+	private void setParent(RandomAccessFile raf, int pageNo, int parent) throws IOException {
+		raf.seek(BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * npagebytes);
+		raf.writeInt(parent);
+	}
+
+	private void writeLeafPage(RandomAccessFile raf, List<Level> levels, List<Tuple> tuples)
+			throws IOException {
+		Level leaves = levels.get(0);
+		int j = leaves.current++;
+		int pageNo = leaves.firstPage + j;
+		byte[] data = BTreeFileEncoder.convertToLeafPage(tuples, npagebytes, td.numFields(),
+				getTypes(), keyFields);
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		buf.putInt(0, parentOf(levels, 0, j));
+		buf.putInt(4, j > 0 ? pageNo - 1 : 0);
+		buf.putInt(8, j < leaves.numPages - 1 ? pageNo + 1 : 0);
+		writePage(raf, pageNo, data);
+		addChild(raf, levels, 1, CompositeKey.keyOf(tuples.get(0), keyFields), pageNo);
+	}
+
+	/**
+	 * Add a child page to the page currently being filled at the given level,
+	 * and write that page out once it has all its children.
+	 */
+	private void addChild(RandomAccessFile raf, List<Level> levels, int level, Field firstKey, int child)
+			throws IOException {
+		if(level >= levels.size())
+			return;
+		Level l = levels.get(level);
+		l.keys.add(firstKey);
+		l.children.add(child);
+		if(l.children.size() < l.pageSize(l.current))
+			return;
+
+		int j = l.current++;
+		int pageNo = l.firstPage + j;
+		int childCategory = level == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+		int tableid = f.getAbsoluteFile().hashCode();
+		List<BTreeEntry> entries = new ArrayList<>();
+		for(int i=1; i<l.children.size(); i++) {
+			// 每个孩子的第一个key就是它和左边孩子之间的分隔key
+			entries.add(new BTreeEntry(l.keys.get(i),
+					new BTreePageId(tableid, l.children.get(i - 1), childCategory),
+					new BTreePageId(tableid, l.children.get(i), childCategory)));
+		}
+		byte[] data = BTreeFileEncoder.convertToInternalPage(entries, npagebytes,
+				CompositeKey.getLen(td, keyFields), childCategory);
+		ByteBuffer.wrap(data).putInt(0, parentOf(levels, level, j));
+		writePage(raf, pageNo, data);
+		Field pageKey = l.keys.get(0);
+		l.keys.clear();
+		l.children.clear();
+		addChild(raf, levels, level + 1, pageKey, pageNo);
+	}
+
+	/**
+	 * @return the page number of the parent of the jth page at the given level,
+	 * or 0 (the root pointer page) for the root
+	 */
+	private int parentOf(List<Level> levels, int level, int j) {
+		if(level == levels.size() - 1)
+			return 0;
+		Level parent = levels.get(level + 1);
+		return parent.firstPage + parent.pageOf(j);
+	}
+
+	private void writePage(RandomAccessFile raf, int pageNo, byte[] data) throws IOException {
+		raf.seek(BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * npagebytes);
+		raf.write(data);
+	}
+
+	private Type[] getTypes() {
+		Type[] types = new Type[td.numFields()];
+		for(int i=0; i<types.length; i++)
+			types[i] = td.getFieldType(i);
+		return types;
+	}
+}
@@ -1,8 +1,9 @@
 package simpledb.index;
 
 import java.io.*;
-import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -27,12 +28,33 @@ import simpledb.transaction.TransactionId;
  * @see BTreeRootPtrPage#BTreeRootPtrPage
  * @author Becca Taft
  */
-public class BTreeFile implements DbFile {
+public class BTreeFile implements IndexFile {
 
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
-	private final int keyField;
+	private final int[] keyFields;
+	private final boolean compressKeys;
+
+	// 乐观查找失败多少次后改为加锁查找
+	private static final int OPTIMISTIC_ATTEMPTS = 3;
+	// 结构修改的序号，每次结构修改开始和结束时各加一
+	private final AtomicLong smoSequence = new AtomicLong(0);
+	// 正在进行中的结构修改数
+	private final AtomicInteger activeSmos = new AtomicInteger(0);
+	// 热点key到叶子页和槽的映射，点查询不用从根开始查找
+	private final BTreeAdaptiveHash adaptiveHash = new BTreeAdaptiveHash();
+
+	/** number of pages appended at once when the file has to grow */
+	public static final int EXTENT_PAGES = 8;
+	// 预分配但还没用过的页每个字节都是这个值，重新打开文件时据此认出它们
+	private static final byte UNUSED_PAGE_BYTE = (byte) 0xFF;
+	// 空闲页缓存，只是提示：使用前要在header页上确认该页仍然空闲。由this保护
+	private TreeSet<Integer> freePages;
+	// 从磁盘读入过header页之后要把磁盘上的空闲页重新并入缓存
+	private boolean freePagesStale = true;
+	// 文件末尾预分配的页数，-1表示还没有从文件中数出来
+	private int spareTailPages = -1;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -43,10 +65,44 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[]{key}, td);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on several fields. Tuples are ordered on
+	 * the first key field, then on the second among tuples with equal first
+	 * fields, and so on; the keys of the tree are {@link CompositeKey}s.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, most significant first
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
+		this(f, keys, td, keys.length > 0 && BTreeKeyCodec.compressByDefault(td, keys));
+	}
+
+	/**
+	 * Constructs a B+ tree file whose pages store their keys compressed or at
+	 * full width. The other constructors compress the keys of indexes keyed on
+	 * a string field; the pages of a file must always be read the way they were
+	 * written.
+	 * @see BTreeKeyCodec
+	 *
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, most significant first
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param compressKeys - whether the keys are prefix compressed
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td, boolean compressKeys) {
+		if(keys.length == 0)
+			throw new IllegalArgumentException("a B+ tree needs at least one key field");
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyFields = keys.clone();
 		this.td = td;
+		this.compressKeys = compressKeys;
 	}
 
 	/**
@@ -103,27 +159,17 @@ public class BTreeFile implements DbFile {
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 return new BTreeRootPtrPage(id, pageBuf);
             } else {
-				// 根据页号跳过无用页，直接读取该页数据（说明在磁盘上还是顺序存储）
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
+                byte[] pageBuf = readPageData(bis, id);
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
+                    return new BTreeInternalPage(id, pageBuf, keyFields, compressKeys);
                 } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
+                    return new BTreeLeafPage(id, pageBuf, keyFields, compressKeys);
                 } else { // id.pgcateg() == BTreePageId.HEADER
+                    // 回滚时也会重新读入header页，磁盘上的空闲页可能和缓存不一致了
+                    synchronized (this) {
+                        freePagesStale = true;
+                    }
                     return new BTreeHeaderPage(id, pageBuf);
                 }
             }
@@ -134,6 +180,31 @@ public class BTreeFile implements DbFile {
         // Ignore failures closing the file
     }
 
+	/**
+	 * Read the data of a page other than the root pointer page from the file.
+	 *
+	 * @param bis - a stream positioned at the start of the file
+	 * @param id - the id of the page to read
+	 */
+	private static byte[] readPageData(InputStream bis, BTreePageId id) throws IOException {
+		// 根据页号跳过无用页，直接读取该页数据（说明在磁盘上还是顺序存储）
+		byte[] pageBuf = new byte[BufferPool.getPageSize()];
+		long offset = BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize();
+		if (bis.skip(offset) != offset) {
+			throw new IllegalArgumentException(
+					"Unable to seek to correct place in BTreeFile");
+		}
+		int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+		if (retval == -1) {
+			throw new IllegalArgumentException("Read past end of table");
+		}
+		if (retval < BufferPool.getPageSize()) {
+			throw new IllegalArgumentException("Unable to read "
+					+ BufferPool.getPageSize() + " bytes from BTreeFile");
+		}
+		return pageBuf;
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -158,82 +229,379 @@ public class BTreeFile implements DbFile {
 	}
 	
 	/**
-	 * Returns the number of pages in this BTreeFile.
+	 * Returns the number of pages in this BTreeFile, not counting the pages
+	 * preallocated at the end of the file that have never been used.
 	 */
 	public int numPages() {
+		synchronized(this) {
+			return filePages() - spareTailPages();
+		}
+	}
+
+	/**
+	 * @return the number of pages in the file on disk, including the
+	 *   preallocated ones
+	 */
+	private int filePages() {
 		// we only ever write full pages
 		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * @return the number of preallocated pages at the end of the file. They are
+	 *   counted the first time the file is used, so that the pages preallocated
+	 *   before the file was last opened are not lost
+	 */
+	private int spareTailPages() {
+		if(spareTailPages < 0) {
+			spareTailPages = 0;
+			int n = filePages();
+			try (RandomAccessFile rf = new RandomAccessFile(f, "r")) {
+				byte[] data = new byte[BufferPool.getPageSize()];
+				while(spareTailPages < n) {
+					rf.seek(BTreeRootPtrPage.getPageSize() + (long) (n - spareTailPages - 1) * BufferPool.getPageSize());
+					rf.readFully(data);
+					for(byte b : data) {
+						if(b != UNUSED_PAGE_BYTE)
+							return spareTailPages;
+					}
+					spareTailPages++;
+				}
+			} catch (FileNotFoundException e) {
+				// 文件还不存在，没有预分配的页
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return spareTailPages;
+	}
+
+	/**
+	 * Returns the index of the field that this B+ tree is keyed on, or of the
+	 * first key field if it is keyed on several fields
 	 */
 	public int keyField() {
-		return keyField;
+		return keyFields[0];
+	}
+
+	/**
+	 * Returns the indexes of the fields that this B+ tree is keyed on, most
+	 * significant first
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * @return the key of tuple t in this B+ tree
+	 * @see CompositeKey#keyOf
+	 */
+	Field getKey(Tuple t) {
+		return CompositeKey.keyOf(t, keyFields);
+	}
+
+	/**
+	 * @return f as a key that can be compared with the keys of this B+ tree:
+	 *   plain fields are wrapped into a CompositeKey if the tree is keyed on
+	 *   several fields, and unwrapped from one otherwise
+	 */
+	Field searchKey(Field f) {
+		if(f instanceof CompositeKey && keyFields.length == 1)
+			return ((CompositeKey) f).getField(0);
+		if(f == null || keyFields.length == 1 || f instanceof CompositeKey)
+			return f;
+		return new CompositeKey(f);
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Every comparison but NOT_EQUALS and LIKE selects a contiguous range of
+	 * leaf pages
+	 */
+	public boolean canSearch(Op op) {
+		return op != Op.NOT_EQUALS && op != Op.LIKE;
+	}
+
+	/**
+	 * Find and lock the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f, and lock it with permission perm. The leaf
+	 * lock is the only transaction lock the search keeps: it protects the keys the
+	 * transaction reads or writes, while the internal pages on the way down are only
+	 * protected for the duration of the search.
+	 * <p>
+	 * The search is first attempted optimistically: the internal pages are read under
+	 * their latches without any transaction lock, and once the leaf is locked the
+	 * search checks that no page on the path has changed and that no structure
+	 * modification (split, merge or redistribution) has run in the meantime. If that
+	 * fails a few times in a row, the search falls back to lock coupling: it read-locks
+	 * each internal page on the way down and releases the lock on the parent as soon
+	 * as the child is locked and known to be safe.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if
+	 * the tree has no root page yet
 	 * 
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm,
                                        Field f)
 					throws DbException, TransactionAbortedException {
-		if(f != null){
-			if(pid.pgcateg() == BTreePageId.LEAF)
-				return (BTreeLeafPage) getPage(tid,dirtypages,pid,perm);
-			else {
-				BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-				Iterator<BTreeEntry> iterator = page.iterator();
-				BTreeEntry next = null;
-				while(iterator.hasNext()){
-					next = iterator.next();
-					if(f.compare(Op.LESS_THAN_OR_EQ,next.getKey()))
-						return findLeafPage(tid,dirtypages,next.getLeftChild(),perm,f);
-				}
-				// 走到这说明f比该页所有的key都大，只能从最右边的rightChild再找
-				return findLeafPage(tid,dirtypages,next.getRightChild(),perm,f);
+		return findLeafPage(tid, dirtypages, perm, f, false);
+	}
+
+	/**
+	 * Find and lock the leaf page as in {@link #findLeafPage(TransactionId, Map, Permissions, Field)}.
+	 * If last is true, find the right-most leaf page possibly containing keys less than
+	 * or equal to f instead, or the right-most leaf page if f is null -- used by
+	 * descending scans.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for
+	 * @param last - whether to find the right-most instead of the left-most leaf page
+	 * @return the leaf page found, or null if the tree has no root page yet
+	 */
+	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm,
+			Field f, boolean last) throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		// 快照事务和乐观事务本来就不加锁，直接按加锁的方式查找即可
+		if(!bp.isSnapshot(tid) && !bp.isOptimistic(tid)) {
+			for(int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+				BTreeLeafPage leaf = findLeafPageOptimistic(tid, dirtypages, perm, f, last);
+				if(leaf != null)
+					return leaf;
+				Thread.yield();
 			}
-		}else {
-			if(pid.pgcateg() == BTreePageId.LEAF)
-				return (BTreeLeafPage) getPage(tid,dirtypages,pid,perm);
-			else {
-				BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-				Iterator<BTreeEntry> iterator = page.iterator();
-				BTreeEntry next = iterator.next();
-				return findLeafPage(tid,dirtypages,next.getLeftChild(),perm,null);
+		}
+		return findLeafPageCoupled(tid, dirtypages, perm, f, last);
+	}
+
+	/**
+	 * One optimistic attempt of findLeafPage. Returns null if the attempt has to be
+	 * restarted: a structure modification was running, a page on the path changed,
+	 * or the search read an inconsistent state of the tree.
+	 */
+	private BTreeLeafPage findLeafPageOptimistic(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm,
+			Field f, boolean last) throws DbException, TransactionAbortedException {
+		long sequence = smoSequence.get();
+		if(activeSmos.get() > 0)
+			return null;
+
+		List<Page> path = new ArrayList<>();
+		List<Long> versions = new ArrayList<>();
+		BTreePageId pid;
+		try {
+			Page page = getUnlockedPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid));
+			if(page == null)
+				return null;
+			long version = page.getLatch().getVersion();
+			pid = ((BTreeRootPtrPage) page).getRootId();
+			path.add(page);
+			versions.add(version);
+			while(pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+				page = getUnlockedPage(tid, dirtypages, pid);
+				if(page == null)
+					return null;
+				version = page.getLatch().getVersion();
+				pid = last ? ((BTreeInternalPage) page).findLastChild(f) : ((BTreeInternalPage) page).findChild(f);
+				path.add(page);
+				versions.add(version);
+			}
+		} catch (RuntimeException e) {
+			// 读到了结构修改进行到一半的页（例如已经被释放的页），重新查找
+			return null;
+		}
+		if(pid == null || pid.pgcateg() != BTreePageId.LEAF || !validatePath(sequence, path, versions))
+			return null;
+
+		// 叶子页上的事务锁才是真正保护数据的锁，等锁期间树的结构可能已经变了，所以拿到锁后再验证一次
+		BufferPool bp = Database.getBufferPool();
+		boolean held = bp.holdsLock(tid, pid);
+		BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		if(!validatePath(sequence, path, versions)) {
+			if(!held) {
+				dirtypages.remove(pid);
+				bp.unsafeReleasePage(tid, pid);
 			}
+			return null;
 		}
+		return leaf;
+	}
 
+	/**
+	 * Check that no structure modification has started or finished since sequence
+	 * was read, and that every page on the path is still cached and unchanged since
+	 * its version was read.
+	 */
+	private boolean validatePath(long sequence, List<Page> path, List<Long> versions) {
+		if(activeSmos.get() > 0 || smoSequence.get() != sequence)
+			return false;
+		BufferPool bp = Database.getBufferPool();
+		for(int i=0; i<path.size(); i++) {
+			Page page = path.get(i);
+			if(!page.getLatch().validate(versions.get(i)) || !bp.isResident(page))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The pessimistic version of findLeafPage, using lock coupling: every internal page
+	 * is read-locked on the way down, and the lock on its parent is released once the
+	 * page is locked, unless the transaction held it already or the page may have to
+	 * be split by the insert that is looking for the leaf.
+	 */
+	private BTreeLeafPage findLeafPageCoupled(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm,
+			Field f, boolean last) throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId parentId = BTreeRootPtrPage.getId(tableid);
+		boolean parentHeld = bp.holdsLock(tid, parentId);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, parentId, Permissions.READ_ONLY);
+		BTreePageId pid = rootPtr.getRootId();
+		if(pid == null)
+			return null;
+		while(true) {
+			boolean held = bp.holdsLock(tid, pid);
+			BTreePage page = (BTreePage) getPage(tid, dirtypages, pid,
+					pid.pgcateg() == BTreePageId.LEAF ? perm : Permissions.READ_ONLY);
+			// 子节点已经锁住，且插入不会导致子节点分裂时，父节点就不需要再锁着了
+			boolean safe = perm == Permissions.READ_ONLY || page.getNumEmptySlots() > 0;
+			if(safe && !parentHeld && bp.holdsLock(tid, parentId) && !dirtypages.containsKey(parentId))
+				bp.unsafeReleasePage(tid, parentId);
+			if(pid.pgcateg() == BTreePageId.LEAF)
+				return (BTreeLeafPage) page;
+			parentId = pid;
+			parentHeld = held;
+			pid = last ? ((BTreeInternalPage) page).findLastChild(f) : ((BTreeInternalPage) page).findChild(f);
+		}
+	}
+
+	/**
+	 * Method to fetch a page for an optimistic traversal: pages this transaction has
+	 * dirtied come from the local cache, all other pages are read from the buffer pool
+	 * without a transaction lock. Returns null if the page is not cached.
+	 * @see BufferPool#getUnlockedPage(PageId)
+	 */
+	private Page getUnlockedPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid) {
+		Page p = dirtypages.get(pid);
+		if(p != null)
+			return p;
+		return Database.getBufferPool().getUnlockedPage(pid);
 	}
 	
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
 	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
+	 * @see #findLeafPage(TransactionId, Map, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if
+	 * the tree is empty
+	 * 
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, Field f)
+					throws DbException, TransactionAbortedException {
+		createRootPtrPageIfNeeded();
+		return findLeafPage(tid, new HashMap<>(), Permissions.READ_ONLY, searchKey(f));
+	}
+
+	/**
+	 * Convenience method to find the right-most leaf page possibly containing keys
+	 * less than or equal to f when there is no dirtypages HashMap. Used by the
+	 * descending BTreeFile iterator.
+	 * @see #findLeafPage(TransactionId, Map, Permissions, Field, boolean)
+	 * 
+	 * @param tid - the transaction id
+	 * @param f - the field to search for, or null for the right-most leaf page
+	 * @return the leaf page found, or null if the tree is empty
+	 */
+	BTreeLeafPage findLastLeafPage(TransactionId tid, Field f)
+					throws DbException, TransactionAbortedException {
+		createRootPtrPageIfNeeded();
+		return findLeafPage(tid, new HashMap<>(), Permissions.READ_ONLY, searchKey(f), true);
+	}
+
+	/**
+	 * @return the adaptive hash index of this B+ tree
+	 */
+	public BTreeAdaptiveHash getAdaptiveHash() {
+		return adaptiveHash;
+	}
+
+	/**
+	 * Start an equality search for key f from the adaptive hash index instead of
+	 * the root. On a hit, the leaf page holding the first tuple with key f is
+	 * read-locked and the returned iterator starts at that tuple; stale entries
+	 * are dropped. Snapshot and optimistic transactions, which may read other
+	 * versions of the pages, always search from the root.
 	 * 
+	 * @param tid - the transaction id
+	 * @param f - the key to search for
+	 * @return an iterator over the leaf page starting at the first tuple with key
+	 * f, or null if the search has to start from the root
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
-                               Field f)
+	BTreeLeafPageIterator findHashedLeafPage(TransactionId tid, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+		BufferPool bp = Database.getBufferPool();
+		if(bp.isSnapshot(tid) || bp.isOptimistic(tid))
+			return null;
+		Field key = searchKey(f);
+		long sequence = smoSequence.get();
+		BTreeAdaptiveHash.Entry e = adaptiveHash.get(key);
+		if(e == null || activeSmos.get() > 0)
+			return null;
+		boolean held = bp.holdsLock(tid, e.leaf);
+		BTreeLeafPage leaf = (BTreeLeafPage) bp.getPage(tid, e.leaf, Permissions.READ_ONLY);
+		// 等锁期间有结构修改时，这个页可能已经被释放或者重新使用了
+		boolean valid = activeSmos.get() == 0 && smoSequence.get() == sequence;
+		int slot = valid ? leaf.findFirstSlot(key, e.slot) : -1;
+		if(slot < 0) {
+			if(valid)
+				adaptiveHash.remove(key, e);
+			if(!held)
+				bp.unsafeReleasePage(tid, e.leaf);
+			return null;
+		}
+		adaptiveHash.hit(key, e, slot);
+		return new BTreeLeafPageIterator(leaf, slot);
+	}
+
+	/**
+	 * Count an equality search that found its first tuple on the given leaf page,
+	 * read-locked by the transaction, for the adaptive hash index.
+	 * @see BTreeAdaptiveHash#recordSearch(BTreeLeafPage)
+	 */
+	void recordEqualitySearch(TransactionId tid, BTreeLeafPage leaf) {
+		BufferPool bp = Database.getBufferPool();
+		// 脏页可能随事务回滚，快照事务读到的也不一定是当前版本；
+		// 多列key的等值查找带有前缀，不经过哈希索引
+		if(keyFields.length > 1 || leaf.isDirty() != null || bp.isSnapshot(tid) || bp.isOptimistic(tid))
+			return;
+		adaptiveHash.recordSearch(leaf);
+	}
+
+	/**
+	 * Mark the start of a structure modification: a split, merge or redistribution
+	 * that changes internal pages or moves tuples between leaf pages. Optimistic
+	 * searches that overlap a structure modification are restarted.
+	 */
+	private void beginStructureModification() {
+		activeSmos.incrementAndGet();
+		smoSequence.incrementAndGet();
+	}
+
+	/**
+	 * Mark the end of a structure modification.
+	 * @see #beginStructureModification()
+	 */
+	private void endStructureModification() {
+		smoSequence.incrementAndGet();
+		activeSmos.decrementAndGet();
 	}
 
 	/**
@@ -242,6 +610,10 @@ public class BTreeFile implements DbFile {
 	 * of the first tuple in the right-hand page (the key is "copied up"), and child pointers 
 	 * pointing to the two leaf pages resulting from the split.  Update sibling pointers and parent 
 	 * pointers as needed.  
+	 * <p>
+	 * If the page is the right-most leaf and the new key is greater than all its keys, as when
+	 * the keys are sequence numbers, only the last tuple moves to the new page: the left page
+	 * stays full instead of being left half empty by appends that never come back to it.
 	 * 
 	 * Return the leaf page into which a new tuple with key field "field" should be inserted.
 	 * 
@@ -270,21 +642,13 @@ public class BTreeFile implements DbFile {
 
 		// 通过getPage方法读取的权限为Permissions.READ_WRITE的页都会加入dirtypages
 		BTreeLeafPage page1 = (BTreeLeafPage)getPage(tid, dirtypages, page.getId(), Permissions.READ_WRITE);
-		// 通过getEmptyPage创建的页会上X锁
+		adaptiveHash.invalidate(page1.getId());
+		// 通过getEmptyPage创建的页会上X锁，readPage已经为它设置好了keyField
 		BTreeLeafPage page2 = (BTreeLeafPage)getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
-		try {
-			// 设置page2的keyFiled
-			java.lang.reflect.Field keyField = BTreePage.class.getDeclaredField("keyField");
-			keyField.setAccessible(true);
-			java.lang.reflect.Field modifiers = java.lang.reflect.Field.class.getDeclaredField("modifiers");
-			modifiers.setAccessible(true);
-			modifiers.setInt(keyField,keyField.getModifiers()&~Modifier.FINAL);
-			keyField.setInt(page2,page1.keyField);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
-
 		int page1NumTuples = page1.getNumTuples();
+		// 在最右边追加：在插入点分裂，只移动最后一个tuple
+		boolean append = page1.getRightSiblingId() == null && page1NumTuples > 1
+				&& field.compare(Op.GREATER_THAN, page1.getKey(page1.reverseIterator().next()));
 		int count = 0;
 		Iterator<Tuple> reverseIterator = page1.reverseIterator();
 		while(reverseIterator.hasNext()){
@@ -296,7 +660,8 @@ public class BTreeFile implements DbFile {
 			page1.deleteTuple(next);
 			page2.insertTuple(next);
 			count++;
-			if(count >= page1NumTuples/2)
+			// 压缩页按字节数对半分
+			if(append || (page1.isCompressed() ? page2.getUsedBytes() >= page1.getUsedBytes() : count >= page1NumTuples/2))
 				break;
 		}
 		// 插入兄弟指针
@@ -314,13 +679,17 @@ public class BTreeFile implements DbFile {
 		// 如果原来的parent页满了，getParentWithEmptySlots会调用splitInternalPage方法并返回一个新的parent页
 		// 通过getParentWithEmptySlots获得的页已经上锁了
 		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page1.getParentId(), field);
-		Tuple first = page2.iterator().next();
-		parent.insertEntry(new BTreeEntry(first.getField(page2.keyField),page1.getId(),page2.getId()));
+		Field separator = page2.getKey(page2.iterator().next());
+		if(page1.isCompressed()) {
+			// 后缀截断：父节点里只需要一个能分开两页的最短key
+			separator = page1.codec.separator(page1.getKey(page1.reverseIterator().next()), separator);
+		}
+		parent.insertEntry(new BTreeEntry(separator,page1.getId(),page2.getId()));
 		// 更新父指针
 		updateParentPointer(tid,dirtypages,parent.getId(),page1.getId());
 		updateParentPointer(tid,dirtypages,parent.getId(),page2.getId());
 		// 返回合适的页
-		if(field.compare(Op.LESS_THAN_OR_EQ,first.getField(page2.keyField))){
+		if(field.compare(Op.LESS_THAN_OR_EQ,separator)){
 			return page1;
 		}else {
 			return page2;
@@ -333,6 +702,10 @@ public class BTreeFile implements DbFile {
 	 * the middle key in the original internal page being split (this key is "pushed up" to the parent). 
 	 * The child pointers of the new parent entry should point to the two internal pages resulting 
 	 * from the split. Update parent pointers as needed.
+	 * <p>
+	 * If the new key is greater than all the keys of the page, as when a split of the right-most
+	 * leaf adds an entry at the end of each full page on its way up, only the last entry moves
+	 * to the new page and the one before it is pushed up, so that the left page stays full.
 	 * 
 	 * Return the internal page into which an entry with key field "field" should be inserted
 	 * 
@@ -364,18 +737,10 @@ public class BTreeFile implements DbFile {
 		BTreeInternalPage page1 = (BTreeInternalPage)getPage(tid, dirtypages, page.getId(), Permissions.READ_WRITE);
 		BTreeInternalPage page2 = (BTreeInternalPage)getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
 
-		try {
-			java.lang.reflect.Field keyField = BTreePage.class.getDeclaredField("keyField");
-			keyField.setAccessible(true);
-			java.lang.reflect.Field modifiers = java.lang.reflect.Field.class.getDeclaredField("modifiers");
-			modifiers.setAccessible(true);
-			modifiers.setInt(keyField,keyField.getModifiers()&~Modifier.FINAL);
-			keyField.setInt(page2,page1.keyField);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
-
 		int page1NumEntries = page1.getNumEntries();
+		// 内部页没有兄弟指针，只看新key是否在最后；第一页至少要留下一个entry
+		boolean append = page1NumEntries > 2
+				&& field.compare(Op.GREATER_THAN, page1.reverseIterator().next().getKey());
 		Iterator<BTreeEntry> reverseIterator = page1.reverseIterator();
 		int count = 0;
 		while(reverseIterator.hasNext()){
@@ -383,7 +748,7 @@ public class BTreeFile implements DbFile {
 			page1.deleteKeyAndRightChild(next);
 			page2.insertEntry(next);
 			count++;
-			if(count >= page1NumEntries/2)
+			if(append || (page1.isCompressed() ? page2.getUsedBytes() >= page1.getUsedBytes() : count >= page1NumEntries/2))
 				break;
 		}
 
@@ -558,21 +923,32 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+		// look at the root pointer page without locking it; it is only locked if the
+		// root has to be set
+		createRootPtrPageIfNeeded();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getUnlockedPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid));
+		if(rootPtr == null || rootPtr.getRootId() == null) {
 			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+			if(rootPtr.getRootId() == null) { // the root has just been created, so set the root pointer to point to it
+				beginStructureModification();
+				try {
+					rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+				} finally {
+					endStructureModification();
+				}
+			}
 		}
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, getKey(t));
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			beginStructureModification();
+			try {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, getKey(t));
+			} finally {
+				endStructureModification();
+			}
 		}
 
 		// insert the tuple into the leaf page
@@ -658,9 +1034,14 @@ public class BTreeFile implements DbFile {
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
 		if(leftSiblingId != null) {
 			BTreeLeafPage leftSibling = (BTreeLeafPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
+			if(page.isCompressed()) {
+				// 压缩页不借tuple，见BTreeKeyCodec
+				if(fitsOnOnePage(leftSibling, page))
+					mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
+			}
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some tuples from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			else if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
@@ -669,9 +1050,13 @@ public class BTreeFile implements DbFile {
 		}
 		else if(rightSiblingId != null) {	
 			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
+			if(page.isCompressed()) {
+				if(fitsOnOnePage(page, rightSibling))
+					mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
+			}
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some tuples from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			else if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
@@ -680,6 +1065,35 @@ public class BTreeFile implements DbFile {
 		}
 	}
 	
+	/**
+	 * @return true if a page with compressed keys uses less than half of its bytes
+	 */
+	private static boolean isLessThanHalfFull(BTreePage page) {
+		return page.getUsedBytes() < page.getByteCapacity() / 2;
+	}
+
+	/**
+	 * @return true if the entries of two sibling pages with compressed keys fit on
+	 * the left one, together with the key pulled down from the parent if they are
+	 * internal pages. The first key of the right page only gets shorter once it
+	 * follows the keys of the left page.
+	 */
+	private static boolean fitsOnOnePage(BTreePage left, BTreePage right) {
+		int bytes = left.getUsedBytes() + right.getUsedBytes();
+		int entries;
+		int slots;
+		if(left instanceof BTreeLeafPage) {
+			entries = ((BTreeLeafPage) left).getNumTuples() + ((BTreeLeafPage) right).getNumTuples();
+			slots = ((BTreeLeafPage) left).getMaxTuples();
+		}
+		else {
+			bytes += left.getMaxEntrySize();
+			entries = ((BTreeInternalPage) left).getNumEntries() + ((BTreeInternalPage) right).getNumEntries() + 1;
+			slots = ((BTreeInternalPage) left).getMaxEntries();
+		}
+		return bytes <= left.getByteCapacity() && entries <= slots;
+	}
+
 	/**
 	 * Steal tuples from a sibling and copy them to the given page so that both pages are at least
 	 * half full.  Update the parent's entry so that the key matches the key field of the first
@@ -703,6 +1117,8 @@ public class BTreeFile implements DbFile {
 		int half = (page.getNumTuples() + sibling.getNumTuples())/2;
 		if(half < page.getMaxTuples()/2)
 			throw new RuntimeException("the leaf page does not have enough tuples to steal");
+		adaptiveHash.invalidate(page.getId());
+		adaptiveHash.invalidate(sibling.getId());
 		if(isRightSibling){
 			// 把右兄弟的tuple移动到page中
 			Iterator<Tuple> iterator = sibling.iterator();
@@ -712,7 +1128,7 @@ public class BTreeFile implements DbFile {
 				page.insertTuple(next);
 			}
 			Tuple first = iterator.next();
-			entry.setKey(first.getField(sibling.keyField));
+			entry.setKey(sibling.getKey(first));
 			parent.updateEntry(entry);
 		}else {
 			// 把左兄弟的tuple移动到page中
@@ -723,7 +1139,7 @@ public class BTreeFile implements DbFile {
 				page.insertTuple(next);
 			}
 			Tuple first = page.iterator().next();
-			entry.setKey(first.getField(page.keyField));
+			entry.setKey(page.getKey(first));
 			parent.updateEntry(entry);
 		}
 	}
@@ -758,9 +1174,13 @@ public class BTreeFile implements DbFile {
 		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
 		if(leftSiblingId != null) {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
+			if(page.isCompressed()) {
+				if(fitsOnOnePage(leftSibling, page))
+					mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
+			}
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			else if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
@@ -769,9 +1189,13 @@ public class BTreeFile implements DbFile {
 		}
 		else if(rightSiblingId != null) {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
+			if(page.isCompressed()) {
+				if(fitsOnOnePage(page, rightSibling))
+					mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
+			}
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			else if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
@@ -900,8 +1324,11 @@ public class BTreeFile implements DbFile {
 		leftPage = (BTreeLeafPage) getPage(tid,dirtypages,leftPage.getId(),Permissions.READ_WRITE);
 		rightPage = (BTreeLeafPage) getPage(tid,dirtypages,rightPage.getId(),Permissions.READ_WRITE);
 		parent = (BTreeInternalPage) getPage(tid,dirtypages,parent.getId(),Permissions.READ_WRITE);
-		if(leftPage.getNumTuples() + rightPage.getNumTuples() > leftPage.getMaxTuples())
+		if(leftPage.isCompressed() ? !fitsOnOnePage(leftPage, rightPage)
+				: leftPage.getNumTuples() + rightPage.getNumTuples() > leftPage.getMaxTuples())
 			throw new RuntimeException("the leaf page can not hold those tuples");
+		adaptiveHash.invalidate(leftPage.getId());
+		adaptiveHash.invalidate(rightPage.getId());
 		// 从右leaf将tuple移动到左leaf
 		Iterator<Tuple> iterator = rightPage.iterator();
 		while(rightPage.getNumTuples() > 0){
@@ -997,7 +1424,7 @@ public class BTreeFile implements DbFile {
 		// leftPage的作用就是，如果删除的parentEntry是根节点中最后一个entry，那么将leftPage作为新的根节点
 		parent.deleteKeyAndRightChild(parentEntry);
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -1012,7 +1439,7 @@ public class BTreeFile implements DbFile {
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
 		}
-		else if(parent.getNumEmptySlots() > maxEmptySlots) { 
+		else if(parent.isCompressed() ? isLessThanHalfFull(parent) : parent.getNumEmptySlots() > maxEmptySlots) { 
 			handleMinOccupancyPage(tid, dirtypages, parent);
 		}
 	}
@@ -1035,13 +1462,19 @@ public class BTreeFile implements DbFile {
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+		adaptiveHash.invalidate(pageId, getKey(t));
 		page.deleteTuple(t);
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+		if(page.isCompressed() ? isLessThanHalfFull(page) : page.getNumEmptySlots() > maxEmptySlots) { 
+			beginStructureModification();
+			try {
+				handleMinOccupancyPage(tid, dirtypages, page);
+			} finally {
+				endStructureModification();
+			}
 		}
 
         return new ArrayList<>(dirtypages.values());
@@ -1059,30 +1492,49 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+		createRootPtrPageIfNeeded();
+
+		// get a read lock on the root pointer page
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Create the root pointer page and the root page if the file is still empty.
+	 */
+	private void createRootPtrPageIfNeeded() throws DbException {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				try (BufferedOutputStream bw = new BufferedOutputStream(
+						new FileOutputStream(f, true))) {
+					byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+					byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+					bw.write(emptyRootPtrData);
+					bw.write(emptyLeafData);
+				} catch (IOException e) {
+					throw new DbException("unable to create B+ tree file " + f + ": " + e.getMessage());
+				}
 			}
 		}
-
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
 	/**
-	 * Get the page number of the first empty page in this BTreeFile.
-	 * Creates a new page if none of the existing pages are empty.
+	 * Get the page number of an empty page in this BTreeFile, the lowest one
+	 * known to be free if there is one. Creates a new page if none of the
+	 * existing pages are empty.
+	 * <p>
+	 * Free pages are looked up in an in-memory cache of the free slots of the
+	 * header pages, so that splits do not have to walk and lock the header
+	 * pages to find out that there is no free page. The cache is only a hint:
+	 * a page from the cache is used only if its slot in the header page is still
+	 * free, and the free slots on disk are merged back into the cache after a
+	 * header page has been read from disk, for example when a transaction that
+	 * took a page aborts. New pages are preallocated {@link #EXTENT_PAGES} at a
+	 * time at the end of the file.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @return the page number of the first empty page
+	 * @return the page number of the empty page
 	 * 
 	 * @throws DbException
 	 * @throws IOException
@@ -1090,50 +1542,116 @@ public class BTreeFile implements DbFile {
 	 */
 	public int getEmptyPageNo(TransactionId tid, Map<PageId, Page> dirtypages)
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		int emptyPageNo = 0;
+		createRootPtrPageIfNeeded();
+		Integer candidate;
+		while((candidate = pollFreePage()) != null) {
+			if(claimFreePage(tid, dirtypages, candidate))
+				return candidate;
+		}
+		return allocatePage();
+	}
 
-		if(headerId != null) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			int headerPageCount = 0;
-			// try to find a header page with an empty slot
-			while(headerPage != null && headerPage.getEmptySlot() == -1) {
-				headerId = headerPage.getNextPageId();
-				if(headerId != null) {
-					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-					headerPageCount++;
-				}
-				else {
-					headerPage = null;
-				}
-			}
+	/**
+	 * @return the lowest page in the free page cache, removed from the cache,
+	 *   or null if the cache is empty
+	 */
+	private Integer pollFreePage() throws IOException {
+		synchronized(this) {
+			loadFreePages();
+			return freePages.pollFirst();
+		}
+	}
 
-			// if headerPage is not null, it must have an empty slot
-			if(headerPage != null) {
-				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
-				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
-			}
+	/**
+	 * Add a page to the free page cache.
+	 */
+	private void addFreePage(int pageNo) throws IOException {
+		synchronized(this) {
+			loadFreePages();
+			freePages.add(pageNo);
 		}
+	}
 
-		// at this point if headerId is null, either there are no header pages 
-		// or there are no free slots
-		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+	/**
+	 * Merge the free slots of the header pages on disk into the free page
+	 * cache, if a header page has been read since the last time. The pages on
+	 * disk are those of committed transactions; the cache keeps the pages freed
+	 * by transactions still running.
+	 */
+	private void loadFreePages() throws IOException {
+		if(freePages == null)
+			freePages = new TreeSet<>();
+		if(!freePagesStale)
+			return;
+		freePagesStale = false;
+		if(f.length() == 0)
+			return;
+		int numPages = numPages();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) readPage(BTreeRootPtrPage.getId(tableid));
+		BTreePageId headerId = rootPtr.getHeaderId();
+		int headerPageCount = 0;
+		while(headerId != null) {
+			BTreeHeaderPage headerPage;
+			try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
+				headerPage = new BTreeHeaderPage(headerId, readPageData(bis, headerId));
 			}
+			for(int i=0; i<BTreeHeaderPage.getNumSlots(); i++) {
+				int pageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + i;
+				if(pageNo >= 1 && pageNo <= numPages && !headerPage.isSlotUsed(i))
+					freePages.add(pageNo);
+			}
+			headerId = headerPage.getNextPageId();
+			headerPageCount++;
 		}
+	}
 
-		return emptyPageNo; 
+	/**
+	 * Mark a page from the free page cache as used in its header page, if it
+	 * is still free there.
+	 *
+	 * @return true if the page was free and is now used by this transaction
+	 */
+	private boolean claimFreePage(TransactionId tid, Map<PageId, Page> dirtypages, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		// 只锁住到目标header页为止的链，不再从头扫描所有header页
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		BTreePageId headerId = rootPtr.getHeaderId();
+		int headerPageCount = 0;
+		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() <= pageNo) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			headerId = headerPage.getNextPageId();
+			headerPageCount++;
+		}
+		if(headerId == null)
+			return false;
+		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+		int slot = pageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
+		if(headerPage.isSlotUsed(slot))
+			return false;
+		headerPage.markSlotUsed(slot, true);
+		return true;
+	}
+
+	/**
+	 * Take the first preallocated page at the end of the file, preallocating
+	 * {@link #EXTENT_PAGES} more pages if there are none left.
+	 *
+	 * @return the page number of the new page
+	 */
+	private int allocatePage() throws IOException {
+		synchronized(this) {
+			if(spareTailPages() == 0) {
+				byte[] extent = new byte[EXTENT_PAGES * BufferPool.getPageSize()];
+				Arrays.fill(extent, UNUSED_PAGE_BYTE);
+				try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+					rf.seek(BTreeRootPtrPage.getPageSize() + (long) filePages() * BufferPool.getPageSize());
+					rf.write(extent);
+				}
+				spareTailPages = EXTENT_PAGES;
+			}
+			spareTailPages--;
+			return numPages();
+		}
 	}
 	
 	/**
@@ -1207,6 +1725,9 @@ public class BTreeFile implements DbFile {
 //			}
 //		}
 
+		// 释放的页可能是自适应哈希索引指向的叶子页
+		adaptiveHash.invalidate(new BTreePageId(tableid, emptyPageNo, BTreePageId.LEAF));
+
 		// otherwise, get a read lock on the root pointer page and use it to locate 
 		// the first header page
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
@@ -1227,7 +1748,7 @@ public class BTreeFile implements DbFile {
 
 		// iterate through all the existing header pages to find the one containing the slot
 		// corresponding to emptyPageNo
-		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() <= emptyPageNo) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
 			prevId = headerId;
 			headerId = headerPage.getNextPageId();
@@ -1237,7 +1758,7 @@ public class BTreeFile implements DbFile {
 		// at this point headerId should either be null or set with 
 		// the headerPage containing the slot corresponding to emptyPageNo.
 		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() <= emptyPageNo) {
 			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
 			
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
@@ -1255,6 +1776,7 @@ public class BTreeFile implements DbFile {
 		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
 		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
 		headerPage.markSlotUsed(emptySlot, false);
+		addFreePage(emptyPageNo);
 	}
 
 	/**
@@ -1283,6 +1805,21 @@ public class BTreeFile implements DbFile {
 		return new BTreeFileIterator(this, tid);
 	}
 
+	/**
+	 * Get an iterator for the tuples in this B+ tree file matching the given
+	 * IndexPredicate in descending key order, or for all the tuples if ipred is null.
+	 * The search starts at the right-most leaf page possibly holding a match and
+	 * follows the left sibling pointers. This method will acquire a read lock on the
+	 * affected pages of the file, and may block until the lock can be acquired.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on, or null
+	 * @return an iterator for the filtered tuples in descending order
+	 */
+	public DbFileIterator descendingIterator(TransactionId tid, IndexPredicate ipred) {
+		return new BTreeReverseSearchIterator(this, tid, ipred);
+	}
+
 }
 
 /**
@@ -1310,11 +1847,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
-		it = curp.iterator();
+		curp = f.findLeafPage(tid, null);
+		if(curp != null)
+			it = curp.iterator();
 	}
 
 	/**
@@ -1373,6 +1908,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// 等值查找从根开始时，要把第一个匹配的tuple所在的页记入自适应哈希索引
+	boolean recordSearch = false;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1392,20 +1929,33 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	/**
 	 * Open this iterator by getting an iterator on the first leaf page applicable
-	 * for the given predicate operation
+	 * for the given predicate operation. For a prefix predicate on several key
+	 * fields, less-than searches start at the first key with the given prefix.
+	 * Equality searches for hot keys start from the adaptive hash index.
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		Field start;
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			start = ipred.getField();
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			start = ipred.getPrefix();
+		}
+		recordSearch = false;
+		if(ipred.getOp() == Op.EQUALS && ipred.getPrefix() == null) {
+			BTreeLeafPageIterator hashed = f.findHashedLeafPage(tid, start);
+			if(hashed != null) {
+				curp = hashed.p;
+				it = hashed;
+				return;
+			}
+			recordSearch = true;
 		}
-		it = curp.iterator();
+		curp = f.findLeafPage(tid, start);
+		// 在叶子页内二分查找第一个不小于给定key的tuple，跳过前面的tuple
+		if(curp != null)
+			it = start == null ? curp.iterator() : curp.iterator(f.searchKey(start));
 	}
 
 	/**
@@ -1417,11 +1967,23 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 	NoSuchElementException {
+		Field prefix = f.searchKey(ipred.getPrefix());
+		Field value = f.searchKey(ipred.getField());
 		while (it != null) {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				Field key = f.getKey(t);
+				if (prefix != null && !key.compare(Op.EQUALS, prefix)) {
+					// the scan starts within the prefix, so a key with another prefix
+					// is past the end
+					return null;
+				}
+				if (key.compare(ipred.getOp(), value)) {
+					if(recordSearch) {
+						recordSearch = false;
+						f.recordEqualitySearch(tid, curp);
+					}
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
@@ -1430,7 +1992,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						key.compare(Op.GREATER_THAN, value)) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
 					return null;
@@ -1468,3 +2030,114 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		it = null;
 	}
 }
+
+/**
+ * Helper class that implements the DbFileIterator for search tuples on a
+ * B+ Tree File in descending key order. Pages are locked from right to left,
+ * against the left-to-right order of splits and merges, so a scan and a
+ * concurrent update may deadlock; the lock manager then aborts one of them.
+ */
+class BTreeReverseSearchIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+
+	final TransactionId tid;
+	final BTreeFile f;
+	final IndexPredicate ipred;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null to return all tuples
+	 */
+	public BTreeReverseSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * Open this iterator by getting a reverse iterator on the last leaf page
+	 * applicable for the given predicate operation. Greater-than searches start at
+	 * the last key with the prefix of a predicate on several key fields, or at the
+	 * right-most leaf page.
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		Field start = null;
+		boolean inclusive = true;
+		if(ipred != null && (ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ)) {
+			start = ipred.getPrefix();
+		}
+		else if(ipred != null) {
+			start = ipred.getField();
+			inclusive = ipred.getOp() != Op.LESS_THAN;
+		}
+		// 小于：从第一个等于给定key的tuple所在的叶子页往左；其它：从最后一个可能匹配的叶子页往左
+		curp = inclusive ? f.findLastLeafPage(tid, start) : f.findLeafPage(tid, start);
+		if(curp != null)
+			it = start == null ? curp.reverseIterator() : curp.reverseIterator(f.searchKey(start), inclusive);
+	}
+
+	/**
+	 * Read the next tuple either from the current page if it has more tuples matching
+	 * the predicate or from the previous page by following the left sibling pointer.
+	 * 
+	 * @return the next tuple matching the predicate, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		Field prefix = ipred == null ? null : f.searchKey(ipred.getPrefix());
+		Field value = ipred == null ? null : f.searchKey(ipred.getField());
+		while (it != null) {
+
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (ipred == null)
+					return t;
+				Field key = f.getKey(t);
+				if (prefix != null && !key.compare(Op.EQUALS, prefix)) {
+					return null;
+				}
+				if (key.compare(ipred.getOp(), value)) {
+					return t;
+				}
+				// the scan starts at the largest key that may match, so the first key
+				// that does not match is past the end
+				return null;
+			}
+
+			BTreePageId prevp = curp.getLeftSiblingId();
+			// if there are no more pages to the left, end the iteration
+			if(prevp == null) {
+				return null;
+			}
+			else {
+				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						prevp, Permissions.READ_ONLY);
+				it = curp.reverseIterator();
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+	}
+}
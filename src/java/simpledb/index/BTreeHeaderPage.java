@@ -7,6 +7,7 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.Page;
+import simpledb.storage.PageLatch;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
@@ -35,6 +36,7 @@ public class BTreeHeaderPage implements Page {
 
 	byte[] oldData;
 	private final Byte oldDataLock= (byte) 0;
+	private final PageLatch latch = new PageLatch();
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
@@ -129,6 +131,10 @@ public class BTreeHeaderPage implements Page {
 		return pid;
 	}
 
+	public PageLatch getLatch() {
+		return latch;
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -141,6 +147,16 @@ public class BTreeHeaderPage implements Page {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
+		// 序列化期间不允许其他线程修改页内容
+		latch.latchShared();
+		try {
+			return serialize();
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
+	private byte[] serialize() {
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -286,14 +302,19 @@ public class BTreeHeaderPage implements Page {
 	 * Abstraction to mark a page of the BTreeFile used or unused
 	 */
 	public void markSlotUsed(int i, boolean value) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-
-		Debug.log(1, "BTreeHeaderPage.setSlot: setting slot %d to %b", i, value);
-		if(value)
-			header[headerbyte] |= 1 << headerbit;
-		else
-			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		latch.latchExclusive();
+		try {
+			int headerbit = i % 8;
+			int headerbyte = (i - headerbit) / 8;
+
+			Debug.log(1, "BTreeHeaderPage.setSlot: setting slot %d to %b", i, value);
+			if(value)
+				header[headerbyte] |= 1 << headerbit;
+			else
+				header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		} finally {
+			latch.unlatchExclusive();
+		}
 	}
 
 	/**
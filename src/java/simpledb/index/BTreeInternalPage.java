@@ -25,6 +25,8 @@ import simpledb.storage.RecordId;
 public class BTreeInternalPage extends BTreePage {
 	private final byte[] header;
 	private final Field[] keys;
+	// 压缩页上每个key的编码，key按定长存储时为null
+	private final byte[][] encodedKeys;
 	private final int[] children;
 	private final int numSlots;
 	
@@ -43,7 +45,8 @@ public class BTreeInternalPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        // 压缩页不保证半满，见BTreeKeyCodec
+        assert !checkOccupancy || depth <= 0 || codec != null || (getNumEntries() >= getMaxEntries() / 2);
 	}
 	
 	/**
@@ -62,6 +65,11 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * If the keys are compressed, the header is followed by the left-most child
+	 * pointer and then by the entries in slot order, each one made of its key
+	 * compressed against the key before it and of its right child pointer, see
+	 * {@link BTreeKeyCodec}.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -71,8 +79,35 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[]{key});
+	}
+
+	/**
+	 * Create a BTreeInternalPage of an index keyed on several fields, whose
+	 * keys are {@link CompositeKey}s.
+	 * @see #BTreeInternalPage(BTreePageId, byte[], int)
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		this(id, data, keyFields, compressByDefault(id, keyFields));
+	}
+
+	/**
+	 * Create a BTreeInternalPage whose keys are stored compressed or at full width.
+	 * @see #BTreeInternalPage(BTreePageId, byte[], int)
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 * @param compressKeys - whether the keys are compressed, see {@link BTreeKeyCodec}
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields, boolean compressKeys) throws IOException {
+		super(id, keyFields, compressKeys);
 		this.numSlots = getMaxEntries() + 1;
+		this.encodedKeys = codec == null ? null : new byte[numSlots][];
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -95,6 +130,13 @@ public class BTreeInternalPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if (codec != null) {
+			readCompressedEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -107,7 +149,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -120,11 +161,31 @@ public class BTreeInternalPage extends BTreePage {
 		setBeforeImage();
 	}
 
+	/**
+	 * Read the child pointers and keys of a page with compressed keys.
+	 */
+	private void readCompressedEntries(DataInputStream dis) throws IOException {
+		children[0] = dis.readInt();
+		byte[] prev = null;
+		for (int i=1; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			encodedKeys[i] = BTreeKeyCodec.readKey(dis, prev);
+			keys[i] = codec.decode(encodedKeys[i]);
+			children[i] = dis.readInt();
+			prev = encodedKeys[i];
+		}
+	}
+
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * If the keys are compressed, this is the number of slots: how many entries
+	 * fit if they all have the same key, see {@link #getNumEmptySlots()}.
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		if (codec != null)
+			return codec.internalSlots();
+		int keySize = CompositeKey.getLen(td, keyFields);
 		// 每个entry所占用的位数，INDEX_SIZE代表每个pointer占用的字节数（parent pointer、child pointer）
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
@@ -155,7 +216,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields,codec != null);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -178,7 +239,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<CompositeKey.getLen(td, keyFields); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -191,7 +252,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = CompositeKey.parse(td, keyFields, dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -242,6 +303,16 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
+		// 序列化期间不允许其他线程修改页内容
+		latch.latchShared();
+		try {
+			return serialize();
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
+	private byte[] serialize() {
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -272,6 +343,9 @@ public class BTreeInternalPage extends BTreePage {
             }
         }
 
+		if (codec != null)
+			return serializeCompressed(baos, dos);
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -279,7 +353,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<CompositeKey.getLen(td, keyFields); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -326,7 +400,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// padding
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+				CompositeKey.getLen(td, keyFields) * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -343,6 +417,29 @@ public class BTreeInternalPage extends BTreePage {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Write the child pointers and keys of a page with compressed keys, after its
+	 * parent pointer, child category and header.
+	 */
+	private byte[] serializeCompressed(ByteArrayOutputStream baos, DataOutputStream dos) {
+		try {
+			dos.writeInt(isSlotUsed(0) ? children[0] : 0);
+			byte[] prev = null;
+			for (int i=1; i<numSlots; i++) {
+				if (!isSlotUsed(i))
+					continue;
+				BTreeKeyCodec.writeKey(dos, prev, encodedKeys[i]);
+				dos.writeInt(children[i]);
+				prev = encodedKeys[i];
+			}
+			dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Delete the specified entry (key + 1 child pointer) from the page. The recordId
 	 * is used to find the specified entry, so it must not be null. After deletion, the 
@@ -355,26 +452,31 @@ public class BTreeInternalPage extends BTreePage {
 	 *        delete the left child
 	 */
 	private void deleteEntry(BTreeEntry e, boolean deleteRightChild) throws DbException {
-		RecordId rid = e.getRecordId();
-		if(rid == null)
-			throw new DbException("tried to delete entry with null rid");
-		if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
-			throw new DbException("tried to delete entry on invalid page or table");
-		if (!isSlotUsed(rid.getTupleNumber()))
-			throw new DbException("tried to delete null entry.");
-		if(deleteRightChild) {
-			markSlotUsed(rid.getTupleNumber(), false);
-		}
-		else {
-			for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
-				if(isSlotUsed(i)) {
-					children[i] = children[rid.getTupleNumber()];
-					markSlotUsed(rid.getTupleNumber(), false);
-					break;
-				}	
+		latch.latchExclusive();
+		try {
+			RecordId rid = e.getRecordId();
+			if(rid == null)
+				throw new DbException("tried to delete entry with null rid");
+			if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
+				throw new DbException("tried to delete entry on invalid page or table");
+			if (!isSlotUsed(rid.getTupleNumber()))
+				throw new DbException("tried to delete null entry.");
+			if(deleteRightChild) {
+				markSlotUsed(rid.getTupleNumber(), false);
+			}
+			else {
+				for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
+					if(isSlotUsed(i)) {
+						children[i] = children[rid.getTupleNumber()];
+						markSlotUsed(rid.getTupleNumber(), false);
+						break;
+					}	
+				}
 			}
+			e.setRecordId(null);
+		} finally {
+			latch.unlatchExclusive();
 		}
-		e.setRecordId(null);
 	}
 
 	/**
@@ -409,153 +511,205 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e - the entry with updated key and/or child pointers
 	 * @throws DbException if this entry is not on this page, entry slot is
 	 *         already empty, or updating this key would put the entry out of 
-	 *         order on the page
+	 *         order on the page, or for a page with compressed keys, if the new
+	 *         key does not fit
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
-		RecordId rid = e.getRecordId();
-		if(rid == null)
-			throw new DbException("tried to update entry with null rid");
-		if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
-			throw new DbException("tried to update entry on invalid page or table");
-		if (!isSlotUsed(rid.getTupleNumber()))
-			throw new DbException("tried to update null entry.");
+		latch.latchExclusive();
+		try {
+			RecordId rid = e.getRecordId();
+			if(rid == null)
+				throw new DbException("tried to update entry with null rid");
+			if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
+				throw new DbException("tried to update entry on invalid page or table");
+			if (!isSlotUsed(rid.getTupleNumber()))
+				throw new DbException("tried to update null entry.");
+			byte[] encoded = null;
+			if(codec != null) {
+				// 新key可能比旧key长，放不下时不修改
+				byte[] old = encodedKeys[rid.getTupleNumber()];
+				encoded = codec.encode(e.getKey());
+				encodedKeys[rid.getTupleNumber()] = encoded;
+				invalidateKeyArray();
+				boolean fits = getUsedBytes() <= getByteCapacity();
+				encodedKeys[rid.getTupleNumber()] = old;
+				invalidateKeyArray();
+				if(!fits)
+					throw new DbException("attempt to update entry with key " + e.getKey() + " that does not fit on the page");
+			}
 		
-		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
-					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
-							" HINT: updated key must be less than or equal to keys on the right");
-				}
-				break;
-			}	
-		}
-		for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
-			if(isSlotUsed(i)) {
-				if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
-					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
-							" HINT: updated key must be greater than or equal to keys on the left");
-				}
-				children[i] = e.getLeftChild().getPageNumber();
-				break;
-			}	
+			for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
+				if(isSlotUsed(i)) {
+					if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
+						throw new DbException("attempt to update entry with invalid key " + e.getKey() +
+								" HINT: updated key must be less than or equal to keys on the right");
+					}
+					break;
+				}	
+			}
+			for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
+				if(isSlotUsed(i)) {
+					if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
+						throw new DbException("attempt to update entry with invalid key " + e.getKey() +
+								" HINT: updated key must be greater than or equal to keys on the left");
+					}
+					children[i] = e.getLeftChild().getPageNumber();
+					break;
+				}	
+			}
+			children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
+			keys[rid.getTupleNumber()] = e.getKey();
+			if(codec != null)
+				encodedKeys[rid.getTupleNumber()] = encoded;
+			invalidateKeyArray();
+		} finally {
+			latch.unlatchExclusive();
 		}
-		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
-		keys[rid.getTupleNumber()] = e.getKey();
 	}
 
 	/**
 	 * Adds the specified entry to the page; the entry's recordId should be updated to 
 	 * reflect that it is now stored on this page.
-	 * @throws DbException if the page is full (no empty slots) or key field type,
+	 * @throws DbException if the page is full (no empty slots, or for a page with
+	 *         compressed keys not enough bytes left for e) or key field type,
 	 *         table id, or child page category is a mismatch, or the entry is invalid
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
-			throw new DbException("key field type mismatch, in insertEntry");
+		latch.latchExclusive();
+		try {
+			if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+				throw new DbException("key field type mismatch, in insertEntry");
+			if (keyFields.length > 1 && (!(e.getKey() instanceof CompositeKey)
+					|| ((CompositeKey) e.getKey()).numFields() != keyFields.length))
+				throw new DbException("key must have " + keyFields.length + " fields, in insertEntry");
 
-		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
-			throw new DbException("table id mismatch in insertEntry");
+			if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
+				throw new DbException("table id mismatch in insertEntry");
 
-		if(childCategory == 0) {
-			if(e.getLeftChild().pgcateg() != e.getRightChild().pgcateg())
-				throw new DbException("child page category mismatch in insertEntry");
+			if(childCategory == 0) {
+				if(e.getLeftChild().pgcateg() != e.getRightChild().pgcateg())
+					throw new DbException("child page category mismatch in insertEntry");
 
-			childCategory = e.getLeftChild().pgcateg();
-		}
-		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
-			throw new DbException("child page category mismatch in insertEntry");
+				childCategory = e.getLeftChild().pgcateg();
+			}
+			else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
+				throw new DbException("child page category mismatch in insertEntry");
 
-		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
-			children[0] = e.getLeftChild().getPageNumber();
-			children[1] = e.getRightChild().getPageNumber();
-			keys[1] = e.getKey();
-			markSlotUsed(0, true);
-			markSlotUsed(1, true);
-			e.setRecordId(new RecordId(pid, 1));
-			return;
-		}
+			// if this is the first entry, add it and return
+			if(getNumEntries() == 0) {
+				children[0] = e.getLeftChild().getPageNumber();
+				children[1] = e.getRightChild().getPageNumber();
+				keys[1] = e.getKey();
+				if(codec != null)
+					encodedKeys[1] = codec.encode(e.getKey());
+				markSlotUsed(0, true);
+				markSlotUsed(1, true);
+				e.setRecordId(new RecordId(pid, 1));
+				return;
+			}
 
-		// find the first empty slot, starting from 1
-		int emptySlot = -1;
-		for (int i=1; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
+			// find the first empty slot, starting from 1
+			int emptySlot = -1;
+			for (int i=1; i<numSlots; i++) {
+				if (!isSlotUsed(i)) {
+					emptySlot = i;
+					break;
+				}
 			}
-		}
 
-		if (emptySlot == -1)
-			throw new DbException("called insertEntry on page with no empty slots.");        
+			if (emptySlot == -1)
+				throw new DbException("called insertEntry on page with no empty slots.");        
 
-		// 插入的entry必须左右孩子有一个和已有的children[i]相同
-		// find the child pointer matching the left or right child in this entry
-		int lessOrEqKey = -1;
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				// 如果有指针相同，那么新插入的entry应该在key[i]的右边
-				if(children[i] == e.getLeftChild().getPageNumber() || children[i] == e.getRightChild().getPageNumber()) {
-					if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
-						throw new DbException("attempt to insert invalid entry with left child " + 
-								e.getLeftChild().getPageNumber() + ", right child " +
-								e.getRightChild().getPageNumber() + " and key " + e.getKey() +
-								" HINT: one of these children must match an existing child on the page" +
-								" and this key must be correctly ordered in between that child's" +
-								" left and right keys");
-					}
-					lessOrEqKey = i;
-					if(children[i] == e.getRightChild().getPageNumber()) {
-						// entry的右孩子与children[i]相同，那么用entry的左孩子覆盖children[i]，即entry插入key[i]右侧
-						children[i] = e.getLeftChild().getPageNumber();
+			// 插入的entry必须左右孩子有一个和已有的children[i]相同
+			// find the child pointer matching the left or right child in this entry
+			int lessOrEqKey = -1;
+			for (int i=0; i<numSlots; i++) {
+				if(isSlotUsed(i)) {
+					// 如果有指针相同，那么新插入的entry应该在key[i]的右边
+					if(children[i] == e.getLeftChild().getPageNumber() || children[i] == e.getRightChild().getPageNumber()) {
+						if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
+							throw new DbException("attempt to insert invalid entry with left child " + 
+									e.getLeftChild().getPageNumber() + ", right child " +
+									e.getRightChild().getPageNumber() + " and key " + e.getKey() +
+									" HINT: one of these children must match an existing child on the page" +
+									" and this key must be correctly ordered in between that child's" +
+									" left and right keys");
+						}
+						lessOrEqKey = i;
+						if(children[i] == e.getRightChild().getPageNumber()) {
+							// entry的右孩子与children[i]相同，那么用entry的左孩子覆盖children[i]，即entry插入key[i]右侧
+							children[i] = e.getLeftChild().getPageNumber();
+						}
 					}
-				}
-				else if(lessOrEqKey != -1) {
-					// validate that the next key is greater than or equal to the one we are inserting
-					if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
-						throw new DbException("attempt to insert invalid entry with left child " + 
-								e.getLeftChild().getPageNumber() + ", right child " +
-								e.getRightChild().getPageNumber() + " and key " + e.getKey() +
-								" HINT: one of these children must match an existing child on the page" +
-								" and this key must be correctly ordered in between that child's" +
-								" left and right keys");
+					else if(lessOrEqKey != -1) {
+						// validate that the next key is greater than or equal to the one we are inserting
+						if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
+							throw new DbException("attempt to insert invalid entry with left child " + 
+									e.getLeftChild().getPageNumber() + ", right child " +
+									e.getRightChild().getPageNumber() + " and key " + e.getKey() +
+									" HINT: one of these children must match an existing child on the page" +
+									" and this key must be correctly ordered in between that child's" +
+									" left and right keys");
+						}
+						break;
 					}
-					break;
 				}
 			}
-		}
 
-		if(lessOrEqKey == -1) {
-			throw new DbException("attempt to insert invalid entry with left child " + 
-					e.getLeftChild().getPageNumber() + ", right child " +
-					e.getRightChild().getPageNumber() + " and key " + e.getKey() +
-					" HINT: one of these children must match an existing child on the page" +
-					" and this key must be correctly ordered in between that child's" +
-					" left and right keys");
-		}
+			if(lessOrEqKey == -1) {
+				throw new DbException("attempt to insert invalid entry with left child " + 
+						e.getLeftChild().getPageNumber() + ", right child " +
+						e.getRightChild().getPageNumber() + " and key " + e.getKey() +
+						" HINT: one of these children must match an existing child on the page" +
+						" and this key must be correctly ordered in between that child's" +
+						" left and right keys");
+			}
 
-		// shift entries back or forward to fill empty slot and make room for new entry
-		// while keeping entries in sorted order
-		int goodSlot = -1;
-		if(emptySlot < lessOrEqKey) {
-			for(int i = emptySlot; i < lessOrEqKey; i++) {
-				moveEntry(i+1, i);
+			byte[] encoded = null;
+			if(codec != null) {
+				encoded = codec.encode(e.getKey());
+				byte[] prev = lessOrEqKey == 0 ? null : encodedKeys[lessOrEqKey];
+				byte[] next = null;
+				for(int i = lessOrEqKey + 1; i < numSlots && next == null; i++) {
+					if(isSlotUsed(i))
+						next = encodedKeys[i];
+				}
+				// 新entry的大小，加上后一个key因为前缀变化而增减的字节数
+				int growth = BTreeKeyCodec.keySize(prev, encoded) + INDEX_SIZE;
+				if(next != null)
+					growth += BTreeKeyCodec.keySize(encoded, next) - BTreeKeyCodec.keySize(prev, next);
+				if(getUsedBytes() + growth > getByteCapacity())
+					throw new DbException("called insertEntry on page with no empty slots.");
 			}
-			goodSlot = lessOrEqKey;
-		}
-		else {
-			for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
-				moveEntry(i-1, i);
+
+			// shift entries back or forward to fill empty slot and make room for new entry
+			// while keeping entries in sorted order
+			int goodSlot = -1;
+			if(emptySlot < lessOrEqKey) {
+				for(int i = emptySlot; i < lessOrEqKey; i++) {
+					moveEntry(i+1, i);
+				}
+				goodSlot = lessOrEqKey;
+			}
+			else {
+				for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
+					moveEntry(i-1, i);
+				}
+				goodSlot = lessOrEqKey + 1;
 			}
-			goodSlot = lessOrEqKey + 1;
-		}
 
-		// insert new entry into the correct spot in sorted order
-		markSlotUsed(goodSlot, true);
-		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
-		keys[goodSlot] = e.getKey();
-		children[goodSlot] = e.getRightChild().getPageNumber();
-		e.setRecordId(new RecordId(pid, goodSlot));
+			// insert new entry into the correct spot in sorted order
+			markSlotUsed(goodSlot, true);
+			Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
+			keys[goodSlot] = e.getKey();
+			if(codec != null)
+				encodedKeys[goodSlot] = encoded;
+			children[goodSlot] = e.getRightChild().getPageNumber();
+			e.setRecordId(new RecordId(pid, goodSlot));
+		} finally {
+			latch.unlatchExclusive();
+		}
 	}
 
 	/**
@@ -566,29 +720,134 @@ public class BTreeInternalPage extends BTreePage {
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
 			markSlotUsed(to, true);
 			keys[to] = keys[from];
+			if(codec != null)
+				encodedKeys[to] = encodedKeys[from];
 			children[to] = children[from];
 			markSlotUsed(from, false);
 		}
 	}
 
+	/**
+	 * Find the child page which may contain the key field f: the left child of the
+	 * first key greater than or equal to f, or the right-most child if f is greater
+	 * than every key. If f is null, return the left-most child. The page is latched
+	 * shared during the search so that it sees a consistent set of entries, and the
+	 * key is found by binary search over the cached key array.
+	 *
+	 * @param f - the field to search for, or null
+	 * @return the id of the child page, or null if this page has no children
+	 */
+	public BTreePageId findChild(Field f) {
+		latch.latchShared();
+		try {
+			if(!isSlotUsed(0))
+				return null;
+			int child = children[0];
+			if(f != null) {
+				BTreeKeyArray a = getKeyArray();
+				// 第一个大于等于f的key的左孩子，也就是它前一个key的右孩子
+				int i = a.lowerBound(f);
+				if(i > 0)
+					child = children[a.slot(i - 1)];
+			}
+			return new BTreePageId(pid.getTableId(), child, childCategory);
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
+	/**
+	 * Find the right-most child page which may contain keys less than or equal to
+	 * the key field f: the left child of the first key strictly greater than f, or
+	 * the right-most child if there is none. If f is null, return the right-most
+	 * child. Used by descending scans, see {@link #findChild(Field)}.
+	 *
+	 * @param f - the field to search for, or null
+	 * @return the id of the child page, or null if this page has no children
+	 */
+	public BTreePageId findLastChild(Field f) {
+		latch.latchShared();
+		try {
+			if(!isSlotUsed(0))
+				return null;
+			BTreeKeyArray a = getKeyArray();
+			// 第一个大于f的key的左孩子，也就是它前一个key的右孩子
+			int i = f == null ? a.size() : a.upperBound(f);
+			int child = i > 0 ? children[a.slot(i - 1)] : children[0];
+			return new BTreePageId(pid.getTableId(), child, childCategory);
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
+	protected BTreeKeyArray buildKeyArray() {
+		int[] slots = new int[numSlots];
+		Field[] sorted = new Field[numSlots];
+		int n = 0;
+		// slot 0只有孩子指针，没有key
+		for(int i=1; i<numSlots; i++) {
+			if(isSlotUsed(i)) {
+				slots[n] = i;
+				sorted[n] = keys[i];
+				n++;
+			}
+		}
+		return new BTreeKeyArray(slots, sorted, n);
+	}
+
 	/**
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		latch.latchShared();
+		try {
+			int cnt = 0;
+			// start from 1 because the first key slot is not used
+			// since a node with m keys has m+1 pointers
+			for(int i=1; i<numSlots; i++)
+				if(isSlotUsed(i))
+					cnt++;
+			return cnt;
+		} finally {
+			latch.unlatchShared();
+		}
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. If the keys are compressed,
+	 * this is the number of entries that are sure to fit: at most as many as there
+	 * is room for if every one of them takes the largest possible size.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		// start from 1 because the first key slot is not used
-		// since a node with m keys has m+1 pointers
-		for(int i=1; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		latch.latchShared();
+		try {
+			int cnt = numSlots - 1 - getNumEntries();
+			if(codec != null)
+				cnt = Math.min(cnt, (getByteCapacity() - getUsedBytes()) / getMaxEntrySize());
+			return cnt;
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
+	public int getByteCapacity() {
+		return codec.internalCapacity();
+	}
+
+	public int getMaxEntrySize() {
+		return codec.maxInternalEntrySize();
+	}
+
+	protected int computeUsedBytes() {
+		int bytes = 0;
+		byte[] prev = null;
+		for(int i=1; i<numSlots; i++) {
+			if(isSlotUsed(i)) {
+				bytes += BTreeKeyCodec.keySize(prev, encodedKeys[i]) + INDEX_SIZE;
+				prev = encodedKeys[i];
+			}
+		}
+		return bytes;
 	}
 
 	/**
@@ -608,6 +867,7 @@ public class BTreeInternalPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
+		invalidateKeyArray();
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
@@ -637,22 +897,27 @@ public class BTreeInternalPage extends BTreePage {
 	 * @throws NoSuchElementException
 	 */
 	protected Field getKey(int i) throws NoSuchElementException {
+		latch.latchShared();
+		try {
 
-		// key at slot 0 is not used
-		if (i <= 0 || i >= keys.length)
-			throw new NoSuchElementException();
+			// key at slot 0 is not used
+			if (i <= 0 || i >= keys.length)
+				throw new NoSuchElementException();
 
-		try {
-			if(!isSlotUsed(i)) {
-				Debug.log(1, "BTreeInternalPage.getKey: slot %d in %d:%d is not used", i, pid.getTableId(), pid.getPageNumber());
-				return null;
-			}
+			try {
+				if(!isSlotUsed(i)) {
+					Debug.log(1, "BTreeInternalPage.getKey: slot %d in %d:%d is not used", i, pid.getTableId(), pid.getPageNumber());
+					return null;
+				}
 
-			Debug.log(1, "BTreeInternalPage.getKey: returning key %d", i);
-			return keys[i];
+				Debug.log(1, "BTreeInternalPage.getKey: returning key %d", i);
+				return keys[i];
 
-		} catch (ArrayIndexOutOfBoundsException e) {
-			throw new NoSuchElementException();
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new NoSuchElementException();
+			}
+		} finally {
+			latch.unlatchShared();
 		}
 	}
 
@@ -663,21 +928,26 @@ public class BTreeInternalPage extends BTreePage {
 	 * @throws NoSuchElementException
 	 */
 	protected BTreePageId getChildId(int i) throws NoSuchElementException {
+		latch.latchShared();
+		try {
 
-		if (i < 0 || i >= children.length)
-			throw new NoSuchElementException();
+			if (i < 0 || i >= children.length)
+				throw new NoSuchElementException();
 
-		try {
-			if(!isSlotUsed(i)) {
-				Debug.log(1, "BTreeInternalPage.getChildId: slot %d in %d:%d is not used", i, pid.getTableId(), pid.getPageNumber());
-				return null;
-			}
+			try {
+				if(!isSlotUsed(i)) {
+					Debug.log(1, "BTreeInternalPage.getChildId: slot %d in %d:%d is not used", i, pid.getTableId(), pid.getPageNumber());
+					return null;
+				}
 
-			Debug.log(1, "BTreeInternalPage.getChildId: returning child id %d", i);
-			return new BTreePageId(pid.getTableId(), children[i], childCategory);
+				Debug.log(1, "BTreeInternalPage.getChildId: returning child id %d", i);
+				return new BTreePageId(pid.getTableId(), children[i], childCategory);
 
-		} catch (ArrayIndexOutOfBoundsException e) {
-			throw new NoSuchElementException();
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new NoSuchElementException();
+			}
+		} finally {
+			latch.unlatchShared();
 		}
 	}
 }
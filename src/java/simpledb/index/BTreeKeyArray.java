@@ -0,0 +1,103 @@
+package simpledb.index;
+
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+
+/**
+ * An immutable, densely packed copy of the keys stored on a B+ tree page,
+ * in sorted order, together with the slot each key lives in.
+ * <p>
+ * Slots on a page may be interspersed with empty ones, so the page itself
+ * cannot be binary searched. The key array is decoded once and cached by
+ * the page until the page is modified (see {@link BTreePage#getKeyArray()}).
+ * Integer keys are decoded into an int[] so that a search does not
+ * allocate and compares primitives only.
+ */
+class BTreeKeyArray {
+	private final int[] slots;
+	private final int[] intKeys; // 整数键，其它类型的键为null
+	private final Field[] keys;
+	private final int size;
+
+	/**
+	 * @param slots - the used slots in sorted key order
+	 * @param keys - the key in each of those slots
+	 * @param size - the number of valid entries in slots and keys
+	 */
+	BTreeKeyArray(int[] slots, Field[] keys, int size) {
+		this.slots = slots;
+		this.keys = keys;
+		this.size = size;
+		boolean ints = true;
+		for(int i=0; i<size; i++) {
+			if(!(keys[i] instanceof IntField)) {
+				ints = false;
+				break;
+			}
+		}
+		if(ints) {
+			intKeys = new int[size];
+			for(int i=0; i<size; i++)
+				intKeys[i] = ((IntField) keys[i]).getValue();
+		}
+		else {
+			intKeys = null;
+		}
+	}
+
+	/** @return the number of keys */
+	int size() {
+		return size;
+	}
+
+	/** @return the slot holding the ith smallest key */
+	int slot(int i) {
+		return slots[i];
+	}
+
+	/** @return the ith smallest key */
+	Field key(int i) {
+		return keys[i];
+	}
+
+	/**
+	 * @return the index of the first key greater than or equal to f, or
+	 * size() if there is none
+	 */
+	int lowerBound(Field f) {
+		return search(f, false);
+	}
+
+	/**
+	 * @return the index of the first key strictly greater than f, or size()
+	 * if there is none
+	 */
+	int upperBound(Field f) {
+		return search(f, true);
+	}
+
+	private int search(Field f, boolean strict) {
+		int lo = 0, hi = size;
+		if(intKeys != null && f instanceof IntField) {
+			int v = ((IntField) f).getValue();
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(intKeys[mid] < v || (strict && intKeys[mid] == v))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+		Op op = strict ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(keys[mid].compare(op, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+}
@@ -0,0 +1,362 @@
+package simpledb.index;
+
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.List;
+
+/**
+ * BTreeKeyCodec stores the keys of B+ tree pages in compressed form, so that
+ * the pages of an index keyed on strings are not limited to the entries that
+ * fit when every key takes the full {@link Type#STRING_LEN} + 4 bytes.
+ * <p>
+ * A key is first encoded compactly: an integer field takes 4 bytes and a
+ * string field only the bytes of its value, and the lengths of the strings
+ * follow the last field. The keys of a page are then prefix compressed: since
+ * they are sorted, each key is written as the number of leading bytes it
+ * shares with the key before it, the number of remaining bytes, and those
+ * bytes.
+ * <p>
+ * On top of that, the separator keys that splits push into internal pages are
+ * suffix truncated: a separator only has to be greater than the last key of
+ * the left page and not greater than the first key of the right page, so the
+ * shortest such key is used instead of the first key of the right page.
+ * <p>
+ * Pages with compressed keys hold a variable number of entries. They are full
+ * when the largest possible entry would no longer fit, rather than when all
+ * their slots are used. They are not kept half full either: a page that gets
+ * less than half full is merged with a sibling if both fit on one page, but
+ * entries are never redistributed, since the new separator in the parent
+ * could be longer than the old one and no longer fit.
+ *
+ * @see BTreeLeafPage
+ * @see BTreeInternalPage
+ */
+class BTreeKeyCodec {
+
+	/** bytes before every key: the length of the shared prefix and of the rest of the key */
+	static final int KEY_HEADER_SIZE = 4;
+
+	private static final int INDEX_SIZE = BTreePage.INDEX_SIZE;
+
+	private final TupleDesc td;
+	private final int[] keyFields;
+	private final boolean[] isKey;
+
+	BTreeKeyCodec(TupleDesc td, int[] keyFields) {
+		this.td = td;
+		this.keyFields = keyFields.clone();
+		this.isKey = new boolean[td.numFields()];
+		for(int f : keyFields)
+			isKey[f] = true;
+	}
+
+	/**
+	 * @return true if a B+ tree keyed on the given fields compresses its keys
+	 *   unless told otherwise: if one of the fields is a string
+	 */
+	static boolean compressByDefault(TupleDesc td, int[] keyFields) {
+		for(int f : keyFields) {
+			if(td.getFieldType(f) == Type.STRING_TYPE)
+				return true;
+		}
+		return false;
+	}
+
+	/** @return the largest number of bytes a compactly encoded key may take */
+	int maxKeySize() {
+		int len = 0;
+		for(int f : keyFields)
+			len += td.getFieldType(f) == Type.STRING_TYPE ? Type.STRING_LEN + 1 : td.getFieldType(f).getLen();
+		return len;
+	}
+
+	/** @return the number of bytes of the fields of a tuple that are not part of the key */
+	int nonKeySize() {
+		return td.getSize() - CompositeKey.getLen(td, keyFields);
+	}
+
+	/**
+	 * @return the compact encoding of a key: its fields one after the other,
+	 *   strings without padding, followed by one length byte per string
+	 */
+	byte[] encode(Field key) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(maxKeySize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			for(int i=0; i<keyFields.length; i++) {
+				Field f = component(key, i);
+				if(f instanceof StringField)
+					dos.writeBytes(((StringField) f).getValue());
+				else
+					f.serialize(dos);
+			}
+			// 字符串的长度放在最后，这样相邻key的公共前缀才不会被长度打断
+			for(int i=0; i<keyFields.length; i++) {
+				Field f = component(key, i);
+				if(f instanceof StringField)
+					dos.writeByte(((StringField) f).getValue().length());
+			}
+			dos.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	private static Field component(Field key, int i) {
+		return key instanceof CompositeKey ? ((CompositeKey) key).getField(i) : key;
+	}
+
+	/**
+	 * @return the key whose compact encoding is b
+	 */
+	Field decode(byte[] b) {
+		int strings = 0;
+		for(int f : keyFields) {
+			if(td.getFieldType(f) == Type.STRING_TYPE)
+				strings++;
+		}
+		int lengths = b.length - strings;
+		int pos = 0;
+		Field[] fields = new Field[keyFields.length];
+		for(int i=0; i<keyFields.length; i++) {
+			Type t = td.getFieldType(keyFields[i]);
+			if(t == Type.STRING_TYPE) {
+				int len = b[lengths++] & 0xFF;
+				fields[i] = new StringField(new String(b, pos, len), Type.STRING_LEN);
+				pos += len;
+			}
+			else {
+				fields[i] = new IntField(((b[pos] & 0xFF) << 24) | ((b[pos + 1] & 0xFF) << 16)
+						| ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF));
+				pos += t.getLen();
+			}
+		}
+		return fields.length == 1 ? fields[0] : new CompositeKey(fields);
+	}
+
+	/**
+	 * @return the number of leading bytes a and b have in common, or 0 if a is null
+	 */
+	static int sharedPrefix(byte[] a, byte[] b) {
+		if(a == null)
+			return 0;
+		int n = Math.min(a.length, b.length);
+		int i = 0;
+		while(i < n && a[i] == b[i])
+			i++;
+		return i;
+	}
+
+	/**
+	 * @return the number of bytes key takes on a page when it follows prev, or
+	 *   is the first key of the page if prev is null
+	 */
+	static int keySize(byte[] prev, byte[] key) {
+		return KEY_HEADER_SIZE + key.length - sharedPrefix(prev, key);
+	}
+
+	/**
+	 * Write key compressed against the key before it on the page.
+	 * @param prev - the encoding of the previous key, or null for the first key
+	 */
+	static void writeKey(DataOutputStream dos, byte[] prev, byte[] key) throws IOException {
+		int shared = sharedPrefix(prev, key);
+		dos.writeShort(shared);
+		dos.writeShort(key.length - shared);
+		dos.write(key, shared, key.length - shared);
+	}
+
+	/**
+	 * Read a key written by writeKey.
+	 * @param prev - the encoding of the previous key, or null for the first key
+	 * @return the encoding of the key
+	 */
+	static byte[] readKey(DataInputStream dis, byte[] prev) throws IOException {
+		int shared = dis.readUnsignedShort();
+		int rest = dis.readUnsignedShort();
+		byte[] key = new byte[shared + rest];
+		if(shared > 0)
+			System.arraycopy(prev, 0, key, 0, shared);
+		dis.readFully(key, shared, rest);
+		return key;
+	}
+
+	/** Write the fields of t that are not part of the key. */
+	void writeNonKeyFields(DataOutputStream dos, Tuple t) throws IOException {
+		for(int j=0; j<td.numFields(); j++) {
+			if(!isKey[j])
+				t.getField(j).serialize(dos);
+		}
+	}
+
+	/**
+	 * Read the fields that are not part of the key, and build the tuple with the
+	 * given encoded key.
+	 */
+	Tuple readTuple(DataInputStream dis, byte[] key) throws IOException {
+		Tuple t = new Tuple(td);
+		Field k = decode(key);
+		for(int i=0; i<keyFields.length; i++)
+			t.setField(keyFields[i], component(k, i));
+		try {
+			for(int j=0; j<td.numFields(); j++) {
+				if(!isKey[j])
+					t.setField(j, td.getFieldType(j).parse(dis));
+			}
+		} catch (ParseException e) {
+			throw new IOException(e);
+		}
+		return t;
+	}
+
+	/**
+	 * @return the shortest key s with left &lt; s &lt;= right, or right if
+	 *   the keys are equal. Of the first field that differs, s keeps the
+	 *   shortest prefix of the string in right that is still greater than the
+	 *   one in left, and the string fields after it are left empty.
+	 */
+	Field separator(Field left, Field right) {
+		Field[] fields = new Field[keyFields.length];
+		int i = 0;
+		while(i < keyFields.length && component(left, i).equals(component(right, i))) {
+			fields[i] = component(right, i);
+			i++;
+		}
+		if(i == keyFields.length)
+			return right;
+		Field r = component(right, i);
+		if(r instanceof StringField) {
+			String a = ((StringField) component(left, i)).getValue();
+			String b = ((StringField) r).getValue();
+			int n = 0;
+			while(n < a.length() && n < b.length() && a.charAt(n) == b.charAt(n))
+				n++;
+			// 第一个不同的字符之后都可以截掉
+			r = new StringField(b.substring(0, Math.min(n + 1, b.length())), Type.STRING_LEN);
+		}
+		fields[i] = r;
+		for(i++; i<keyFields.length; i++) {
+			Field f = component(right, i);
+			fields[i] = f instanceof StringField ? new StringField("", Type.STRING_LEN) : f;
+		}
+		return fields.length == 1 ? fields[0] : new CompositeKey(fields);
+	}
+
+	/**
+	 * @return the number of bytes of a header with one bit for each of n slots
+	 */
+	static int headerSize(int n) {
+		return (n + 7) / 8;
+	}
+
+	/**
+	 * @return the number of tuple slots of a leaf page: as many as fit if every
+	 *   key were equal to the one before it
+	 */
+	int leafSlots() {
+		int bitsPerTupleIncludingHeader = (KEY_HEADER_SIZE + nonKeySize()) * 8 + 1;
+		int extraBits = 3 * INDEX_SIZE * 8;
+		return (BufferPool.getPageSize() * 8 - extraBits) / bitsPerTupleIncludingHeader;
+	}
+
+	/** @return the number of bytes a leaf page has for its tuples */
+	int leafCapacity() {
+		return BufferPool.getPageSize() - 3 * INDEX_SIZE - headerSize(leafSlots());
+	}
+
+	/** @return the largest number of bytes one tuple may take on a leaf page */
+	int maxLeafEntrySize() {
+		return KEY_HEADER_SIZE + maxKeySize() + nonKeySize();
+	}
+
+	/**
+	 * @return the number of entry slots of an internal page: as many as fit if
+	 *   every key were equal to the one before it
+	 */
+	int internalSlots() {
+		int bitsPerEntryIncludingHeader = (KEY_HEADER_SIZE + INDEX_SIZE) * 8 + 1;
+		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1;
+		return (BufferPool.getPageSize() * 8 - extraBits) / bitsPerEntryIncludingHeader;
+	}
+
+	/** @return the number of bytes an internal page has for its entries */
+	int internalCapacity() {
+		// parent pointer, child page category, the header and the left-most child pointer
+		return BufferPool.getPageSize() - 2 * INDEX_SIZE - 1 - headerSize(internalSlots() + 1);
+	}
+
+	/** @return the largest number of bytes one entry may take on an internal page */
+	int maxInternalEntrySize() {
+		return KEY_HEADER_SIZE + maxKeySize() + INDEX_SIZE;
+	}
+
+	/**
+	 * Build a leaf page holding the given tuples, in the format read by
+	 * BTreeLeafPage when its keys are compressed.
+	 */
+	byte[] leafPageData(int parent, int leftSibling, int rightSibling, List<Tuple> tuples) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(parent);
+		dos.writeInt(leftSibling);
+		dos.writeInt(rightSibling);
+		byte[] header = new byte[headerSize(leafSlots())];
+		for(int i=0; i<tuples.size(); i++)
+			header[i / 8] |= 1 << (i % 8);
+		dos.write(header);
+		byte[] prev = null;
+		for(Tuple t : tuples) {
+			byte[] key = encode(CompositeKey.keyOf(t, keyFields));
+			writeKey(dos, prev, key);
+			writeNonKeyFields(dos, t);
+			prev = key;
+		}
+		return pad(baos, dos);
+	}
+
+	/**
+	 * Build an internal page whose ith key separates the children i and i + 1,
+	 * in the format read by BTreeInternalPage when its keys are compressed.
+	 */
+	byte[] internalPageData(int parent, int childCategory, List<Field> keys, List<Integer> children)
+			throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(parent);
+		dos.writeByte(childCategory);
+		byte[] header = new byte[headerSize(internalSlots() + 1)];
+		for(int i=0; i<children.size(); i++)
+			header[i / 8] |= 1 << (i % 8);
+		dos.write(header);
+		dos.writeInt(children.get(0));
+		byte[] prev = null;
+		for(int i=0; i<keys.size(); i++) {
+			byte[] key = encode(keys.get(i));
+			writeKey(dos, prev, key);
+			dos.writeInt(children.get(i + 1));
+			prev = key;
+		}
+		return pad(baos, dos);
+	}
+
+	private static byte[] pad(ByteArrayOutputStream baos, DataOutputStream dos) throws IOException {
+		dos.flush();
+		if(baos.size() > BufferPool.getPageSize())
+			throw new IOException("entries do not fit on a page");
+		dos.write(new byte[BufferPool.getPageSize() - baos.size()]);
+		dos.flush();
+		return baos.toByteArray();
+	}
+}
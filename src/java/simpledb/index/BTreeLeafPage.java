@@ -22,6 +22,8 @@ import java.io.*;
 public class BTreeLeafPage extends BTreePage {
 	private final byte[] header;
 	private final Tuple[] tuples;
+	// 压缩页上每个tuple的key的编码，key按定长存储时为null
+	private final byte[][] encodedKeys;
 	private final int numSlots;
 	
 	private int leftSibling; // leaf node or 0
@@ -34,14 +36,17 @@ public class BTreeLeafPage extends BTreePage {
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			// 多字段索引的key由所有key字段组成
+			Field key = fieldid == keyField ? getKey(t) : t.getField(fieldid);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, key));
+			prev = key;
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
         assert null == upperBound || null == prev || (prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkoccupancy || depth <= 0 || (getNumTuples() >= getMaxTuples() / 2);
+        // 压缩页不保证半满，见BTreeKeyCodec
+        assert !checkoccupancy || depth <= 0 || codec != null || (getNumTuples() >= getMaxTuples() / 2);
 	}
 
 	/**
@@ -57,6 +62,10 @@ public class BTreeLeafPage extends BTreePage {
 	 * <p>
 	 *      ceiling(no. tuple slots / 8)
 	 * <p>
+	 * If the keys are compressed, the header is followed by the tuples in slot
+	 * order, each one made of its key compressed against the key of the tuple
+	 * before it and of its other fields, see {@link BTreeKeyCodec}.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -66,8 +75,34 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[]{key});
+	}
+
+	/**
+	 * Create a BTreeLeafPage of an index keyed on several fields.
+	 * @see #BTreeLeafPage(BTreePageId, byte[], int)
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		this(id, data, keyFields, compressByDefault(id, keyFields));
+	}
+
+	/**
+	 * Create a BTreeLeafPage whose keys are stored compressed or at full width.
+	 * @see #BTreeLeafPage(BTreePageId, byte[], int)
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 * @param compressKeys - whether the keys are compressed, see {@link BTreeKeyCodec}
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keyFields, boolean compressKeys) throws IOException {
+		super(id, keyFields, compressKeys);
 		this.numSlots = getMaxTuples();
+		this.encodedKeys = codec == null ? null : new byte[numSlots][];
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent and sibling pointers
@@ -98,12 +133,26 @@ public class BTreeLeafPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		tuples = new Tuple[numSlots];
-		try{
-			// allocate and read the actual records of this page
-			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		if (codec != null) {
+			// 压缩页只存放用到的slot，每个key相对前一个key压缩
+			byte[] prev = null;
+			for (int i=0; i<tuples.length; i++) {
+				if (!isSlotUsed(i))
+					continue;
+				encodedKeys[i] = BTreeKeyCodec.readKey(dis, prev);
+				tuples[i] = codec.readTuple(dis, encodedKeys[i]);
+				tuples[i].setRecordId(new RecordId(pid, i));
+				prev = encodedKeys[i];
+			}
+		}
+		else {
+			try{
+				// allocate and read the actual records of this page
+				for (int i=0; i<tuples.length; i++)
+					tuples[i] = readNextTuple(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 		}
 		dis.close();
 
@@ -111,9 +160,13 @@ public class BTreeLeafPage extends BTreePage {
 	}
 
 	/** 
-	 * Retrieve the maximum number of tuples this page can hold.
+	 * Retrieve the maximum number of tuples this page can hold. If the keys are
+	 * compressed, this is the number of slots: how many tuples fit if they all
+	 * have the same key, see {@link #getNumEmptySlots()}.
 	 */
 	public int getMaxTuples() {        
+		if (codec != null)
+			return codec.leafSlots();
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
 		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
 		int extraBits = 3 * INDEX_SIZE * 8;
@@ -140,7 +193,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyFields,codec != null);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -202,6 +255,16 @@ public class BTreeLeafPage extends BTreePage {
 	 * @return A byte array corresponding to the bytes of this page.
 	 */
 	public byte[] getPageData() {
+		// 序列化期间不允许其他线程修改页内容
+		latch.latchShared();
+		try {
+			return serialize();
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
+	private byte[] serialize() {
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -236,6 +299,9 @@ public class BTreeLeafPage extends BTreePage {
             }
         }
 
+		if (codec != null)
+			return serializeCompressed(baos, dos);
+
 		// create the tuples
 		for (int i=0; i<tuples.length; i++) {
 
@@ -282,6 +348,27 @@ public class BTreeLeafPage extends BTreePage {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Write the tuples of a page with compressed keys, after its pointers and header.
+	 */
+	private byte[] serializeCompressed(ByteArrayOutputStream baos, DataOutputStream dos) {
+		try {
+			byte[] prev = null;
+			for (int i=0; i<tuples.length; i++) {
+				if (!isSlotUsed(i))
+					continue;
+				BTreeKeyCodec.writeKey(dos, prev, encodedKeys[i]);
+				codec.writeNonKeyFields(dos, tuples[i]);
+				prev = encodedKeys[i];
+			}
+			dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Delete the specified tuple from the page;  the tuple should be updated to reflect
 	 *   that it is no longer stored on any page.
@@ -290,77 +377,118 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param t The tuple to delete
 	 */
 	public void deleteTuple(Tuple t) throws DbException {
-		RecordId rid = t.getRecordId();
-		if(rid == null)
-			throw new DbException("tried to delete tuple with null rid");
-		if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
-			throw new DbException("tried to delete tuple on invalid page or table");
-		if (!isSlotUsed(rid.getTupleNumber()))
-			throw new DbException("tried to delete null tuple.");
-		markSlotUsed(rid.getTupleNumber(), false);
-		t.setRecordId(null);
+		latch.latchExclusive();
+		try {
+			RecordId rid = t.getRecordId();
+			if(rid == null)
+				throw new DbException("tried to delete tuple with null rid");
+			if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
+				throw new DbException("tried to delete tuple on invalid page or table");
+			if (!isSlotUsed(rid.getTupleNumber()))
+				throw new DbException("tried to delete null tuple.");
+			markSlotUsed(rid.getTupleNumber(), false);
+			t.setRecordId(null);
+		} finally {
+			latch.unlatchExclusive();
+		}
 	}
 
 	/**
 	 * Adds the specified tuple to the page such that all records remain in sorted order;  
 	 * the tuple should be updated to reflect
 	 *  that it is now stored on this page.
-	 * @throws DbException if the page is full (no empty slots) or tupledesc
+	 * @throws DbException if the page is full (no empty slots, or for a page with
+	 *         compressed keys not enough bytes left for t) or tupledesc
 	 *         is mismatch.
 	 * @param t The tuple to add.
 	 */
 	public void insertTuple(Tuple t) throws DbException {
-		if (!t.getTupleDesc().equals(td))
-			throw new DbException("type mismatch, in addTuple");
-
-		// find the first empty slot 
-		int emptySlot = -1;
-		for (int i=0; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
+		latch.latchExclusive();
+		try {
+			if (!t.getTupleDesc().equals(td))
+				throw new DbException("type mismatch, in addTuple");
+
+			// find the first empty slot 
+			int emptySlot = findEmptySlot();
+
+			if (emptySlot == -1)
+				throw new DbException("called addTuple on page with no empty slots.");
+
+			// find the last key less than or equal to the key being inserted
+			BTreeKeyArray a = getKeyArray();
+			int greater = a.upperBound(getKey(t));
+			int lessOrEqKey = greater == 0 ? -1 : a.slot(greater - 1);
+
+			byte[] encoded = null;
+			if (codec != null) {
+				encoded = codec.encode(getKey(t));
+				byte[] prev = lessOrEqKey == -1 ? null : encodedKeys[lessOrEqKey];
+				byte[] next = greater < a.size() ? encodedKeys[a.slot(greater)] : null;
+				// 新tuple的大小，加上后一个key因为前缀变化而增减的字节数
+				int growth = BTreeKeyCodec.keySize(prev, encoded) + codec.nonKeySize();
+				if (next != null)
+					growth += BTreeKeyCodec.keySize(encoded, next) - BTreeKeyCodec.keySize(prev, next);
+				if (getUsedBytes() + growth > getByteCapacity())
+					throw new DbException("called addTuple on page with no empty slots.");
 			}
-		}
 
-		if (emptySlot == -1)
-			throw new DbException("called addTuple on page with no empty slots.");
-
-		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
+			// shift records back or forward to fill empty slot and make room for new record
+			// while keeping records in sorted order
+			int goodSlot = -1;
+			if(emptySlot < lessOrEqKey) {
+				// emptySlot在前，把小于等于t的tuple向前移动一位，腾出空间
+				for(int i = emptySlot; i < lessOrEqKey; i++) {
+					moveRecord(i+1, i);
+				}
+				goodSlot = lessOrEqKey;
 			}
+			else {
+				// emptySlot在后，把大于等于t的tuple向后移动一位，腾出空间
+				for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
+					moveRecord(i-1, i);
+				}
+				goodSlot = lessOrEqKey + 1;
+			}
+
+			// insert new record into the correct spot in sorted order
+			markSlotUsed(goodSlot, true);
+			Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
+			RecordId rid = new RecordId(pid, goodSlot);
+			t.setRecordId(rid);
+			tuples[goodSlot] = t;
+			if (codec != null)
+				encodedKeys[goodSlot] = encoded;
+		} finally {
+			latch.unlatchExclusive();
 		}
+	}
 
-		// shift records back or forward to fill empty slot and make room for new record
-		// while keeping records in sorted order
-		int goodSlot = -1;
-		if(emptySlot < lessOrEqKey) {
-			// emptySlot在前，把小于等于t的tuple向前移动一位，腾出空间
-			for(int i = emptySlot; i < lessOrEqKey; i++) {
-				moveRecord(i+1, i);
-			}
-			goodSlot = lessOrEqKey;
+	/**
+	 * Find the first empty slot, skipping header bytes whose slots are all used.
+	 * @return the slot number, or -1 if the page is full
+	 */
+	private int findEmptySlot() {
+		for (int b=0; b<header.length; b++) {
+			if (header[b] == (byte) 0xFF)
+				continue;
+			int i = b * 8 + Integer.numberOfTrailingZeros(~header[b] & 0xFF);
+			return i < numSlots ? i : -1;
 		}
-		else {
-			// emptySlot在后，把大于等于t的tuple向后移动一位，腾出空间
-			for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
-				moveRecord(i-1, i);
+		return -1;
+	}
+
+	protected BTreeKeyArray buildKeyArray() {
+		int[] slots = new int[numSlots];
+		Field[] keys = new Field[numSlots];
+		int n = 0;
+		for (int i=0; i<numSlots; i++) {
+			if (isSlotUsed(i)) {
+				slots[n] = i;
+				keys[n] = getKey(tuples[i]);
+				n++;
 			}
-			goodSlot = lessOrEqKey + 1;
 		}
-
-		// insert new record into the correct spot in sorted order
-		markSlotUsed(goodSlot, true);
-		Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
-		RecordId rid = new RecordId(pid, goodSlot);
-		t.setRecordId(rid);
-		tuples[goodSlot] = t;
+		return new BTreeKeyArray(slots, keys, n);
 	}
 
 	/**
@@ -373,6 +501,8 @@ public class BTreeLeafPage extends BTreePage {
 			RecordId rid = new RecordId(pid, to);
 			tuples[to] = tuples[from];
 			tuples[to].setRecordId(rid);
+			if (codec != null)
+				encodedKeys[to] = encodedKeys[from];
 			markSlotUsed(from, false);
 		}
 	}
@@ -405,17 +535,22 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setLeftSiblingId(BTreePageId id) throws DbException {
-		if(id == null) {
-			leftSibling = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setLeftSiblingId");
+		latch.latchExclusive();
+		try {
+			if(id == null) {
+				leftSibling = 0;
 			}
-			if(id.pgcateg() != BTreePageId.LEAF) {
-				throw new DbException("leftSibling must be a leaf node");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setLeftSiblingId");
+				}
+				if(id.pgcateg() != BTreePageId.LEAF) {
+					throw new DbException("leftSibling must be a leaf node");
+				}
+				leftSibling = id.getPageNumber();
 			}
-			leftSibling = id.getPageNumber();
+		} finally {
+			latch.unlatchExclusive();
 		}
 	}
 
@@ -425,17 +560,22 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setRightSiblingId(BTreePageId id) throws DbException {
-		if(id == null) {
-			rightSibling = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setRightSiblingId");
+		latch.latchExclusive();
+		try {
+			if(id == null) {
+				rightSibling = 0;
 			}
-			if(id.pgcateg() != BTreePageId.LEAF) {
-				throw new DbException("rightSibling must be a leaf node");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setRightSiblingId");
+				}
+				if(id.pgcateg() != BTreePageId.LEAF) {
+					throw new DbException("rightSibling must be a leaf node");
+				}
+				rightSibling = id.getPageNumber();
 			}
-			rightSibling = id.getPageNumber();
+		} finally {
+			latch.unlatchExclusive();
 		}
 	}
 
@@ -443,18 +583,53 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of tuples currently stored on this page
 	 */
 	public int getNumTuples() {
-		return numSlots - getNumEmptySlots();
+		latch.latchShared();
+		try {
+			int cnt = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					cnt++;
+			return cnt;
+		} finally {
+			latch.unlatchShared();
+		}
 	}
 
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. If the keys are compressed,
+	 * this is the number of tuples that are sure to fit: at most as many as there
+	 * is room for if every one of them takes the largest possible size.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		for(int i=0; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		latch.latchShared();
+		try {
+			int cnt = numSlots - getNumTuples();
+			if(codec != null)
+				cnt = Math.min(cnt, (getByteCapacity() - getUsedBytes()) / getMaxEntrySize());
+			return cnt;
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
+	public int getByteCapacity() {
+		return codec.leafCapacity();
+	}
+
+	public int getMaxEntrySize() {
+		return codec.maxLeafEntrySize();
+	}
+
+	protected int computeUsedBytes() {
+		int bytes = 0;
+		byte[] prev = null;
+		for(int i=0; i<numSlots; i++) {
+			if(isSlotUsed(i)) {
+				bytes += BTreeKeyCodec.keySize(prev, encodedKeys[i]) + codec.nonKeySize();
+				prev = encodedKeys[i];
+			}
+		}
+		return bytes;
 	}
 
 	/**
@@ -474,6 +649,7 @@ public class BTreeLeafPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
+		invalidateKeyArray();
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
@@ -488,6 +664,55 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @param f - the key to start from
+	 * @return an iterator over the tuples on this page whose key is greater than or
+	 * equal to f, found by binary search (calling remove on this iterator throws an
+	 * UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		latch.latchShared();
+		try {
+			BTreeKeyArray a = getKeyArray();
+			int i = a.lowerBound(f);
+			return new BTreeLeafPageIterator(this, i < a.size() ? a.slot(i) : numSlots);
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
+	/**
+	 * Find the first tuple with key f in the whole tree, starting from the slot
+	 * the adaptive hash index remembers for f. The slot is only a hint: if the
+	 * tuples have moved since, f is searched for on the page.
+	 * @param f - the key to look for
+	 * @param hint - the slot that held the first tuple with key f
+	 * @return the slot of the first tuple with key f, or -1 if this page does not
+	 * hold one that is preceded by a smaller key or starts the left-most leaf page
+	 * @see BTreeAdaptiveHash
+	 */
+	int findFirstSlot(Field f, int hint) {
+		latch.latchShared();
+		try {
+			if(hint >= 0 && hint < numSlots && isSlotUsed(hint)
+					&& getKey(tuples[hint]).compare(Predicate.Op.EQUALS, f)) {
+				int prev = hint - 1;
+				while(prev >= 0 && !isSlotUsed(prev))
+					prev--;
+				if(prev >= 0 ? getKey(tuples[prev]).compare(Predicate.Op.LESS_THAN, f) : leftSibling == 0)
+					return hint;
+			}
+			// 槽里的tuple已经移动过了，在页内二分查找
+			BTreeKeyArray a = getKeyArray();
+			int i = a.lowerBound(f);
+			if(i == a.size() || !a.key(i).compare(Predicate.Op.EQUALS, f) || (i == 0 && leftSibling != 0))
+				return -1;
+			return a.slot(i);
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -496,6 +721,24 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * @param f - the key to start from
+	 * @param inclusive - whether to start with the tuples whose key equals f
+	 * @return a reverse iterator over the tuples on this page whose key is less than
+	 * (or equal to, if inclusive) f, found by binary search (calling remove on this
+	 * iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> reverseIterator(Field f, boolean inclusive) {
+		latch.latchShared();
+		try {
+			BTreeKeyArray a = getKeyArray();
+			int i = (inclusive ? a.upperBound(f) : a.lowerBound(f)) - 1;
+			return new BTreeLeafPageReverseIterator(this, i >= 0 ? a.slot(i) : -1);
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
@@ -503,71 +746,28 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws NoSuchElementException
 	 */
 	Tuple getTuple(int i) throws NoSuchElementException {
-
-		if (i >= tuples.length)
-			throw new NoSuchElementException();
-
+		latch.latchShared();
 		try {
-			if(!isSlotUsed(i)) {
-				Debug.log(1, "BTreeLeafPage.getTuple: slot %d in %d:%d is not used", i, pid.getTableId(), pid.getPageNumber());
-				return null;
-			}
-
-			Debug.log(1, "BTreeLeafPage.getTuple: returning tuple %d", i);
-			return tuples[i];
 
-		} catch (ArrayIndexOutOfBoundsException e) {
-			throw new NoSuchElementException();
-		}
-	}
-}
-
-/**
- * Helper class that implements the Java Iterator for tuples on a BTreeLeafPage.
- */
-class BTreeLeafPageIterator implements Iterator<Tuple> {
-	int curTuple = 0;
-	Tuple nextToReturn = null;
-	final BTreeLeafPage p;
+			if (i >= tuples.length)
+				throw new NoSuchElementException();
 
-	public BTreeLeafPageIterator(BTreeLeafPage p) {
-		this.p = p;
-	}
+			try {
+				if(!isSlotUsed(i)) {
+					Debug.log(1, "BTreeLeafPage.getTuple: slot %d in %d:%d is not used", i, pid.getTableId(), pid.getPageNumber());
+					return null;
+				}
 
-	public boolean hasNext() {
-		if (nextToReturn != null)
-			return true;
+				Debug.log(1, "BTreeLeafPage.getTuple: returning tuple %d", i);
+				return tuples[i];
 
-		try {
-			while (true) {
-				nextToReturn = p.getTuple(curTuple++);
-				if(nextToReturn != null)
-					return true;
-			}
-		} catch(NoSuchElementException e) {
-			return false;
-		}
-	}
-
-	public Tuple next() {
-		Tuple next = nextToReturn;
-
-		if (next == null) {
-			if (hasNext()) {
-				next = nextToReturn;
-				nextToReturn = null;
-				return next;
-			} else
+			} catch (ArrayIndexOutOfBoundsException e) {
 				throw new NoSuchElementException();
-		} else {
-			nextToReturn = null;
-			return next;
+			}
+		} finally {
+			latch.unlatchShared();
 		}
 	}
-
-	public void remove() {
-		throw new UnsupportedOperationException();
-	}
 }
 
 /**
@@ -583,6 +783,11 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 		this.curTuple = p.getMaxTuples() - 1;
 	}
 
+	public BTreeLeafPageReverseIterator(BTreeLeafPage p, int startSlot) {
+		this.p = p;
+		this.curTuple = startSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -5,7 +5,10 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
 import simpledb.storage.Page;
+import simpledb.storage.PageLatch;
+import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
@@ -25,11 +28,19 @@ public abstract class BTreePage implements Page {
 
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
-	protected final int keyField;
+	protected final int keyField; // 第一个key字段
+	protected final int[] keyFields;
+	// 压缩key的编码器，key按定长存储时为null
+	protected final BTreeKeyCodec codec;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
 	protected final Byte oldDataLock= (byte) 0;
+	protected final PageLatch latch = new PageLatch();
+	// 解码后的有序键数组，页被修改时置为null，下次查找时重新构建
+	private volatile BTreeKeyArray keyArray = null;
+	// 压缩页上的条目占用的字节数，和keyArray一起失效
+	private volatile int usedBytes = -1;
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -52,12 +63,57 @@ public abstract class BTreePage implements Page {
 	 * @see BufferPool#getPageSize()
 	 * 
 	 * @param id - the id of this page
-	 * @param key - the field which the index is keyed on
+	 * @param keys - the fields which the index is keyed on, most significant first
+	 * @param compressKeys - whether the keys are stored compressed, see {@link BTreeKeyCodec}
 	 */
-	public BTreePage(BTreePageId id, int key) {
+	public BTreePage(BTreePageId id, int[] keys, boolean compressKeys) {
 		this.pid = id;
-		this.keyField = key;
+		this.keyFields = keys.clone();
+		this.keyField = keys[0];
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.codec = compressKeys ? new BTreeKeyCodec(td, keyFields) : null;
+	}
+
+	/**
+	 * Create a page whose keys are compressed if the index is keyed on a string.
+	 * @param id - the id of this page
+	 * @param keys - the fields which the index is keyed on, most significant first
+	 */
+	public BTreePage(BTreePageId id, int[] keys) {
+		this(id, keys, compressByDefault(id, keys));
+	}
+
+	/**
+	 * @param id - the id of this page
+	 * @param key - the field which the index is keyed on
+	 */
+	public BTreePage(BTreePageId id, int key) {
+		this(id, new int[]{key});
+	}
+
+	/**
+	 * @return true if pages of the given index compress their keys unless told
+	 *   otherwise
+	 * @see BTreeKeyCodec#compressByDefault
+	 */
+	static boolean compressByDefault(BTreePageId id, int[] keys) {
+		return BTreeKeyCodec.compressByDefault(Database.getCatalog().getTupleDesc(id.getTableId()), keys);
+	}
+
+	/**
+	 * @return true if the keys on this page are compressed. Such a page holds a
+	 *   variable number of entries, see {@link #getUsedBytes}
+	 */
+	public boolean isCompressed() {
+		return codec != null;
+	}
+
+	/**
+	 * @return the key of tuple t on this page: its key field, or a
+	 *   {@link CompositeKey} if the index is keyed on several fields
+	 */
+	public Field getKey(Tuple t) {
+		return CompositeKey.keyOf(t, keyFields);
 	}
 
 	/**
@@ -67,6 +123,10 @@ public abstract class BTreePage implements Page {
 		return pid;
 	}
 
+	public PageLatch getLatch() {
+		return latch;
+	}
+
 	/**
 	 * Static method to generate a byte array corresponding to an empty
 	 * BTreePage.
@@ -98,20 +158,25 @@ public abstract class BTreePage implements Page {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setParentId(BTreePageId id) throws DbException {
-		if(id == null) {
-			throw new DbException("parent id must not be null");
-		}
-		if(id.getTableId() != pid.getTableId()) {
-			throw new DbException("table id mismatch in setParentId");
-		}
-		if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
-			throw new DbException("parent must be an internal node or root pointer");
-		}
-		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			parent = 0;
-		}
-		else {
-			parent = id.getPageNumber();
+		latch.latchExclusive();
+		try {
+			if(id == null) {
+				throw new DbException("parent id must not be null");
+			}
+			if(id.getTableId() != pid.getTableId()) {
+				throw new DbException("table id mismatch in setParentId");
+			}
+			if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
+				throw new DbException("parent must be an internal node or root pointer");
+			}
+			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+				parent = 0;
+			}
+			else {
+				parent = id.getPageNumber();
+			}
+		} finally {
+			latch.unlatchExclusive();
 		}
 	}
 
@@ -134,6 +199,68 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	/**
+	 * Return the keys on this page in sorted order, decoding them first if the
+	 * page has been modified since they were last decoded. The caller must hold
+	 * the latch of this page in either mode.
+	 */
+	BTreeKeyArray getKeyArray() {
+		BTreeKeyArray a = keyArray;
+		if(a == null) {
+			a = buildKeyArray();
+			keyArray = a;
+		}
+		return a;
+	}
+
+	/**
+	 * Drop the cached key array. Must be called, with the exclusive latch held,
+	 * whenever a key is added, removed or moved.
+	 */
+	protected void invalidateKeyArray() {
+		keyArray = null;
+		usedBytes = -1;
+	}
+
+	/**
+	 * @return the number of bytes taken by the entries on a page with compressed
+	 *   keys
+	 */
+	public int getUsedBytes() {
+		latch.latchShared();
+		try {
+			int n = usedBytes;
+			if(n < 0) {
+				n = computeUsedBytes();
+				usedBytes = n;
+			}
+			return n;
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
+	/**
+	 * @return the number of bytes a page with compressed keys has for its entries
+	 */
+	public abstract int getByteCapacity();
+
+	/**
+	 * @return the largest number of bytes one entry may take on a page with
+	 *   compressed keys
+	 */
+	public abstract int getMaxEntrySize();
+
+	/**
+	 * Add up the bytes taken by the entries on a page with compressed keys.
+	 */
+	protected abstract int computeUsedBytes();
+
+	/**
+	 * Decode the keys on this page in sorted order.
+	 */
+	protected abstract BTreeKeyArray buildKeyArray();
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
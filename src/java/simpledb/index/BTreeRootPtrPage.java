@@ -3,6 +3,7 @@ package simpledb.index;
 import simpledb.common.DbException;
 import simpledb.storage.BufferPool;
 import simpledb.storage.Page;
+import simpledb.storage.PageLatch;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
@@ -27,6 +28,7 @@ public class BTreeRootPtrPage implements Page {
 	private int header;
 
 	private byte[] oldData;
+	private final PageLatch latch = new PageLatch();
 
 	/**
 	 * Constructor.
@@ -62,6 +64,10 @@ public class BTreeRootPtrPage implements Page {
 		return pid;
 	}
 
+	public PageLatch getLatch() {
+		return latch;
+	}
+
 	/**
 	 * There is only one instance of a BTreeRootPtrPage per table. This static 
 	 * method is separate from getId() in order to maintain the Page interface
@@ -81,7 +87,17 @@ public class BTreeRootPtrPage implements Page {
 	 *
 	 * @return A byte array corresponding to the bytes of this root pointer page.
 	 */
-	public byte[] getPageData(){
+	public byte[] getPageData() {
+		// 序列化期间不允许其他线程修改页内容
+		latch.latchShared();
+		try {
+			return serialize();
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
+	private byte[] serialize() {
         ByteArrayOutputStream baos = new ByteArrayOutputStream(PAGE_SIZE);
 		DataOutputStream dos = new DataOutputStream(baos);
 
@@ -170,18 +186,23 @@ public class BTreeRootPtrPage implements Page {
 	 * @throws DbException if the id is invalid
 	 */
 	public void setRootId(BTreePageId id) throws DbException {
-		if(id == null) {
-			root = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setRootId");
+		latch.latchExclusive();
+		try {
+			if(id == null) {
+				root = 0;
 			}
-			if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.LEAF) {
-				throw new DbException("root must be an internal node or leaf node");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setRootId");
+				}
+				if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.LEAF) {
+					throw new DbException("root must be an internal node or leaf node");
+				}
+				root = id.getPageNumber();
+				rootCategory = id.pgcateg();
 			}
-			root = id.getPageNumber();
-			rootCategory = id.pgcateg();
+		} finally {
+			latch.unlatchExclusive();
 		}
 	}
 
@@ -202,17 +223,22 @@ public class BTreeRootPtrPage implements Page {
 	 * @throws DbException if the id is invalid
 	 */
 	public void setHeaderId(BTreePageId id) throws DbException {
-		if(id == null) {
-			header = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setHeaderId");
+		latch.latchExclusive();
+		try {
+			if(id == null) {
+				header = 0;
 			}
-			if(id.pgcateg() != BTreePageId.HEADER) {
-				throw new DbException("header must be of type BTreePageId.HEADER");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setHeaderId");
+				}
+				if(id.pgcateg() != BTreePageId.HEADER) {
+					throw new DbException("header must be of type BTreePageId.HEADER");
+				}
+				header = id.getPageNumber();
 			}
-			header = id.getPageNumber();
+		} finally {
+			latch.unlatchExclusive();
 		}
 	}
 
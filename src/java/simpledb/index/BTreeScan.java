@@ -15,7 +15,10 @@ import java.util.*;
 
 /**
  * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * according to a predicate. It reads any other {@link IndexFile} through its
+ * indexIterator too, in the order of that file (bucket order for a
+ * HashIndexFile). A descending scan reads a {@link BTreeFile} in descending
+ * key order, see {@link BTreeFile#descendingIterator}.
  */
 public class BTreeScan implements OpIterator {
 
@@ -25,6 +28,7 @@ public class BTreeScan implements OpIterator {
 	private final TransactionId tid;
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
+	private final boolean descending;
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
@@ -49,8 +53,31 @@ public class BTreeScan implements OpIterator {
 	 *            in sorted order
 	 */
 	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+		this(tid, tableid, tableAlias, ipred, false);
+	}
+
+	/**
+	 * Creates a B+ tree scan as above, returning the tuples in descending key order
+	 * if descending is true. A descending scan needs the table to be stored in a
+	 * {@link BTreeFile}.
+	 * 
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan.
+	 * @param tableAlias
+	 *            the alias of this table (needed by the parser)
+	 * @param ipred
+	 * 			  The index predicate to match. If null, the scan will return all tuples
+	 *            in sorted order
+	 * @param descending
+	 *            whether to return the tuples in descending key order
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred,
+			boolean descending) {
 		this.tid = tid;
 		this.ipred = ipred;
+		this.descending = descending;
 		reset(tableid,tableAlias);
 	}
 
@@ -71,6 +98,27 @@ public class BTreeScan implements OpIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return the predicate the scan filters on, or null if it returns all tuples
+	 */
+	public IndexPredicate getPredicate() {
+		return ipred;
+	}
+
+	/**
+	 * @return true if the scan returns the tuples in descending key order
+	 */
+	public boolean isDescending() {
+		return descending;
+	}
+
+	/**
+	 * @return the transaction this scan runs in
+	 */
+	public TransactionId getTransactionId() {
+		return tid;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -87,11 +135,14 @@ public class BTreeScan implements OpIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
+		if(descending) {
+			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).descendingIterator(tid, ipred);
+		}
+		else if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
 		else {
-			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+			this.it = ((IndexFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
 		}
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
@@ -475,6 +475,36 @@ public class BTreeUtility {
         return openBTreeFile(cols, f, keyField);
 	}
 
+	/**
+	 * @return a new temporary file with the given prefix, deleted when the
+	 *   JVM exits
+	 */
+	public static File tempFile(String prefix) throws IOException {
+		File f = File.createTempFile(prefix, ".dat");
+		f.deleteOnExit();
+		return f;
+	}
+
+	/**
+	 * Insert tuples into a table within tid, committing every 20 inserts
+	 * and after the last one.
+	 *
+	 * @return the transaction to go on with, which has not done anything yet
+	 */
+	public static TransactionId insertTuples(TransactionId tid, int tableid, List<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		for(int i = 0; i < tuples.size(); i++) {
+			Database.getBufferPool().insertTuple(tid, tableid, tuples.get(i));
+			// 缓冲池是NO STEAL的，不时提交一次，脏页才能被驱逐
+			if(i % 20 == 19) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		return new TransactionId();
+	}
+
 	/**
 	 * Helper class that attempts to insert a tuple in a new thread
 	 *
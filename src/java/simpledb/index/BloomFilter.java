@@ -0,0 +1,87 @@
+package simpledb.index;
+
+import simpledb.storage.Field;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A bloom filter over the keys of a sorted run of an LsmFile, so that point
+ * lookups skip the runs that cannot hold the key. The k bit positions of a
+ * key are derived from two hashes of the key (double hashing).
+ */
+class BloomFilter {
+	/** The number of bits per key the filter is sized for, about 1% false positives */
+	static final int BITS_PER_KEY = 10;
+
+	private final long[] bits;
+	private final int numHashes;
+
+	/**
+	 * Create an empty filter sized for the given number of keys.
+	 */
+	BloomFilter(int numKeys) {
+		int numBits = Math.max(64, numKeys * BITS_PER_KEY);
+		this.bits = new long[(numBits + 63) / 64];
+		// k = bits per key * ln 2
+		this.numHashes = Math.max(1, (int) Math.round(BITS_PER_KEY * Math.log(2)));
+	}
+
+	private BloomFilter(long[] bits, int numHashes) {
+		this.bits = bits;
+		this.numHashes = numHashes;
+	}
+
+	private static int hash1(Field key) {
+		int h = key.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static int hash2(Field key) {
+		int h = key.hashCode() * 0x85EBCA6B;
+		h ^= h >>> 13;
+		// 第二个哈希必须是奇数，否则探测的位置可能只覆盖一部分位
+		return (h * 0xC2B2AE35) | 1;
+	}
+
+	private long bitIndex(int h1, int h2, int i) {
+		return Integer.toUnsignedLong(h1 + i * h2) % ((long) bits.length * 64);
+	}
+
+	void add(Field key) {
+		int h1 = hash1(key), h2 = hash2(key);
+		for (int i = 0; i < numHashes; i++) {
+			long b = bitIndex(h1, h2, i);
+			bits[(int) (b >>> 6)] |= 1L << (b & 63);
+		}
+	}
+
+	/**
+	 * @return false if key was certainly never added to this filter
+	 */
+	boolean mightContain(Field key) {
+		int h1 = hash1(key), h2 = hash2(key);
+		for (int i = 0; i < numHashes; i++) {
+			long b = bitIndex(h1, h2, i);
+			if ((bits[(int) (b >>> 6)] & (1L << (b & 63))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	void writeTo(DataOutputStream dos) throws IOException {
+		dos.writeInt(numHashes);
+		dos.writeInt(bits.length);
+		for (long w : bits)
+			dos.writeLong(w);
+	}
+
+	static BloomFilter readFrom(DataInputStream dis) throws IOException {
+		int numHashes = dis.readInt();
+		long[] bits = new long[dis.readInt()];
+		for (int i = 0; i < bits.length; i++)
+			bits[i] = dis.readLong();
+		return new BloomFilter(bits, numHashes);
+	}
+}
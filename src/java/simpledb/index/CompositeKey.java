@@ -0,0 +1,176 @@
+package simpledb.index;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * The key of a B+ tree keyed on several fields of its tuples, for example
+ * (customer_id, order_date).
+ * <p>
+ * Keys are compared lexicographically on the fields they have in common: the
+ * first field that differs decides, and if all the common fields are equal
+ * the keys compare as equal even if one of them has fewer fields. A key with
+ * fewer fields than the tree is keyed on is therefore a prefix that is equal
+ * to every key starting with it, and a plain {@link Field} compares like a
+ * key made of that single field.
+ *
+ * @see BTreeFile#BTreeFile(java.io.File, int[], TupleDesc)
+ * @see simpledb.execution.IndexPredicate
+ */
+public class CompositeKey implements Field {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Field[] fields;
+
+	/**
+	 * @param fields - the fields of the key, most significant first
+	 */
+	public CompositeKey(Field... fields) {
+		if(fields.length == 0)
+			throw new IllegalArgumentException("a key needs at least one field");
+		this.fields = fields.clone();
+	}
+
+	/**
+	 * @return the key of tuple t in a B+ tree keyed on keyFields: the field
+	 *   itself if there is only one key field
+	 */
+	public static Field keyOf(Tuple t, int[] keyFields) {
+		if(keyFields.length == 1)
+			return t.getField(keyFields[0]);
+		Field[] fields = new Field[keyFields.length];
+		for(int i=0; i<keyFields.length; i++)
+			fields[i] = t.getField(keyFields[i]);
+		return new CompositeKey(fields);
+	}
+
+	/**
+	 * @return the number of bytes a key made of the given fields of td
+	 *   takes on disk
+	 */
+	public static int getLen(TupleDesc td, int[] keyFields) {
+		int len = 0;
+		for(int f : keyFields)
+			len += td.getFieldType(f).getLen();
+		return len;
+	}
+
+	/**
+	 * Read a key made of the given fields of td, as written by serialize.
+	 */
+	public static Field parse(TupleDesc td, int[] keyFields, DataInputStream dis) throws ParseException {
+		if(keyFields.length == 1)
+			return td.getFieldType(keyFields[0]).parse(dis);
+		Field[] fields = new Field[keyFields.length];
+		for(int i=0; i<keyFields.length; i++)
+			fields[i] = td.getFieldType(keyFields[i]).parse(dis);
+		return new CompositeKey(fields);
+	}
+
+	/**
+	 * @return the fields of key: the fields of a CompositeKey, or key itself
+	 */
+	private static Field[] fieldsOf(Field key) {
+		if(key instanceof CompositeKey)
+			return ((CompositeKey) key).fields;
+		return new Field[]{key};
+	}
+
+	/**
+	 * Compare two keys on their common leading fields.
+	 *
+	 * @return a negative number, zero or a positive number if a is less than,
+	 *   equal to or greater than b
+	 */
+	public static int compare(Field a, Field b) {
+		Field[] x = fieldsOf(a), y = fieldsOf(b);
+		int n = Math.min(x.length, y.length);
+		for(int i=0; i<n; i++) {
+			if(x[i].compare(Predicate.Op.LESS_THAN, y[i]))
+				return -1;
+			if(x[i].compare(Predicate.Op.GREATER_THAN, y[i]))
+				return 1;
+		}
+		return 0;
+	}
+
+	/** @return the number of fields of this key */
+	public int numFields() {
+		return fields.length;
+	}
+
+	/** @return the ith field of this key */
+	public Field getField(int i) {
+		return fields[i];
+	}
+
+	/**
+	 * @return the key made of the first n fields of this key
+	 */
+	public CompositeKey prefix(int n) {
+		return new CompositeKey(Arrays.copyOf(fields, n));
+	}
+
+	public void serialize(DataOutputStream dos) throws IOException {
+		for(Field f : fields)
+			f.serialize(dos);
+	}
+
+	public boolean compare(Predicate.Op op, Field value) {
+		int cmp = compare(this, value);
+		switch (op) {
+			case EQUALS:
+			case LIKE:
+				return cmp == 0;
+			case NOT_EQUALS:
+				return cmp != 0;
+			case GREATER_THAN:
+				return cmp > 0;
+			case GREATER_THAN_OR_EQ:
+				return cmp >= 0;
+			case LESS_THAN:
+				return cmp < 0;
+			case LESS_THAN_OR_EQ:
+				return cmp <= 0;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the type of the first field. Keys take the sum of the lengths
+	 *   of their fields on disk, see {@link #getLen}
+	 */
+	public Type getType() {
+		return fields[0].getType();
+	}
+
+	public int hashCode() {
+		return Arrays.hashCode(fields);
+	}
+
+	public boolean equals(Object field) {
+		if(!(field instanceof CompositeKey))
+			return false;
+		return Arrays.equals(fields, ((CompositeKey) field).fields);
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("(");
+		for(int i=0; i<fields.length; i++) {
+			if(i > 0)
+				sb.append(", ");
+			sb.append(fields[i]);
+		}
+		return sb.append(")").toString();
+	}
+}
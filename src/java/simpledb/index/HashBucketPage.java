@@ -0,0 +1,309 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Each instance of HashBucketPage stores one page of a bucket of a
+ * HashIndexFile. The pages of a bucket form a chain: the first page is the
+ * one recorded in the {@link HashMetaPage}, and every page points to the next
+ * overflow page of the bucket, or to page 0 at the end of the chain.
+ * <p>
+ * The format of a page is the pointer to the next page, a header with one
+ * bit for each tuple slot, and the tuple slots, like a {@link HeapPage}.
+ *
+ * @see HashIndexFile
+ */
+public class HashBucketPage implements Page {
+	// 指向下一个溢出页的页号，0表示没有
+	private static final int POINTER_SIZE = 4;
+
+	private final HashPageId pid;
+	private final TupleDesc td;
+	private final byte[] header;
+	private final Tuple[] tuples;
+	private final int numSlots;
+	private int nextPage;
+
+	private boolean dirty = false;
+	private TransactionId dirtier = null;
+	private byte[] oldData;
+	private final PageLatch latch = new PageLatch();
+
+	/**
+	 * Create a HashBucketPage from a set of bytes of data read from disk.
+	 * The tuple desc is the one of the file, found in the catalog.
+	 */
+	public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.numSlots = getMaxTuples(td);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		nextPage = dis.readInt();
+		header = new byte[(numSlots + 7) / 8];
+		dis.readFully(header);
+		tuples = new Tuple[numSlots];
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				dis.skipBytes(td.getSize());
+				continue;
+			}
+			Tuple t = new Tuple(td);
+			try {
+				for (int j = 0; j < td.numFields(); j++)
+					t.setField(j, td.getFieldType(j).parse(dis));
+			} catch (java.text.ParseException e) {
+				throw new IOException("error parsing tuple " + i + " of page " + pid, e);
+			}
+			t.setRecordId(new RecordId(pid, i));
+			tuples[i] = t;
+		}
+		dis.close();
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the number of tuples of the given schema that fit on a page
+	 */
+	public static int getMaxTuples(TupleDesc td) {
+		return ((BufferPool.getPageSize() - POINTER_SIZE) * 8) / (td.getSize() * 8 + 1);
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashBucketPage at the end of its chain.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; //all 0
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to a full
+	 * HashBucketPage, used to build files without going through the
+	 * BufferPool.
+	 *
+	 * @param td - the tuple desc of the file
+	 * @param tuples - the tuples of the page, at most getMaxTuples(td)
+	 * @param nextPage - the next page of the bucket, or 0
+	 */
+	public static byte[] createPageData(TupleDesc td, List<Tuple> tuples, int nextPage) throws IOException {
+		int numSlots = getMaxTuples(td);
+		if (tuples.size() > numSlots)
+			throw new IllegalArgumentException("too many tuples for one page: " + tuples.size());
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(nextPage);
+		byte[] header = new byte[(numSlots + 7) / 8];
+		for (int i = 0; i < tuples.size(); i++)
+			header[i / 8] |= (byte) (1 << (i % 8));
+		dos.write(header);
+		for (Tuple t : tuples) {
+			for (int j = 0; j < td.numFields(); j++)
+				t.getField(j).serialize(dos);
+		}
+		dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	public HashPageId getId() {
+		return pid;
+	}
+
+	public PageLatch getLatch() {
+		return latch;
+	}
+
+	/**
+	 * @return the page number of the next page of the bucket, or 0 if this is
+	 *   the last page
+	 */
+	public int getNextPage() {
+		latch.latchShared();
+		try {
+			return nextPage;
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
+	public void setNextPage(int pgNo) {
+		latch.latchExclusive();
+		try {
+			nextPage = pgNo;
+		} finally {
+			latch.unlatchExclusive();
+		}
+	}
+
+	public byte[] getPageData() {
+		// 序列化期间不允许其他线程修改页内容
+		latch.latchShared();
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+			DataOutputStream dos = new DataOutputStream(baos);
+			dos.writeInt(nextPage);
+			dos.write(header);
+			byte[] empty = new byte[td.getSize()];
+			for (Tuple t : tuples) {
+				if (t == null) {
+					dos.write(empty);
+					continue;
+				}
+				for (int j = 0; j < td.numFields(); j++)
+					t.getField(j).serialize(dos);
+			}
+			dos.write(new byte[BufferPool.getPageSize() - POINTER_SIZE - header.length - td.getSize() * numSlots]);
+			dos.flush();
+			return baos.toByteArray();
+		} catch (IOException e) {
+			// 写内存流不会出错
+			throw new RuntimeException(e);
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
+	/**
+	 * Adds the specified tuple to the page and sets its RecordId.
+	 * @throws DbException if the page is full or the tupledesc is mismatched
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		latch.latchExclusive();
+		try {
+			if (!td.equals(t.getTupleDesc()))
+				throw new DbException("tupleDesc is mismatch");
+			for (int i = 0; i < numSlots; i++) {
+				if (tuples[i] == null) {
+					t.setRecordId(new RecordId(pid, i));
+					markSlotUsed(i, true);
+					tuples[i] = t;
+					return;
+				}
+			}
+			throw new DbException("the page is full");
+		} finally {
+			latch.unlatchExclusive();
+		}
+	}
+
+	/**
+	 * Delete the specified tuple from the page.
+	 * @throws DbException if this tuple is not on this page, or its slot is
+	 *   already empty
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		latch.latchExclusive();
+		try {
+			RecordId rid = t.getRecordId();
+			if (rid == null || !pid.equals(rid.getPageId()) || !isSlotUsed(rid.getTupleNumber()))
+				throw new DbException("the tuple is not in the page or empty");
+			markSlotUsed(rid.getTupleNumber(), false);
+			tuples[rid.getTupleNumber()] = null;
+		} finally {
+			latch.unlatchExclusive();
+		}
+	}
+
+	/**
+	 * Remove all the tuples from the page, keeping the pointer to the next page.
+	 */
+	public void clear() {
+		latch.latchExclusive();
+		try {
+			for (int i = 0; i < numSlots; i++) {
+				markSlotUsed(i, false);
+				tuples[i] = null;
+			}
+		} finally {
+			latch.unlatchExclusive();
+		}
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		latch.latchShared();
+		try {
+			int num = 0;
+			for (Tuple t : tuples) {
+				if (t == null)
+					num++;
+			}
+			return num;
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
+	private boolean isSlotUsed(int i) {
+		return (header[i / 8] & (1 << (i % 8))) != 0;
+	}
+
+	private void markSlotUsed(int i, boolean value) {
+		if (value)
+			header[i / 8] |= (byte) (1 << (i % 8));
+		else
+			header[i / 8] &= (byte) ~(1 << (i % 8));
+	}
+
+	/**
+	 * @return an iterator over the tuples on this page, taken under the
+	 *   shared latch so that later changes to the page do not affect it
+	 */
+	public Iterator<Tuple> iterator() {
+		latch.latchShared();
+		try {
+			List<Tuple> list = new ArrayList<>();
+			for (Tuple t : tuples) {
+				if (t != null)
+					list.add(t);
+			}
+			return list.iterator();
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	public HashBucketPage getBeforeImage() {
+		try {
+			byte[] oldDataRef;
+			synchronized (this) {
+				oldDataRef = oldData;
+			}
+			return new HashBucketPage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		byte[] data = getPageData().clone();
+		synchronized (this) {
+			oldData = data;
+		}
+	}
+}
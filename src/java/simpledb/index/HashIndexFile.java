@@ -0,0 +1,453 @@
+package simpledb.index;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.execution.ExternalSort;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * HashIndexFile is an implementation of a DbFile that stores its tuples in a
+ * linear hash table on one key field, so that the tuples with a given key are
+ * found by reading a single bucket.
+ * <p>
+ * Page 0 of the file is a {@link HashMetaPage} with the number of buckets and
+ * the first page of every bucket; all the other pages are
+ * {@link HashBucketPage}s, chained into buckets through their overflow
+ * pointers. All pages are read through the BufferPool and locked like the
+ * pages of the other files.
+ * <p>
+ * When an insert finds the chain of its bucket full, the table grows by one
+ * bucket: the next bucket in split order is split, its tuples are
+ * redistributed between itself and the new bucket, and only then is an
+ * overflow page added if the bucket of the new tuple is still full. Inserts
+ * only take the write lock on the meta page when they grow the file. The
+ * number of buckets is bounded by the size of the directory in the meta page
+ * ({@link HashMetaPage#getMaxBuckets()}); past that, buckets only grow longer
+ * chains. Buckets never shrink, and the pages emptied by deletes are reused by
+ * later inserts into the same bucket.
+ *
+ * @see HashMetaPage
+ * @see HashBucketPage
+ */
+public class HashIndexFile implements IndexFile {
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+
+	/**
+	 * Constructs a hash index file backed by the specified file.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this file
+	 * @param key - the field which the file is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public HashIndexFile(File f, int key, TupleDesc td) {
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+	}
+
+	/**
+	 * Build a hash index file holding a copy of an existing table, keyed on
+	 * one of its fields. The tuples are read within tid and sorted with an
+	 * external sort in {@link #bucketOrder}, and written with
+	 * {@link #build}. The caller is responsible for adding the returned file
+	 * to the catalog once the build has succeeded.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param table - the table to copy
+	 * @param keyField - the field to hash on
+	 * @param f - the file to write the new hash index to
+	 * @param fillFactor - how full to make each bucket, between 0.5 and 1
+	 * @return the new HashIndexFile
+	 */
+	public static HashIndexFile create(TransactionId tid, DbFile table, int keyField, File f, double fillFactor)
+			throws DbException, TransactionAbortedException, IOException {
+		TupleDesc td = table.getTupleDesc();
+		try (ExternalSort sort = new ExternalSort(td, bucketOrder(keyField), BTreeBulkLoader.DEFAULT_SORT_PAGES)) {
+			DbFileIterator it = table.iterator(tid);
+			it.open();
+			while (it.hasNext())
+				sort.add(it.next());
+			it.close();
+			return build(td, keyField, sort.iterator(), sort.size(), f, fillFactor);
+		}
+	}
+
+	/**
+	 * @return the order of tuples on the bit-reversed hash of their key,
+	 *   which puts the tuples of each bucket next to each other whatever the
+	 *   number of buckets
+	 */
+	public static Comparator<Tuple> bucketOrder(int keyField) {
+		return Comparator.comparingInt(t -> Integer.reverse(hash(t.getField(keyField))));
+	}
+
+	/**
+	 * Write a hash index file holding the given tuples. Every page is written
+	 * once, without the BufferPool, and the number of buckets is chosen so
+	 * that buckets are filled up to the fill factor.
+	 *
+	 * @param td - the tuple descriptor of the tuples
+	 * @param keyField - the field to hash on
+	 * @param tuples - the tuples, sorted in {@link #bucketOrder}
+	 * @param numTuples - the number of tuples
+	 * @param f - the file to write the new hash index to; any existing content is lost
+	 * @param fillFactor - how full to make each bucket, between 0.5 and 1
+	 * @return the new HashIndexFile
+	 */
+	public static HashIndexFile build(TupleDesc td, int keyField, Iterator<Tuple> tuples, long numTuples,
+			File f, double fillFactor) throws IOException {
+		if (fillFactor < 0.5 || fillFactor > 1)
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			int perBucket = Math.max(1, (int) (HashBucketPage.getMaxTuples(td) * fillFactor));
+			int numBuckets = (int) Math.min(HashMetaPage.getMaxBuckets(),
+					Math.max(1, (numTuples + perBucket - 1) / perBucket));
+			// 只用于计算桶号
+			HashMetaPage meta = new HashMetaPage(new HashPageId(0, 0),
+					HashMetaPage.createPageData(1, new int[numBuckets]));
+			int[] directory = new int[numBuckets];
+			raf.setLength(0);
+			raf.seek(BufferPool.getPageSize());
+			int nextPage = 1;
+			int bucket = -1;
+			List<Tuple> page = new ArrayList<>();
+			while (tuples.hasNext()) {
+				Tuple t = tuples.next();
+				int b = meta.getBucket(hash(t.getField(keyField)));
+				if (b != bucket || page.size() == HashBucketPage.getMaxTuples(td)) {
+					if (bucket != -1) {
+						// 同一个桶的下一页紧接在后面
+						raf.write(HashBucketPage.createPageData(td, page, b == bucket ? nextPage + 1 : 0));
+						nextPage++;
+					}
+					if (b != bucket)
+						directory[b] = nextPage;
+					bucket = b;
+					page.clear();
+				}
+				page.add(t);
+			}
+			if (bucket != -1) {
+				raf.write(HashBucketPage.createPageData(td, page, 0));
+				nextPage++;
+			}
+			// 没有tuple的桶也要有一个空页
+			for (int b = 0; b < numBuckets; b++) {
+				if (directory[b] == 0) {
+					raf.write(HashBucketPage.createEmptyPageData());
+					directory[b] = nextPage++;
+				}
+			}
+			raf.seek(0);
+			raf.write(HashMetaPage.createPageData(nextPage, directory));
+		}
+		return new HashIndexFile(f, keyField, td);
+	}
+
+	/**
+	 * Returns the File backing this HashIndexFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	public int getId() {
+		return tableid;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	public int keyField() {
+		return keyField;
+	}
+
+	public boolean canSearch(Predicate.Op op) {
+		return op == Op.EQUALS;
+	}
+
+	/**
+	 * @return the hash code of a key; the low bits select the bucket, so the
+	 *   bits of Field.hashCode() are mixed first
+	 */
+	static int hash(Field key) {
+		int h = key.hashCode() * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & 0x7fffffff;
+	}
+
+	/**
+	 * Read a page from the file on disk. This should not be called directly
+	 * but should be called from the BufferPool via getPage()
+	 */
+	public Page readPage(PageId pid) {
+		HashPageId id = (HashPageId) pid;
+		createMetaPageIfNeeded();
+		if (id.getTableId() != tableid)
+			throw new IllegalArgumentException("the PageId is not legal");
+		long offset = (long) id.getPageNumber() * BufferPool.getPageSize();
+		try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+			if (id.getPageNumber() < 0 || offset + BufferPool.getPageSize() > raf.length())
+				throw new IllegalArgumentException("Read past end of table");
+			byte[] data = new byte[BufferPool.getPageSize()];
+			raf.seek(offset);
+			raf.readFully(data);
+			if (id.isMetaPage())
+				return new HashMetaPage(id, data);
+			return new HashBucketPage(id, data);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void writePage(Page page) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			raf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+			raf.write(page.getPageData());
+		}
+	}
+
+	/**
+	 * Returns the number of pages in this file on disk, including the pages
+	 * of aborted transactions that are waiting to be reused.
+	 */
+	public int numPages() {
+		return (int) (f.length() / BufferPool.getPageSize());
+	}
+
+	/**
+	 * Write the meta page and the empty first bucket of a new file.
+	 */
+	private synchronized void createMetaPageIfNeeded() {
+		if (f.length() > 0)
+			return;
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			raf.write(HashMetaPage.createInitialPageData());
+			raf.write(HashBucketPage.createEmptyPageData());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	HashMetaPage getMetaPage(TransactionId tid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		createMetaPageIfNeeded();
+		return (HashMetaPage) Database.getBufferPool().getPage(tid, new HashPageId(tableid, 0), perm);
+	}
+
+	private HashBucketPage getBucketPage(TransactionId tid, Map<PageId, Page> dirtypages, int pgNo,
+			Permissions perm) throws DbException, TransactionAbortedException {
+		HashPageId pid = new HashPageId(tableid, pgNo);
+		if (dirtypages.containsKey(pid))
+			return (HashBucketPage) dirtypages.get(pid);
+		return (HashBucketPage) Database.getBufferPool().getPage(tid, pid, perm);
+	}
+
+	/**
+	 * Allocate a new, empty bucket page at the end of the file. The meta page
+	 * must be locked for writing. Pages allocated by aborted transactions are
+	 * overwritten, since the meta page forgets them on abort.
+	 */
+	private HashBucketPage allocatePage(TransactionId tid, Map<PageId, Page> dirtypages, HashMetaPage meta)
+			throws DbException, IOException, TransactionAbortedException {
+		HashPageId pid = new HashPageId(tableid, meta.allocatePage());
+		dirtypages.put(meta.getId(), meta);
+		// 旧的内容来自中止的事务，不能留在缓存里
+		Database.getBufferPool().discardPage(pid);
+		synchronized (this) {
+			try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+				raf.seek((long) pid.getPageNumber() * BufferPool.getPageSize());
+				raf.write(HashBucketPage.createEmptyPageData());
+			}
+		}
+		HashBucketPage p = getBucketPage(tid, dirtypages, pid.getPageNumber(), Permissions.READ_WRITE);
+		dirtypages.put(pid, p);
+		return p;
+	}
+
+	/**
+	 * Insert t into the first page with an empty slot of the bucket whose
+	 * chain starts at firstPage.
+	 *
+	 * @param meta - the meta page, locked for writing if a page may be added
+	 *   to the bucket, or null if no page may be added
+	 * @return true if t was inserted
+	 */
+	private boolean insertIntoBucket(TransactionId tid, Map<PageId, Page> dirtypages, HashMetaPage meta,
+			int firstPage, Tuple t) throws DbException, IOException, TransactionAbortedException {
+		HashBucketPage p = getBucketPage(tid, dirtypages, firstPage, Permissions.READ_WRITE);
+		while (p.getNumEmptySlots() == 0 && p.getNextPage() != 0)
+			p = getBucketPage(tid, dirtypages, p.getNextPage(), Permissions.READ_WRITE);
+		if (p.getNumEmptySlots() == 0) {
+			if (meta == null)
+				return false;
+			HashBucketPage overflow = allocatePage(tid, dirtypages, meta);
+			p.setNextPage(overflow.getId().getPageNumber());
+			dirtypages.put(p.getId(), p);
+			p = overflow;
+		}
+		p.insertTuple(t);
+		dirtypages.put(p.getId(), p);
+		return true;
+	}
+
+	/**
+	 * Add a bucket to the file by splitting the next bucket in split order.
+	 * The meta page must be locked for writing.
+	 */
+	private void splitBucket(TransactionId tid, Map<PageId, Page> dirtypages, HashMetaPage meta)
+			throws DbException, IOException, TransactionAbortedException {
+		int from = meta.getBucketToSplit();
+		List<Tuple> moved = new ArrayList<>();
+		int pgNo = meta.getBucketPage(from);
+		while (pgNo != 0) {
+			HashBucketPage p = getBucketPage(tid, dirtypages, pgNo, Permissions.READ_WRITE);
+			Iterator<Tuple> it = p.iterator();
+			while (it.hasNext())
+				moved.add(it.next());
+			p.clear();
+			dirtypages.put(p.getId(), p);
+			pgNo = p.getNextPage();
+		}
+		HashBucketPage first = allocatePage(tid, dirtypages, meta);
+		meta.addBucket(first.getId().getPageNumber());
+		// 分裂前的桶链足够放下留下的tuple，新桶在需要时追加溢出页
+		for (Tuple t : moved)
+			insertIntoBucket(tid, dirtypages, meta,
+					meta.getBucketPage(meta.getBucket(hash(t.getField(keyField)))), t);
+	}
+
+	public List<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		if (!td.equals(t.getTupleDesc()))
+			throw new DbException("tupleDesc is mismatch");
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		int h = hash(t.getField(keyField));
+		HashMetaPage meta = getMetaPage(tid, Permissions.READ_ONLY);
+		if (!insertIntoBucket(tid, dirtypages, null, meta.getBucketPage(meta.getBucket(h)), t)) {
+			// 桶已满：锁住元数据页，先分裂一个桶，仍然放不下再追加溢出页
+			meta = getMetaPage(tid, Permissions.READ_WRITE);
+			if (meta.getNumBuckets() < HashMetaPage.getMaxBuckets())
+				splitBucket(tid, dirtypages, meta);
+			insertIntoBucket(tid, dirtypages, meta, meta.getBucketPage(meta.getBucket(h)), t);
+		}
+		return new ArrayList<>(dirtypages.values());
+	}
+
+	public List<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !(rid.getPageId() instanceof HashPageId) || rid.getPageId().getTableId() != tableid)
+			throw new DbException("the tuple is not a member of the file");
+		HashBucketPage p = (HashBucketPage) Database.getBufferPool().getPage(tid, rid.getPageId(),
+				Permissions.READ_WRITE);
+		p.deleteTuple(t);
+		return Collections.singletonList(p);
+	}
+
+	/**
+	 * Get the tuples with the given key on behalf of the specified transaction
+	 * for EQUALS predicates, by reading the pages of one bucket. Any other
+	 * predicate is answered by a scan of the whole file.
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new HashIndexIterator(this, tid, ipred);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this file, bucket by bucket.
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new HashIndexIterator(this, tid, null);
+	}
+}
+
+/**
+ * Helper class that iterates over the tuples of the buckets of a
+ * HashIndexFile matching an index predicate.
+ */
+class HashIndexIterator extends AbstractDbFileIterator {
+
+	private final HashIndexFile f;
+	private final TransactionId tid;
+	private final IndexPredicate ipred;
+
+	// 要读取的桶，以及当前读到的桶和页
+	private int firstBucket, lastBucket, bucket;
+	private HashMetaPage meta;
+	private HashBucketPage curp;
+	private Iterator<Tuple> it;
+
+	/**
+	 * @param ipred - the predicate to filter on, or null for all tuples
+	 */
+	public HashIndexIterator(HashIndexFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		meta = f.getMetaPage(tid, Permissions.READ_ONLY);
+		if (ipred != null && ipred.getOp() == Op.EQUALS) {
+			firstBucket = lastBucket = meta.getBucket(HashIndexFile.hash(ipred.getField()));
+		} else {
+			firstBucket = 0;
+			lastBucket = meta.getNumBuckets() - 1;
+		}
+		bucket = firstBucket;
+		curp = readPage(meta.getBucketPage(bucket));
+		it = curp.iterator();
+	}
+
+	private HashBucketPage readPage(int pgNo) throws DbException, TransactionAbortedException {
+		return (HashBucketPage) Database.getBufferPool().getPage(tid,
+				new HashPageId(f.getId(), pgNo), Permissions.READ_ONLY);
+	}
+
+	@Override
+	protected Tuple readNext() throws DbException, TransactionAbortedException {
+		while (it != null) {
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (ipred == null || t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField()))
+					return t;
+			}
+			if (curp.getNextPage() != 0) {
+				curp = readPage(curp.getNextPage());
+			} else if (bucket < lastBucket) {
+				bucket++;
+				curp = readPage(meta.getBucketPage(bucket));
+			} else {
+				return null;
+			}
+			it = curp.iterator();
+		}
+		return null;
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+	}
+}
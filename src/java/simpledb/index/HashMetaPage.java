@@ -0,0 +1,213 @@
+package simpledb.index;
+
+import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Page;
+import simpledb.storage.PageLatch;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * HashMetaPage is page 0 of a HashIndexFile. It holds the state of the
+ * linear hash table: the number of pages allocated in the file, the number
+ * of buckets, and the directory from bucket number to the page number of the
+ * first page of that bucket.
+ * <p>
+ * With n buckets, level = floor(log2 n) and the key with hash h belongs to
+ * bucket h mod 2^(level+1) if that bucket exists, or else to bucket
+ * h mod 2^level. Adding bucket n splits bucket n - 2^level.
+ */
+public class HashMetaPage implements Page {
+	// numPages, numBuckets
+	private static final int HEADER_SIZE = 8;
+
+	private boolean dirty = false;
+	private TransactionId dirtier = null;
+
+	private final HashPageId pid;
+	private int numPages;
+	private int numBuckets;
+	private final int[] directory;
+
+	private byte[] oldData;
+	private final PageLatch latch = new PageLatch();
+
+	/**
+	 * Construct the meta page from a set of bytes of data read from disk:
+	 * the number of pages, the number of buckets, and then the page number
+	 * of the first page of every bucket.
+	 */
+	public HashMetaPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		numPages = dis.readInt();
+		numBuckets = dis.readInt();
+		directory = new int[getMaxBuckets()];
+		for (int i = 0; i < numBuckets; i++)
+			directory[i] = dis.readInt();
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the maximum number of buckets whose pages fit in the directory
+	 */
+	public static int getMaxBuckets() {
+		return (BufferPool.getPageSize() - HEADER_SIZE) / 4;
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to the meta page
+	 * of a new file with a single, empty bucket on page 1.
+	 */
+	public static byte[] createInitialPageData() {
+		// 元数据页和第一个桶
+		return createPageData(2, new int[]{1});
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to a meta page.
+	 *
+	 * @param numPages - the number of pages of the file
+	 * @param directory - the first page of every bucket
+	 */
+	public static byte[] createPageData(int numPages, int[] directory) {
+		if (directory.length > getMaxBuckets())
+			throw new IllegalArgumentException("too many buckets: " + directory.length);
+		ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize());
+		buf.putInt(numPages);
+		buf.putInt(directory.length);
+		for (int pgNo : directory)
+			buf.putInt(pgNo);
+		return buf.array();
+	}
+
+	public HashPageId getId() {
+		return pid;
+	}
+
+	public PageLatch getLatch() {
+		return latch;
+	}
+
+	/** @return the number of pages of the file, including this one */
+	public int getNumPages() {
+		return numPages;
+	}
+
+	/**
+	 * Allocate a page at the end of the file.
+	 * @return the number of the new page
+	 */
+	public int allocatePage() {
+		latch.latchExclusive();
+		try {
+			return numPages++;
+		} finally {
+			latch.unlatchExclusive();
+		}
+	}
+
+	/** @return the number of buckets */
+	public int getNumBuckets() {
+		return numBuckets;
+	}
+
+	/**
+	 * @return the bucket the key with the given hash code belongs to
+	 */
+	public int getBucket(int hash) {
+		int level = 31 - Integer.numberOfLeadingZeros(numBuckets);
+		int b = hash & ((1 << (level + 1)) - 1);
+		if (b >= numBuckets)
+			b = hash & ((1 << level) - 1);
+		return b;
+	}
+
+	/**
+	 * @return the bucket that is split when the next bucket is added
+	 */
+	public int getBucketToSplit() {
+		return numBuckets - Integer.highestOneBit(numBuckets);
+	}
+
+	/**
+	 * @return the page number of the first page of bucket b
+	 */
+	public int getBucketPage(int b) {
+		if (b < 0 || b >= numBuckets)
+			throw new IllegalArgumentException("no bucket " + b);
+		return directory[b];
+	}
+
+	/**
+	 * Add a bucket whose first page is pageNo.
+	 * @throws DbException if the directory is full
+	 */
+	public void addBucket(int pageNo) throws DbException {
+		latch.latchExclusive();
+		try {
+			if (numBuckets >= directory.length)
+				throw new DbException("hash directory is full");
+			directory[numBuckets++] = pageNo;
+		} finally {
+			latch.unlatchExclusive();
+		}
+	}
+
+	public byte[] getPageData() {
+		// 序列化期间不允许其他线程修改页内容
+		latch.latchShared();
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+			DataOutputStream dos = new DataOutputStream(baos);
+			dos.writeInt(numPages);
+			dos.writeInt(numBuckets);
+			for (int i = 0; i < numBuckets; i++)
+				dos.writeInt(directory[i]);
+			dos.write(new byte[BufferPool.getPageSize() - HEADER_SIZE - 4 * numBuckets]);
+			dos.flush();
+			return baos.toByteArray();
+		} catch (IOException e) {
+			// 写内存流不会出错
+			throw new RuntimeException(e);
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	public HashMetaPage getBeforeImage() {
+		try {
+			byte[] oldDataRef;
+			synchronized (this) {
+				oldDataRef = oldData;
+			}
+			return new HashMetaPage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		byte[] data = getPageData().clone();
+		synchronized (this) {
+			oldData = data;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package simpledb.index;
+
+import simpledb.storage.PageId;
+
+/**
+ * Unique identifier for the pages of a HashIndexFile. Page 0 is the
+ * {@link HashMetaPage}, all other pages are {@link HashBucketPage}s.
+ */
+public class HashPageId implements PageId {
+
+	private final int tableId;
+	private final int pgNo;
+
+	/**
+	 * Constructor. Create a page id structure for a specific page of a
+	 * specific table.
+	 *
+	 * @param tableId The table that is being referenced
+	 * @param pgNo The page number in that table.
+	 */
+	public HashPageId(int tableId, int pgNo) {
+		this.tableId = tableId;
+		this.pgNo = pgNo;
+	}
+
+	/** @return the table associated with this PageId */
+	public int getTableId() {
+		return tableId;
+	}
+
+	/**
+	 * @return the page number in the table getTableId() associated with
+	 *   this PageId
+	 */
+	public int getPageNumber() {
+		return pgNo;
+	}
+
+	/**
+	 * @return true if this is the id of the meta page of its file
+	 */
+	public boolean isMetaPage() {
+		return pgNo == 0;
+	}
+
+	public int hashCode() {
+		int result = 1;
+		result = result*31 + tableId;
+		result = result*31 + pgNo;
+		return result;
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof HashPageId))
+			return false;
+		HashPageId p = (HashPageId) o;
+		return tableId == p.tableId && pgNo == p.pgNo;
+	}
+
+	public String toString() {
+		return "(" + tableId + ", " + pgNo + ")";
+	}
+
+	/**
+	 *  Return a representation of this object as an array of
+	 *  integers, for writing to disk.  Size of returned array must contain
+	 *  number of integers that corresponds to number of args to one of the
+	 *  constructors.
+	 */
+	public int[] serialize() {
+		return new int[]{tableId, pgNo};
+	}
+}
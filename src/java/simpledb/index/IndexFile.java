@@ -0,0 +1,41 @@
+package simpledb.index;
+
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.transaction.TransactionId;
+
+/**
+ * The interface for DbFiles that store their tuples organized by one key
+ * field, so that the tuples matching a predicate on that field can be found
+ * without reading the whole file.
+ *
+ * @see BTreeFile
+ * @see HashIndexFile
+ * @see LsmFile
+ */
+public interface IndexFile extends DbFile {
+
+	/**
+	 * @return the index of the field the file is keyed on
+	 */
+	int keyField();
+
+	/**
+	 * Get the tuples of the file whose key field matches ipred on behalf of
+	 * the specified transaction. Operations the file cannot search on are
+	 * answered by scanning the whole file.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on
+	 * @return an iterator for the filtered tuples
+	 */
+	DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred);
+
+	/**
+	 * @return true if indexIterator answers predicates with the given
+	 *   operation by reading only the part of the file that can match
+	 */
+	boolean canSearch(Predicate.Op op);
+}
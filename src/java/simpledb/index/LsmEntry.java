@@ -0,0 +1,32 @@
+package simpledb.index;
+
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An entry of an LsmFile: a tuple, or a tombstone recording that one copy of
+ * the tuple was deleted from an older part of the file.
+ */
+class LsmEntry {
+	final Tuple tuple;
+	final boolean tombstone;
+
+	LsmEntry(Tuple tuple, boolean tombstone) {
+		this.tuple = tuple;
+		this.tombstone = tombstone;
+	}
+
+	/**
+	 * @return the fields of the tuple, which a tombstone must match to delete
+	 *   a copy of it
+	 */
+	List<Field> contents() {
+		List<Field> fields = new ArrayList<>(tuple.getTupleDesc().numFields());
+		for(int i=0; i<tuple.getTupleDesc().numFields(); i++)
+			fields.add(tuple.getField(i));
+		return fields;
+	}
+}
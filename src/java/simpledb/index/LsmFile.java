@@ -0,0 +1,937 @@
+package simpledb.index;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * LsmFile is an implementation of a DbFile that stores its tuples in a
+ * log-structured merge tree keyed on one field, for tables that are written
+ * much more often than they are read.
+ * <p>
+ * Inserts and deletes only append to the memtable, a sequence of
+ * {@link LsmPage}s read and locked through the BufferPool like the pages of
+ * the other files, so that the memtable is logged by the LogFile and written
+ * at commit. The memtable is split into segments of a fixed number of pages,
+ * each stored in its own file; when the active segment is full it is sealed,
+ * and a background thread writes the sealed segments, oldest first, to
+ * immutable sorted runs ({@link LsmRun}) with a sparse index and a bloom
+ * filter. Runs are organized in levels: the runs written from the memtable
+ * go to level 0, and when level 0 holds more than {@link #LEVEL0_RUNS} runs
+ * or a deeper level grows past its size limit, the level is merged into the
+ * next one, which holds a single run. Every level is {@link #LEVEL_RATIO}
+ * times larger than the one above it. A failure of the background thread
+ * is reported by the next insert, delete, flush or compaction, which
+ * schedules the thread again.
+ * <p>
+ * Only the active segment is modified in place: deleting one of its tuples
+ * removes it from its page, while deleting a tuple of a sealed segment or
+ * of a run appends a tombstone for it to the active segment, which hides
+ * one identical tuple of the older segments and runs until a compaction
+ * drops both. A flush thus only waits for the transactions that wrote to
+ * the segment before it was sealed, and never for a lock they wait for.
+ * <p>
+ * The file f given to the constructor is the manifest of the tree: the
+ * first live segment of the memtable and the runs of every level. It is
+ * replaced atomically whenever the runs change; the segments and runs are
+ * the files next to it named after it. Readers pin the segments and runs
+ * they read, and files that are no longer part of the tree are deleted when
+ * the last reader unpins them.
+ *
+ * @see LsmPage
+ * @see LsmRun
+ */
+public class LsmFile implements IndexFile {
+
+	/** default number of pages of a memtable segment */
+	public static final int DEFAULT_SEGMENT_PAGES = 32;
+	/** number of runs level 0 can hold before it is merged into level 1 */
+	public static final int LEVEL0_RUNS = 4;
+	/** ratio between the size limits of two consecutive levels */
+	public static final int LEVEL_RATIO = 10;
+	private static final int MAGIC = 0x4c534d31;
+	/** delays before retrying a flush aborted by a deadlock, in ms */
+	private static final long MIN_BACKOFF_MS = 1, MAX_BACKOFF_MS = 100;
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+	private final int segmentPages;
+
+	// 以下字段由this保护
+	private int nextSeq = 0;
+	// 最老的还在memtable中的段，更老的段都已经写进了run
+	private int firstSegment = 0;
+	private int activeSegment = 0;
+	// 每个活着的段的页数
+	private final TreeMap<Integer, Integer> segments = new TreeMap<>();
+	// 按层从浅到深、同一层从新到旧排列，只整体替换
+	private List<LsmRun> runs = Collections.emptyList();
+	// 被读者固定的文件及其固定次数
+	private final Map<File, Integer> pins = new HashMap<>();
+	// 已经不属于树但还被固定的文件，最后一个读者放开时删除
+	private final Set<File> retired = new HashSet<>();
+
+	// 刷盘和合并一次只做一个
+	private final Object maintenanceLock = new Object();
+	private final ThreadPoolExecutor maintenance;
+	// 后台刷盘或合并的失败，由this保护，下一次插入、删除、刷盘或合并时报告
+	private Exception maintenanceFailure;
+
+	/**
+	 * Constructs an LSM tree file whose manifest is the specified file, with
+	 * memtable segments of DEFAULT_SEGMENT_PAGES pages.
+	 *
+	 * @param f - the manifest of the file; an empty file is a new, empty tree
+	 * @param key - the field which the file is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public LsmFile(File f, int key, TupleDesc td) {
+		this(f, key, td, DEFAULT_SEGMENT_PAGES);
+	}
+
+	/**
+	 * Constructs an LSM tree file whose memtable segments have the given
+	 * number of pages. Segment files and runs left over from a crash are
+	 * deleted.
+	 *
+	 * @param f - the manifest of the file; an empty file is a new, empty tree
+	 * @param key - the field which the file is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param segmentPages - the number of pages after which a segment of the
+	 *   memtable is sealed and written to a run
+	 */
+	public LsmFile(File f, int key, TupleDesc td, int segmentPages) {
+		if (segmentPages < 1)
+			throw new IllegalArgumentException("a segment needs at least one page");
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+		this.segmentPages = segmentPages;
+		this.maintenance = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			Thread t = new Thread(r, "lsm-maintenance-" + f.getName());
+			t.setDaemon(true);
+			return t;
+		});
+		this.maintenance.allowCoreThreadTimeOut(true);
+		try {
+			open();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read the manifest, find the live segments of the memtable and delete
+	 * the files of the tree that the manifest does not know about.
+	 */
+	private void open() throws IOException {
+		List<LsmRun> loaded = new ArrayList<>();
+		if (f.length() > 0) {
+			try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+				if (dis.readInt() != MAGIC)
+					throw new IOException(f + " is not the manifest of an LsmFile");
+				nextSeq = dis.readInt();
+				firstSegment = dis.readInt();
+				int n = dis.readInt();
+				for (int i = 0; i < n; i++) {
+					int level = dis.readInt();
+					int seq = dis.readInt();
+					loaded.add(new LsmRun(runFile(seq), level, seq, tableid, td, keyField));
+				}
+			}
+		}
+		runs = Collections.unmodifiableList(loaded);
+
+		Set<File> known = new HashSet<>();
+		for (LsmRun r : loaded)
+			known.add(r.getFile());
+		File[] others = f.getAbsoluteFile().getParentFile().listFiles();
+		String prefix = f.getName() + ".";
+		for (File other : others == null ? new File[0] : others) {
+			String name = other.getName();
+			if (!name.startsWith(prefix))
+				continue;
+			String rest = name.substring(prefix.length());
+			try {
+				if (rest.equals("tmp"))
+					other.delete();
+				else if (rest.endsWith(".run") && !known.contains(runFile(Integer.parseInt(rest.substring(0, rest.length() - 4)))))
+					other.delete();
+				else if (rest.endsWith(".mem") && Integer.parseInt(rest.substring(0, rest.length() - 4)) < firstSegment)
+					other.delete();
+			} catch (NumberFormatException e) {
+				// 不是这个文件的段或run
+			}
+		}
+
+		activeSegment = firstSegment;
+		for (int seg = firstSegment; segmentFile(seg).exists(); seg++) {
+			activeSegment = seg;
+			segments.put(seg, (int) (segmentFile(seg).length() / BufferPool.getPageSize()));
+		}
+		segments.putIfAbsent(activeSegment, 0);
+	}
+
+	private File segmentFile(int seg) {
+		return new File(f.getPath() + "." + seg + ".mem");
+	}
+
+	private File runFile(int seq) {
+		return new File(f.getPath() + "." + seq + ".run");
+	}
+
+	/**
+	 * Returns the manifest of this LsmFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	public int getId() {
+		return tableid;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	public int keyField() {
+		return keyField;
+	}
+
+	public boolean canSearch(Predicate.Op op) {
+		return op == Op.EQUALS || op == Op.LESS_THAN || op == Op.LESS_THAN_OR_EQ
+				|| op == Op.GREATER_THAN || op == Op.GREATER_THAN_OR_EQ;
+	}
+
+	/**
+	 * Returns the number of pages of the memtable plus the number of blocks
+	 * of all the runs.
+	 */
+	public synchronized int numPages() {
+		int n = 0;
+		for (int pages : segments.values())
+			n += pages;
+		for (LsmRun r : runs)
+			n += r.numBlocks();
+		return n;
+	}
+
+	/**
+	 * @return the number of runs of each level, from level 0 down
+	 */
+	public synchronized int[] runsPerLevel() {
+		int depth = runs.isEmpty() ? 0 : runs.get(runs.size() - 1).getLevel() + 1;
+		int[] counts = new int[depth];
+		for (LsmRun r : runs)
+			counts[r.getLevel()]++;
+		return counts;
+	}
+
+	/**
+	 * @return the number of segments of the memtable that are sealed and
+	 *   waiting to be written to a run
+	 */
+	public synchronized int sealedSegments() {
+		return activeSegment - firstSegment;
+	}
+
+	private synchronized boolean isLive(int seg) {
+		return seg >= firstSegment;
+	}
+
+	private synchronized boolean isActive(int seg) {
+		return seg == activeSegment;
+	}
+
+	/**
+	 * Read a page of the memtable from the file on disk. This should not be
+	 * called directly but should be called from the BufferPool via getPage().
+	 * A page of a segment that has been written to a run and deleted reads as
+	 * an empty page.
+	 */
+	public Page readPage(PageId pid) {
+		LsmPageId id = (LsmPageId) pid;
+		if (id.getTableId() != tableid || id.isRun())
+			throw new IllegalArgumentException("the PageId is not legal");
+		long offset = (long) id.getPageNumber() * BufferPool.getPageSize();
+		try (RandomAccessFile raf = new RandomAccessFile(segmentFile(id.getSegment()), "r")) {
+			if (id.getPageNumber() < 0 || offset + BufferPool.getPageSize() > raf.length())
+				throw new IllegalArgumentException("Read past end of segment");
+			byte[] data = new byte[BufferPool.getPageSize()];
+			raf.seek(offset);
+			raf.readFully(data);
+			return new LsmPage(id, data);
+		} catch (FileNotFoundException e) {
+			if (isLive(id.getSegment()))
+				throw new IllegalArgumentException("Read from a missing segment", e);
+			try {
+				return new LsmPage(id, LsmPage.createEmptyPageData());
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write a page of the memtable to disk. Pages of segments that have
+	 * already been written to a run, which recovery may replay, are ignored.
+	 */
+	public void writePage(Page page) throws IOException {
+		LsmPageId id = (LsmPageId) page.getId();
+		if (!isLive(id.getSegment()))
+			return;
+		try (RandomAccessFile raf = new RandomAccessFile(segmentFile(id.getSegment()), "rw")) {
+			raf.seek((long) id.getPageNumber() * BufferPool.getPageSize());
+			raf.write(page.getPageData());
+		}
+	}
+
+	/**
+	 * Append an empty page to a segment of the memtable.
+	 */
+	private synchronized void allocatePage(int seg, int pgNo) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(segmentFile(seg), "rw")) {
+			raf.seek((long) pgNo * BufferPool.getPageSize());
+			raf.write(LsmPage.createEmptyPageData());
+		}
+		segments.put(seg, pgNo + 1);
+	}
+
+	/**
+	 * Seal the active segment and start a new one.
+	 */
+	private synchronized void seal() {
+		activeSegment++;
+		segments.put(activeSegment, 0);
+	}
+
+	/**
+	 * Append t, or a tombstone for it, to the last page of the active
+	 * segment, adding a page or sealing the segment when the page is full.
+	 *
+	 * @return the page t was added to
+	 */
+	private LsmPage append(TransactionId tid, Tuple t, boolean tombstone)
+			throws DbException, IOException, TransactionAbortedException {
+		while (true) {
+			LsmPageId pid;
+			synchronized (this) {
+				if (segments.get(activeSegment) == 0)
+					allocatePage(activeSegment, 0);
+				pid = new LsmPageId(tableid, activeSegment, segments.get(activeSegment) - 1);
+			}
+			LsmPage p = (LsmPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+			// 等锁期间段可能已经被封存了
+			if (isActive(pid.getSegment()) && p.getNumEmptySlots() > 0) {
+				p.insertTuple(t, tombstone);
+				return p;
+			}
+			boolean sealed = false;
+			synchronized (this) {
+				// 只有第一个发现最后一页满了的事务追加页或者封存段
+				if (pid.getSegment() == activeSegment && segments.get(activeSegment) == pid.getPageNumber() + 1) {
+					if (pid.getPageNumber() + 1 < segmentPages) {
+						allocatePage(activeSegment, pid.getPageNumber() + 1);
+					} else {
+						seal();
+						sealed = true;
+					}
+				}
+			}
+			if (sealed)
+				scheduleMaintenance();
+		}
+	}
+
+	public List<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		checkMaintenance();
+		if (!td.equals(t.getTupleDesc()))
+			throw new DbException("tupleDesc is mismatch");
+		return Collections.singletonList(append(tid, t, false));
+	}
+
+	public List<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		checkMaintenance();
+		RecordId rid = t.getRecordId();
+		if (rid == null || !(rid.getPageId() instanceof LsmPageId) || rid.getPageId().getTableId() != tableid)
+			throw new DbException("the tuple is not a member of the file");
+		LsmPageId pid = (LsmPageId) rid.getPageId();
+		if (!pid.isRun() && isActive(pid.getSegment())) {
+			LsmPage p = (LsmPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+			// 等锁期间段可能已经被封存了
+			if (isActive(pid.getSegment())) {
+				p.deleteTuple(t);
+				return Collections.singletonList(p);
+			}
+		}
+		// 封存的段和run都不再修改，追加一个墓碑
+		return Collections.singletonList(append(tid, t, true));
+	}
+
+	/**
+	 * The segments and runs of the file at some point, which stay readable
+	 * while they are pinned.
+	 */
+	static class Version {
+		// 段号到页数，从新到旧
+		final NavigableMap<Integer, Integer> segments;
+		final List<LsmRun> runs;
+
+		Version(NavigableMap<Integer, Integer> segments, List<LsmRun> runs) {
+			this.segments = segments;
+			this.runs = runs;
+		}
+	}
+
+	private List<File> filesOf(Version v) {
+		List<File> files = new ArrayList<>();
+		for (Map.Entry<Integer, Integer> e : v.segments.entrySet()) {
+			if (e.getValue() > 0)
+				files.add(segmentFile(e.getKey()));
+		}
+		for (LsmRun r : v.runs)
+			files.add(r.getFile());
+		return files;
+	}
+
+	/**
+	 * Pin the current segments and runs, so that their files are not deleted
+	 * until {@link #unpin(Version)} is called.
+	 */
+	synchronized Version pin() {
+		Version v = new Version(new TreeMap<>(segments).descendingMap(), runs);
+		for (File file : filesOf(v))
+			pins.merge(file, 1, Integer::sum);
+		return v;
+	}
+
+	synchronized void unpin(Version v) {
+		for (File file : filesOf(v)) {
+			if (pins.merge(file, -1, Integer::sum) == 0) {
+				pins.remove(file);
+				if (retired.remove(file))
+					file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Delete a file that is no longer part of the tree, or as soon as it is
+	 * no longer pinned.
+	 */
+	private synchronized void retire(File file) {
+		if (pins.containsKey(file))
+			retired.add(file);
+		else
+			file.delete();
+	}
+
+	private Comparator<LsmEntry> byKey() {
+		return Comparator.comparing(e -> e.tuple.getField(keyField), CompositeKey::compare);
+	}
+
+	/**
+	 * Read the entries of the pinned memtable segments whose key is greater
+	 * than or equal to from, locking their pages for reading.
+	 *
+	 * @return the entries of every segment sorted by key, newest segment first
+	 */
+	List<Iterator<LsmEntry>> readMemtable(TransactionId tid, Version v, Field from)
+			throws DbException, TransactionAbortedException {
+		List<Iterator<LsmEntry>> result = new ArrayList<>();
+		for (Map.Entry<Integer, Integer> seg : v.segments.entrySet()) {
+			List<LsmEntry> entries = new ArrayList<>();
+			for (int i = 0; i < seg.getValue(); i++) {
+				LsmPage p = (LsmPage) Database.getBufferPool().getPage(tid,
+						new LsmPageId(tableid, seg.getKey(), i), Permissions.READ_ONLY);
+				p.iterator(from).forEachRemaining(entries::add);
+			}
+			entries.sort(byKey());
+			result.add(entries.iterator());
+		}
+		return result;
+	}
+
+	private void writeManifest(int firstSegment, List<LsmRun> runs) throws IOException {
+		File tmp = new File(f.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+			dos.writeInt(MAGIC);
+			dos.writeInt(nextSeq);
+			dos.writeInt(firstSegment);
+			dos.writeInt(runs.size());
+			for (LsmRun r : runs) {
+				dos.writeInt(r.getLevel());
+				dos.writeInt(r.getSeq());
+			}
+			dos.flush();
+			fos.getFD().sync();
+		}
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Install a new list of runs, and optionally drop the oldest segment of
+	 * the memtable, writing the manifest first. Must hold this.
+	 */
+	private void install(List<LsmRun> newRuns, int newFirstSegment) throws IOException {
+		newRuns.sort(Comparator.comparingInt(LsmRun::getLevel).thenComparing(LsmRun::getSeq, Comparator.reverseOrder()));
+		writeManifest(newFirstSegment, newRuns);
+		runs = Collections.unmodifiableList(newRuns);
+		firstSegment = newFirstSegment;
+	}
+
+	private synchronized int nextSeq() {
+		return nextSeq++;
+	}
+
+	private void scheduleMaintenance() {
+		// 已经排队的任务会处理所有封存的段
+		if (maintenance.getQueue().isEmpty())
+			maintenance.execute(this::maintain);
+	}
+
+	/**
+	 * @return true if this file is the one the catalog knows by its id; the
+	 *   background thread of a file dropped by Database.reset() stops
+	 */
+	private boolean inCatalog() {
+		try {
+			return Database.getCatalog().getDatabaseFile(tableid) == this;
+		} catch (NoSuchElementException e) {
+			return false;
+		}
+	}
+
+	private void maintain() {
+		if (!inCatalog())
+			return;
+		try {
+			synchronized (maintenanceLock) {
+				while (flushOldest())
+					;
+				while (compactOnce())
+					;
+			}
+		} catch (IOException | DbException | RuntimeException e) {
+			// 后台线程没有调用者，记下失败，段还在memtable里，报告之后重新调度
+			if (inCatalog()) {
+				synchronized (this) {
+					if (maintenanceFailure == null)
+						maintenanceFailure = e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Report a failure of the background flush or compaction, once, and
+	 * schedule the maintenance again, so that the sealed segments left in
+	 * the memtable are retried.
+	 *
+	 * @throws DbException if the background maintenance failed since the
+	 *   last call
+	 */
+	private void checkMaintenance() throws DbException {
+		Exception failure;
+		synchronized (this) {
+			failure = maintenanceFailure;
+			maintenanceFailure = null;
+		}
+		if (failure == null)
+			return;
+		scheduleMaintenance();
+		DbException e = new DbException("background maintenance of " + f.getName() + " failed: " + failure);
+		e.initCause(failure);
+		throw e;
+	}
+
+	/**
+	 * Seal the active segment of the memtable and write all the sealed
+	 * segments to runs of level 0. The caller must not hold locks on the
+	 * pages of this file, since the flush waits for the transactions writing
+	 * to the sealed segments to complete.
+	 */
+	public void flush() throws IOException, DbException {
+		checkMaintenance();
+		synchronized (this) {
+			if (segments.get(activeSegment) > 0)
+				seal();
+		}
+		synchronized (maintenanceLock) {
+			while (flushOldest())
+				;
+		}
+	}
+
+	/**
+	 * Merge levels until every level is within its size limit.
+	 */
+	public void compact() throws IOException, DbException {
+		checkMaintenance();
+		synchronized (maintenanceLock) {
+			while (compactOnce())
+				;
+		}
+	}
+
+	/**
+	 * Write the oldest sealed segment of the memtable to a new run of level
+	 * 0. The segment is read within a transaction of its own, so the flush
+	 * waits until the transactions that wrote to it have completed; it is
+	 * retried with a growing delay when it is aborted by a deadlock.
+	 *
+	 * @return false if there was no sealed segment
+	 * @throws DbException if the segment cannot be read, e.g. when the buffer
+	 *   pool is full of dirty pages
+	 */
+	private boolean flushOldest() throws IOException, DbException {
+		int seg, numPages;
+		synchronized (this) {
+			if (firstSegment >= activeSegment)
+				return false;
+			seg = firstSegment;
+			numPages = segments.get(seg);
+		}
+		long backoff = MIN_BACKOFF_MS;
+		while (true) {
+			TransactionId tid = new TransactionId();
+			LsmRun run = null;
+			try {
+				List<LsmEntry> entries = new ArrayList<>();
+				for (int i = 0; i < numPages; i++) {
+					LsmPage p = (LsmPage) Database.getBufferPool().getPage(tid,
+							new LsmPageId(tableid, seg, i), Permissions.READ_ONLY);
+					p.iterator(null).forEachRemaining(entries::add);
+				}
+				entries.sort(byKey());
+				int seq = nextSeq();
+				run = LsmRun.write(runFile(seq), 0, seq, tableid, td, keyField, entries.iterator());
+				synchronized (this) {
+					List<LsmRun> newRuns = new ArrayList<>(runs);
+					if (run != null)
+						newRuns.add(run);
+					install(newRuns, seg + 1);
+					segments.remove(seg);
+				}
+			} catch (TransactionAbortedException e) {
+				// 死锁时放开锁，等一会再重试
+				Database.getBufferPool().transactionComplete(tid, false);
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new DbException("interrupted while flushing segment " + seg);
+				}
+				backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+				continue;
+			} catch (DbException e) {
+				Database.getBufferPool().transactionComplete(tid, false);
+				throw e;
+			} catch (IOException e) {
+				if (run != null)
+					run.getFile().delete();
+				Database.getBufferPool().transactionComplete(tid, false);
+				throw e;
+			}
+			Database.getBufferPool().transactionComplete(tid);
+			retire(segmentFile(seg));
+			for (int i = 0; i < numPages; i++)
+				Database.getBufferPool().discardPage(new LsmPageId(tableid, seg, i));
+			return true;
+		}
+	}
+
+	/**
+	 * @return the size limit of a level, in blocks
+	 */
+	private long maxBlocks(int level) {
+		long max = (long) segmentPages * LEVEL_RATIO;
+		for (int l = 1; l < level; l++)
+			max *= LEVEL_RATIO;
+		return max;
+	}
+
+	/**
+	 * Merge level 0 into level 1 if it has too many runs, or else the first
+	 * level past its size limit into the next one. Tombstones that find no
+	 * tuple to delete are dropped only when the merge writes the deepest
+	 * level.
+	 *
+	 * @return false if no level needed to be merged
+	 */
+	private boolean compactOnce() throws IOException {
+		List<LsmRun> current;
+		synchronized (this) {
+			current = runs;
+		}
+		int[] counts = new int[current.isEmpty() ? 0 : current.get(current.size() - 1).getLevel() + 1];
+		long[] blocks = new long[counts.length];
+		for (LsmRun r : current) {
+			counts[r.getLevel()]++;
+			blocks[r.getLevel()] += r.numBlocks();
+		}
+		int target = -1;
+		if (counts.length > 0 && counts[0] > LEVEL0_RUNS) {
+			target = 1;
+		} else {
+			for (int l = 1; l < counts.length; l++) {
+				if (blocks[l] > maxBlocks(l)) {
+					target = l + 1;
+					break;
+				}
+			}
+		}
+		if (target < 0)
+			return false;
+
+		List<LsmRun> inputs = new ArrayList<>();
+		List<Iterator<LsmEntry>> components = new ArrayList<>();
+		for (LsmRun r : current) {
+			if (r.getLevel() == target - 1 || r.getLevel() == target) {
+				inputs.add(r);
+				components.add(r.iterator(null));
+			}
+		}
+		boolean bottom = target >= counts.length - 1;
+		int seq = nextSeq();
+		LsmRun merged = LsmRun.write(runFile(seq), target, seq, tableid, td, keyField,
+				new LsmMergeIterator(components, keyField, !bottom));
+		synchronized (this) {
+			List<LsmRun> newRuns = new ArrayList<>(runs);
+			newRuns.removeAll(inputs);
+			if (merged != null)
+				newRuns.add(merged);
+			install(newRuns, firstSegment);
+		}
+		for (LsmRun r : inputs)
+			retire(r.getFile());
+		return true;
+	}
+
+	/**
+	 * Get the tuples of the file whose key matches ipred on behalf of the
+	 * specified transaction, in key order. Range and equality predicates
+	 * start at the key in every run, and equality predicates skip the runs
+	 * whose bloom filter rules the key out; other predicates are answered by
+	 * a scan of the whole file.
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new LsmFileIterator(this, tid, ipred);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this file, in key order.
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new LsmFileIterator(this, tid, null);
+	}
+}
+
+/**
+ * Helper class that merges sorted streams of entries of an LsmFile into one
+ * stream sorted by key, applying tombstones. The streams are ordered from
+ * the newest to the oldest; a tombstone deletes one identical tuple of an
+ * older stream, and both disappear from the output.
+ */
+class LsmMergeIterator implements Iterator<LsmEntry> {
+
+	private final List<Iterator<LsmEntry>> components;
+	private final int keyField;
+	private final boolean keepTombstones;
+	private final PriorityQueue<Head> heads;
+	private final Deque<LsmEntry> ready = new ArrayDeque<>();
+
+	private static class Head {
+		final LsmEntry entry;
+		final int component;
+
+		Head(LsmEntry entry, int component) {
+			this.entry = entry;
+			this.component = component;
+		}
+	}
+
+	/**
+	 * @param components - the streams to merge, each sorted by key, newest first
+	 * @param keepTombstones - whether tombstones that deleted no tuple of the
+	 *   given streams are returned, for older streams not part of the merge
+	 */
+	LsmMergeIterator(List<Iterator<LsmEntry>> components, int keyField, boolean keepTombstones) {
+		this.components = components;
+		this.keyField = keyField;
+		this.keepTombstones = keepTombstones;
+		Comparator<Head> order = Comparator.comparing(h -> h.entry.tuple.getField(keyField), CompositeKey::compare);
+		this.heads = new PriorityQueue<>(Math.max(1, components.size()), order.thenComparingInt(h -> h.component));
+		for (int i = 0; i < components.size(); i++)
+			advance(i);
+	}
+
+	private void advance(int component) {
+		Iterator<LsmEntry> it = components.get(component);
+		if (it.hasNext())
+			heads.add(new Head(it.next(), component));
+	}
+
+	/**
+	 * Fill ready with the output for the next key.
+	 */
+	private void fill() {
+		while (ready.isEmpty() && !heads.isEmpty()) {
+			Field key = heads.peek().entry.tuple.getField(keyField);
+			List<Head> group = new ArrayList<>();
+			boolean tombstones = false;
+			while (!heads.isEmpty() && CompositeKey.compare(heads.peek().entry.tuple.getField(keyField), key) == 0) {
+				Head h = heads.poll();
+				group.add(h);
+				tombstones |= h.entry.tombstone;
+				advance(h.component);
+			}
+			if (!tombstones) {
+				for (Head h : group)
+					ready.add(h.entry);
+				continue;
+			}
+			// 从最老的流往新的流处理：墓碑只能删掉更老的流中相同的元组
+			Map<List<Field>, Deque<LsmEntry>> older = new HashMap<>();
+			Set<LsmEntry> deleted = Collections.newSetFromMap(new IdentityHashMap<>());
+			int end = group.size();
+			while (end > 0) {
+				int start = end;
+				while (start > 0 && group.get(start - 1).component == group.get(end - 1).component)
+					start--;
+				for (int i = start; i < end; i++) {
+					LsmEntry e = group.get(i).entry;
+					if (!e.tombstone)
+						continue;
+					Deque<LsmEntry> copies = older.get(e.contents());
+					if (copies != null && !copies.isEmpty()) {
+						deleted.add(copies.pop());
+						deleted.add(e);
+					}
+				}
+				for (int i = start; i < end; i++) {
+					LsmEntry e = group.get(i).entry;
+					if (!e.tombstone)
+						older.computeIfAbsent(e.contents(), c -> new ArrayDeque<>()).push(e);
+				}
+				end = start;
+			}
+			for (Head h : group) {
+				if (!deleted.contains(h.entry) && (!h.entry.tombstone || keepTombstones))
+					ready.add(h.entry);
+			}
+		}
+	}
+
+	public boolean hasNext() {
+		fill();
+		return !ready.isEmpty();
+	}
+
+	public LsmEntry next() {
+		fill();
+		if (ready.isEmpty())
+			throw new NoSuchElementException();
+		return ready.poll();
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for the tuples of an
+ * LsmFile matching an index predicate, merging the memtable and the runs.
+ */
+class LsmFileIterator extends AbstractDbFileIterator {
+
+	private final LsmFile f;
+	private final TransactionId tid;
+	private final IndexPredicate ipred;
+
+	private LsmFile.Version version;
+	private Iterator<LsmEntry> it;
+
+	/**
+	 * @param ipred - the predicate to filter on, or null for all tuples
+	 */
+	public LsmFileIterator(LsmFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		Op op = ipred == null ? null : ipred.getOp();
+		Field from = op == Op.EQUALS || op == Op.GREATER_THAN || op == Op.GREATER_THAN_OR_EQ
+				? ipred.getField() : null;
+		version = f.pin();
+		List<Iterator<LsmEntry>> components;
+		try {
+			components = f.readMemtable(tid, version, from);
+		} catch (DbException | TransactionAbortedException | RuntimeException e) {
+			f.unpin(version);
+			version = null;
+			throw e;
+		}
+		for (LsmRun r : version.runs) {
+			// 点查询跳过布隆过滤器排除的run
+			if (op == Op.EQUALS && !r.mightContain(from))
+				continue;
+			components.add(r.iterator(from));
+		}
+		it = new LsmMergeIterator(components, f.keyField(), false);
+	}
+
+	@Override
+	protected Tuple readNext() throws DbException, TransactionAbortedException {
+		while (it != null && it.hasNext()) {
+			Tuple t = it.next().tuple;
+			if (ipred == null)
+				return t;
+			Field key = t.getField(f.keyField());
+			Op op = ipred.getOp();
+			int c = CompositeKey.compare(key, ipred.getField());
+			// 按key有序，超过上界就可以结束
+			if ((op == Op.LESS_THAN && c >= 0) || ((op == Op.LESS_THAN_OR_EQ || op == Op.EQUALS) && c > 0))
+				return null;
+			if (key.compare(op, ipred.getField()))
+				return t;
+		}
+		return null;
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void close() {
+		super.close();
+		it = null;
+		if (version != null) {
+			f.unpin(version);
+			version = null;
+		}
+	}
+}
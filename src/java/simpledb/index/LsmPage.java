@@ -0,0 +1,289 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Each instance of LsmPage stores one page of the memtable of an LsmFile.
+ * Tuples are appended to the pages of the memtable in the order they are
+ * inserted; each page keeps a copy of its entries sorted by key, rebuilt
+ * when the page is modified, so that the memtable can be searched and merged
+ * with the sorted runs of the file.
+ * <p>
+ * The format of a page is a header with one bit for each tuple slot, a
+ * header with one bit telling for each slot whether it holds a tombstone,
+ * and the tuple slots, like a {@link HeapPage}.
+ *
+ * @see LsmFile
+ */
+public class LsmPage implements Page {
+
+	private final LsmPageId pid;
+	private final TupleDesc td;
+	private final int keyField;
+	private final byte[] header;
+	private final byte[] tombstones;
+	private final Tuple[] tuples;
+	private final int numSlots;
+	// 按key排序的条目，页面修改后重建
+	private List<LsmEntry> sorted = null;
+
+	private boolean dirty = false;
+	private TransactionId dirtier = null;
+	private byte[] oldData;
+	private final PageLatch latch = new PageLatch();
+
+	/**
+	 * Create an LsmPage from a set of bytes of data read from disk. The tuple
+	 * desc and the key field are the ones of the file, found in the catalog.
+	 */
+	public LsmPage(LsmPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.keyField = ((IndexFile) Database.getCatalog().getDatabaseFile(id.getTableId())).keyField();
+		this.numSlots = getMaxTuples(td);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		header = new byte[(numSlots + 7) / 8];
+		dis.readFully(header);
+		tombstones = new byte[(numSlots + 7) / 8];
+		dis.readFully(tombstones);
+		tuples = new Tuple[numSlots];
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSet(header, i)) {
+				dis.skipBytes(td.getSize());
+				continue;
+			}
+			Tuple t = new Tuple(td);
+			try {
+				for (int j = 0; j < td.numFields(); j++)
+					t.setField(j, td.getFieldType(j).parse(dis));
+			} catch (java.text.ParseException e) {
+				throw new IOException("error parsing tuple " + i + " of page " + pid, e);
+			}
+			t.setRecordId(new RecordId(pid, i));
+			tuples[i] = t;
+		}
+		dis.close();
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the number of tuples of the given schema that fit on a page
+	 */
+	public static int getMaxTuples(TupleDesc td) {
+		return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 2);
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * LsmPage.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; //all 0
+	}
+
+	public LsmPageId getId() {
+		return pid;
+	}
+
+	public PageLatch getLatch() {
+		return latch;
+	}
+
+	public byte[] getPageData() {
+		// 序列化期间不允许其他线程修改页内容
+		latch.latchShared();
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+			DataOutputStream dos = new DataOutputStream(baos);
+			dos.write(header);
+			dos.write(tombstones);
+			byte[] empty = new byte[td.getSize()];
+			for (Tuple t : tuples) {
+				if (t == null) {
+					dos.write(empty);
+					continue;
+				}
+				for (int j = 0; j < td.numFields(); j++)
+					t.getField(j).serialize(dos);
+			}
+			dos.write(new byte[BufferPool.getPageSize() - 2 * header.length - td.getSize() * numSlots]);
+			dos.flush();
+			return baos.toByteArray();
+		} catch (IOException e) {
+			// 写内存流不会出错
+			throw new RuntimeException(e);
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
+	/**
+	 * Adds the specified tuple, or a tombstone for it, to the page. The
+	 * RecordId of a tuple is set to its slot; a tombstone is a copy of the
+	 * deleted tuple, which keeps its RecordId.
+	 * @throws DbException if the page is full or the tupledesc is mismatched
+	 */
+	public void insertTuple(Tuple t, boolean tombstone) throws DbException {
+		latch.latchExclusive();
+		try {
+			if (!td.equals(t.getTupleDesc()))
+				throw new DbException("tupleDesc is mismatch");
+			for (int i = 0; i < numSlots; i++) {
+				if (tuples[i] == null) {
+					if (tombstone) {
+						Tuple copy = new Tuple(td);
+						for (int j = 0; j < td.numFields(); j++)
+							copy.setField(j, t.getField(j));
+						copy.setRecordId(new RecordId(pid, i));
+						t = copy;
+					}
+					else {
+						t.setRecordId(new RecordId(pid, i));
+					}
+					mark(header, i, true);
+					mark(tombstones, i, tombstone);
+					tuples[i] = t;
+					sorted = null;
+					return;
+				}
+			}
+			throw new DbException("the page is full");
+		} finally {
+			latch.unlatchExclusive();
+		}
+	}
+
+	/**
+	 * Delete the specified tuple from the page.
+	 * @throws DbException if this tuple is not on this page, or its slot is
+	 *   already empty or holds a tombstone
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		latch.latchExclusive();
+		try {
+			RecordId rid = t.getRecordId();
+			if (rid == null || !pid.equals(rid.getPageId()) || !isSet(header, rid.getTupleNumber())
+					|| isSet(tombstones, rid.getTupleNumber()))
+				throw new DbException("the tuple is not in the page or empty");
+			mark(header, rid.getTupleNumber(), false);
+			tuples[rid.getTupleNumber()] = null;
+			sorted = null;
+		} finally {
+			latch.unlatchExclusive();
+		}
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		latch.latchShared();
+		try {
+			int num = 0;
+			for (Tuple t : tuples) {
+				if (t == null)
+					num++;
+			}
+			return num;
+		} finally {
+			latch.unlatchShared();
+		}
+	}
+
+	private static boolean isSet(byte[] bits, int i) {
+		return (bits[i / 8] & (1 << (i % 8))) != 0;
+	}
+
+	private static void mark(byte[] bits, int i, boolean value) {
+		if (value)
+			bits[i / 8] |= (byte) (1 << (i % 8));
+		else
+			bits[i / 8] &= (byte) ~(1 << (i % 8));
+	}
+
+	/**
+	 * @return the entries of this page sorted by key, in slot order for equal
+	 *   keys. Must be called under the latch.
+	 */
+	private List<LsmEntry> sortedEntries() {
+		if (sorted == null) {
+			List<LsmEntry> entries = new ArrayList<>();
+			for (int i = 0; i < numSlots; i++) {
+				if (tuples[i] != null)
+					entries.add(new LsmEntry(tuples[i], isSet(tombstones, i)));
+			}
+			// 稳定排序：相同key的条目保持槽的顺序
+			entries.sort(Comparator.comparing(e -> e.tuple.getField(keyField), CompositeKey::compare));
+			sorted = Collections.unmodifiableList(entries);
+		}
+		return sorted;
+	}
+
+	/**
+	 * @param from - the key to start from, or null to start from the smallest key
+	 * @return an iterator over the entries on this page whose key is greater
+	 *   than or equal to from, in key order, found by binary search over the
+	 *   sorted entries of the page. Later changes to the page do not affect it.
+	 */
+	public Iterator<LsmEntry> iterator(Field from) {
+		latch.latchExclusive();
+		try {
+			List<LsmEntry> entries = sortedEntries();
+			int lo = 0, hi = entries.size();
+			while (from != null && lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (CompositeKey.compare(entries.get(mid).tuple.getField(keyField), from) < 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return entries.subList(lo, entries.size()).iterator();
+		} finally {
+			latch.unlatchExclusive();
+		}
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	public LsmPage getBeforeImage() {
+		try {
+			byte[] oldDataRef;
+			synchronized (this) {
+				oldDataRef = oldData;
+			}
+			return new LsmPage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		byte[] data = getPageData().clone();
+		synchronized (this) {
+			oldData = data;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package simpledb.index;
+
+import simpledb.storage.PageId;
+
+/**
+ * Unique identifier for the memtable pages of an LsmFile: the pages of a
+ * segment of the memtable, numbered from 0 within each segment.
+ * <p>
+ * Tuples read from the sorted runs of the file get a RecordId whose page id
+ * has segment {@link #RUN}; such page ids do not name a page that can be
+ * read, they only tell the file that the tuple is not in the memtable.
+ */
+public class LsmPageId implements PageId {
+
+	/** The segment of the page ids of tuples read from sorted runs */
+	public static final int RUN = -1;
+
+	private final int tableId;
+	private final int segment;
+	private final int pgNo;
+
+	/**
+	 * Constructor. Create a page id structure for a specific page of a
+	 * specific segment of a specific table.
+	 *
+	 * @param tableId The table that is being referenced
+	 * @param segment The memtable segment of the page, or RUN
+	 * @param pgNo The page number in that segment.
+	 */
+	public LsmPageId(int tableId, int segment, int pgNo) {
+		this.tableId = tableId;
+		this.segment = segment;
+		this.pgNo = pgNo;
+	}
+
+	/** @return the table associated with this PageId */
+	public int getTableId() {
+		return tableId;
+	}
+
+	/** @return the memtable segment of this page, or RUN */
+	public int getSegment() {
+		return segment;
+	}
+
+	/**
+	 * @return the page number in the segment getSegment() associated with
+	 *   this PageId
+	 */
+	public int getPageNumber() {
+		return pgNo;
+	}
+
+	/**
+	 * @return true if this page id belongs to a tuple read from a sorted run
+	 */
+	public boolean isRun() {
+		return segment == RUN;
+	}
+
+	public int hashCode() {
+		int result = 1;
+		result = result*31 + tableId;
+		result = result*31 + segment;
+		result = result*31 + pgNo;
+		return result;
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof LsmPageId))
+			return false;
+		LsmPageId p = (LsmPageId) o;
+		return tableId == p.tableId && segment == p.segment && pgNo == p.pgNo;
+	}
+
+	public String toString() {
+		return "(" + tableId + ", " + segment + ", " + pgNo + ")";
+	}
+
+	/**
+	 *  Return a representation of this object as an array of
+	 *  integers, for writing to disk.  Size of returned array must contain
+	 *  number of integers that corresponds to number of args to one of the
+	 *  constructors.
+	 */
+	public int[] serialize() {
+		return new int[]{tableId, segment, pgNo};
+	}
+}
@@ -0,0 +1,242 @@
+package simpledb.index;
+
+import simpledb.storage.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A sorted run of an LsmFile: an immutable file holding entries sorted by
+ * key, written once by a flush of the memtable or by a compaction and read
+ * directly, without the BufferPool.
+ * <p>
+ * The file is a sequence of blocks of one page each, holding the number of
+ * entries of the block followed by the entries, each a flag byte telling
+ * whether it is a tombstone and the fields of the tuple. The blocks are
+ * followed by the number of entries of the run, the first key of every block
+ * (the sparse index used to find the block to start a search from), the last
+ * key of the run, a {@link BloomFilter} over the keys, and finally the number
+ * of blocks, as the last int of the file.
+ */
+class LsmRun {
+	private final File file;
+	private final int level;
+	private final int seq;
+	private final int tableid;
+	private final TupleDesc td;
+	private final int keyField;
+
+	private final int numBlocks;
+	private final int numEntries;
+	private final Field[] firstKeys;
+	private final Field lastKey;
+	private final BloomFilter bloom;
+
+	/**
+	 * Open an existing run, reading its index and bloom filter.
+	 */
+	LsmRun(File file, int level, int seq, int tableid, TupleDesc td, int keyField) throws IOException {
+		this.file = file;
+		this.level = level;
+		this.seq = seq;
+		this.tableid = tableid;
+		this.td = td;
+		this.keyField = keyField;
+		byte[] meta;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			raf.seek(raf.length() - 4);
+			numBlocks = raf.readInt();
+			long offset = (long) numBlocks * BufferPool.getPageSize();
+			meta = new byte[(int) (raf.length() - 4 - offset)];
+			raf.seek(offset);
+			raf.readFully(meta);
+		}
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(meta));
+		try {
+			numEntries = dis.readInt();
+			firstKeys = new Field[numBlocks];
+			for (int i = 0; i < numBlocks; i++)
+				firstKeys[i] = td.getFieldType(keyField).parse(dis);
+			lastKey = td.getFieldType(keyField).parse(dis);
+		} catch (java.text.ParseException e) {
+			throw new IOException("corrupt index in run " + file, e);
+		}
+		bloom = BloomFilter.readFrom(dis);
+	}
+
+	/**
+	 * @return the number of entries of the given schema that fit in a block
+	 */
+	static int entriesPerBlock(TupleDesc td) {
+		return (BufferPool.getPageSize() - 4) / (td.getSize() + 1);
+	}
+
+	/**
+	 * Write a new run holding the given entries, which must be sorted by key,
+	 * and force it to disk.
+	 *
+	 * @return the new run, or null (and no file) if there are no entries
+	 */
+	static LsmRun write(File file, int level, int seq, int tableid, TupleDesc td, int keyField,
+			Iterator<LsmEntry> entries) throws IOException {
+		if (!entries.hasNext())
+			return null;
+		int perBlock = entriesPerBlock(td);
+		List<Field> firstKeys = new ArrayList<>();
+		List<Field> keys = new ArrayList<>();
+		try (FileOutputStream fos = new FileOutputStream(file)) {
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+			List<LsmEntry> block = new ArrayList<>(perBlock);
+			while (entries.hasNext()) {
+				LsmEntry e = entries.next();
+				if (block.size() == perBlock) {
+					writeBlock(dos, td, block);
+					block.clear();
+				}
+				if (block.isEmpty())
+					firstKeys.add(e.tuple.getField(keyField));
+				block.add(e);
+				keys.add(e.tuple.getField(keyField));
+			}
+			writeBlock(dos, td, block);
+
+			dos.writeInt(keys.size());
+			for (Field k : firstKeys)
+				k.serialize(dos);
+			keys.get(keys.size() - 1).serialize(dos);
+			BloomFilter bloom = new BloomFilter(keys.size());
+			for (Field k : keys)
+				bloom.add(k);
+			bloom.writeTo(dos);
+			dos.writeInt(firstKeys.size());
+			dos.flush();
+			// 清单指向这个文件之前它必须已经落盘
+			fos.getFD().sync();
+		}
+		return new LsmRun(file, level, seq, tableid, td, keyField);
+	}
+
+	private static void writeBlock(DataOutputStream dos, TupleDesc td, List<LsmEntry> block) throws IOException {
+		dos.writeInt(block.size());
+		for (LsmEntry e : block) {
+			dos.writeByte(e.tombstone ? 1 : 0);
+			for (int j = 0; j < td.numFields(); j++)
+				e.tuple.getField(j).serialize(dos);
+		}
+		dos.write(new byte[BufferPool.getPageSize() - 4 - block.size() * (td.getSize() + 1)]);
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	int getLevel() {
+		return level;
+	}
+
+	int getSeq() {
+		return seq;
+	}
+
+	int numBlocks() {
+		return numBlocks;
+	}
+
+	int numEntries() {
+		return numEntries;
+	}
+
+	/**
+	 * @return false if the run certainly holds no entry with the given key,
+	 *   from its key range and its bloom filter
+	 */
+	boolean mightContain(Field key) {
+		if (CompositeKey.compare(key, firstKeys[0]) < 0 || CompositeKey.compare(key, lastKey) > 0)
+			return false;
+		return bloom.mightContain(key);
+	}
+
+	/**
+	 * Read the entries of a block. The tuples get a RecordId whose page id
+	 * is an LsmPageId of segment RUN numbered after the block.
+	 */
+	private List<LsmEntry> readBlock(int b) {
+		byte[] data = new byte[BufferPool.getPageSize()];
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			raf.seek((long) b * BufferPool.getPageSize());
+			raf.readFully(data);
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+			LsmPageId pid = new LsmPageId(tableid, LsmPageId.RUN, b);
+			int count = dis.readInt();
+			List<LsmEntry> entries = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				boolean tombstone = dis.readByte() != 0;
+				Tuple t = new Tuple(td);
+				for (int j = 0; j < td.numFields(); j++)
+					t.setField(j, td.getFieldType(j).parse(dis));
+				t.setRecordId(new RecordId(pid, i));
+				entries.add(new LsmEntry(t, tombstone));
+			}
+			return entries;
+		} catch (IOException | java.text.ParseException e) {
+			throw new RuntimeException("error reading block " + b + " of run " + file, e);
+		}
+	}
+
+	/**
+	 * @param from - the key to start from, or null to start from the smallest key
+	 * @return an iterator over the entries of the run whose key is greater
+	 *   than or equal to from, in key order. Blocks are read as the iterator
+	 *   reaches them.
+	 */
+	Iterator<LsmEntry> iterator(Field from) {
+		// 从第一个key小于from的最后一个块开始，相同的key可能跨过块的边界
+		int start = 0;
+		if (from != null) {
+			int lo = 0, hi = numBlocks;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (CompositeKey.compare(firstKeys[mid], from) < 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			start = Math.max(0, lo - 1);
+		}
+		final int first = start;
+		return new Iterator<LsmEntry>() {
+			private int block = first;
+			private Iterator<LsmEntry> it = readBlock(first).iterator();
+			private LsmEntry next = advance();
+
+			private LsmEntry advance() {
+				while (true) {
+					while (it.hasNext()) {
+						LsmEntry e = it.next();
+						if (from == null || CompositeKey.compare(e.tuple.getField(keyField), from) >= 0)
+							return e;
+					}
+					if (++block >= numBlocks)
+						return null;
+					it = readBlock(block).iterator();
+				}
+			}
+
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			public LsmEntry next() {
+				if (next == null)
+					throw new NoSuchElementException();
+				LsmEntry e = next;
+				next = advance();
+				return e;
+			}
+		};
+	}
+
+	public String toString() {
+		return file.getName() + " (level " + level + ", " + numEntries + " entries)";
+	}
+}
@@ -0,0 +1,457 @@
+package simpledb.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.ExternalSort;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * SecondaryIndex is an unclustered index on one or several fields of a
+ * HeapFile.
+ * <p>
+ * The index is stored in a BTreeFile whose tuples are (key, page number,
+ * slot): one entry for every tuple of the table, pointing to the RecordId of
+ * that tuple. The key of an index on several fields takes one field of the
+ * entry per indexed field, most significant first, and the tree is keyed on
+ * all of them (see {@link CompositeKey}), so that the index also answers
+ * predicates on a prefix of its fields. Entries with equal keys are kept in
+ * physical order. A covering
+ * index also carries copies of some other fields of the table, its included
+ * fields, after the slot, so that queries reading only the key and those
+ * fields are answered from the index alone (see
+ * {@link simpledb.execution.IndexOnlyScan}).
+ * <p>
+ * A hash index on one field stores the same entries in a HashIndexFile
+ * hashed on the key instead. It only answers EQUALS predicates, reading a
+ * single bucket instead of descending a tree, and returns its entries in no
+ * particular order.
+ * <p>
+ * Indexes are registered with {@link simpledb.common.Catalog#addIndex} and
+ * kept up to date by {@link simpledb.storage.BufferPool#insertTuple} and
+ * {@link simpledb.storage.BufferPool#deleteTuple}, within the same transaction
+ * as the change to the table. Heap tuples never move, so the RecordIds stay
+ * valid until the tuple is deleted.
+ */
+public class SecondaryIndex {
+
+	/**
+	 * field numbers of the entries of an index on one field; in an index on
+	 * several fields, the page and slot follow the last key field
+	 */
+	public static final int KEY = 0, PAGE = 1, SLOT = 2;
+
+	private final String name;
+	private final int tableid;
+	private final int[] keyFields;
+	private final int[] includedFields;
+	private final IndexFile file;
+
+	/**
+	 * Open an existing index file.
+	 *
+	 * @param name - the name of the index
+	 * @param tableid - the table the index is on
+	 * @param keyField - the indexed field of the table
+	 * @param f - the file the index is stored in
+	 */
+	public SecondaryIndex(String name, int tableid, int keyField, File f) {
+		this(name, tableid, keyField, new int[0], f);
+	}
+
+	/**
+	 * Open an existing index file of a covering index.
+	 *
+	 * @param name - the name of the index
+	 * @param tableid - the table the index is on
+	 * @param keyField - the indexed field of the table
+	 * @param includedFields - the fields of the table copied into every entry
+	 * @param f - the file the index is stored in
+	 */
+	public SecondaryIndex(String name, int tableid, int keyField, int[] includedFields, File f) {
+		this(name, tableid, new int[]{keyField}, includedFields, f);
+	}
+
+	/**
+	 * Open an existing index file of an index on several fields.
+	 *
+	 * @param name - the name of the index
+	 * @param tableid - the table the index is on
+	 * @param keyFields - the indexed fields of the table, most significant first
+	 * @param includedFields - the fields of the table copied into every entry
+	 * @param f - the file the index is stored in
+	 */
+	public SecondaryIndex(String name, int tableid, int[] keyFields, int[] includedFields, File f) {
+		this(name, tableid, keyFields, includedFields, f, false);
+	}
+
+	/**
+	 * Open an existing index file of a B+ tree or hash index.
+	 *
+	 * @param name - the name of the index
+	 * @param tableid - the table the index is on
+	 * @param keyField - the indexed field of the table
+	 * @param includedFields - the fields of the table copied into every entry
+	 * @param f - the file the index is stored in
+	 * @param hash - whether the entries are stored in a HashIndexFile
+	 */
+	public SecondaryIndex(String name, int tableid, int keyField, int[] includedFields, File f, boolean hash) {
+		this(name, tableid, new int[]{keyField}, includedFields, f, hash);
+	}
+
+	private SecondaryIndex(String name, int tableid, int[] keyFields, int[] includedFields, File f, boolean hash) {
+		if(keyFields.length == 0)
+			throw new IllegalArgumentException("an index needs at least one key field");
+		if(hash && keyFields.length > 1)
+			throw new IllegalArgumentException("hash indexes are keyed on a single field");
+		this.name = name;
+		this.tableid = tableid;
+		this.keyFields = keyFields.clone();
+		this.includedFields = includedFields.clone();
+		TupleDesc etd = entryDesc(Database.getCatalog().getTupleDesc(tableid), keyFields, includedFields);
+		if(hash)
+			this.file = new HashIndexFile(f, KEY, etd);
+		else
+			this.file = new BTreeFile(f, entryKeys(keyFields.length), etd);
+	}
+
+	/**
+	 * @return the fields of the entries holding the key of an index on
+	 *   numKeys fields
+	 */
+	private static int[] entryKeys(int numKeys) {
+		int[] keys = new int[numKeys];
+		for(int i=0; i<numKeys; i++)
+			keys[i] = KEY + i;
+		return keys;
+	}
+
+	/**
+	 * @return the schema of the entries of an index on a field of the given type
+	 */
+	public static TupleDesc entryDesc(Type keyType) {
+		return new TupleDesc(new Type[]{keyType, Type.INT_TYPE, Type.INT_TYPE},
+				new String[]{"key", "page", "slot"});
+	}
+
+	/**
+	 * @return the schema of the entries of an index on field keyField of a
+	 *   table with schema td, carrying copies of the given included fields
+	 */
+	public static TupleDesc entryDesc(TupleDesc td, int keyField, int[] includedFields) {
+		return entryDesc(td, new int[]{keyField}, includedFields);
+	}
+
+	/**
+	 * @return the schema of the entries of an index on fields keyFields of a
+	 *   table with schema td, carrying copies of the given included fields
+	 */
+	public static TupleDesc entryDesc(TupleDesc td, int[] keyFields, int[] includedFields) {
+		TupleDesc etd = entryDesc(td.getFieldType(keyFields[0]));
+		if(keyFields.length > 1) {
+			Type[] types = new Type[keyFields.length];
+			String[] names = new String[keyFields.length];
+			for(int i=0; i<keyFields.length; i++) {
+				types[i] = td.getFieldType(keyFields[i]);
+				names[i] = "key" + i;
+			}
+			etd = TupleDesc.merge(new TupleDesc(types, names), new TupleDesc(
+					new Type[]{Type.INT_TYPE, Type.INT_TYPE}, new String[]{"page", "slot"}));
+		}
+		if(includedFields.length == 0)
+			return etd;
+		Type[] types = new Type[includedFields.length];
+		String[] names = new String[includedFields.length];
+		for(int i=0; i<includedFields.length; i++) {
+			types[i] = td.getFieldType(includedFields[i]);
+			names[i] = td.getFieldName(includedFields[i]);
+		}
+		return TupleDesc.merge(etd, new TupleDesc(types, names));
+	}
+
+	/**
+	 * Build an index on one field of a table. All the tuples of the table are
+	 * read within tid, their entries sorted with an external sort and bulk
+	 * loaded into f. The caller is responsible for adding the index to the
+	 * catalog once the build has succeeded.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param name - the name of the index
+	 * @param table - the table to index
+	 * @param keyField - the field to index
+	 * @param f - the file to write the index to
+	 * @param fillFactor - how full to make each page, between 0.5 and 1
+	 * @return the new index
+	 */
+	public static SecondaryIndex create(TransactionId tid, String name, HeapFile table, int keyField,
+			File f, double fillFactor) throws DbException, TransactionAbortedException, IOException {
+		return create(tid, name, table, keyField, new int[0], f, fillFactor);
+	}
+
+	/**
+	 * Build a covering index on one field of a table, whose entries carry
+	 * copies of the given included fields.
+	 * @see #create(TransactionId, String, HeapFile, int, File, double)
+	 */
+	public static SecondaryIndex create(TransactionId tid, String name, HeapFile table, int keyField,
+			int[] includedFields, File f, double fillFactor)
+			throws DbException, TransactionAbortedException, IOException {
+		return create(tid, name, table, new int[]{keyField}, includedFields, f, fillFactor);
+	}
+
+	/**
+	 * Build a covering index on several fields of a table, ordered on the
+	 * first field, then on the second, and so on.
+	 * @see #create(TransactionId, String, HeapFile, int, File, double)
+	 *
+	 * @param keyFields - the fields to index, most significant first
+	 */
+	public static SecondaryIndex create(TransactionId tid, String name, HeapFile table, int[] keyFields,
+			int[] includedFields, File f, double fillFactor)
+			throws DbException, TransactionAbortedException, IOException {
+		TupleDesc etd = entryDesc(table.getTupleDesc(), keyFields, includedFields);
+		int[] keys = entryKeys(keyFields.length);
+		BTreeBulkLoader loader = new BTreeBulkLoader(f, etd, keys, fillFactor);
+		// 键相同的项按物理顺序排列
+		int[] order = Arrays.copyOf(keys, keys.length + 2);
+		order[keys.length] = keys.length;
+		order[keys.length + 1] = keys.length + 1;
+		try (ExternalSort sort = new ExternalSort(etd, new BTreeFileEncoder.TupleComparator(order),
+				BTreeBulkLoader.DEFAULT_SORT_PAGES)) {
+			DbFileIterator it = table.iterator(tid);
+			it.open();
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				sort.add(makeEntry(etd, t, keyFields, includedFields, t.getRecordId()));
+			}
+			it.close();
+			loader.build(sort.iterator(), sort.size());
+		}
+		return new SecondaryIndex(name, table.getId(), keyFields, includedFields, f);
+	}
+
+	/**
+	 * Build a hash index on one field of a table, whose entries carry copies
+	 * of the given included fields. The entries are sorted in the bucket
+	 * order of {@link HashIndexFile#bucketOrder} and written with
+	 * {@link HashIndexFile#build}.
+	 * @see #create(TransactionId, String, HeapFile, int, File, double)
+	 */
+	public static SecondaryIndex createHash(TransactionId tid, String name, HeapFile table, int keyField,
+			int[] includedFields, File f, double fillFactor)
+			throws DbException, TransactionAbortedException, IOException {
+		int[] keyFields = new int[]{keyField};
+		TupleDesc etd = entryDesc(table.getTupleDesc(), keyFields, includedFields);
+		try (ExternalSort sort = new ExternalSort(etd, HashIndexFile.bucketOrder(KEY),
+				BTreeBulkLoader.DEFAULT_SORT_PAGES)) {
+			DbFileIterator it = table.iterator(tid);
+			it.open();
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				sort.add(makeEntry(etd, t, keyFields, includedFields, t.getRecordId()));
+			}
+			it.close();
+			HashIndexFile.build(etd, KEY, sort.iterator(), sort.size(), f, fillFactor);
+		}
+		return new SecondaryIndex(name, table.getId(), keyFields, includedFields, f, true);
+	}
+
+	/**
+	 * @return the index of the table best suited to look up the tuples whose
+	 *   field satisfies a predicate with the given operation, or null if no
+	 *   index of the table is keyed on that field and answers the operation.
+	 *   A hash index is preferred for EQUALS, as it reads a single bucket;
+	 *   otherwise the index with the most entries per page is
+	 */
+	public static SecondaryIndex lookupIndex(int tableid, int field, Op op) {
+		SecondaryIndex best = null;
+		for(SecondaryIndex index : Database.getCatalog().getIndexes(tableid)) {
+			if(index.getKeyField() != field || !index.canSearch(op))
+				continue;
+			if(best == null || (op == Op.EQUALS && index.isHash() && !best.isHash())
+					|| (index.isHash() == best.isHash() && index.entriesPerPage() > best.entriesPerPage()))
+				best = index;
+		}
+		return best;
+	}
+
+	private static Tuple makeEntry(TupleDesc etd, Tuple t, int[] keyFields, int[] includedFields, RecordId rid) {
+		Tuple entry = new Tuple(etd);
+		for(int i=0; i<keyFields.length; i++)
+			entry.setField(KEY + i, t.getField(keyFields[i]));
+		int page = KEY + keyFields.length;
+		entry.setField(page, new IntField(rid.getPageId().getPageNumber()));
+		entry.setField(page + 1, new IntField(rid.getTupleNumber()));
+		for(int i=0; i<includedFields.length; i++)
+			entry.setField(page + 2 + i, t.getField(includedFields[i]));
+		return entry;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the id of the indexed table
+	 */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/**
+	 * @return the indexed field of the table; the first one for an index on
+	 *   several fields, which orders the entries
+	 */
+	public int getKeyField() {
+		return keyFields[0];
+	}
+
+	/**
+	 * @return the indexed fields of the table, most significant first
+	 */
+	public int[] getKeyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * @return the fields of the table copied into every entry, besides the key
+	 */
+	public int[] getIncludedFields() {
+		return includedFields.clone();
+	}
+
+	/**
+	 * @return the field of an entry of this index holding the given field of
+	 *   the table, or -1 if the entries do not carry that field
+	 */
+	public int entryField(int tableField) {
+		for(int i=0; i<keyFields.length; i++) {
+			if(keyFields[i] == tableField)
+				return KEY + i;
+		}
+		for(int i=0; i<includedFields.length; i++) {
+			if(includedFields[i] == tableField)
+				return KEY + keyFields.length + 2 + i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the file holding the entries of this index: a BTreeFile, or a
+	 *   HashIndexFile for a hash index
+	 */
+	public IndexFile getFile() {
+		return file;
+	}
+
+	/**
+	 * @return true if the entries of this index are stored in a HashIndexFile,
+	 *   and so are not kept in key order
+	 */
+	public boolean isHash() {
+		return file instanceof HashIndexFile;
+	}
+
+	/**
+	 * @return true if the index answers predicates on its key with the given
+	 *   operation by reading only the entries that can match
+	 */
+	public boolean canSearch(Op op) {
+		return file.canSearch(op);
+	}
+
+	/**
+	 * @return the number of pages of the file holding the entries
+	 */
+	public int numPages() {
+		return isHash() ? ((HashIndexFile) file).numPages() : ((BTreeFile) file).numPages();
+	}
+
+	/**
+	 * @return the number of entries that fit on a leaf page of this index, or
+	 *   on a bucket page of a hash index
+	 */
+	public int entriesPerPage() {
+		if(isHash())
+			return HashBucketPage.getMaxTuples(file.getTupleDesc());
+		int bitsPerEntryIncludingHeader = file.getTupleDesc().getSize() * 8 + 1;
+		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
+		int extraBits = 3 * BTreeLeafPage.INDEX_SIZE * 8;
+		return (BufferPool.getPageSize() * 8 - extraBits) / bitsPerEntryIncludingHeader;
+	}
+
+	/**
+	 * @return the RecordId an entry of this index points to
+	 */
+	public RecordId getRecordId(Tuple entry) {
+		int page = KEY + keyFields.length;
+		int pgNo = ((IntField) entry.getField(page)).getValue();
+		int slot = ((IntField) entry.getField(page + 1)).getValue();
+		return new RecordId(new HeapPageId(tableid, pgNo), slot);
+	}
+
+	/**
+	 * @return an iterator over the entries matching ipred, in key order for a
+	 *   B+ tree index
+	 */
+	public DbFileIterator iterator(TransactionId tid, IndexPredicate ipred) {
+		return file.indexIterator(tid, ipred);
+	}
+
+	/**
+	 * Add the entry for a tuple that has just been inserted into the table.
+	 *
+	 * @param t - the new tuple; its RecordId must be set
+	 */
+	public void insert(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Tuple entry = makeEntry(file.getTupleDesc(), t, keyFields, includedFields, t.getRecordId());
+		Database.getBufferPool().insertTuple(tid, file.getId(), entry);
+	}
+
+	/**
+	 * Remove the entry for a tuple deleted from the table.
+	 *
+	 * @param t - the deleted tuple
+	 * @param rid - the RecordId the tuple had
+	 * @throws DbException if the index has no entry for the tuple
+	 */
+	public void delete(TransactionId tid, Tuple t, RecordId rid)
+			throws DbException, IOException, TransactionAbortedException {
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, CompositeKey.keyOf(t, keyFields)));
+		it.open();
+		Tuple found = null;
+		try {
+			while(it.hasNext()) {
+				Tuple entry = it.next();
+				if(getRecordId(entry).equals(rid)) {
+					found = entry;
+					break;
+				}
+			}
+		} catch (NoSuchElementException e) {
+			throw new DbException("error reading index " + name);
+		} finally {
+			it.close();
+		}
+		if(found == null)
+			throw new DbException("index " + name + " has no entry for " + rid);
+		Database.getBufferPool().deleteTuple(tid, found);
+	}
+}
@@ -15,4 +15,6 @@ public class CostCard {
     public int card;
     /** The optimal subplan */
     public List<LogicalJoinNode> plan;
+    /** The field the output of the optimal subplan is sorted on, or null */
+    public String sortedOn;
 }
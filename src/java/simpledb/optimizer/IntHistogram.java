@@ -116,9 +116,12 @@ public class IntHistogram {
      * */
     public double avgSelectivity()
     {
+        if(totalTuples == 0)
+            return 1.0;
+        // 等值条件的常量按字段本身的分布取值时选择性的期望：落在第i个桶的概率乘以桶内每个值的选择性
         double avg = 0.0;
         for (int i=0;i<buckets.length;i++){
-            avg += buckets[i]*1.0/totalTuples;
+            avg += buckets[i]*1.0/totalTuples * (buckets[i]/bucketWidth/totalTuples);
         }
         return avg;
     }
@@ -3,6 +3,9 @@ package simpledb.optimizer;
 import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.IndexFile;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.DbFile;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -47,9 +50,25 @@ public class JoinOptimizer {
      * @param plan2
      *            The right join node's child
      */
-    // 返回两表连接的后的iterator
     public static OpIterator instantiateJoin(LogicalJoinNode lj,
                                              OpIterator plan1, OpIterator plan2) throws ParsingException {
+        return instantiateJoin(lj, plan1, plan2, Join.DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * Return best iterator for computing a given logical join, as
+     * {@link #instantiateJoin(LogicalJoinNode, OpIterator, OpIterator)}.
+     *
+     * @param memoryPages
+     *            how many pages worth of tuples the join may keep in memory;
+     *            a nested-loop join reads blocks of this many pages of outer
+     *            tuples, a hash join spills partitions to disk when its
+     *            hash table outgrows them, and a merge join spills its
+     *            window of inner matches
+     */
+    // 返回两表连接的后的iterator
+    public static OpIterator instantiateJoin(LogicalJoinNode lj,
+                                             OpIterator plan1, OpIterator plan2, int memoryPages) throws ParsingException {
 
         int t1id = 0, t2id = 0;
         OpIterator j;
@@ -74,20 +93,14 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
-
-            try {
-                // dynamically load HashEquiJoin -- if it doesn't exist, just
-                // fall back on regular join
-                Class<?> c = Class.forName("simpledb.execution.HashEquiJoin");
-                java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
-                j = (OpIterator) ct
-                        .newInstance(new Object[] { p, plan1, plan2 });
-            } catch (Exception e) {
-                j = new Join(p, plan1, plan2);
-            }
+        if (lj.indexJoin && IndexNestedLoopJoin.canProbe(p, plan2)) {
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+        } else if (lj.mergeJoin && SortMergeJoin.canMerge(p, plan1, plan2)) {
+            j = new SortMergeJoin(p, plan1, plan2, memoryPages);
+        } else if (lj.p == Predicate.Op.EQUALS) {
+            j = new HashEquiJoin(p, plan1, plan2, memoryPages, lj.buildRight);
         } else {
-            j = new Join(p, plan1, plan2);
+            j = new Join(p, plan1, plan2, memoryPages);
         }
 
         return j;
@@ -127,16 +140,116 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            double ioCost = cost1 + card1 * cost2;
+            // 块嵌套循环：外表读一遍，每一块外表tuple读一遍内表
+            double blocks = Math.ceil(card1 / (double) blockTuples(j));
+            double ioCost = cost1 + blocks * cost2;
             double cpuCost = card1 * card2;
             return ioCost + cpuCost;
         }
     }
 
+    /**
+     * @return the number of outer tuples of the join that fit in one block of
+     *         a {@link Join}, estimated from the tuples of the outer table
+     */
+    private int blockTuples(LogicalJoinNode j) {
+        return memoryTuples(j.t1Alias);
+    }
+
+    /**
+     * @return the number of tuples of the table with the given alias that
+     *         fit in the memory budget of a join
+     */
+    private int memoryTuples(String alias) {
+        Integer tableId = alias == null ? null : p.getTableId(alias);
+        if (tableId == null)
+            return 1;
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        return ExternalSort.memoryTuples(td, p.joinMemoryPages());
+    }
+
+    /**
+     * Estimate the cost of running a join as an {@link IndexNestedLoopJoin}:
+     * reading the outer side once, and looking up the matches of every outer
+     * tuple in the index file the inner table is stored in, or in a
+     * {@link SecondaryIndex} on the join field of a heap table. The inner
+     * side must be a base table of the plan.
+     *
+     * @return the cost of the index nested-loop join, or Double.MAX_VALUE if
+     *         the inner table has no index on the join field that can search
+     *         on the join operator, or if the join is cheaper without the
+     *         index (as a HashEquiJoin for equality joins)
+     */
+    private double estimateIndexJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean t1pkey, boolean t2pkey,
+            Map<String, TableStats> stats, Map<String, Double> filterSelectivities) {
+        if (j instanceof LogicalSubplanJoinNode || j.t2Alias == null)
+            return Double.MAX_VALUE;
+        int tableId = p.getTableId(j.t2Alias);
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        int field;
+        try {
+            field = f.getTupleDesc().fieldNameToIndex(j.f2PureName);
+        } catch (NoSuchElementException e) {
+            return Double.MAX_VALUE;
+        }
+        // 能查找的运算在交换左右两边后不变，所以不用先交换j.p
+        SecondaryIndex index = null;
+        if (f instanceof IndexFile) {
+            IndexFile file = (IndexFile) f;
+            if (file.keyField() != field || !file.canSearch(j.p))
+                return Double.MAX_VALUE;
+        } else {
+            index = SecondaryIndex.lookupIndex(tableId, field, j.p);
+            if (index == null)
+                return Double.MAX_VALUE;
+        }
+        TableStats s2 = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s2 == null)
+            return Double.MAX_VALUE;
+
+        // 每次查找读到的内表tuple数：过滤条件在查找之后才应用
+        double sel;
+        if (j.p == Predicate.Op.EQUALS) {
+            sel = s2.avgSelectivity(field, Predicate.Op.EQUALS);
+        } else {
+            double filterSel = Math.max(filterSelectivities.getOrDefault(j.t2Alias, 1.0), 1e-6);
+            int card = estimateJoinCardinality(j, card1, card2, t1pkey, t2pkey, stats);
+            sel = card / (double) Math.max(card1, 1) / filterSel / Math.max(s2.totalTuples(), 1);
+        }
+        sel = Math.min(1.0, sel);
+        double perProbe = sel * s2.totalTuples();
+
+        // 二级索引的每个匹配项都要再读一次堆页
+        double ioCost = cost1 + card1 * (index == null ? s2.estimateClusteredIndexScanCost(sel)
+                : s2.estimateIndexLookupCost(sel, index.entriesPerPage()) + s2.estimateIndexScanCost(sel));
+        double cpuCost = card1 * (1 + perProbe);
+        double indexCost = ioCost + cpuCost;
+
+        double otherCost = j.p == Predicate.Op.EQUALS ? cost1 + cost2 + card1 + card2
+                : estimateJoinCost(j, card1, card2, cost1, cost2);
+        return indexCost < otherCost ? indexCost : Double.MAX_VALUE;
+    }
+
+    /**
+     * Estimate the cost of running a join as a {@link SortMergeJoin} of two
+     * sides that already arrive sorted on their join fields: each side is read
+     * once, and every input and output tuple is handled once. The inner
+     * tuples matching an outer tuple that do not fit in the memory budget
+     * are written to disk once and read again for every outer tuple.
+     */
+    private double estimateMergeJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean t1pkey, boolean t2pkey,
+            Map<String, TableStats> stats) {
+        int card = estimateJoinCardinality(j, card1, card2, t1pkey, t2pkey, stats);
+        // 每个外表tuple平均匹配的内表tuple数就是窗口的大小，放不进内存的部分按内表扫描代价的比例重读
+        double window = card / (double) Math.max(card1, 1);
+        double spilled = Math.max(0, window - memoryTuples(j.t2Alias)) / Math.max(card2, 1);
+        double ioCost = cost1 + cost2 + (1 + card1) * Math.min(1.0, spilled) * cost2;
+        double cpuCost = card1 + card2 + card;
+        return ioCost + cpuCost;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -245,6 +358,9 @@ public class JoinOptimizer {
             Map<String, TableStats> stats,
             Map<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
+        // 单表查询没有join，PlanCache里也不会有空集合的计划
+        if (joins.isEmpty())
+            return joins;
         PlanCache planCache = new PlanCache();
         for(int i=1;i<=joins.size();i++){
             Set<Set<LogicalJoinNode>> subsets = enumerateSubsets(joins, i);
@@ -260,7 +376,8 @@ public class JoinOptimizer {
                     }
                 }
                 if(bestCostCard.cost != Double.MAX_VALUE)
-                    planCache.addPlan(subset,bestCostCard.cost,bestCostCard.card,bestCostCard.plan);
+                    planCache.addPlan(subset,bestCostCard.cost,bestCostCard.card,bestCostCard.plan,
+                            bestCostCard.sortedOn);
             }
         }
         if (explain)
@@ -329,9 +446,15 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // 两边的输出按哪个字段排序，用来判断能不能归并连接
+        String t1order = null, t2order = null;
+        // 只有还没有参与连接的基表才能作为索引嵌套循环连接的内表
+        boolean t1Base = true, t2Base = true;
         // 一开始size为1的子集，在remove(j)后news为空，会走这步
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new ArrayList<>();
+            t1order = p.sortedField(j.t1Alias);
+            t2order = table2Alias == null ? null : p.sortedField(table2Alias);
             t1cost = stats.get(table1Name).estimateScanCost();
             t1card = stats.get(table1Name).estimateTableCardinality(
                     filterSelectivities.get(j.t1Alias));
@@ -362,11 +485,14 @@ public class JoinOptimizer {
             // 如果表1已经在最优的join排列之中了，那么添加表1的后 t1cost 和 t1card 和之前的 最优cost、最优card 相同 （因为这时就是依据
             // prevBest来连接表2，所以表1的相应数据都和prevBest的相同）
             if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
+                t1Base = false;
                 t1cost = prevBestCost; // left side just has cost of whatever
                                        // left
                 // subtree is
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
+                t1order = pc.getSortOrder(news);
+                t2order = j.t2Alias == null ? null : p.sortedField(j.t2Alias);
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateScanCost();
@@ -378,11 +504,14 @@ public class JoinOptimizer {
             } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
                                                         // (both
                 // shouldn't be)
+                t2Base = false;
                 t2cost = prevBestCost; // left side just has cost of whatever
                                        // left
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
+                t2order = pc.getSortOrder(news);
+                t1order = p.sortedField(j.t1Alias);
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
@@ -398,19 +527,53 @@ public class JoinOptimizer {
 
         // 判断是 表1 join 表2 开销小 还是 表2 join 表1 开销小，并将开销小的设置为 LocalJoinNode j
         double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double indexCost1 = t2Base ? estimateIndexJoinCost(j, t1card, t2card, t1cost, t2cost,
+                leftPkey, rightPkey, stats, filterSelectivities) : Double.MAX_VALUE;
+        boolean indexJoin = indexCost1 < cost1;
+        cost1 = Math.min(cost1, indexCost1);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
         double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
+        double indexCost2 = t1Base ? estimateIndexJoinCost(j2, t2card, t1card, t2cost, t1cost,
+                rightPkey, leftPkey, stats, filterSelectivities) : Double.MAX_VALUE;
+        // 哈希连接在较小的一边上建哈希表
+        boolean buildRight = t2card < t1card;
+        String leftOrder = t1order;
+        if (Math.min(cost2, indexCost2) < cost1) {
             boolean tmp;
             j = j2;
-            cost1 = cost2;
+            buildRight = !buildRight;
+            leftOrder = t2order;
+            indexJoin = indexCost2 < cost2;
+            cost1 = Math.min(cost2, indexCost2);
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
         }
+
+        // 两边都已经按连接字段排好序时，归并连接只需要各读一遍
+        boolean mergeJoin = false;
+        Set<String> orders = new HashSet<>(Arrays.asList(t1order, t2order));
+        if (!(j instanceof LogicalSubplanJoinNode) && SortMergeJoin.canMerge(j.p)
+                && orders.contains(j.f1QuantifiedName) && orders.contains(j.f2QuantifiedName)) {
+            double mergeCost = estimateMergeJoinCost(j, t1card, t2card, t1cost, t2cost,
+                    leftPkey, rightPkey, stats);
+            if (mergeCost < cost1) {
+                mergeJoin = true;
+                indexJoin = false;
+                cost1 = mergeCost;
+            }
+        }
         if (cost1 >= bestCostSoFar)
             return null;
+        buildRight = buildRight && !indexJoin && !mergeJoin && j.p == Predicate.Op.EQUALS
+                && !(j instanceof LogicalSubplanJoinNode);
+        if (indexJoin || buildRight || mergeJoin) {
+            j = new LogicalJoinNode(j.t1Alias, j.t2Alias, j.f1PureName, j.f2PureName, j.p);
+            j.indexJoin = indexJoin;
+            j.buildRight = buildRight;
+            j.mergeJoin = mergeJoin;
+        }
 
         CostCard cc = new CostCard();
 
@@ -419,6 +582,9 @@ public class JoinOptimizer {
         cc.cost = cost1;
         cc.plan = new ArrayList<>(prevBest);
         cc.plan.add(j); // prevbest is left -- add new join to end
+        // 归并连接和索引嵌套循环连接按外表的连接字段输出，其他连接打乱了顺序
+        if (mergeJoin || indexJoin && j.f1QuantifiedName.equals(leftOrder))
+            cc.sortedOn = j.f1QuantifiedName;
         return cc;
     }
 
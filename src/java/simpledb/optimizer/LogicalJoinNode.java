@@ -26,6 +26,21 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** Whether the join looks up the matches of every t1 tuple in the
+     *  index file t2 is stored in, rather than scanning t2. Set by the
+     *  JoinOptimizer when that is the cheapest way to run the join. */
+    public boolean indexJoin;
+
+    /** Whether a hash join of the two tables builds its hash table on t2
+     *  rather than t1. Set by the JoinOptimizer when t2 is expected to be
+     *  the smaller side. */
+    public boolean buildRight;
+
+    /** Whether the join merges t1 and t2, which both arrive sorted on
+     *  their join fields. Set by the JoinOptimizer when that is the
+     *  cheapest way to run the join. */
+    public boolean mergeJoin;
+
     public LogicalJoinNode() {
     }
 
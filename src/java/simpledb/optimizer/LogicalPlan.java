@@ -4,6 +4,11 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.CompositeKey;
+import simpledb.index.IndexFile;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -26,6 +31,9 @@ import java.io.File;
  */
 // logicalPlan 存储的各部分，按sql组成的顺序应该是 LogicalSelectListNode、LogicalScanNode、LogicJoinNode、LogicalFilterNode
 public class LogicalPlan {
+    /** pages of tuples the operators of a query may keep in memory when no budget is set */
+    public static final int DEFAULT_MEMORY_PAGES = 64;
+
     private List<LogicalJoinNode> joins;
     private final List<LogicalScanNode> tables;
     private final List<LogicalFilterNode> filters;
@@ -40,7 +48,13 @@ public class LogicalPlan {
     private String aggField;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    // 所有的ORDER BY字段，oByField和oByAsc是其中的第一个
+    private final List<String> oByFields = new ArrayList<>();
+    private final List<Boolean> oByAscs = new ArrayList<>();
     private String query;
+    private int memoryPages = DEFAULT_MEMORY_PAGES;
+    // LIMIT，-1表示没有
+    private int limit = -1, offset = 0;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -72,6 +86,63 @@ public class LogicalPlan {
         return query;
     }
 
+    /** Set the memory budget of the query: how many pages worth of tuples
+        its operators may keep in memory together.
+
+        @param memoryPages the budget, at least one page
+    */
+    public void setMemoryPages(int memoryPages) {
+        this.memoryPages = Math.max(1, memoryPages);
+    }
+
+    /** Get the memory budget set via {@link #setMemoryPages}.
+     */
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    /** Add a LIMIT clause: return at most limit tuples of the result, after
+        skipping the first offset tuples.
+
+        @param limit the maximum number of tuples to return
+        @param offset the number of tuples to skip
+        @throws ParsingException if limit or offset is negative
+    */
+    public void setLimit(int limit, int offset) throws ParsingException {
+        if (limit < 0 || offset < 0)
+            throw new ParsingException("LIMIT and OFFSET cannot be negative");
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /** @return the limit set via {@link #setLimit}, or -1 if there is none
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /** @return the offset set via {@link #setLimit}
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /** @return the pages of memory each join of the plan may use. All joins
+        of a plan run at the same time, so the budget is split evenly among them.
+     */
+    int joinMemoryPages() {
+        return Math.max(1, memoryPages / Math.max(1, joins.size()));
+    }
+
+    /** @return the field the current access path of a table returns its
+        tuples in ascending order of, or null if it is not sorted; see
+        {@link SortMergeJoin#sortedOn}
+     */
+    String sortedField(String alias) {
+        OpIterator plan = subplanMap.get(alias);
+        return plan == null ? null : SortMergeJoin.sortedOn(plan);
+    }
+
     /** Given a table alias, return id of the table object (this id can be supplied to {@link Catalog#getDatabaseFile(int)}).
         Aliases are added as base tables are added via {@link #addScan}.
 
@@ -210,16 +281,20 @@ public class LogicalPlan {
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add an ORDER BY expression in the specified order on the specified field.  If called more
+        than once, tuples equal on the fields added earlier are ordered by the ones added later.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        if (!hasOrderBy) {
+            oByField = field;
+            oByAsc = asc;
+        }
+        oByFields.add(field);
+        oByAscs.add(asc);
         hasOrderBy = true;
     }
 
@@ -280,6 +355,403 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * A filter that can be answered by a secondary index, or by the index
+     * file the table is stored in if index is null
+     */
+    private static class IndexCandidate {
+        final LogicalFilterNode filter;
+        // 多字段索引：前面key字段上同时被回答的等值filter
+        final List<LogicalFilterNode> prefix;
+        final SecondaryIndex index;
+        final IndexPredicate ipred;
+        final double selectivity;
+        final double lookupCost;
+
+        IndexCandidate(LogicalFilterNode filter, SecondaryIndex index, IndexPredicate ipred,
+                       double selectivity, double lookupCost) {
+            this(filter, Collections.emptyList(), index, ipred, selectivity, lookupCost);
+        }
+
+        IndexCandidate(LogicalFilterNode filter, List<LogicalFilterNode> prefix, SecondaryIndex index,
+                       IndexPredicate ipred, double selectivity, double lookupCost) {
+            this.filter = filter;
+            this.prefix = prefix;
+            this.index = index;
+            this.ipred = ipred;
+            this.selectivity = selectivity;
+            this.lookupCost = lookupCost;
+        }
+    }
+
+    /**
+     * @return the candidate answering, on a table stored in a B+ tree keyed
+     *   on several fields, equality filters on the leading key fields together
+     *   with a filter on the next key field, or null if fewer than two filters
+     *   can be answered that way
+     */
+    private IndexCandidate compositeCandidate(String alias, int tableId, TableStats s) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof BTreeFile))
+            return null;
+        BTreeFile bf = (BTreeFile) file;
+        return compositeCandidate(alias, bf.getTupleDesc(), bf.keyFields(), bf, null, s);
+    }
+
+    /**
+     * @return the candidate answering, with a secondary index on several
+     *   fields, equality filters on its leading fields together with a filter
+     *   on the next one, or null if fewer than two filters can be answered
+     *   that way
+     */
+    private IndexCandidate compositeCandidate(String alias, SecondaryIndex index, TableStats s) {
+        return compositeCandidate(alias, Database.getCatalog().getTupleDesc(index.getTableId()),
+                index.getKeyFields(), index.getFile(), index, s);
+    }
+
+    /**
+     * @param keyFields the fields of the table the searched file is keyed on
+     * @param searched the file holding the table, or the entries of index
+     * @param index the secondary index searched, or null for the file of the table
+     */
+    private IndexCandidate compositeCandidate(String alias, TupleDesc td, int[] keyFields, IndexFile searched,
+                                              SecondaryIndex index, TableStats s) {
+        if (keyFields.length < 2)
+            return null;
+        List<LogicalFilterNode> used = new ArrayList<>();
+        List<Field> values = new ArrayList<>();
+        double sel = 1.0;
+        for (int key : keyFields) {
+            LogicalFilterNode eq = null, range = null;
+            for (LogicalFilterNode lf : filters) {
+                if (!lf.tableAlias.equals(alias) || !td.getFieldName(key).equals(lf.fieldPureName))
+                    continue;
+                if (lf.p == Predicate.Op.EQUALS)
+                    eq = lf;
+                else if (range == null && searched.canSearch(lf.p))
+                    range = lf;
+            }
+            LogicalFilterNode lf = eq != null ? eq : range;
+            if (lf == null)
+                break;
+            Field f = constantField(td.getFieldType(key), lf.c);
+            used.add(lf);
+            values.add(f);
+            sel *= s.estimateSelectivity(key, lf.p, f);
+            // 范围条件之后的key字段没有顺序可用
+            if (lf != eq)
+                break;
+        }
+        if (used.size() < 2)
+            return null;
+        LogicalFilterNode last = used.get(used.size() - 1);
+        IndexPredicate ipred = new IndexPredicate(last.p, new CompositeKey(values.toArray(new Field[0])));
+        double cost = index == null ? s.estimateClusteredIndexScanCost(sel)
+                : s.estimateIndexLookupCost(sel, index.entriesPerPage());
+        return new IndexCandidate(last, used.subList(0, used.size() - 1), index, ipred, sel, cost);
+    }
+
+    /**
+     * @return the names of the fields of the table with the given alias the
+     *   query refers to, or null if it refers to all of them
+     */
+    private Set<String> referencedFields(String alias) {
+        List<String> names = new ArrayList<>();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        names.add(groupByField);
+        names.add(aggField);
+        names.addAll(oByFields);
+        Set<String> fields = new HashSet<>();
+        for (String name : names) {
+            if (name == null)
+                continue;
+            String[] parts = name.split("[.]");
+            // SELECT * 和无法确定属于哪个表的字段
+            if (parts.length != 2 || parts[1].equals("*"))
+                return null;
+            if (parts[0].equals(alias))
+                fields.add(parts[1]);
+        }
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(alias))
+                fields.add(lf.fieldPureName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            if (alias.equals(lj.t1Alias))
+                fields.add(lj.f1PureName);
+            if (!(lj instanceof LogicalSubplanJoinNode) && alias.equals(lj.t2Alias))
+                fields.add(lj.f2PureName);
+        }
+        return fields;
+    }
+
+    /**
+     * @return the cheapest index-only scan of a table: the scan of a covering
+     *   index, one whose entries carry every field of the table the query
+     *   refers to, answering the most selective filter on the key of the
+     *   index or reading all its entries if there is none; or null if no
+     *   index of the table covers the query
+     */
+    private IndexCandidate coveringCandidate(String alias, int tableId, TableStats s) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        Set<String> used = referencedFields(alias);
+        if (used == null) {
+            used = new HashSet<>();
+            for (int i = 0; i < td.numFields(); i++)
+                used.add(td.getFieldName(i));
+        }
+        IndexCandidate best = null;
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            boolean covers = true;
+            for (String name : used) {
+                try {
+                    covers = index.entryField(td.fieldNameToIndex(name)) >= 0;
+                } catch (NoSuchElementException e) {
+                    covers = false;
+                }
+                if (!covers)
+                    break;
+            }
+            if (!covers)
+                continue;
+            int key = index.getKeyField();
+            IndexCandidate c = new IndexCandidate(null, index, null, 1.0,
+                    s.estimateIndexLookupCost(1.0, index.entriesPerPage()));
+            for (LogicalFilterNode lf : filters) {
+                if (!lf.tableAlias.equals(alias) || !lf.fieldPureName.equals(td.getFieldName(key))
+                        || !index.canSearch(lf.p))
+                    continue;
+                Field f = constantField(td.getFieldType(key), lf.c);
+                double sel = s.estimateSelectivity(key, lf.p, f);
+                double cost = s.estimateIndexLookupCost(sel, index.entriesPerPage());
+                if (cost < c.lookupCost)
+                    c = new IndexCandidate(lf, index, new IndexPredicate(lf.p, f), sel, cost);
+            }
+            if (best == null || c.lookupCost < best.lookupCost)
+                best = c;
+        }
+        return best;
+    }
+
+    /**
+     * For every table with indexes on filtered fields, replace the
+     * scan of the table in subplanMap with the cheapest of
+     * <ul>
+     * <li>the sequential scan,
+     * <li>a {@link BTreeScan} on the best filter on the key of a table stored
+     *   in an {@link IndexFile}, which only reads the pages holding matches,
+     *   or on equality filters on the leading key fields of a B+ tree keyed
+     *   on several fields together with a filter on the next one,
+     * <li>an {@link IndexHeapScan} on the best single indexed filter, or on
+     *   equality filters on the leading fields of a secondary index on several
+     *   fields together with a filter on the next one, which fetches a heap
+     *   page for every match, and
+     * <li>a {@link BitmapHeapScan} on the AND of the most selective indexed
+     *   filters, which reads every heap page with a match once. Filters are
+     *   added as long as reading one more index saves more heap pages than
+     *   it costs, and
+     * <li>an {@link IndexOnlyScan} of a covering index, which reads no heap
+     *   page at all.
+     * </ul>
+     * @return the filters answered by the index scan of each table
+     */
+    private Map<String,Set<LogicalFilterNode>> chooseIndexScans(TransactionId t, Map<String,TableStats> statsMap,
+                                                                boolean explain) {
+        Map<String,List<IndexCandidate>> candidates = new HashMap<>();
+        Map<String,IndexCandidate> clustered = new HashMap<>();
+        for (LogicalFilterNode lf : filters) {
+            if (lf.p == Predicate.Op.NOT_EQUALS || lf.p == Predicate.Op.LIKE)
+                continue;
+            Integer tableId = getTableId(lf.tableAlias);
+            if (tableId == null)
+                continue;
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
+            if (s == null)
+                continue;
+            TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+            int field;
+            try {
+                field = td.fieldNameToIndex(lf.fieldPureName);
+            } catch (NoSuchElementException e) {
+                continue;
+            }
+            Field f = constantField(td.getFieldType(field), lf.c);
+            double sel = s.estimateSelectivity(field, lf.p, f);
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            if (file instanceof IndexFile && ((IndexFile) file).keyField() == field
+                    && ((IndexFile) file).canSearch(lf.p)) {
+                IndexCandidate c = new IndexCandidate(lf, null, new IndexPredicate(lf.p, f), sel,
+                        s.estimateClusteredIndexScanCost(sel));
+                clustered.merge(lf.tableAlias, c, (a, b) -> a.lookupCost <= b.lookupCost ? a : b);
+            }
+            SecondaryIndex best = SecondaryIndex.lookupIndex(tableId, field, lf.p);
+            if (best != null)
+                candidates.computeIfAbsent(lf.tableAlias, a -> new ArrayList<>()).add(new IndexCandidate(
+                        lf, best, new IndexPredicate(lf.p, f), sel,
+                        s.estimateIndexLookupCost(sel, best.entriesPerPage())));
+        }
+
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            IndexCandidate c = s == null ? null : compositeCandidate(table.alias, table.t, s);
+            // 代价相同时用多字段的条件，它回答的filter更多
+            if (c != null)
+                clustered.merge(table.alias, c, (a, b) -> b.lookupCost <= a.lookupCost ? b : a);
+            if (s == null)
+                continue;
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+                c = compositeCandidate(table.alias, index, s);
+                if (c != null)
+                    candidates.computeIfAbsent(table.alias, a -> new ArrayList<>()).add(c);
+            }
+        }
+
+        // 覆盖索引：查询用到的这个表的字段都在索引项里，不用读堆页
+        Map<String,IndexCandidate> covering = new HashMap<>();
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            IndexCandidate c = s == null ? null : coveringCandidate(table.alias, table.t, s);
+            if (c != null)
+                covering.put(table.alias, c);
+        }
+
+        Map<String,Set<LogicalFilterNode>> answered = new HashMap<>();
+        Set<String> aliases = new HashSet<>(candidates.keySet());
+        aliases.addAll(clustered.keySet());
+        aliases.addAll(covering.keySet());
+        for (String alias : aliases) {
+            List<IndexCandidate> cands = candidates.getOrDefault(alias, Collections.emptyList());
+            cands.sort(Comparator.comparingDouble(c -> c.selectivity));
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(getTableId(alias)));
+
+            double bestCost = s.estimateScanCost();
+            OpIterator bestScan = null;
+            List<IndexCandidate> bestUsed = null;
+
+            IndexCandidate cl = clustered.get(alias);
+            if (cl != null && cl.lookupCost < bestCost) {
+                bestCost = cl.lookupCost;
+                bestScan = new BTreeScan(t, getTableId(alias), alias, cl.ipred);
+                bestUsed = Collections.singletonList(cl);
+            }
+
+            for (IndexCandidate c : cands) {
+                double cost = c.lookupCost + s.estimateIndexScanCost(c.selectivity);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestScan = new IndexHeapScan(t, c.index, alias, c.ipred);
+                    bestUsed = Collections.singletonList(c);
+                }
+            }
+
+            double lookups = 0, sel = 1, bitmapCost = Double.MAX_VALUE;
+            List<IndexCandidate> used = new ArrayList<>();
+            Set<LogicalFilterNode> covered = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (IndexCandidate c : cands) {
+                // 多字段索引已经回答了的filter不用再查一遍
+                if (covered.contains(c.filter) && covered.containsAll(c.prefix))
+                    continue;
+                double cost = lookups + c.lookupCost + s.estimateBitmapScanCost(sel * c.selectivity);
+                if (cost >= bitmapCost)
+                    break;
+                bitmapCost = cost;
+                lookups += c.lookupCost;
+                sel *= c.selectivity;
+                used.add(c);
+                covered.add(c.filter);
+                covered.addAll(c.prefix);
+            }
+            if (!used.isEmpty() && bitmapCost < bestCost) {
+                BitmapHeapScan.BitmapCondition[] conds = new BitmapHeapScan.BitmapCondition[used.size()];
+                for (int i = 0; i < conds.length; i++)
+                    conds[i] = BitmapHeapScan.BitmapCondition.index(used.get(i).index, used.get(i).ipred);
+                bestCost = bitmapCost;
+                bestScan = new BitmapHeapScan(t, alias, conds.length == 1 ? conds[0]
+                        : BitmapHeapScan.BitmapCondition.and(conds));
+                bestUsed = used;
+            }
+
+            IndexCandidate co = covering.get(alias);
+            if (co != null && co.lookupCost < bestCost) {
+                bestScan = new IndexOnlyScan(t, co.index, alias, co.ipred);
+                bestUsed = co.filter == null ? Collections.emptyList() : Collections.singletonList(co);
+                if (explain)
+                    System.out.println("Reading " + alias + " from covering index " + co.index.getName());
+            }
+
+            if (bestScan == null)
+                continue;
+            subplanMap.put(alias, bestScan);
+            Set<LogicalFilterNode> filtersUsed = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (IndexCandidate c : bestUsed) {
+                List<LogicalFilterNode> fs = new ArrayList<>(c.prefix);
+                fs.add(c.filter);
+                for (LogicalFilterNode lf : fs) {
+                    filtersUsed.add(lf);
+                    if (explain)
+                        System.out.println("Using index " + (c.index == null ? lf.tableAlias : c.index.getName())
+                                + " for " + lf.fieldQuantifiedName
+                                + " " + lf.p + " " + lf.c);
+                }
+            }
+            answered.put(alias, filtersUsed);
+        }
+        return answered;
+    }
+
+    /**
+     * If the query reads a single table stored in a {@link BTreeFile}, without
+     * joins or aggregates, and orders by a prefix of the key fields of the
+     * tree, all in the same direction, replace the scan of the table in subplanMap with a {@link BTreeScan} in
+     * the ORDER BY direction. The new scan answers the same index predicate
+     * as the scan chosen by chooseIndexScans; secondary index scans are kept,
+     * as they do not return the tuples in key order.
+     * @return true if the scan of the table now returns the tuples in the
+     *   ORDER BY order, so that no OrderBy is needed
+     */
+    private boolean chooseIndexOrder(TransactionId t, boolean explain) {
+        if (hasAgg || !joins.isEmpty() || tables.size() != 1)
+            return false;
+        LogicalScanNode table = tables.get(0);
+        DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+        OpIterator scan = subplanMap.get(table.alias);
+        if (!(file instanceof BTreeFile))
+            return false;
+        // ORDER BY的字段必须是键字段的前缀，并且方向都相同
+        int[] keyFields = ((BTreeFile) file).keyFields();
+        if (oByFields.size() > keyFields.length)
+            return false;
+        try {
+            for (int i = 0; i < oByFields.size(); i++) {
+                if (scan.getTupleDesc().fieldNameToIndex(oByFields.get(i)) != keyFields[i]
+                        || oByAscs.get(i) != oByAsc)
+                    return false;
+            }
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+        IndexPredicate ipred;
+        if (scan instanceof SeqScan)
+            ipred = null;
+        else if (scan instanceof BTreeScan)
+            ipred = ((BTreeScan) scan).getPredicate();
+        else
+            return false;
+        subplanMap.put(table.alias, new BTreeScan(t, table.t, table.alias, ipred, !oByAsc));
+        if (explain)
+            System.out.println("Using the key order of " + table.alias + " for ORDER BY "
+                    + String.join(", ", oByFields) + (oByAsc ? "" : " DESC"));
+        return true;
+    }
+
+    private static Field constantField(Type ftyp, String c) {
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(Integer.parseInt(c));
+        else
+            return new StringField(c, Type.STRING_LEN);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -316,6 +788,11 @@ public class LogicalPlan {
 
         }
 
+        // 能用二级索引回答的filter：代价比全表扫描低才用索引
+        Map<String,Set<LogicalFilterNode>> indexFilters = chooseIndexScans(t, statsMap, explain);
+        // 单表按B+树的第一个key字段排序时，按索引的顺序扫描，不用再排序
+        boolean indexOrder = hasOrderBy && chooseIndexOrder(t, explain);
+
         for (LogicalFilterNode lf : filters) {
             // 从subPlan中获取全表遍历的iterator
             OpIterator subplan = subplanMap.get(lf.tableAlias);
@@ -345,8 +822,9 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            // 将全表遍历的iterator替换为条件过滤filter的iterator
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // 将全表遍历的iterator替换为条件过滤filter的iterator；索引扫描已经应用过的filter不用再加
+            if (!indexFilters.getOrDefault(lf.tableAlias, Collections.emptySet()).contains(lf))
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             // 获取之前存储的表别名对应的tableStats
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
@@ -399,7 +877,7 @@ public class LogicalPlan {
 
             OpIterator j;
             // 获取两表连接后的iterator
-            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2, joinMemoryPages());
             // 更新 subPlanMap
             subplanMap.put(t1name, j);
 
@@ -499,10 +977,35 @@ public class LogicalPlan {
         }
 
         // 如果存在排序，将现在的iterator替换为排序后的iterator
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        // 连接的结果已经按ORDER BY字段升序排列时也不用再排序
+        if (hasOrderBy && !indexOrder && !(oByFields.size() == 1 && oByAsc && !hasAgg
+                && oByField.equals(SortMergeJoin.sortedOn(node)))) {
+            int[] fields = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int j = 0; j < fields.length; j++) {
+                try {
+                    fields[j] = node.getTupleDesc().fieldNameToIndex(oByFields.get(j));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + oByFields.get(j) + " in ORDER BY statement");
+                }
+                ascs[j] = oByAscs.get(j);
+            }
+            // 有LIMIT并且前limit+offset个tuple放得进内存时，用堆保留它们，不排序整个结果
+            long n = (long) limit + offset;
+            if (limit >= 0 && n <= ExternalSort.memoryTuples(node.getTupleDesc(), memoryPages)) {
+                node = new TopN(fields, ascs, (int) n, node);
+                if (explain)
+                    System.out.println("Keeping the top " + n + " tuples for ORDER BY "
+                            + String.join(", ", oByFields));
+            } else {
+                node = new OrderBy(fields, ascs, node, memoryPages);
+            }
         }
 
+        // 不需要排序时，Limit够数后就不再向下取tuple，扫描会提前结束
+        if (limit >= 0 && !(node instanceof TopN && offset == 0))
+            node = new Limit(limit, offset, node);
+
         return new Project(outFields, outTypes, node);
     }
 
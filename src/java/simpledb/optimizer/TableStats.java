@@ -6,6 +6,8 @@ import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
 import simpledb.index.BTreeFile;
+import simpledb.index.HashIndexFile;
+import simpledb.index.LsmFile;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
@@ -33,7 +35,7 @@ public class TableStats {
 
     private static final ConcurrentMap<String, TableStats> statsMap = new ConcurrentHashMap<>();
 
-    static final int IOCOSTPERPAGE = 1000;
+    public static final int IOCOSTPERPAGE = 1000;
 
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
@@ -149,6 +151,10 @@ public class TableStats {
                 this.tablePages = ((HeapFile)databaseFile).numPages();
             else if(databaseFile instanceof BTreeFile)
                 this.tablePages = ((BTreeFile)databaseFile).numPages();
+            else if(databaseFile instanceof HashIndexFile)
+                this.tablePages = ((HashIndexFile)databaseFile).numPages();
+            else if(databaseFile instanceof LsmFile)
+                this.tablePages = ((LsmFile)databaseFile).numPages();
             else{
                 this.tablePages = 0;
                 throw new RuntimeException("can not confirm the page");
@@ -159,6 +165,10 @@ public class TableStats {
             throw new RuntimeException(e);
         } catch (TransactionAbortedException e) {
             throw new RuntimeException(e);
+        } finally {
+            // 统计信息算完就放锁，否则表上的读锁会一直挡住之后的写入
+            iterator.close();
+            Database.getBufferPool().transactionComplete(tid);
         }
 
     }
@@ -179,6 +189,66 @@ public class TableStats {
         return tablePages * ioCostPerPage;
     }
 
+    /**
+     * Estimates the cost of reading the tuples matching a predicate through a
+     * secondary index. Each matching tuple is fetched from its own heap page,
+     * which may have to be read from disk. The cost of reading the index
+     * itself is not included (see {@link #estimateIndexLookupCost}).
+     *
+     * @param selectivityFactor
+     *            The selectivity of the predicate answered by the index
+     * @return The estimated cost of the index scan.
+     */
+    public double estimateIndexScanCost(double selectivityFactor) {
+        return tableTuples * selectivityFactor * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of reading the tuples matching a predicate with a
+     * bitmap heap scan, which reads every heap page holding a match once.
+     * Matches are assumed to be spread uniformly over the pages of the table.
+     * The cost of reading the indexes is not included.
+     *
+     * @param selectivityFactor
+     *            The selectivity of the predicates answered by the indexes
+     * @return The estimated cost of the bitmap heap scan.
+     */
+    public double estimateBitmapScanCost(double selectivityFactor) {
+        if (tablePages == 0)
+            return 0;
+        double matches = tableTuples * selectivityFactor;
+        double pages = tablePages * (1 - Math.pow(1 - 1.0 / tablePages, matches));
+        return pages * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of reading the entries matching a predicate from a
+     * secondary index of this table: the leaf pages holding the matches.
+     *
+     * @param selectivityFactor
+     *            The selectivity of the predicate on the indexed field
+     * @param entriesPerPage
+     *            The number of entries on a leaf page of the index
+     * @return The estimated cost of the index lookup.
+     */
+    public double estimateIndexLookupCost(double selectivityFactor, int entriesPerPage) {
+        return Math.ceil(tableTuples * selectivityFactor / entriesPerPage) * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of reading the tuples matching a predicate from a
+     * table stored in an index file keyed on the predicate's field (a
+     * BTreeFile or a HashIndexFile): the pages holding the matches, which
+     * are stored together, plus one page to find them.
+     *
+     * @param selectivityFactor
+     *            The selectivity of the predicate on the key field
+     * @return The estimated cost of the clustered index scan.
+     */
+    public double estimateClusteredIndexScanCost(double selectivityFactor) {
+        return (1 + Math.ceil(tablePages * selectivityFactor)) * ioCostPerPage;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -203,8 +273,22 @@ public class TableStats {
      * expected selectivity. You may estimate this value from the histograms.
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
-        // some code goes here
-        return 1.0;
+        double eq;
+        if(intHistogramMap.containsKey(field))
+            eq = intHistogramMap.get(field).avgSelectivity();
+        else if(strHistogramMap.containsKey(field))
+            eq = strHistogramMap.get(field).avgSelectivity();
+        else
+            throw new RuntimeException("the field is illegal");
+        switch (op){
+            case EQUALS:
+                return eq;
+            case NOT_EQUALS:
+                return 1.0 - eq;
+            default:
+                // 不知道常量时，范围条件平均保留一半的tuple
+                return 0.5;
+        }
     }
 
     /**
@@ -236,8 +320,7 @@ public class TableStats {
      * return the total number of tuples in this table
      * */
     public int totalTuples() {
-        // some code goes here
-        return 0;
+        return tableTuples;
     }
 
 }
@@ -3,14 +3,19 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
+import simpledb.index.SecondaryIndex;
+import simpledb.transaction.OptimisticWorkspace;
 import simpledb.transaction.PageLockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
+import simpledb.transaction.VersionManager;
 
 import java.io.*;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -38,6 +43,11 @@ public class BufferPool {
     private final int pageNum;
     private final Map<PageId,Page> map;
     private final PageLockManager lockManager;
+    private final VersionManager versionManager;
+    private final Set<TransactionId> readOnlyTransactions;
+    // 申请过写权限或弄脏过页的事务，完成时没有写过的事务走只读路径
+    private final Set<TransactionId> writers;
+    private final Map<TransactionId, OptimisticWorkspace> workspaces;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -49,6 +59,10 @@ public class BufferPool {
         pageNum = numPages;
         map = new ConcurrentHashMap<>();
         lockManager = new PageLockManager();
+        versionManager = new VersionManager();
+        readOnlyTransactions = ConcurrentHashMap.newKeySet();
+        writers = ConcurrentHashMap.newKeySet();
+        workspaces = new ConcurrentHashMap<>();
     }
     
     public static int getPageSize() {
@@ -75,6 +89,11 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * Snapshot transactions take no locks at all: they get the version of
+     * the page that was committed when their snapshot was taken. Optimistic
+     * transactions take no locks either: they read the latest committed
+     * version and write to private copies until they are validated.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -82,12 +101,26 @@ public class BufferPool {
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
+        if(versionManager.isSnapshot(tid)){
+            if(perm == Permissions.READ_WRITE)
+                throw new DbException("snapshot transaction " + tid.getId() + " is read-only");
+            return getSnapshotPage(tid,pid);
+        }
+        OptimisticWorkspace workspace = workspaces.get(tid);
+        if(workspace != null)
+            return getOptimisticPage(workspace,pid,perm);
+        if(perm == Permissions.READ_WRITE && readOnlyTransactions.contains(tid))
+            throw new DbException("transaction " + tid.getId() + " was declared read-only");
         int lockType = 0;
-        if(perm == Permissions.READ_WRITE)
+        if(perm == Permissions.READ_WRITE) {
             lockType = 1;
+            writers.add(tid);
+        }
         while(true){
             if(lockManager.acquireLock(tid,pid,lockType))
                 break;
+            // 等锁时让出CPU，让持有锁的事务尽快完成
+            Thread.yield();
         }
 
         if(map.size() >= pageNum){
@@ -101,21 +134,285 @@ public class BufferPool {
                     throw e;
                 }
 
-                Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                map.put(pid,page);
-                return page;
+                return cachePage(pid);
             }
         }else {
             if(map.containsKey(pid)){
                 return map.get(pid);
             }else {
-                Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                map.put(pid,page);
-                return page;
+                return cachePage(pid);
             }
         }
     }
 
+    /**
+     * Read ahead: lock the given pages for reading, and bring those that are
+     * not cached yet into the buffer pool, reading each run of consecutive
+     * pages of a HeapFile with a single read. Pages are read ahead only as
+     * long as there is room for them, or clean pages to evict, in at most
+     * half of the buffer pool, so that read-ahead does not push out the
+     * pages the transaction is still working on.
+     * <p>
+     * Snapshot and optimistic transactions do not read through the cache,
+     * so nothing is read ahead for them.
+     *
+     * @param tid the ID of the transaction that is going to read the pages
+     * @param pids the IDs of the pages, in the order they will be read
+     */
+    public void prefetch(TransactionId tid, List<PageId> pids)
+        throws TransactionAbortedException, DbException {
+        if(versionManager.isSnapshot(tid) || workspaces.containsKey(tid))
+            return;
+        List<PageId> missing = new ArrayList<>();
+        for(PageId pid:pids){
+            // 先加读锁，保证读到的是已提交的内容
+            while(!lockManager.acquireLock(tid,pid,0))
+                Thread.yield();
+            if(!map.containsKey(pid) && missing.size() < pageNum/2)
+                missing.add(pid);
+        }
+
+        int i = 0;
+        while(i < missing.size()){
+            PageId first = missing.get(i);
+            DbFile file = Database.getCatalog().getDatabaseFile(first.getTableId());
+            int j = i + 1;
+            while(j < missing.size() && missing.get(j).getTableId() == first.getTableId()
+                    && missing.get(j).getPageNumber() == first.getPageNumber() + (j - i))
+                j++;
+            List<Page> pages = new ArrayList<>();
+            try {
+                if(file instanceof HeapFile)
+                    pages = ((HeapFile) file).readPages(first.getPageNumber(), j - i);
+                else
+                    for(int k=i;k<j;k++)
+                        pages.add(file.readPage(missing.get(k)));
+            } catch (IOException e) {
+                throw new DbException("read-ahead failed: " + e.getMessage());
+            }
+            for(Page page:pages){
+                if(map.size() >= pageNum){
+                    try {
+                        evictPage();
+                    } catch (DbException e){
+                        // 没有可以驱逐的页，放弃预读
+                        return;
+                    }
+                }
+                map.putIfAbsent(page.getId(),page);
+            }
+            i = j;
+        }
+    }
+
+    /**
+     * Read a page from disk and add it to the cache. If another thread has
+     * cached the page in the meantime, that copy wins and is returned, so
+     * there is never more than one copy of a page in the buffer pool.
+     */
+    private Page cachePage(PageId pid) {
+        Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        Page cached = map.putIfAbsent(pid,page);
+        return cached != null ? cached : page;
+    }
+
+    /**
+     * Retrieve the specified page without acquiring any transaction lock,
+     * or null if the page is not in the buffer pool.
+     * <p>
+     * This is only meant for index traversals that protect what they read
+     * with page latches instead: the returned page may contain uncommitted
+     * changes, so the caller must check afterwards that the page it read is
+     * still the one in the buffer pool (see {@link #isResident(Page)}) and
+     * that it has not been modified since, and retry otherwise. Pages are
+     * never read from disk here: without a lock the reader could cache a
+     * copy of a page that a writer is just reinitializing.
+     *
+     * @param pid the ID of the requested page
+     */
+    public Page getUnlockedPage(PageId pid) {
+        return map.get(pid);
+    }
+
+    /**
+     * Return true if page is the copy of its page currently cached in the
+     * buffer pool, i.e. it has been neither evicted nor replaced by an abort.
+     */
+    public boolean isResident(Page page) {
+        return map.get(page.getId()) == page;
+    }
+
+    /**
+     * Return the version of a page that the snapshot of tid must see. The
+     * returned page is a private copy, so writers may keep modifying the
+     * cached page while the snapshot reads it.
+     */
+    private Page getSnapshotPage(TransactionId tid, PageId pid) {
+        Page page = versionManager.getVisibleVersion(tid,pid);
+        if(page != null)
+            return page;
+        Page current = getCommittedImage(pid);
+        // 读取期间可能有写事务提交了该页，此时旧版本已经进入版本链
+        page = versionManager.getVisibleVersion(tid,pid);
+        return page != null ? page : current;
+    }
+
+    /**
+     * Return a private copy of the latest committed image of a page.
+     */
+    private Page getCommittedImage(PageId pid) {
+        // 在NO STEAL下，缓存页的beforeImage和磁盘上的页都是最近一次提交的内容
+        Page current = map.get(pid);
+        if(current != null)
+            return current.getBeforeImage();
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    }
+
+    /**
+     * Return a page for an optimistic transaction, recording the version it
+     * read. Pages requested with READ_WRITE are copied into the write set so
+     * that the transaction's changes stay private until validation.
+     */
+    private Page getOptimisticPage(OptimisticWorkspace workspace, PageId pid, Permissions perm) {
+        Page page = workspace.getWrite(pid);
+        if(page != null)
+            return page;
+        long version;
+        do {
+            version = versionManager.getCommitTs(pid);
+            page = getCommittedImage(pid);
+        } while(version != versionManager.getCommitTs(pid));
+        workspace.recordRead(pid,version);
+        if(perm == Permissions.READ_WRITE)
+            workspace.putWrite(page);
+        return page;
+    }
+
+    /**
+     * Start tid as a read-only snapshot transaction. All pages it reads
+     * reflect the database as of the last commit before this call.
+     *
+     * @param tid the ID of the snapshot transaction
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versionManager.beginSnapshot(tid);
+    }
+
+    /** Return true if tid is an active snapshot transaction */
+    public boolean isSnapshot(TransactionId tid) {
+        return versionManager.isSnapshot(tid);
+    }
+
+    /**
+     * Declare tid read-only. It may only request READ_ONLY pages, and it
+     * completes without flushing or logging anything.
+     *
+     * @param tid the ID of the read-only transaction
+     */
+    public void declareReadOnly(TransactionId tid) {
+        readOnlyTransactions.add(tid);
+    }
+
+    /**
+     * Return true if tid may have written something: it has asked for a page
+     * with READ_WRITE or has dirtied a page. A transaction for which this is
+     * false is read-only so far, and completing it needs no flushing.
+     */
+    public boolean hasWritten(TransactionId tid) {
+        return writers.contains(tid);
+    }
+
+    /**
+     * Start tid as an optimistic transaction. It takes no locks while it
+     * runs; conflicts are detected when it is validated at commit.
+     *
+     * @param tid the ID of the optimistic transaction
+     */
+    public void beginOptimistic(TransactionId tid) {
+        workspaces.put(tid,new OptimisticWorkspace());
+    }
+
+    /** Return true if tid is an optimistic transaction that has not been validated yet */
+    public boolean isOptimistic(TransactionId tid) {
+        return workspaces.containsKey(tid);
+    }
+
+    /**
+     * Validate an optimistic transaction. Validation succeeds if no page
+     * in its read set was committed by another transaction since it was
+     * read or is exclusively locked by another transaction, which may be a
+     * validated transaction that has not committed yet, and every page of
+     * its write set can be locked exclusively without waiting. On success the private copies are installed in the
+     * buffer pool as dirty pages under exclusive locks, so the rest of the
+     * commit proceeds exactly as for a two-phase locking transaction. On
+     * failure the private copies are thrown away.
+     *
+     * @param tid the ID of the optimistic transaction
+     * @throws TransactionAbortedException if validation fails
+     */
+    public void validate(TransactionId tid) throws TransactionAbortedException {
+        OptimisticWorkspace workspace = workspaces.get(tid);
+        if(workspace == null)
+            return;
+        synchronized (versionManager) {
+            List<PageId> locked = new ArrayList<>();
+            boolean valid = true;
+            for(Map.Entry<PageId, Long> entry:workspace.getReadSet().entrySet()){
+                // 已经通过验证但还没提交的事务持有写锁，它的提交时间戳还看不到
+                if(versionManager.getCommitTs(entry.getKey()) != entry.getValue()
+                        || lockManager.isExclusivelyLockedByOther(tid,entry.getKey())){
+                    valid = false;
+                    break;
+                }
+            }
+            if(valid){
+                for(Page page:workspace.getWriteSet().values()){
+                    if(page.isDirty() == null)
+                        continue;
+                    // 两阶段锁事务可能正在读写该页，不等待，直接判定冲突
+                    if(!lockManager.tryAcquireExclusiveLock(tid,page.getId())){
+                        valid = false;
+                        break;
+                    }
+                    locked.add(page.getId());
+                }
+            }
+            try {
+                if(valid){
+                    // 写阶段：私有副本进入缓冲池，之后和两阶段锁事务一样提交
+                    // 先替换已缓存的页，这样驱逐时不会把刚加锁的页逐出
+                    for(Page page:workspace.getWriteSet().values()){
+                        if(page.isDirty() != null && map.containsKey(page.getId()))
+                            map.put(page.getId(),page);
+                    }
+                    for(Page page:workspace.getWriteSet().values()){
+                        if(page.isDirty() == null || map.containsKey(page.getId()))
+                            continue;
+                        if(map.size() >= pageNum)
+                            evictPage();
+                        map.put(page.getId(),page);
+                    }
+                }
+            } catch (DbException e) {
+                valid = false;
+            }
+            workspaces.remove(tid);
+            if(valid && !locked.isEmpty())
+                writers.add(tid);
+            if(!valid){
+                for(PageId pid:locked){
+                    map.remove(pid);
+                    lockManager.releaseLock(tid,pid);
+                }
+                throw new TransactionAbortedException();
+            }
+        }
+    }
+
+    public VersionManager getVersionManager() {
+        return versionManager;
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -127,6 +424,11 @@ public class BufferPool {
      */
     // 释放page中与事务tid相关的锁，在事务未提交之前调用，违背了两阶段锁原则，所以是unsafe的
     public  void unsafeReleasePage(TransactionId tid, PageId pid) {
+        OptimisticWorkspace workspace = workspaces.get(tid);
+        if(workspace != null){
+            workspace.release(pid);
+            return;
+        }
         lockManager.releaseLock(tid,pid);
     }
 
@@ -150,26 +452,64 @@ public class BufferPool {
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
+     * @throws IllegalStateException if tid is an optimistic transaction
+     *         that commits without having been validated
      */
     public void transactionComplete(TransactionId tid, boolean commit) {
+        if(versionManager.isSnapshot(tid)){
+            // 快照事务没有加锁也没有写页，只需释放它所固定的旧版本
+            versionManager.endSnapshot(tid);
+            return;
+        }
+        if(workspaces.containsKey(tid)){
+            if(!commit){
+                // 未验证的乐观事务只修改了私有副本，丢弃即可
+                workspaces.remove(tid);
+                return;
+            }
+            // 提交前必须先调用validate，验证失败时事务只能回滚
+            workspaces.remove(tid);
+            throw new IllegalStateException("optimistic transaction " + tid.getId() + " was not validated before commit");
+        }
+        readOnlyTransactions.remove(tid);
+        if(!writers.remove(tid)){
+            // 只读事务既没有要刷盘的页也没有要回滚的页，一次性释放所有的读锁即可
+            lockManager.releaseAllLocks(tid);
+            return;
+        }
         List<PageId> list = lockManager.getPageIdWithTID(tid);
         if(commit == true){
-            for(PageId pageId:list){
-                try {
-                    flushPage(pageId);
-                    lockManager.releaseLock(tid,pageId);
-                    // lab6中要求对每个提交后的页都要重新设置beforeImage
-                    map.get(pageId).setBeforeImage();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+            // 整个提交过程持有versionManager的监视器，快照事务不会看到只提交了一半的页
+            synchronized (versionManager) {
+                long commitTs = versionManager.beginCommit();
+                for(PageId pageId:list){
+                    try {
+                        Page page = map.get(pageId);
+                        boolean dirty = page != null && page.isDirty() != null;
+                        if(dirty)
+                            versionManager.retire(pageId,page.getBeforeImage(),commitTs);
+                        flushPage(pageId);
+                        lockManager.releaseLock(tid,pageId);
+                        // lab6中要求对每个提交后的页都要重新设置beforeImage
+                        // 干净的页在提交前可能已经被其它线程驱逐了
+                        Page cached = map.get(pageId);
+                        if(cached != null)
+                            cached.setBeforeImage();
+                        if(dirty)
+                            versionManager.setCommitTs(pageId,commitTs);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
                 }
             }
         }else {
             for(PageId pageId:list){
                 Page page = Database.getCatalog().getDatabaseFile(pageId.getTableId()).readPage(pageId);
                 map.put(pageId,page);
-                lockManager.releaseLock(tid,pageId);
             }
+            // 所有页都恢复之后才能放锁，否则其它事务可能看到只回滚了一半的B+树
+            for(PageId pageId:list)
+                lockManager.releaseLock(tid,pageId);
         }
 
     }
@@ -192,10 +532,9 @@ public class BufferPool {
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
         List<Page> pages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
-        for(Page page:pages){
-            page.markDirty(true,tid);
-            map.put(page.getId(),page);
-        }
+        cacheDirtyPages(tid,pages);
+        for(SecondaryIndex index : Database.getCatalog().getIndexes(tableId))
+            index.insert(tid, t);
     }
 
     /**
@@ -216,10 +555,27 @@ public class BufferPool {
         if(t==null || t.getRecordId()==null || t.getRecordId().getPageId()==null)
             throw new DbException("the tuple is illegal");
         int tableId = t.getRecordId().getPageId().getTableId();
+        RecordId rid = t.getRecordId();
         List<Page> pages = Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid, t);
+        cacheDirtyPages(tid,pages);
+        for(SecondaryIndex index : Database.getCatalog().getIndexes(tableId))
+            index.delete(tid, t, rid);
+    }
+
+    /**
+     * Mark pages dirtied by tid and make them the current version: in the
+     * cache for locking transactions, in the write set for optimistic ones.
+     */
+    private void cacheDirtyPages(TransactionId tid, List<Page> pages) {
+        OptimisticWorkspace workspace = workspaces.get(tid);
         for(Page page:pages){
             page.markDirty(true,tid);
-            map.put(page.getId(),page);
+            if(workspace != null)
+                workspace.putWrite(page);
+            else {
+                writers.add(tid);
+                map.put(page.getId(),page);
+            }
         }
     }
 
@@ -336,14 +692,20 @@ public class BufferPool {
 //                }
 //            }
 //        }
-        for(Map.Entry<PageId, Page> entry : map.entrySet()) {
-            if(entry.getValue().isDirty() == null) {
-                discardPage(entry.getKey());
-                lockManager.removePageLock(entry.getKey());
-                return;
+        // 有线程正在读写的页不能驱逐，否则其修改会丢失；
+        // 加了写锁的页可能已经被修改、只是还没有标记为dirty，尽量不驱逐，
+        // 实在没有别的页时才驱逐它们（修改过的页还在BTreeFile的dirtypages里，操作结束时会重新放回来）。
+        // 锁保持不变：持有锁的事务再次访问时会从磁盘重新读入
+        for(boolean allowLocked : new boolean[]{false, true}) {
+            for(Map.Entry<PageId, Page> entry : map.entrySet()) {
+                if(entry.getValue().isDirty() == null && !entry.getValue().getLatch().isLatched()
+                        && (allowLocked || !lockManager.isExclusivelyLocked(entry.getKey()))) {
+                    discardPage(entry.getKey());
+                    return;
+                }
             }
         }
-        // 到这说明都是dirty页
+        // 到这说明都是dirty页或正在被访问的页
         throw new DbException("the bufferPool is full of dirty page");
     }
 
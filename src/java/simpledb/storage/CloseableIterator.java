@@ -0,0 +1,18 @@
+package simpledb.storage;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * An iterator holding resources, such as an open file, that are released
+ * once it has been read to the end or by {@link #close()}, whichever comes
+ * first.
+ */
+public interface CloseableIterator<T> extends Iterator<T>, Closeable {
+
+    /**
+     * Release the resources of this iterator; it returns no more elements
+     * afterwards. Closing it again has no effect.
+     */
+    void close();
+}
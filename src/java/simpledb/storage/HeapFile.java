@@ -98,6 +98,29 @@ public class HeapFile implements DbFile {
         return null;
     }
 
+    /**
+     * Read count consecutive pages starting at page firstPage with a single
+     * read. Used by {@link BufferPool#prefetch} for reading ahead.
+     *
+     * @return the pages read, in page order
+     */
+    public List<Page> readPages(int firstPage, int count) throws IOException {
+        if(firstPage<0 || count<0 || firstPage+count>this.numPages())
+            throw new IllegalArgumentException("the pageNum exceed the limit");
+        int pageSize = BufferPool.getPageSize();
+        byte[] bytes = new byte[count*pageSize];
+        try (RandomAccessFile raf = new RandomAccessFile(file,"r")) {
+            raf.seek((long) firstPage*pageSize);
+            raf.readFully(bytes);
+        }
+        List<Page> pages = new ArrayList<>(count);
+        for(int i=0;i<count;i++){
+            pages.add(new HeapPage(new HeapPageId(getId(),firstPage+i),
+                    Arrays.copyOfRange(bytes,i*pageSize,(i+1)*pageSize)));
+        }
+        return pages;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         if(page== null || page.getId()==null || page.getId().getTableId()!=this.getId())
@@ -137,8 +160,9 @@ public class HeapFile implements DbFile {
                 page.insertTuple(t);
                 pages.add(page);
                 return pages;
-            }else{
+            }else if(page.isDirty() == null){
                 //因为未修改页的内容，所以虽然违背了2pl，也可以释放锁
+                //本事务自己写满的页是脏页，要留着锁，提交时才会刷盘
                 Database.getBufferPool().unsafeReleasePage(tid,pageId);
             }
         }
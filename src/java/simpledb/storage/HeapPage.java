@@ -29,6 +29,7 @@ public class HeapPage implements Page {
     private TransactionId dirtyTransId;
     byte[] oldData;
     private final Byte oldDataLock= (byte) 0;
+    private final PageLatch latch = new PageLatch();
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -123,6 +124,10 @@ public class HeapPage implements Page {
         return this.pid;
     }
 
+    public PageLatch getLatch() {
+        return latch;
+    }
+
     /**
      * Suck up tuples from the source file.
      */
@@ -169,6 +174,16 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
+        // 序列化期间不允许其他线程修改页内容
+        latch.latchShared();
+        try {
+            return serialize();
+        } finally {
+            latch.unlatchShared();
+        }
+    }
+
+    private byte[] serialize() {
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -251,12 +266,17 @@ public class HeapPage implements Page {
      * @param t The tuple to delete
      */
     public void deleteTuple(Tuple t) throws DbException {
-        if(t==null || t.getRecordId()==null || t.getRecordId().getPageId()==null)
-            throw new DbException("the tuple is illegal");
-        if(!pid.equals(t.getRecordId().getPageId()) || !isSlotUsed(t.getRecordId().getTupleNumber()))
-            throw new DbException("the tuple is not in the page or empty");
-        markSlotUsed(t.getRecordId().getTupleNumber(),false);
-        tuples[t.getRecordId().getTupleNumber()] = null;
+        latch.latchExclusive();
+        try {
+            if(t==null || t.getRecordId()==null || t.getRecordId().getPageId()==null)
+                throw new DbException("the tuple is illegal");
+            if(!pid.equals(t.getRecordId().getPageId()) || !isSlotUsed(t.getRecordId().getTupleNumber()))
+                throw new DbException("the tuple is not in the page or empty");
+            markSlotUsed(t.getRecordId().getTupleNumber(),false);
+            tuples[t.getRecordId().getTupleNumber()] = null;
+        } finally {
+            latch.unlatchExclusive();
+        }
     }
 
     /**
@@ -267,20 +287,25 @@ public class HeapPage implements Page {
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
-        if(t==null || t.getTupleDesc()==null)
-            throw new DbException("the tuple is illegal");
-        if(getNumEmptySlots()==0 || !td.equals(t.getTupleDesc()))
-            throw new DbException("the page is full or tupleDesc is mismatch");
-        int idx = 0;
-        while(idx < tuples.length){
-            if(tuples[idx] == null)
-                break;
-            idx++;
+        latch.latchExclusive();
+        try {
+            if(t==null || t.getTupleDesc()==null)
+                throw new DbException("the tuple is illegal");
+            if(getNumEmptySlots()==0 || !td.equals(t.getTupleDesc()))
+                throw new DbException("the page is full or tupleDesc is mismatch");
+            int idx = 0;
+            while(idx < tuples.length){
+                if(tuples[idx] == null)
+                    break;
+                idx++;
+            }
+            RecordId recordId = new RecordId(pid, idx);
+            t.setRecordId(recordId);
+            markSlotUsed(idx,true);
+            tuples[idx] = t;
+        } finally {
+            latch.unlatchExclusive();
         }
-        RecordId recordId = new RecordId(pid, idx);
-        t.setRecordId(recordId);
-        markSlotUsed(idx,true);
-        tuples[idx] = t;
     }
 
     /**
@@ -311,12 +336,17 @@ public class HeapPage implements Page {
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-        int num = 0;
-        for(int i=0;i<tuples.length;i++){
-            if(tuples[i] == null)
-                num++;
+        latch.latchShared();
+        try {
+            int num = 0;
+            for(int i=0;i<tuples.length;i++){
+                if(tuples[i] == null)
+                    num++;
+            }
+            return num;
+        } finally {
+            latch.unlatchShared();
         }
-        return num;
     }
 
     /**
@@ -331,6 +361,20 @@ public class HeapPage implements Page {
         return (header[nthHeaderByte] & (1<<nthBit)) != 0;
     }
 
+    /**
+     * @return the tuple in slot i of this page, or null if the slot is empty
+     */
+    public Tuple getTuple(int i) {
+        if (i < 0 || i >= numSlots)
+            throw new NoSuchElementException("no slot " + i + " on page " + pid.getPageNumber());
+        latch.latchShared();
+        try {
+            return tuples[i];
+        } finally {
+            latch.unlatchShared();
+        }
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
@@ -354,21 +398,39 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         return new Iterator<Tuple>() {
+            // 下一个待检查的槽位；每次只在共享闩锁下查看一个槽位，
+            // 因此迭代期间其他线程仍然可以修改页
             private int idx = 0;
-            private int count = 0;
-            private int size = tuples.length - getNumEmptySlots();
+            private Tuple next = null;
+
+            private Tuple advance() {
+                latch.latchShared();
+                try {
+                    while (idx < tuples.length) {
+                        Tuple t = tuples[idx++];
+                        if (t != null)
+                            return t;
+                    }
+                    return null;
+                } finally {
+                    latch.unlatchShared();
+                }
+            }
+
             @Override
             public boolean hasNext() {
-                return count < size;
+                if (next == null)
+                    next = advance();
+                return next != null;
             }
 
             @Override
             public Tuple next() {
-                while(tuples[idx]==null)
-                    idx++;
-                count++;
-                // 注意，此处返回后要将idx加1，不然会造成idx无法更新，始终取出同一个tuple
-                return tuples[idx++];
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = next;
+                next = null;
+                return t;
             }
         };
     }
@@ -147,7 +147,8 @@ public class LogFile {
     }
     
     /** Write an abort record to the log for the specified tid, force
-        the log to disk, and perform a rollback
+        the log to disk, and perform a rollback.  Does nothing if the
+        transaction has not written any log record.
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
@@ -157,6 +158,9 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
 
             synchronized(this) {
+                // 没有写过日志的事务在日志里没有要回滚的内容
+                if(tidToFirstLogRecord.get(tid.getId()) == null)
+                    return;
                 preAppend();
                 //Debug.log("ABORT");
                 //should we verify that this is a live transaction?
@@ -176,11 +180,15 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  A transaction that has not written any
+        log record has nothing for recovery to redo, so no COMMIT record
+        (and no force of the log) is needed.
 
         @param tid The committing transaction.
     */
     public synchronized void logCommit(TransactionId tid) throws IOException {
+        if(tidToFirstLogRecord.get(tid.getId()) == null)
+            return;
         preAppend();
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
@@ -194,7 +202,8 @@ public class LogFile {
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  The first UPDATE
+        record of a transaction is preceded by its BEGIN record.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
@@ -205,6 +214,9 @@ public class LogFile {
                                        Page after)
         throws IOException  {
         Debug.log("WRITE, offset = " + raf.getFilePointer());
+        // BEGIN在事务第一次写日志时才写入，只读事务不会留下任何日志
+        if(tidToFirstLogRecord.get(tid.getId()) == null)
+            logXactionBegin(tid);
         preAppend();
         /* update record conists of
 
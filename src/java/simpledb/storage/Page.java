@@ -30,6 +30,13 @@ public interface Page {
      */
     TransactionId isDirty();
 
+    /**
+     * Return the latch that protects the in-memory contents of this page
+     * against concurrent physical access by other threads. The latch is
+     * independent of the transaction locks held on the page.
+     */
+    PageLatch getLatch();
+
   /**
    * Set the dirty state of this page as dirtied by a particular transaction
    */
@@ -0,0 +1,69 @@
+package simpledb.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * PageLatch protects the in-memory structure of a single page while a thread
+ * physically reads or modifies it.
+ * <p>
+ * Latches are not transaction locks: they are owned by threads, are held
+ * only for the duration of one physical operation (inserting a tuple,
+ * serializing the page, stepping an iterator) and are never part of
+ * deadlock detection. Transaction locks live in
+ * {@link simpledb.transaction.PageLockManager} and are held until commit.
+ * <p>
+ * Besides the usual shared/exclusive modes, the latch carries a version
+ * counter that is odd while a writer holds the latch and is incremented
+ * again on release. A reader may therefore read a page optimistically
+ * without latching it at all: remember {@link #getVersion()}, read, and
+ * check {@link #validate(long)} afterwards, retrying if a writer got in.
+ */
+public class PageLatch {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong version = new AtomicLong(0);
+
+    public void latchShared() {
+        lock.readLock().lock();
+    }
+
+    public void unlatchShared() {
+        lock.readLock().unlock();
+    }
+
+    public void latchExclusive() {
+        lock.writeLock().lock();
+        // 写者进入，版本号变为奇数（重入时不变）
+        if (lock.getWriteHoldCount() == 1)
+            version.incrementAndGet();
+    }
+
+    public void unlatchExclusive() {
+        // 写者离开，版本号重新变为偶数
+        if (lock.getWriteHoldCount() == 1)
+            version.incrementAndGet();
+        lock.writeLock().unlock();
+    }
+
+    /**
+     * Return the current version of the page for an optimistic read, or -1
+     * if a writer is modifying the page right now.
+     */
+    public long getVersion() {
+        long v = version.get();
+        return (v & 1) == 0 ? v : -1;
+    }
+
+    /**
+     * Return true if no writer has latched the page since v was obtained
+     * from {@link #getVersion()}.
+     */
+    public boolean validate(long v) {
+        return v >= 0 && version.get() == v;
+    }
+
+    /** Return true if any thread currently holds the latch in either mode. */
+    public boolean isLatched() {
+        return lock.isWriteLocked() || lock.getReadLockCount() > 0;
+    }
+}
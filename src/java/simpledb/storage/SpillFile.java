@@ -0,0 +1,152 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of tuples written and read sequentially by
+ * operators that cannot keep all of their input in memory (external sort,
+ * hash partitioning). Tuples are stored without their RecordId in a compact
+ * binary format: integers as four bytes and strings as the length of their
+ * UTF-8 encoding followed by its bytes, without the padding to {@link Type#STRING_LEN} a page
+ * uses. The file is streamed through a page-sized buffer, so a spill file
+ * never holds more than one page in memory.
+ * <p>
+ * Tuples are appended with {@link #add(Tuple)}; {@link #iterator()} may
+ * then be called any number of times. {@link #close()} closes the writer
+ * and any iterators still reading the file, and deletes the file.
+ */
+public class SpillFile implements Closeable {
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    // 还没有读完的iterator的输入流，close时一起关闭
+    private final List<InputStream> readers = new ArrayList<>();
+    private long size = 0;
+
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("spill", ".tmp");
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                BufferPool.getPageSize()));
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the temporary file the tuples are written to
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of tuples in this file
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Append a tuple to the end of this file.
+     */
+    public void add(Tuple t) throws IOException {
+        if (out == null)
+            throw new IllegalStateException("spill file has already been read");
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (f instanceof StringField) {
+                // 字符串不补齐到定长，只写UTF-8编码后的长度和内容
+                byte[] bs = ((StringField) f).getValue().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bs.length);
+                out.write(bs);
+            } else {
+                f.serialize(out);
+            }
+        }
+        size++;
+    }
+
+    /**
+     * Finish writing, and return an iterator over the tuples of this file in
+     * the order they were added. No more tuples may be added afterwards.
+     * The iterator closes its input stream when it is read to the end;
+     * close it to stop reading earlier.
+     */
+    public CloseableIterator<Tuple> iterator() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                BufferPool.getPageSize()));
+        readers.add(in);
+        return new CloseableIterator<Tuple>() {
+            long read = 0;
+
+            public boolean hasNext() {
+                if (read < size && readers.contains(in))
+                    return true;
+                close();
+                return false;
+            }
+
+            public void close() {
+                if (readers.remove(in))
+                    closeQuietly(in);
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = new Tuple(td);
+                try {
+                    for (int i = 0; i < td.numFields(); i++) {
+                        Type type = td.getFieldType(i);
+                        if (type == Type.STRING_TYPE) {
+                            byte[] bs = new byte[in.readInt()];
+                            in.readFully(bs);
+                            t.setField(i, new StringField(new String(bs, StandardCharsets.UTF_8), Type.STRING_LEN));
+                        } else {
+                            t.setField(i, type.parse(in));
+                        }
+                    }
+                } catch (IOException | ParseException e) {
+                    throw new RuntimeException(e);
+                }
+                read++;
+                return t;
+            }
+        };
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            // 文件马上就要删除了，关闭失败可以忽略
+        }
+    }
+
+    /**
+     * Close the writer and the iterators still reading this file, and
+     * delete it.
+     */
+    public void close() {
+        if (out != null)
+            closeQuietly(out);
+        out = null;
+        for (InputStream in : readers)
+            closeQuietly(in);
+        readers.clear();
+        file.delete();
+    }
+}
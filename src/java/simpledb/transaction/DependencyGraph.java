@@ -31,7 +31,7 @@ public class DependencyGraph {
         if(detectDeadLock()){
             // 检测到死锁，那么要将该事务终止，删除所有对该事务的请求边
             Database.getBufferPool().transactionComplete(requester,false);
-            requestEdge.remove(requester);// 删除该事务所有的请求
+            removeTransaction(requester);// 删除该事务所有的请求以及指向它的请求
             throw new TransactionAbortedException();
         }
     }
@@ -64,6 +64,9 @@ public class DependencyGraph {
             TransactionId current = sources.poll();
             visitedCount++;
             HashSet<Pair<PageId, TransactionId>> children = requestEdge.get(current);
+            // 只作为被请求方出现的事务没有出边
+            if(children == null)
+                continue;
             for(Pair<PageId, TransactionId> p : children) {
                 TransactionId childId = p.getValue();
                 indegrees.put(childId, indegrees.get(childId)-1);
@@ -71,7 +74,7 @@ public class DependencyGraph {
                     sources.add(childId);
             }
         }
-        return visitedCount!=requestEdge.size();
+        return visitedCount!=indegrees.size();
     }
     public synchronized void removeDependencies(TransactionId tid,PageId pid){
         Pair<PageId, TransactionId> pair = new Pair<>(pid,tid);
@@ -81,6 +84,12 @@ public class DependencyGraph {
                 set.remove(pair);
         }
     }
+    public synchronized void removeTransaction(TransactionId tid){
+        // 事务结束后，删除它发出的请求边以及所有指向它的请求边
+        requestEdge.remove(tid);
+        for(HashSet<Pair<PageId, TransactionId>> set:requestEdge.values())
+            set.removeIf(p -> p.getValue().equals(tid));
+    }
     public synchronized void addDependencies(TransactionId tid, PageId pid, int lockType, ConcurrentHashMap<TransactionId,PageLock> map) throws TransactionAbortedException {
         if(lockType == PageLock.EXCLUSIVE) {
             for(TransactionId other: map.keySet())
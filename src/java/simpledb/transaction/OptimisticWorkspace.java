@@ -0,0 +1,64 @@
+package simpledb.transaction;
+
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * OptimisticWorkspace holds the state of an optimistic transaction between
+ * its first read and its validation: the version of every page it has read,
+ * and private copies of the pages it intends to write. Nothing in the
+ * workspace is visible to other transactions until validation installs the
+ * write set into the buffer pool.
+ */
+public class OptimisticWorkspace {
+    // 读集：页 -> 第一次读取时的版本号
+    private final Map<PageId, Long> readSet;
+    // 写集：页 -> 事务私有的副本
+    private final Map<PageId, Page> writeSet;
+
+    public OptimisticWorkspace() {
+        readSet = new LinkedHashMap<>();
+        writeSet = new LinkedHashMap<>();
+    }
+
+    /**
+     * Remember that the transaction read version of pid. Only the first read
+     * of a page counts; validation fails if the page changed since then.
+     */
+    public void recordRead(PageId pid, long version) {
+        readSet.putIfAbsent(pid, version);
+    }
+
+    /** Return the private copy of pid, or null if the page is not in the write set. */
+    public Page getWrite(PageId pid) {
+        return writeSet.get(pid);
+    }
+
+    /** Add (or replace) the private copy of a page in the write set. */
+    public void putWrite(Page page) {
+        writeSet.put(page.getId(), page);
+    }
+
+    /**
+     * Forget a page the transaction looked at but did not modify, e.g. a full
+     * heap page that HeapFile skipped while looking for a free slot.
+     */
+    public void release(PageId pid) {
+        Page page = writeSet.get(pid);
+        if (page != null && page.isDirty() != null)
+            return;
+        writeSet.remove(pid);
+        readSet.remove(pid);
+    }
+
+    public Map<PageId, Long> getReadSet() {
+        return readSet;
+    }
+
+    public Map<PageId, Page> getWriteSet() {
+        return writeSet;
+    }
+}
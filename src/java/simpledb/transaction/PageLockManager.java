@@ -39,6 +39,32 @@ public class PageLockManager {
         }
         return false;
     }
+    /**
+     * 页面上是否有事务持有写锁
+     */
+    public synchronized boolean isExclusivelyLocked(PageId pageId){
+        ConcurrentHashMap<TransactionId, PageLock> tidLockMap = lockMap.get(pageId);
+        if(tidLockMap == null)
+            return false;
+        for(PageLock pageLock:tidLockMap.values()){
+            if(pageLock.getType() == PageLock.EXCLUSIVE)
+                return true;
+        }
+        return false;
+    }
+    /**
+     * 页面上是否有tid以外的事务持有写锁
+     */
+    public synchronized boolean isExclusivelyLockedByOther(TransactionId tid,PageId pageId){
+        ConcurrentHashMap<TransactionId, PageLock> tidLockMap = lockMap.get(pageId);
+        if(tidLockMap == null)
+            return false;
+        for(PageLock pageLock:tidLockMap.values()){
+            if(pageLock.getType() == PageLock.EXCLUSIVE && !pageLock.getTid().equals(tid))
+                return true;
+        }
+        return false;
+    }
     public synchronized void removePageLock(PageId pageId){
         lockMap.remove(pageId);
     }
@@ -114,6 +140,24 @@ public class PageLockManager {
         }
     }
 
+    /**
+     * 不等待、不记录依赖地尝试获取写锁，只有页面上没有其它事务的锁时才成功
+     */
+    public synchronized boolean tryAcquireExclusiveLock(TransactionId tid,PageId pageId){
+        ConcurrentHashMap<TransactionId, PageLock> tidLockMap = lockMap.get(pageId);
+        if(tidLockMap == null){
+            tidLockMap = new ConcurrentHashMap<>();
+            tidLockMap.put(tid,new PageLock(tid, pageId, PageLock.EXCLUSIVE));
+            lockMap.put(pageId,tidLockMap);
+            return true;
+        }
+        if(tidLockMap.size() == 1 && tidLockMap.containsKey(tid)){
+            tidLockMap.get(tid).setType(PageLock.EXCLUSIVE);
+            return true;
+        }
+        return false;
+    }
+
     public synchronized boolean isHoldLock(TransactionId tid,PageId pageId){
         ConcurrentHashMap<TransactionId, PageLock> tidLockMap = lockMap.get(pageId);
         if(tidLockMap==null || !tidLockMap.containsKey(tid))
@@ -133,4 +177,21 @@ public class PageLockManager {
         }
     }
 
+    /**
+     * 一次性释放事务持有的所有锁，返回被释放锁的页
+     */
+    public synchronized List<PageId> releaseAllLocks(TransactionId tid){
+        ArrayList<PageId> pageIds = new ArrayList<>();
+        for(Map.Entry<PageId, ConcurrentHashMap<TransactionId, PageLock>> entry:lockMap.entrySet()){
+            ConcurrentHashMap<TransactionId, PageLock> tidLockMap = entry.getValue();
+            if(tidLockMap.remove(tid) != null){
+                pageIds.add(entry.getKey());
+                if(tidLockMap.size() == 0)
+                    lockMap.remove(entry.getKey());
+            }
+        }
+        dependencyGraph.removeTransaction(tid);
+        return pageIds;
+    }
+
 }
@@ -12,27 +12,92 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    volatile boolean readOnly = false;
 
     public Transaction() {
         tid = new TransactionId();
     }
 
-    /** Start the transaction running */
+    /**
+     * Declare whether the transaction is read-only. Must be called before
+     * {@link #start()}. A read-only transaction fails with a DbException if
+     * it asks for a page with READ_WRITE. Like any transaction that writes
+     * nothing, it writes no log records.
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Start the transaction running. No BEGIN record is written here: the
+     * log file writes it just before the transaction's first UPDATE record.
+     */
     public void start() {
         started = true;
-        try {
-            Database.getLogFile().logXactionBegin(tid);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        if (readOnly)
+            Database.getBufferPool().declareReadOnly(tid);
+    }
+
+    /**
+     * Start the transaction as a read-only snapshot. It sees the database as
+     * of the last commit before this call and never blocks, or is blocked by,
+     * concurrent writers.
+     */
+    public void startSnapshot() {
+        readOnly = true;
+        Database.getBufferPool().beginSnapshot(tid);
+        started = true;
+    }
+
+    /**
+     * Start the transaction in optimistic mode. It takes no locks while it
+     * runs and keeps its writes private. It is validated by
+     * {@link #validate()}, or else by {@link #commit()}, which throws
+     * TransactionAbortedException if it conflicted with others.
+     */
+    public void startOptimistic() {
+        Database.getBufferPool().beginOptimistic(tid);
+        start();
+    }
+
+    /**
+     * Validate an optimistic transaction. If this returns normally the
+     * transaction's writes are installed and commit() will succeed; if it
+     * throws, the transaction must be aborted. Does nothing for transactions
+     * that use locking.
+     *
+     * @throws TransactionAbortedException if the transaction conflicted with
+     *         a transaction that committed first
+     */
+    public void validate() throws TransactionAbortedException {
+        if (started)
+            Database.getBufferPool().validate(tid);
     }
 
     public TransactionId getId() {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
+    /**
+     * Finish the transaction. An optimistic transaction that was not
+     * validated yet is validated first, and aborted if validation fails.
+     *
+     * @throws TransactionAbortedException if the transaction is optimistic
+     *         and conflicted with a transaction that committed first
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (started && !readOnly && Database.getBufferPool().isOptimistic(tid)) {
+            try {
+                Database.getBufferPool().validate(tid);
+            } catch (TransactionAbortedException e) {
+                transactionComplete(true);
+                throw e;
+            }
+        }
         transactionComplete(false);
     }
 
@@ -45,6 +110,14 @@ public class Transaction {
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
+            if (readOnly) {
+                // nothing was logged or written, so there is nothing to
+                // roll back or make durable -- just release the locks
+                Database.getBufferPool().transactionComplete(tid, !abort);
+                started = false;
+                return;
+            }
+
             //write abort log record and rollback transaction
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
@@ -54,8 +127,9 @@ public class Transaction {
             Database.getBufferPool().transactionComplete(tid, !abort); // release locks
 
             // write commit log record
+            // (nothing is written if the transaction logged nothing)
             if (!abort) {
-            	Database.getLogFile().logCommit(tid);
+                Database.getLogFile().logCommit(tid);
             }
 
             //setting this here means we could possibly write multiple abort records -- OK?
@@ -0,0 +1,180 @@
+package simpledb.transaction;
+
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionManager implements multi-version reads for snapshot transactions.
+ * <p>
+ * Every writer commit advances a logical clock. A snapshot transaction
+ * remembers the clock value at the time it started and must see every page
+ * exactly as it was committed at that time, no matter what writers have done
+ * since. Writers still run under two-phase locking, so the only thing kept
+ * here is an undo chain per page: whenever a page is committed while some
+ * snapshot is active, the image it replaces is retired into the chain
+ * together with the commit timestamp that superseded it.
+ * <p>
+ * Snapshot readers never take page locks; they either find a retired image
+ * in the chain or read the current committed image of the page. Retired
+ * images that no active snapshot can see any more are reclaimed by
+ * {@link #collectGarbage()}.
+ * <p>
+ * The timestamp of the last commit of every page doubles as the page's
+ * version number, which optimistic transactions use for validation.
+ */
+public class VersionManager {
+
+    /**
+     * A committed page image that was visible to snapshots taken before
+     * the commit with timestamp validUntil.
+     */
+    private static class PageVersion {
+        final Page image;
+        final long validUntil;
+
+        PageVersion(Page image, long validUntil) {
+            this.image = image;
+            this.validUntil = validUntil;
+        }
+    }
+
+    // 最近一次提交的逻辑时间戳
+    private long clock;
+    // 活跃的快照事务 -> 其读时间戳
+    private final Map<TransactionId, Long> snapshots;
+    // 每个页的旧版本链，按validUntil从小到大排列
+    private final Map<PageId, LinkedList<PageVersion>> versions;
+    // 每个页最近一次提交的时间戳，即页的版本号
+    private final Map<PageId, Long> lastCommit;
+
+    public VersionManager() {
+        clock = 0;
+        snapshots = new ConcurrentHashMap<>();
+        versions = new ConcurrentHashMap<>();
+        lastCommit = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Register tid as a snapshot transaction reading as of the last commit.
+     */
+    public synchronized void beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, clock);
+    }
+
+    /**
+     * Forget the snapshot of tid and reclaim the versions it was pinning.
+     */
+    public synchronized void endSnapshot(TransactionId tid) {
+        if (snapshots.remove(tid) != null)
+            collectGarbage();
+    }
+
+    /** Return true if tid is an active snapshot transaction. */
+    public boolean isSnapshot(TransactionId tid) {
+        return tid != null && snapshots.containsKey(tid);
+    }
+
+    /** Return true if there is at least one active snapshot. */
+    public boolean hasSnapshots() {
+        return !snapshots.isEmpty();
+    }
+
+    /**
+     * Return the retired image of pid that the snapshot of tid must see, or
+     * null if the snapshot sees the current committed image of the page.
+     */
+    public synchronized Page getVisibleVersion(TransactionId tid, PageId pid) {
+        Long readTs = snapshots.get(tid);
+        if (readTs == null)
+            throw new IllegalArgumentException("transaction " + tid.getId() + " is not a snapshot");
+        LinkedList<PageVersion> chain = versions.get(pid);
+        if (chain == null)
+            return null;
+        for (PageVersion v : chain) {
+            if (v.validUntil > readTs)
+                return v.image;
+        }
+        return null;
+    }
+
+    /**
+     * Start a new commit and return its timestamp. The caller must hold the
+     * monitor of this VersionManager from this call until every page of the
+     * commit is durable, so that no snapshot observes a half-installed commit.
+     */
+    public synchronized long beginCommit() {
+        return ++clock;
+    }
+
+    /**
+     * Retire the committed image a page had before the commit with timestamp
+     * commitTs. Nothing is kept if no snapshot is active, since every later
+     * snapshot will read the new image anyway.
+     *
+     * @param pid the page being committed
+     * @param beforeImage the image of the page as of the previous commit
+     * @param commitTs the timestamp returned by {@link #beginCommit()}
+     */
+    public synchronized void retire(PageId pid, Page beforeImage, long commitTs) {
+        if (snapshots.isEmpty())
+            return;
+        versions.computeIfAbsent(pid, k -> new LinkedList<>()).addLast(new PageVersion(beforeImage, commitTs));
+    }
+
+    /**
+     * Record that the commit with timestamp commitTs has installed a new image
+     * of pid. Must be called after the new image is in place, so a reader that
+     * sees the old version number never holds an image newer than it.
+     */
+    public void setCommitTs(PageId pid, long commitTs) {
+        lastCommit.put(pid, commitTs);
+    }
+
+    /**
+     * Return the timestamp of the last commit that wrote pid, or 0 if no
+     * commit has written it since the database was opened.
+     */
+    public long getCommitTs(PageId pid) {
+        return lastCommit.getOrDefault(pid, 0L);
+    }
+
+    /**
+     * Drop every retired version that no active snapshot can see. A version
+     * is visible to snapshots whose read timestamp is smaller than its
+     * validUntil, so it is dead once the oldest snapshot is at least that new.
+     */
+    public synchronized void collectGarbage() {
+        if (snapshots.isEmpty()) {
+            versions.clear();
+            return;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (long ts : snapshots.values())
+            oldest = Math.min(oldest, ts);
+        List<PageId> emptied = new ArrayList<>();
+        for (Map.Entry<PageId, LinkedList<PageVersion>> entry : versions.entrySet()) {
+            Iterator<PageVersion> it = entry.getValue().iterator();
+            while (it.hasNext() && it.next().validUntil <= oldest)
+                it.remove();
+            if (entry.getValue().isEmpty())
+                emptied.add(entry.getKey());
+        }
+        for (PageId pid : emptied)
+            versions.remove(pid);
+    }
+
+    /** Return the number of retired page versions currently kept. */
+    public synchronized int getNumVersions() {
+        int n = 0;
+        for (LinkedList<PageVersion> chain : versions.values())
+            n += chain.size();
+        return n;
+    }
+}
@@ -0,0 +1,189 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class BTreeAdaptiveHashTest extends SimpleDbTestBase {
+	private static final int MAX_KEY = 500;
+
+	private TransactionId tid;
+	private BTreeFile bf;
+	// 每个key的各个tuple的第二列
+	private Map<Integer, List<Integer>> tuples;
+
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		List<List<Integer>> generated = new ArrayList<>();
+		// 每个key平均有10个tuple，有的key跨过叶子页的边界
+		bf = BTreeUtility.createRandomBTreeFile(2, 5000, MAX_KEY, null, generated, 0);
+		tuples = new HashMap<>();
+		for(List<Integer> t : generated)
+			add(t.get(0), t.get(1));
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private void commit() {
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+	}
+
+	private void add(int key, int value) {
+		tuples.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+	}
+
+	/**
+	 * Check that an equality search for key returns exactly the tuples with that key.
+	 */
+	private void checkSearch(int key) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		List<Integer> found = new ArrayList<>();
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			assertEquals(key, ((IntField) t.getField(0)).getValue());
+			found.add(((IntField) t.getField(1)).getValue());
+		}
+		it.close();
+		List<Integer> expected = new ArrayList<>(tuples.getOrDefault(key, Collections.emptyList()));
+		Collections.sort(found);
+		Collections.sort(expected);
+		assertEquals("key " + key, expected, found);
+	}
+
+	/** Search for every key often enough for all leaf pages to become hot */
+	private void warmUp() throws Exception {
+		for(int round=0; round<=BTreeAdaptiveHash.HOT_SEARCHES; round++) {
+			for(int key=0; key<MAX_KEY; key++)
+				checkSearch(key);
+		}
+		commit();
+	}
+
+	@Test
+	public void hotKeysAreHashed() throws Exception {
+		BTreeAdaptiveHash hash = bf.getAdaptiveHash();
+		assertEquals(0, hash.size());
+		warmUp();
+		assertTrue(hash.size() > MAX_KEY / 2);
+		assertTrue(hash.getHits() > 0);
+
+		// 之后的等值查找几乎都从哈希索引开始，只有从叶子页第一个tuple开始的key除外：
+		// 只看这个页无法确定左兄弟页上没有相同的key
+		long hits = hash.getHits();
+		for(int key=0; key<MAX_KEY; key++)
+			checkSearch(key);
+		long hashed = hash.getHits() - hits;
+		assertTrue(hashed > tuples.size() * 9 / 10);
+		// 不存在的key不会被哈希
+		checkSearch(-1);
+		checkSearch(MAX_KEY + 1);
+		assertEquals(hits + hashed, hash.getHits());
+	}
+
+	@Test
+	public void disabled() throws Exception {
+		BTreeAdaptiveHash hash = bf.getAdaptiveHash();
+		warmUp();
+		hash.setEnabled(false);
+		assertEquals(0, hash.size());
+		long hits = hash.getHits();
+		warmUp();
+		assertEquals(0, hash.size());
+		assertEquals(hits, hash.getHits());
+	}
+
+	@Test
+	public void invalidatedBySplitsAndDeletes() throws Exception {
+		warmUp();
+		Random r = new Random(7);
+		// 插入足够多的tuple使叶子页分裂，tuple在页内也会移动
+		for(int i=0; i<3000; i++) {
+			int key = r.nextInt(MAX_KEY);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[]{key, i}));
+			add(key, i);
+			if(i % 100 == 99) {
+				commit();
+				for(int j=0; j<20; j++)
+					checkSearch(r.nextInt(MAX_KEY));
+			}
+		}
+		commit();
+		for(int key=0; key<MAX_KEY; key++)
+			checkSearch(key);
+		commit();
+		warmUp();
+
+		// 删除一部分key的所有tuple，使叶子页合并或者重新分配
+		int deleted = 0;
+		for(int key=0; key<MAX_KEY; key+=3) {
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+			List<Tuple> victims = new ArrayList<>();
+			it.open();
+			while(it.hasNext())
+				victims.add(it.next());
+			it.close();
+			for(Tuple t : victims)
+				Database.getBufferPool().deleteTuple(tid, t);
+			tuples.remove(key);
+			if(++deleted % 10 == 0) {
+				commit();
+				for(int j=0; j<20; j++)
+					checkSearch(r.nextInt(MAX_KEY));
+			}
+		}
+		commit();
+		for(int key=0; key<MAX_KEY; key++)
+			checkSearch(key);
+	}
+
+	@Test
+	public void abortedSplits() throws Exception {
+		warmUp();
+		Map<Integer, List<Integer>> committed = new HashMap<>();
+		for(Map.Entry<Integer, List<Integer>> e : tuples.entrySet())
+			committed.put(e.getKey(), new ArrayList<>(e.getValue()));
+		// 同一个事务里插入并查找，然后回滚
+		for(int i=0; i<1000; i++) {
+			int key = (i * 7) % MAX_KEY;
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[]{key, -i}));
+			add(key, -i);
+			if(i % 50 == 0)
+				checkSearch(key);
+		}
+		for(int key=0; key<MAX_KEY; key+=5)
+			checkSearch(key);
+		Database.getBufferPool().transactionComplete(tid, false);
+		tid = new TransactionId();
+		tuples = committed;
+		for(int round=0; round<2; round++) {
+			for(int key=0; key<MAX_KEY; key++)
+				checkSearch(key);
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeAdaptiveHashTest.class);
+	}
+}
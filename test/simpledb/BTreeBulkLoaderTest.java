@@ -0,0 +1,157 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	@Before
+	public void setUp() {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private File tempIndexFile() throws Exception {
+		File f = File.createTempFile("bulk", ".idx");
+		f.deleteOnExit();
+		return f;
+	}
+
+	/**
+	 * Build an index over a random heap file and check that it holds the same
+	 * tuples, in key order, and that the tree is well formed.
+	 */
+	private BTreeFile buildAndCheck(int rows, int keyField, double fillFactor) throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, null, tuples);
+		BTreeFile bf = BTreeBulkLoader.createIndex(tid, hf, keyField, tempIndexFile(), fillFactor);
+		Database.getCatalog().addTable(bf);
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), fillFactor == 1.0);
+		SystemTestUtil.matchTuples(bf, tid, tuples);
+
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		Field prev = null;
+		while(it.hasNext()) {
+			Field f = it.next().getField(keyField);
+			if(prev != null)
+				assertTrue(prev.compare(Op.LESS_THAN_OR_EQ, f));
+			prev = f;
+			count++;
+		}
+		it.close();
+		assertEquals(rows, count);
+		return bf;
+	}
+
+	@Test
+	public void emptyTable() throws Exception {
+		BTreeFile bf = buildAndCheck(0, 0, 1.0);
+		assertEquals(0, bf.numPages());
+	}
+
+	@Test
+	public void singleLeaf() throws Exception {
+		BTreeFile bf = buildAndCheck(20, 0, 1.0);
+		assertEquals(1, bf.numPages());
+	}
+
+	@Test
+	public void multipleLevels() throws Exception {
+		// 502 tuples per leaf, so this needs internal pages
+		BTreeFile bf = buildAndCheck(60000, 1, 1.0);
+		BTreePageId rootPtrPid = new BTreePageId(bf.getId(), 0, BTreePageId.ROOT_PTR);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(rootPtrPid);
+		assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+	}
+
+	@Test
+	public void fillFactor() throws Exception {
+		BTreeFile full = buildAndCheck(5000, 0, 1.0);
+		BTreeFile half = buildAndCheck(5000, 0, 0.5);
+		assertTrue(half.numPages() > full.numPages());
+
+		// the free room lets inserts go in without splitting
+		int pages = half.numPages();
+		for(int i = 0; i < 100; i++)
+			Database.getBufferPool().insertTuple(tid, half.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		assertEquals(pages, half.numPages());
+	}
+
+	@Test
+	public void indexLookup() throws Exception {
+		BTreeFile bf = buildAndCheck(10000, 0, 0.8);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		Field key = it.next().getField(0);
+		it.close();
+
+		it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+		it.open();
+		assertTrue(it.hasNext());
+		assertEquals(key, it.next().getField(0));
+		it.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void badFillFactor() throws Exception {
+		new BTreeBulkLoader(tempIndexFile(), Utility.getTupleDesc(2), 0, 0.2);
+	}
+
+	@Test
+	public void externalSortSpills() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 5000, null, tuples);
+		simpledb.execution.ExternalSort sort = new simpledb.execution.ExternalSort(hf.getTupleDesc(),
+				new BTreeFileEncoder.TupleComparator(1), 2);
+		DbFileIterator it = hf.iterator(tid);
+		it.open();
+		while(it.hasNext())
+			sort.add(it.next());
+		it.close();
+		assertTrue(sort.numRuns() > 1);
+
+		Iterator<Tuple> sorted = sort.iterator();
+		int count = 0;
+		int prev = Integer.MIN_VALUE;
+		while(sorted.hasNext()) {
+			int v = ((IntField) sorted.next().getField(1)).getValue();
+			assertTrue(prev <= v);
+			prev = v;
+			count++;
+		}
+		sort.close();
+		assertEquals(5000, count);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
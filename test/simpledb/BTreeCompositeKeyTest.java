@@ -0,0 +1,222 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class BTreeCompositeKeyTest extends SimpleDbTestBase {
+	private static final int[] KEYS = {0, 1};
+
+	private TransactionId tid;
+
+	@Before
+	public void createTransaction() {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+	}
+
+	private static CompositeKey key(int... values) {
+		Field[] fields = new Field[values.length];
+		for(int i=0; i<values.length; i++)
+			fields[i] = new IntField(values[i]);
+		return new CompositeKey(fields);
+	}
+
+	/** @return the tuples of the iterator, as lists of integers, in the order read */
+	private static List<List<Integer>> read(DbFileIterator it) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			List<Integer> l = new ArrayList<>();
+			for(int i=0; i<t.getTupleDesc().numFields(); i++)
+				l.add(((IntField) t.getField(i)).getValue());
+			result.add(l);
+		}
+		it.close();
+		return result;
+	}
+
+	/** @return true if the tuple matches c0 = a and c1 op b, or c0 op a if b is null */
+	private static boolean matches(List<Integer> t, Op op, int a, Integer b) {
+		if(b == null)
+			return new IntField(t.get(0)).compare(op, new IntField(a));
+		return t.get(0) == a && new IntField(t.get(1)).compare(op, new IntField(b));
+	}
+
+	/**
+	 * Check every kind of prefix predicate against a brute force search, and
+	 * that the tuples come back in key order.
+	 */
+	private void checkSearches(BTreeFile bf, List<List<Integer>> tuples) throws Exception {
+		Comparator<List<Integer>> order = Comparator.<List<Integer>>comparingInt(l -> l.get(0))
+				.thenComparingInt(l -> l.get(1));
+		for(Op op : new Op[]{Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ}) {
+			for(int[] k : new int[][]{{3}, {0, 50}, {3, 0}, {3, 60}, {7, 99}, {9, 200}, {12, 5}}) {
+				Field value = k.length == 1 ? new IntField(k[0]) : key(k);
+				List<List<Integer>> found = read(bf.indexIterator(tid, new IndexPredicate(op, value)));
+				List<List<Integer>> expected = new ArrayList<>();
+				for(List<Integer> t : tuples) {
+					if(matches(t, op, k[0], k.length == 1 ? null : k[1]))
+						expected.add(t);
+				}
+				String msg = op + " " + value;
+				assertEquals(msg, expected.size(), found.size());
+				for(int i=1; i<found.size(); i++)
+					assertTrue(msg, order.compare(found.get(i - 1), found.get(i)) <= 0);
+				found.sort(order.thenComparingInt(l -> l.get(2)));
+				expected.sort(order.thenComparingInt(l -> l.get(2)));
+				assertEquals(msg, expected, found);
+			}
+		}
+	}
+
+	@Test
+	public void compareKeys() {
+		assertTrue(key(1, 2).compare(Op.LESS_THAN, key(1, 3)));
+		assertTrue(key(1, 9).compare(Op.LESS_THAN, key(2, 0)));
+		assertTrue(key(2, 0).compare(Op.GREATER_THAN, key(1, 9)));
+		assertTrue(key(1, 2).compare(Op.EQUALS, key(1, 2)));
+		// a shorter key is a prefix, equal to every key starting with it
+		assertTrue(key(1, 2).compare(Op.EQUALS, key(1)));
+		assertTrue(key(1, 2).compare(Op.EQUALS, new IntField(1)));
+		assertTrue(key(1, 2).compare(Op.GREATER_THAN, new IntField(0)));
+		assertFalse(key(1, 2).compare(Op.NOT_EQUALS, key(1)));
+		assertEquals(key(1, 2), key(1, 2));
+		assertEquals(key(1, 2).hashCode(), key(1, 2).hashCode());
+		assertNotEquals(key(1, 2), key(1));
+
+		IndexPredicate p = new IndexPredicate(Op.GREATER_THAN, key(1, 5));
+		assertEquals(key(1), p.getPrefix());
+		assertTrue(p.matches(key(1, 6)));
+		assertFalse(p.matches(key(1, 5)));
+		assertFalse(p.matches(key(2, 0)));
+		assertNull(new IndexPredicate(Op.EQUALS, new IntField(1)).getPrefix());
+	}
+
+	@Test
+	public void insertAndSearch() throws Exception {
+		// 小页面让插入分裂出多层内部页
+		BufferPool.setPageSize(512);
+		Database.reset();
+		BTreeFile bf = new BTreeFile(BTreeUtility.tempFile("composite"), KEYS, Utility.getTupleDesc(3));
+		Database.getCatalog().addTable(bf);
+		assertEquals(0, bf.keyField());
+		assertArrayEquals(KEYS, bf.keyFields());
+
+		Random r = new Random(37);
+		List<List<Integer>> tuples = new ArrayList<>();
+		List<Tuple> inserts = new ArrayList<>();
+		for(int i=0; i<3000; i++) {
+			int[] values = {r.nextInt(10), r.nextInt(100), i};
+			tuples.add(Arrays.asList(values[0], values[1], values[2]));
+			inserts.add(Utility.getHeapTuple(values));
+		}
+		tid = BTreeUtility.insertTuples(tid, bf.getId(), inserts);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		checkSearches(bf, tuples);
+
+		// deleting every tuple with c0 = 3 and c1 < 50 leaves the rest of prefix 3 alone
+		// 删除可能移动tuple，所以每次都重新查找
+		IndexPredicate victims = new IndexPredicate(Op.LESS_THAN, key(3, 50));
+		int deleted = 0;
+		while(true) {
+			DbFileIterator it = bf.indexIterator(tid, victims);
+			it.open();
+			Tuple t = it.hasNext() ? it.next() : null;
+			it.close();
+			if(t == null)
+				break;
+			Database.getBufferPool().deleteTuple(tid, t);
+			deleted++;
+		}
+		assertTrue(tuples.removeIf(l -> l.get(0) == 3 && l.get(1) < 50));
+		assertEquals(deleted, 3000 - tuples.size());
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		checkSearches(bf, tuples);
+	}
+
+	@Test
+	public void bulkLoad() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 20000, 100, null, tuples);
+		BTreeFile bf = BTreeBulkLoader.createIndex(tid, hf, KEYS, BTreeUtility.tempFile("composite"), 1.0);
+		Database.getCatalog().addTable(bf);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		SystemTestUtil.matchTuples(bf, tid, tuples);
+		checkSearches(bf, tuples);
+
+		// inserts after the build go between the loaded keys
+		Database.getBufferPool().insertTuple(tid, bf.getId(), Utility.getHeapTuple(new int[]{3, 60, -1}));
+		List<List<Integer>> found = read(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key(3, 60))));
+		assertTrue(found.contains(Arrays.asList(3, 60, -1)));
+	}
+
+	/** @return the leaf of the plan that reads the table */
+	private static OpIterator findScan(OpIterator plan) {
+		if(!(plan instanceof Operator))
+			return plan;
+		return findScan(((Operator) plan).getChildren()[0]);
+	}
+
+	@Test
+	public void planUsesPrefixPredicate() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 20000, 100, null, tuples, "c");
+		BTreeFile bf = BTreeBulkLoader.createIndex(tid, hf, KEYS, BTreeUtility.tempFile("composite"), 1.0);
+		Database.getCatalog().addTable(bf, "t");
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("t", new TableStats(bf.getId(), TableStats.IOCOSTPERPAGE));
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "t");
+		lp.addFilter("t.c1", Op.GREATER_THAN, "10");
+		lp.addFilter("t.c0", Op.EQUALS, "4");
+		lp.addProjectField("t.c2", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		// 两个filter都由索引回答，不再需要Filter
+		OpIterator scan = findScan(plan);
+		assertTrue(scan instanceof BTreeScan);
+		assertEquals(key(4, 10), ((BTreeScan) scan).getPredicate().getField());
+		assertEquals(Op.GREATER_THAN, ((BTreeScan) scan).getPredicate().getOp());
+		assertFalse(plan instanceof Filter || ((Operator) plan).getChildren()[0] instanceof Filter);
+
+		List<List<Integer>> expected = new ArrayList<>();
+		for(List<Integer> t : tuples) {
+			if(t.get(0) == 4 && t.get(1) > 10)
+				expected.add(Collections.singletonList(t.get(2)));
+		}
+		SystemTestUtil.matchTuples(plan, expected);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompositeKeyTest.class);
+	}
+}
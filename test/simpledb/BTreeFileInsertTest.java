@@ -137,6 +137,81 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 				entriesPerPage/2 - 1 == otherPage.getNumEntries());
 	}    
 
+	@Test
+	public void testAppendSplitLeafPage() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 3);
+		int tableid = empty.getId();
+		int keyField = 0;
+
+		// the right-most leaf, receiving a key greater than all of its keys
+		BTreePageId leftPageId = new BTreePageId(tableid, 2, BTreePageId.LEAF);
+		BTreeLeafPage leftPage = BTreeUtility.createRandomLeafPage(leftPageId, 2, keyField,
+				0, BTreeUtility.MAX_RAND_VALUE);
+		BTreePageId parentId = new BTreePageId(tableid, 1, BTreePageId.INTERNAL);
+		BTreeInternalPage parent = new BTreeInternalPage(parentId,
+				BTreeInternalPage.createEmptyPageData(), keyField);
+		leftPage.setParentId(parentId);
+
+		Field field = new IntField(BTreeUtility.MAX_RAND_VALUE);
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		dirtypages.put(leftPageId, leftPage);
+		dirtypages.put(parentId, parent);
+		BTreeLeafPage page = empty.splitLeafPage(tid, dirtypages, leftPage, field);
+
+		// 在插入点分裂：左页只让出最后一个tuple
+		assertEquals(leftPageId, page.getLeftSiblingId());
+		assertNull(page.getRightSiblingId());
+		assertEquals(1, page.getNumTuples());
+		assertEquals(BTreeUtility.getNumTuplesPerPage(2) - 1, leftPage.getNumTuples());
+		assertEquals(1, parent.getNumEntries());
+		assertTrue(page.iterator().next().getField(keyField).compare(Op.GREATER_THAN_OR_EQ,
+				leftPage.reverseIterator().next().getField(keyField)));
+
+		// a page with a right sibling still splits in half
+		assertEquals(leftPage, empty.splitLeafPage(tid, dirtypages, leftPage, new IntField(0)));
+		BTreeLeafPage otherPage = (BTreeLeafPage) dirtypages.get(leftPage.getRightSiblingId());
+		assertTrue(Math.abs(otherPage.getNumTuples() - leftPage.getNumTuples()) <= 1);
+	}
+
+	@Test
+	public void testAppendSplitInternalPage() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		int entriesPerPage = BTreeUtility.getNumEntriesPerPage();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 3 + entriesPerPage);
+		int tableid = empty.getId();
+		int keyField = 0;
+
+		BTreePageId leftPageId = new BTreePageId(tableid, 2, BTreePageId.INTERNAL);
+		BTreeInternalPage leftPage = BTreeUtility.createRandomInternalPage(leftPageId, keyField, BTreePageId.LEAF,
+				0, BTreeUtility.MAX_RAND_VALUE, 3);
+		BTreePageId parentId = new BTreePageId(tableid, 1, BTreePageId.INTERNAL);
+		BTreeInternalPage parent = new BTreeInternalPage(parentId,
+				BTreeInternalPage.createEmptyPageData(), keyField);
+		leftPage.setParentId(parentId);
+
+		Field field = new IntField(BTreeUtility.MAX_RAND_VALUE);
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		dirtypages.put(leftPageId, leftPage);
+		dirtypages.put(parentId, parent);
+		BTreeInternalPage page = empty.splitInternalPage(tid, dirtypages, leftPage, field);
+
+		// the last entry moves, the one before it is pushed up
+		assertEquals(1, parent.getNumEntries());
+		BTreeEntry parentEntry = parent.iterator().next();
+		assertEquals(leftPageId, parentEntry.getLeftChild());
+		assertEquals(page.getId(), parentEntry.getRightChild());
+		assertEquals(1, page.getNumEntries());
+		assertEquals(entriesPerPage - 2, leftPage.getNumEntries());
+		assertTrue(field.compare(Op.GREATER_THAN, page.iterator().next().getKey()));
+		assertTrue(parentEntry.getKey().compare(Op.GREATER_THAN_OR_EQ,
+				leftPage.reverseIterator().next().getKey()));
+	}
+
 	@Test
 	public void testReusePage() throws Exception {
 		File emptyFile = File.createTempFile("empty", ".dat");
@@ -0,0 +1,189 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class BTreeFreePageCacheTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		// 小页面让少量tuple也占用很多页
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		file = BTreeUtility.tempFile("free");
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private void commit() {
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+	}
+
+	private BTreeFile open() {
+		BTreeFile bf = new BTreeFile(file, 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(bf);
+		return bf;
+	}
+
+	/** @return the number of pages in the file on disk */
+	private long filePages() {
+		return (file.length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize();
+	}
+
+	private void insert(BTreeFile bf, int from, int to) throws Exception {
+		List<Tuple> tuples = new ArrayList<>();
+		for(int i=from; i<to; i++)
+			tuples.add(Utility.getHeapTuple(new int[]{i, i}));
+		tid = BTreeUtility.insertTuples(tid, bf.getId(), tuples);
+	}
+
+	@Test
+	public void growsByExtents() throws Exception {
+		BTreeFile bf = open();
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		assertEquals(2, bf.getEmptyPageNo(tid, dirtypages));
+		// 一次预分配了一个extent，但只算用掉的页
+		assertEquals(2, bf.numPages());
+		assertEquals(1 + BTreeFile.EXTENT_PAGES, filePages());
+		for(int i=3; i<=1 + BTreeFile.EXTENT_PAGES; i++)
+			assertEquals(i, bf.getEmptyPageNo(tid, dirtypages));
+		assertEquals(1 + BTreeFile.EXTENT_PAGES, filePages());
+		assertEquals(2 + BTreeFile.EXTENT_PAGES, bf.getEmptyPageNo(tid, dirtypages));
+		assertEquals(1 + 2 * BTreeFile.EXTENT_PAGES, filePages());
+	}
+
+	@Test
+	public void reopenKeepsPreallocatedPages() throws Exception {
+		BTreeFile bf = open();
+		insert(bf, 0, 2000);
+		int pages = bf.numPages();
+		// 第一页是建文件时写的，之后的页按extent预分配
+		assertEquals(1 + (pages + BTreeFile.EXTENT_PAGES - 2) / BTreeFile.EXTENT_PAGES * BTreeFile.EXTENT_PAGES,
+				filePages());
+		int n = 2000;
+		while(filePages() == pages) {
+			insert(bf, n, n + 100);
+			n += 100;
+			pages = bf.numPages();
+		}
+
+		// 重新打开文件：末尾没用过的页还是空闲的
+		Database.reset();
+		bf = open();
+		assertEquals(pages, bf.numPages());
+		long length = file.length();
+		assertEquals(pages + 1, bf.getEmptyPageNo(tid, new HashMap<>()));
+		assertEquals(length, file.length());
+		count(bf, n);
+	}
+
+	private void count(BTreeFile bf, int expected) throws Exception {
+		DbFileIterator it = bf.iterator(tid);
+		int n = 0;
+		it.open();
+		while(it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		assertEquals(expected, n);
+	}
+
+	@Test
+	public void reusesFreedPages() throws Exception {
+		BTreeFile bf = open();
+		insert(bf, 0, 3000);
+		int pages = bf.numPages();
+		// delete most tuples so that leaf pages are merged and freed
+		for(int i=0; i<2700; i++) {
+			DbFileIterator it = bf.iterator(tid);
+			it.open();
+			Tuple t = it.next();
+			it.close();
+			Database.getBufferPool().deleteTuple(tid, t);
+			if(i % 20 == 19)
+				commit();
+		}
+		commit();
+		insert(bf, 3000, 5700);
+		assertTrue(bf.numPages() <= pages + 2);
+		count(bf, 3000);
+
+		// the cache is rebuilt from the header pages when the file is reopened
+		for(int i=0; i<2700; i++) {
+			DbFileIterator it = bf.iterator(tid);
+			it.open();
+			Tuple t = it.next();
+			it.close();
+			Database.getBufferPool().deleteTuple(tid, t);
+			if(i % 20 == 19)
+				commit();
+		}
+		commit();
+		Database.reset();
+		bf = open();
+		pages = bf.numPages();
+		insert(bf, 5700, 8400);
+		assertTrue(bf.numPages() <= pages + 2);
+	}
+
+	@Test
+	public void abortsKeepHeaderAndCacheConsistent() throws Exception {
+		BTreeFile bf = open();
+		insert(bf, 0, 1000);
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		bf.setEmptyPage(tid, dirtypages, 2);
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		// 回滚的事务释放的页还在使用中，不能再分配出去
+		tid = new TransactionId();
+		dirtypages = new HashMap<>();
+		int pageNo = bf.getEmptyPageNo(tid, dirtypages);
+		assertNotEquals(2, pageNo);
+		assertEquals(bf.numPages(), pageNo);
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		// a page freed by a committed transaction and taken by an aborted one is free again
+		tid = new TransactionId();
+		dirtypages = new HashMap<>();
+		bf.setEmptyPage(tid, dirtypages, pageNo);
+		for(Page p : dirtypages.values())
+			p.markDirty(true, tid);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		assertEquals(pageNo, bf.getEmptyPageNo(tid, new HashMap<>()));
+		Database.getBufferPool().transactionComplete(tid, false);
+		tid = new TransactionId();
+		assertEquals(pageNo, bf.getEmptyPageNo(tid, new HashMap<>()));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeFreePageCacheTest.class);
+	}
+}
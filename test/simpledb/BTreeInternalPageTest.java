@@ -149,6 +149,34 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChild()
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry first = it.next();
+		assertEquals(first.getLeftChild(), page.findChild(null));
+		assertEquals(first.getLeftChild(), page.findChild(first.getKey()));
+		assertEquals(first.getLeftChild(), page.findChild(new IntField(0)));
+		BTreeEntry last = first;
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			// keys between two entries belong to the child between them
+			IntField between = new IntField(((IntField) e.getKey()).getValue() - 1);
+			assertEquals(last.getRightChild(), page.findChild(between));
+			assertEquals(e.getLeftChild(), page.findChild(e.getKey()));
+			last = e;
+		}
+		IntField max = new IntField(((IntField) last.getKey()).getValue() + 1);
+		assertEquals(last.getRightChild(), page.findChild(max));
+
+		// deleting an entry merges the ranges of its children
+		page.deleteKeyAndRightChild(first);
+		IntField afterFirst = new IntField(((IntField) first.getKey()).getValue() + 1);
+		assertEquals(first.getLeftChild(), page.findChild(afterFirst));
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.reverseIterator()
 	 */
@@ -196,6 +196,32 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field), also after the page has
+	 * been modified since the keys were last searched
+	 */
+	@Test public void testIteratorFrom() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		int[] keys = new int[EXAMPLE_VALUES.length];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = EXAMPLE_VALUES[i][0];
+		Arrays.sort(keys);
+
+		Iterator<Tuple> it = page.iterator(new IntField(keys[5]));
+		for (int i = 5; i < keys.length; i++)
+			assertEquals(new IntField(keys[i]), it.next().getField(0));
+		assertFalse(it.hasNext());
+		it = page.iterator(new IntField(keys[5] + 1));
+		assertEquals(new IntField(keys[6]), it.next().getField(0));
+		assertFalse(page.iterator(new IntField(keys[keys.length - 1] + 1)).hasNext());
+
+		// the new key is found right away, in order
+		page.insertTuple(BTreeUtility.getBTreeTuple(keys[5] + 1, 2));
+		it = page.iterator(new IntField(keys[5] + 1));
+		assertEquals(new IntField(keys[5] + 1), it.next().getField(0));
+		assertEquals(new IntField(keys[6]), it.next().getField(0));
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.getNumEmptySlots()
 	 */
@@ -0,0 +1,237 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class BTreePrefixCompressionTest extends SimpleDbTestBase {
+	private static final TupleDesc TD = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+	private static final int[] KEYS = {0};
+	// 很长的公共前缀，只有最后几个字符不同
+	private static final String PREFIX = "http://www.example.com/catalog/products/category/subcategory/item-";
+
+	private TransactionId tid;
+
+	@Before
+	public void createTransaction() {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/** @return the key of the ith tuple: the prefix, i and a random tail */
+	private static String key(int i, Random r) {
+		StringBuilder sb = new StringBuilder(PREFIX).append(String.format("%06d", i)).append('-');
+		for(int j=0; j<10; j++)
+			sb.append((char) ('a' + r.nextInt(26)));
+		return sb.toString();
+	}
+
+	private static Tuple tuple(String key, int value) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, new StringField(key, Type.STRING_LEN));
+		t.setField(1, new IntField(value));
+		return t;
+	}
+
+	private void commit() {
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+	}
+
+	/** @return the number of levels of the tree, counting the leaves */
+	private int height(BTreeFile bf) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreePageId pid = rootPtr.getRootId();
+		int height = 1;
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid,
+					Permissions.READ_ONLY);
+			pid = page.iterator().next().getLeftChild();
+			height++;
+		}
+		return height;
+	}
+
+	/** @return the values of the tuples whose key satisfies op value, in the order read */
+	private List<Integer> search(BTreeFile bf, Op op, String value) throws Exception {
+		List<Integer> result = new ArrayList<>();
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(op, new StringField(value, Type.STRING_LEN)));
+		it.open();
+		String last = null;
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			String k = ((StringField) t.getField(0)).getValue();
+			assertTrue(last == null || last.compareTo(k) <= 0);
+			last = k;
+			result.add(((IntField) t.getField(1)).getValue());
+		}
+		it.close();
+		return result;
+	}
+
+	/**
+	 * Check equality and range searches against the sorted keys, whose ith
+	 * key has value i.
+	 */
+	private void checkSearches(BTreeFile bf, List<String> keys, Map<String, Integer> values) throws Exception {
+		assertEquals(keys.size(), search(bf, Op.GREATER_THAN_OR_EQ, "").size());
+		Random r = new Random(3);
+		for(int n=0; n<20; n++) {
+			int i = r.nextInt(keys.size());
+			String k = keys.get(i);
+			assertEquals(Collections.singletonList(values.get(k)), search(bf, Op.EQUALS, k));
+			assertEquals(i, search(bf, Op.LESS_THAN, k).size());
+			assertEquals(keys.size() - i - 1, search(bf, Op.GREATER_THAN, k).size());
+			// 截断的前缀不是任何一个key
+			assertTrue(search(bf, Op.EQUALS, k.substring(0, k.length() - 3)).isEmpty());
+		}
+	}
+
+	@Test
+	public void defaultsToStringKeys() throws Exception {
+		BTreeFile bf = new BTreeFile(BTreeUtility.tempFile("prefix"), KEYS, TD);
+		Database.getCatalog().addTable(bf);
+		Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(PREFIX, 0));
+		BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				new BTreePageId(bf.getId(), 1, BTreePageId.LEAF), Permissions.READ_ONLY);
+		assertTrue(leaf.isCompressed());
+		// 压缩页的槽按最短的tuple算，比定长页多
+		assertTrue(leaf.getMaxTuples() > BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1));
+
+		BTreeFile ints = new BTreeFile(BTreeUtility.tempFile("prefix"), KEYS, new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE}));
+		Database.getCatalog().addTable(ints);
+		Database.getBufferPool().insertTuple(tid, ints.getId(), Utility.getHeapTuple(new int[]{1, 2}));
+		leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				new BTreePageId(ints.getId(), 1, BTreePageId.LEAF), Permissions.READ_ONLY);
+		assertFalse(leaf.isCompressed());
+	}
+
+	@Test
+	public void insertDeleteAndSearch() throws Exception {
+		BTreeFile bf = new BTreeFile(BTreeUtility.tempFile("prefix"), KEYS, TD);
+		Database.getCatalog().addTable(bf);
+		Random r = new Random(38);
+		Map<String, Integer> values = new HashMap<>();
+		List<Integer> order = new ArrayList<>();
+		for(int i=0; i<3000; i++)
+			order.add(i);
+		Collections.shuffle(order, r);
+		List<Tuple> inserts = new ArrayList<>();
+		for(int i : order) {
+			String k = key(i, r);
+			values.put(k, i);
+			inserts.add(tuple(k, i));
+		}
+		tid = BTreeUtility.insertTuples(tid, bf.getId(), inserts);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		List<String> keys = new ArrayList<>(values.keySet());
+		Collections.sort(keys);
+		checkSearches(bf, keys, values);
+
+		// 从磁盘重新读出的页和写下去的一样
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		checkSearches(bf, keys, values);
+
+		// delete most of the tuples so that pages merge
+		int deleted = 0;
+		for(int i=0; i<keys.size(); i++) {
+			if(i % 5 == 0)
+				continue;
+			DbFileIterator it = bf.indexIterator(tid,
+					new IndexPredicate(Op.EQUALS, new StringField(keys.get(i), Type.STRING_LEN)));
+			it.open();
+			Tuple t = it.next();
+			it.close();
+			Database.getBufferPool().deleteTuple(tid, t);
+			if(++deleted % 20 == 0)
+				commit();
+		}
+		commit();
+		List<String> left = new ArrayList<>();
+		for(int i=0; i<keys.size(); i += 5)
+			left.add(keys.get(i));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		checkSearches(bf, left, values);
+
+		// inserting again reuses the freed space
+		inserts.clear();
+		for(int i=3000; i<3100; i++) {
+			String k = key(i, r);
+			values.put(k, i);
+			left.add(k);
+			inserts.add(tuple(k, i));
+		}
+		tid = BTreeUtility.insertTuples(tid, bf.getId(), inserts);
+		Collections.sort(left);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		checkSearches(bf, left, values);
+	}
+
+	@Test
+	public void bulkLoadTruncatesSeparators() throws Exception {
+		Random r = new Random(39);
+		List<String> keys = new ArrayList<>();
+		Map<String, Integer> values = new HashMap<>();
+		List<Tuple> tuples = new ArrayList<>();
+		for(int i=0; i<20000; i++) {
+			String k = key(i, r);
+			keys.add(k);
+			values.put(k, i);
+			tuples.add(tuple(k, i));
+		}
+		BTreeFile bf = new BTreeBulkLoader(BTreeUtility.tempFile("prefix"), TD, KEYS, 1.0).build(tuples.iterator(), tuples.size());
+		Database.getCatalog().addTable(bf);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		checkSearches(bf, keys, values);
+
+		// 分隔key只保留区分左右两边所需的前缀
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+				rootPtr.getRootId(), Permissions.READ_ONLY);
+		Iterator<BTreeEntry> it = root.iterator();
+		BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				it.next().getLeftChild(), Permissions.READ_ONLY);
+		while(it.hasNext()) {
+			String separator = ((StringField) it.next().getKey()).getValue();
+			assertTrue(separator, separator.length() < keys.get(0).length());
+			assertTrue(separator.startsWith(PREFIX));
+		}
+
+		assertTrue(leaf.getNumTuples() > 2 * BufferPool.getPageSize() / TD.getSize());
+
+		BTreeFile plain = new BTreeBulkLoader(BTreeUtility.tempFile("prefix"), TD, KEYS, 1.0, false).build(tuples.iterator(), tuples.size());
+		Database.getCatalog().addTable(plain);
+		assertTrue(height(bf) < height(plain));
+		assertTrue(bf.numPages() * 3 < plain.numPages());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreePrefixCompressionTest.class);
+	}
+}
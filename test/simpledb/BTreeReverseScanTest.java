@@ -0,0 +1,258 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class BTreeReverseScanTest extends SimpleDbTestBase {
+	private static final Op[] OPS = {Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN,
+			Op.GREATER_THAN_OR_EQ};
+
+	private TransactionId tid;
+
+	@Before
+	public void createTransaction() {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+	}
+
+	/** @return the tuples of the iterator, as lists of integers, in the order read */
+	private static List<List<Integer>> read(DbFileIterator it) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		it.open();
+		while(it.hasNext())
+			result.add(values(it.next()));
+		it.close();
+		return result;
+	}
+
+	private static List<Integer> values(Tuple t) {
+		List<Integer> l = new ArrayList<>();
+		for(int i=0; i<t.getTupleDesc().numFields(); i++)
+			l.add(((IntField) t.getField(i)).getValue());
+		return l;
+	}
+
+	/**
+	 * Check that the descending search for ipred returns the tuples matching it, in
+	 * descending order of the first keyFields fields.
+	 */
+	private void checkDescending(BTreeFile bf, IndexPredicate ipred, List<List<Integer>> tuples,
+			int keyFields) throws Exception {
+		Comparator<List<Integer>> order = Comparator.comparingInt(l -> l.get(0));
+		if(keyFields > 1)
+			order = order.thenComparingInt(l -> l.get(1));
+		List<List<Integer>> found = read(bf.descendingIterator(tid, ipred));
+		List<List<Integer>> expected = new ArrayList<>();
+		for(List<Integer> t : tuples) {
+			int[] key = new int[keyFields];
+			for(int i=0; i<keyFields; i++)
+				key[i] = t.get(i);
+			Field f = keyFields == 1 ? new IntField(key[0]) : key(key);
+			if(ipred == null || ipred.matches(f))
+				expected.add(t);
+		}
+		String msg = ipred == null ? "all" : ipred.getOp() + " " + ipred.getField();
+		assertEquals(msg, expected.size(), found.size());
+		for(int i=1; i<found.size(); i++)
+			assertTrue(msg, order.compare(found.get(i - 1), found.get(i)) >= 0);
+		Comparator<List<Integer>> all = order.thenComparing(Object::toString);
+		found.sort(all);
+		expected.sort(all);
+		assertEquals(msg, expected, found);
+	}
+
+	private static CompositeKey key(int... values) {
+		Field[] fields = new Field[values.length];
+		for(int i=0; i<values.length; i++)
+			fields[i] = new IntField(values[i]);
+		return new CompositeKey(fields);
+	}
+
+	@Test
+	public void descendingSearches() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		// 每个key平均重复几十次，相同的key跨过叶子页的边界
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, 500, null, tuples, 0);
+		checkDescending(bf, null, tuples, 1);
+		for(Op op : OPS) {
+			for(int v : new int[]{-1, 0, 137, 250, 499, 500, 600})
+				checkDescending(bf, new IndexPredicate(op, new IntField(v)), tuples, 1);
+		}
+	}
+
+	@Test
+	public void emptyTree() throws Exception {
+		BTreeFile bf = new BTreeFile(BTreeUtility.tempFile("reverse"), 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(bf);
+		assertTrue(read(bf.descendingIterator(tid, null)).isEmpty());
+		assertTrue(read(bf.descendingIterator(tid, new IndexPredicate(Op.LESS_THAN, new IntField(5)))).isEmpty());
+	}
+
+	@Test
+	public void afterInsertsAndDeletes() throws Exception {
+		// 小页面让插入分裂出多层内部页
+		BufferPool.setPageSize(512);
+		Database.reset();
+		BTreeFile bf = new BTreeFile(BTreeUtility.tempFile("reverse"), 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(bf);
+		Random r = new Random(41);
+		List<List<Integer>> tuples = new ArrayList<>();
+		List<Tuple> inserts = new ArrayList<>();
+		for(int i=0; i<3000; i++) {
+			int key = r.nextInt(300);
+			tuples.add(Arrays.asList(key, i));
+			inserts.add(Utility.getHeapTuple(new int[]{key, i}));
+		}
+		tid = BTreeUtility.insertTuples(tid, bf.getId(), inserts);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+
+		// delete the largest keys from the right end, emptying and merging the right-most leaves
+		int deleted = 0;
+		for(int n=0; n<1000; n++) {
+			DbFileIterator it = bf.descendingIterator(tid, null);
+			it.open();
+			Tuple t = it.next();
+			it.close();
+			Database.getBufferPool().deleteTuple(tid, t);
+			tuples.remove(values(t));
+			if(++deleted % 20 == 0) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		checkDescending(bf, null, tuples, 1);
+		for(Op op : OPS) {
+			for(int v : new int[]{0, 100, 199, 250})
+				checkDescending(bf, new IndexPredicate(op, new IntField(v)), tuples, 1);
+		}
+	}
+
+	@Test
+	public void compositePrefixes() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 20000, 100, null, tuples);
+		BTreeFile bf = BTreeBulkLoader.createIndex(tid, hf, new int[]{0, 1}, BTreeUtility.tempFile("reverse"), 1.0);
+		Database.getCatalog().addTable(bf);
+		for(Op op : OPS) {
+			for(int[] k : new int[][]{{3}, {0, 50}, {3, 0}, {3, 60}, {7, 99}, {9, 200}, {12, 5}}) {
+				Field value = k.length == 1 ? new IntField(k[0]) : key(k);
+				checkDescending(bf, new IndexPredicate(op, value), tuples, 2);
+			}
+		}
+	}
+
+	/** @return true if some operator of the plan is an instance of c */
+	private static boolean contains(OpIterator plan, Class<?> c) {
+		if(c.isInstance(plan))
+			return true;
+		if(plan instanceof Operator) {
+			for(OpIterator child : ((Operator) plan).getChildren()) {
+				if(contains(child, c))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/** @return the leaf of the plan that reads the table */
+	private static OpIterator findScan(OpIterator plan) {
+		if(!(plan instanceof Operator))
+			return plan;
+		return findScan(((Operator) plan).getChildren()[0]);
+	}
+
+	/** @return the first field of the tuples of the plan, in the order read */
+	private static List<Integer> firstFields(OpIterator plan) throws Exception {
+		List<Integer> result = new ArrayList<>();
+		plan.open();
+		while(plan.hasNext())
+			result.add(((IntField) plan.next().getField(0)).getValue());
+		plan.close();
+		return result;
+	}
+
+	@Test
+	public void planUsesIndexOrder() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, null, tuples, "c");
+		BTreeFile bf = BTreeBulkLoader.createIndex(tid, hf, 0, BTreeUtility.tempFile("reverse"), 1.0);
+		Database.getCatalog().addTable(bf, "t");
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("t", new TableStats(bf.getId(), TableStats.IOCOSTPERPAGE));
+
+		// 按key降序：从右往左扫描B+树，不需要OrderBy
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "t");
+		lp.addFilter("t.c0", Op.LESS_THAN, "50");
+		lp.addProjectField("t.c0", null);
+		lp.addProjectField("t.c1", null);
+		lp.addOrderBy("t.c0", false);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertFalse(contains(plan, OrderBy.class));
+		OpIterator scan = findScan(plan);
+		assertTrue(scan instanceof BTreeScan);
+		assertTrue(((BTreeScan) scan).isDescending());
+		assertEquals(Op.LESS_THAN, ((BTreeScan) scan).getPredicate().getOp());
+		List<Integer> expected = new ArrayList<>();
+		for(List<Integer> t : tuples) {
+			if(t.get(0) < 50)
+				expected.add(t.get(0));
+		}
+		expected.sort(Collections.reverseOrder());
+		assertEquals(expected, firstFields(plan));
+
+		// 没有filter的升序查询也按索引顺序扫描
+		lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "t");
+		lp.addProjectField("t.c0", null);
+		lp.addOrderBy("t.c0", true);
+		plan = lp.physicalPlan(tid, stats, false);
+		assertFalse(contains(plan, OrderBy.class));
+		assertFalse(((BTreeScan) findScan(plan)).isDescending());
+		List<Integer> found = firstFields(plan);
+		assertEquals(tuples.size(), found.size());
+		for(int i=1; i<found.size(); i++)
+			assertTrue(found.get(i - 1) <= found.get(i));
+
+		// ordering on a field other than the key still needs a sort
+		lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "t");
+		lp.addProjectField("t.c1", null);
+		lp.addOrderBy("t.c1", false);
+		plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(contains(plan, OrderBy.class));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeReverseScanTest.class);
+	}
+}
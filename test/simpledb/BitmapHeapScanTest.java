@@ -0,0 +1,212 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.execution.BitmapHeapScan.BitmapCondition;
+import simpledb.index.SecondaryIndex;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class BitmapHeapScanTest extends SimpleDbTestBase {
+    private static final int ROWS = 50000;
+
+    private List<List<Integer>> tuples;
+    private HeapFile hf;
+    private SecondaryIndex index0, index1;
+    private TransactionId tid;
+
+    private SecondaryIndex createIndex(String name, int field) throws Exception {
+        File f = File.createTempFile(name, ".idx");
+        f.deleteOnExit();
+        SecondaryIndex index = SecondaryIndex.create(tid, name, hf, field, f, 1.0);
+        Database.getCatalog().addIndex(index);
+        return index;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        tuples = new ArrayList<>();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples, "c");
+        Database.getCatalog().addTable(hf, "t");
+        tid = new TransactionId();
+        index0 = createIndex("t_c0", 0);
+        index1 = createIndex("t_c1", 1);
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static boolean matches(List<Integer> t, int field, Predicate.Op op, int v) {
+        return new IntField(t.get(field)).compare(op, new IntField(v));
+    }
+
+    /** Check that scan returns the expected tuples, visiting the heap pages in order */
+    private void check(BitmapHeapScan scan, List<List<Integer>> expected) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        int lastPage = -1;
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            int pageNo = t.getRecordId().getPageId().getPageNumber();
+            assertTrue(pageNo >= lastPage);
+            lastPage = pageNo;
+            result.add(SystemTestUtil.tupleToList(t));
+        }
+        scan.close();
+        assertEquals(expected.size(), result.size());
+        assertTrue(result.containsAll(expected));
+    }
+
+    @Test
+    public void rangeScan() throws Exception {
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (matches(t, 0, Predicate.Op.LESS_THAN, 2000))
+                expected.add(t);
+        }
+        BitmapCondition cond = BitmapCondition.index(index0,
+                new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(2000)));
+        BitmapHeapScan scan = new BitmapHeapScan(tid, "t", cond);
+        check(scan, expected);
+
+        // rewind gives the same tuples again
+        scan.open();
+        scan.rewind();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(expected.size(), count);
+    }
+
+    @Test
+    public void andOr() throws Exception {
+        IndexPredicate p0 = new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(10000));
+        IndexPredicate p1 = new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(60000));
+        List<List<Integer>> both = new ArrayList<>();
+        List<List<Integer>> either = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            boolean m0 = matches(t, 0, Predicate.Op.LESS_THAN, 10000);
+            boolean m1 = matches(t, 1, Predicate.Op.GREATER_THAN_OR_EQ, 60000);
+            if (m0 && m1)
+                both.add(t);
+            if (m0 || m1)
+                either.add(t);
+        }
+        BitmapCondition c0 = BitmapCondition.index(index0, p0);
+        BitmapCondition c1 = BitmapCondition.index(index1, p1);
+        check(new BitmapHeapScan(tid, "t", BitmapCondition.and(c0, c1)), both);
+        check(new BitmapHeapScan(tid, "t", BitmapCondition.or(c0, c1), 1), either);
+    }
+
+    @Test
+    public void pageBitmap() {
+        PageBitmap a = new PageBitmap();
+        PageBitmap b = new PageBitmap();
+        a.add(3, 1);
+        a.add(1, 0);
+        a.add(1, 5);
+        b.add(1, 5);
+        b.add(2, 0);
+        assertEquals(Arrays.asList(1, 3), a.pageNumbers());
+        assertEquals(3, a.size());
+
+        PageBitmap and = a.and(b);
+        assertEquals(1, and.size());
+        assertTrue(and.contains(new RecordId(new HeapPageId(0, 1), 5)));
+        assertFalse(and.contains(new RecordId(new HeapPageId(0, 1), 0)));
+
+        PageBitmap or = a.or(b);
+        assertEquals(4, or.size());
+        assertEquals(Arrays.asList(1, 2, 3), or.pageNumbers());
+        // a and b are not modified
+        assertEquals(3, a.size());
+        assertEquals(2, b.size());
+    }
+
+    @Test
+    public void prefetch() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        List<PageId> pids = new ArrayList<>();
+        for (int i = 2; i < 8; i++)
+            pids.add(new HeapPageId(hf.getId(), i));
+        Database.getBufferPool().prefetch(tid, pids);
+        for (PageId pid : pids) {
+            Page p = Database.getBufferPool().getUnlockedPage(pid);
+            assertNotNull(p);
+            assertEquals(p, Database.getBufferPool().getPage(tid, pid, simpledb.common.Permissions.READ_ONLY));
+        }
+
+        // the pages are locked for tid: another transaction cannot write them
+        assertTrue(Database.getBufferPool().holdsLock(tid, pids.get(0)));
+    }
+
+    /** @return the leaf of the plan that reads table t */
+    private static OpIterator findScan(OpIterator plan) {
+        if (plan instanceof SeqScan || plan instanceof IndexHeapScan || plan instanceof BitmapHeapScan)
+            return plan;
+        for (OpIterator child : ((Operator) plan).getChildren()) {
+            OpIterator scan = findScan(child);
+            if (scan != null)
+                return scan;
+        }
+        return null;
+    }
+
+    @Test
+    public void planChoosesBitmapScan() throws Exception {
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("t", new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+
+        // 两个都只有1%的范围条件：单独用一个索引要回表几百次，AND之后只剩几个tuple
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c0", Predicate.Op.LESS_THAN, "655");
+        lp.addFilter("t.c1", Predicate.Op.LESS_THAN, "655");
+        lp.addProjectField("t.c0", null);
+        lp.addProjectField("t.c1", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(findScan(plan) instanceof BitmapHeapScan);
+
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (matches(t, 0, Predicate.Op.LESS_THAN, 655) && matches(t, 1, Predicate.Op.LESS_THAN, 655))
+                expected.add(t);
+        }
+        SystemTestUtil.matchTuples(plan, expected);
+
+        // 几乎所有的tuple都满足，全表扫描更便宜
+        lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c0", Predicate.Op.GREATER_THAN, "100");
+        lp.addProjectField("t.c0", null);
+        assertTrue(findScan(lp.physicalPlan(tid, stats, false)) instanceof SeqScan);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BitmapHeapScanTest.class);
+    }
+}
@@ -0,0 +1,174 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private HeapFile table(String name, int rows, int maxValue, List<List<Integer>> tuples) throws Exception {
+		HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, maxValue, null, tuples, "c");
+		Database.getCatalog().addTable(f, name);
+		return f;
+	}
+
+	/** @return the join of left and right on left.c0 = right.c0, as a multiset of tuples */
+	private static Map<List<Integer>, Integer> expected(List<List<Integer>> left, List<List<Integer>> right) {
+		Map<Integer, List<List<Integer>>> byKey = new HashMap<>();
+		for(List<Integer> r : right)
+			byKey.computeIfAbsent(r.get(0), k -> new ArrayList<>()).add(r);
+		Map<List<Integer>, Integer> result = new HashMap<>();
+		for(List<Integer> l : left) {
+			for(List<Integer> r : byKey.getOrDefault(l.get(0), Collections.emptyList())) {
+				List<Integer> t = new ArrayList<>(l);
+				t.addAll(r);
+				result.merge(t, 1, Integer::sum);
+			}
+		}
+		return result;
+	}
+
+	private static Map<List<Integer>, Integer> run(OpIterator join) throws Exception {
+		Map<List<Integer>, Integer> result = new HashMap<>();
+		while(join.hasNext())
+			result.merge(SystemTestUtil.tupleToList(join.next()), 1, Integer::sum);
+		return result;
+	}
+
+	private void checkJoin(HeapFile left, List<List<Integer>> leftTuples, HeapFile right,
+			List<List<Integer>> rightTuples, int memoryPages, boolean buildRight, boolean spills) throws Exception {
+		HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+				new SeqScan(tid, left.getId(), "l"), new SeqScan(tid, right.getId(), "r"), memoryPages, buildRight);
+		Map<List<Integer>, Integer> expected = expected(leftTuples, rightTuples);
+		join.open();
+		assertEquals(expected, run(join));
+		assertEquals(spills, join.hasSpilled());
+		// rewind之后的结果相同，溢出的分区会重新生成
+		join.rewind();
+		assertEquals(expected, run(join));
+		join.close();
+	}
+
+	@Test
+	public void inMemory() throws Exception {
+		List<List<Integer>> leftTuples = new ArrayList<>();
+		List<List<Integer>> rightTuples = new ArrayList<>();
+		HeapFile left = table("l", 300, 100, leftTuples);
+		HeapFile right = table("r", 2000, 100, rightTuples);
+		checkJoin(left, leftTuples, right, rightTuples, 1, false, false);
+		checkJoin(left, leftTuples, right, rightTuples, 16, true, false);
+	}
+
+	@Test
+	public void spillsPartitions() throws Exception {
+		List<List<Integer>> leftTuples = new ArrayList<>();
+		List<List<Integer>> rightTuples = new ArrayList<>();
+		HeapFile left = table("l", 8000, 2000, leftTuples);
+		HeapFile right = table("r", 6000, 2000, rightTuples);
+		// 一页大约放500个tuple，build端要分成多个分区
+		assertTrue(ExternalSort.memoryTuples(left.getTupleDesc(), 1) < 2000);
+		checkJoin(left, leftTuples, right, rightTuples, 1, false, true);
+		checkJoin(left, leftTuples, right, rightTuples, 2, true, true);
+	}
+
+	@Test
+	public void skewedPartition() throws Exception {
+		// build端大部分tuple的key相同，分区无法把它们分开
+		List<List<Integer>> leftTuples = new ArrayList<>();
+		List<List<Integer>> rightTuples = new ArrayList<>();
+		HeapFile left = table("l", 1000, 300, leftTuples);
+		for(int i = 0; i < 3000; i++)
+			leftTuples.add(Arrays.asList(7, i));
+		for(int i = 0; i < 3000; i++)
+			Database.getBufferPool().insertTuple(tid, left.getId(), tuple(7, i));
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		HeapFile right = table("r", 500, 300, rightTuples);
+		for(int i = 0; i < 20; i++) {
+			rightTuples.add(Arrays.asList(7, -i));
+			Database.getBufferPool().insertTuple(tid, right.getId(), tuple(7, -i));
+		}
+		checkJoin(left, leftTuples, right, rightTuples, 1, false, true);
+	}
+
+	private static Tuple tuple(int a, int b) {
+		Tuple t = new Tuple(new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE}));
+		t.setField(0, new IntField(a));
+		t.setField(1, new IntField(b));
+		return t;
+	}
+
+	private static HashEquiJoin findHashJoin(OpIterator plan) {
+		if(plan instanceof HashEquiJoin)
+			return (HashEquiJoin) plan;
+		if(plan instanceof Operator) {
+			for(OpIterator child : ((Operator) plan).getChildren()) {
+				HashEquiJoin j = findHashJoin(child);
+				if(j != null)
+					return j;
+			}
+		}
+		return null;
+	}
+
+	@Test
+	public void planBuildsOnSmallerSide() throws Exception {
+		List<List<Integer>> bigTuples = new ArrayList<>();
+		List<List<Integer>> smallTuples = new ArrayList<>();
+		HeapFile big = table("big", 5000, 1000, bigTuples);
+		HeapFile small = table("small", 500, 1000, smallTuples);
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("big", new TableStats(big.getId(), TableStats.IOCOSTPERPAGE));
+		stats.put("small", new TableStats(small.getId(), TableStats.IOCOSTPERPAGE));
+
+		for(boolean smallFirst : new boolean[]{true, false}) {
+			LogicalPlan lp = new LogicalPlan();
+			lp.addScan(big.getId(), "big");
+			lp.addScan(small.getId(), "small");
+			if(smallFirst)
+				lp.addJoin("small.c0", "big.c0", Predicate.Op.EQUALS);
+			else
+				lp.addJoin("big.c0", "small.c0", Predicate.Op.EQUALS);
+			lp.addProjectField("big.c1", null);
+			lp.setMemoryPages(1);
+			HashEquiJoin join = findHashJoin(lp.physicalPlan(tid, stats, false));
+			assertNotNull(join);
+			assertEquals(1, join.getMemoryPages());
+			OpIterator build = join.getChildren()[join.buildsRight() ? 1 : 0];
+			assertEquals("small.c0", build.getTupleDesc().getFieldName(0));
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HashEquiJoinTest.class);
+	}
+}
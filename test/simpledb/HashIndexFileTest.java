@@ -0,0 +1,221 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.index.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class HashIndexFileTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private HashIndexFile hf;
+
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		File f = File.createTempFile("hash", ".dat");
+		f.deleteOnExit();
+		hf = new HashIndexFile(f, 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(hf, "h");
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private void insert(int key, int value) throws Exception {
+		Tuple t = new Tuple(hf.getTupleDesc());
+		t.setField(0, new IntField(key));
+		t.setField(1, new IntField(value));
+		Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+	}
+
+	/** @return the second field of the tuples with the given key */
+	private List<Integer> lookup(int key) throws Exception {
+		List<Integer> values = new ArrayList<>();
+		DbFileIterator it = hf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			assertEquals(new IntField(key), t.getField(0));
+			values.add(((IntField) t.getField(1)).getValue());
+		}
+		it.close();
+		Collections.sort(values);
+		return values;
+	}
+
+	private int numBuckets() throws Exception {
+		HashMetaPage meta = (HashMetaPage) Database.getBufferPool().getPage(tid,
+				new HashPageId(hf.getId(), 0), Permissions.READ_ONLY);
+		return meta.getNumBuckets();
+	}
+
+	private int count(DbFileIterator it) throws Exception {
+		int n = 0;
+		it.open();
+		while(it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	@Test
+	public void insertSplitsBuckets() throws Exception {
+		assertEquals(1, numBuckets());
+		for(int i = 0; i < 3000; i++)
+			insert(i % 1000, i);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		// 每个桶页放得下几百个tuple，3000个tuple必须分裂出多个桶
+		assertTrue(numBuckets() > 1);
+		for(int k : new int[]{0, 1, 499, 999})
+			assertEquals(Arrays.asList(k, k + 1000, k + 2000), lookup(k));
+		assertTrue(lookup(1000).isEmpty());
+		assertEquals(3000, count(hf.iterator(tid)));
+		// other predicates are answered by a scan of the whole file
+		assertEquals(300, count(hf.indexIterator(tid,
+				new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(100)))));
+	}
+
+	@Test
+	public void deleteAndReinsert() throws Exception {
+		for(int i = 0; i < 2000; i++)
+			insert(i % 500, i);
+		List<Tuple> victims = new ArrayList<>();
+		DbFileIterator it = hf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(7)));
+		it.open();
+		while(it.hasNext())
+			victims.add(it.next());
+		it.close();
+		assertEquals(4, victims.size());
+		for(Tuple t : victims)
+			Database.getBufferPool().deleteTuple(tid, t);
+		assertTrue(lookup(7).isEmpty());
+		assertEquals(Arrays.asList(8, 508, 1008, 1508), lookup(8));
+
+		insert(7, -1);
+		assertEquals(Collections.singletonList(-1), lookup(7));
+		assertEquals(1997, count(hf.iterator(tid)));
+	}
+
+	@Test
+	public void abortForgetsSplits() throws Exception {
+		for(int i = 0; i < 100; i++)
+			insert(i, i);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		int buckets = numBuckets();
+
+		for(int i = 100; i < 3000; i++)
+			insert(i, i);
+		assertTrue(numBuckets() > buckets);
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		tid = new TransactionId();
+		assertEquals(buckets, numBuckets());
+		assertEquals(100, count(hf.iterator(tid)));
+		assertTrue(lookup(2000).isEmpty());
+
+		// the pages of the aborted transaction are reused
+		for(int i = 100; i < 3000; i++)
+			insert(i, i);
+		assertEquals(Collections.singletonList(2000), lookup(2000));
+		assertEquals(2900 + 100, count(hf.iterator(tid)));
+	}
+
+	@Test
+	public void createFromTable() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, null, tuples);
+		File f = File.createTempFile("hash", ".idx");
+		f.deleteOnExit();
+		hf = HashIndexFile.create(tid, heap, 0, f, 0.75);
+		Database.getCatalog().addTable(hf);
+
+		SystemTestUtil.matchTuples(hf, tid, tuples);
+		assertTrue(numBuckets() > 1);
+		for(int k : new int[]{0, 17, 999}) {
+			List<Integer> expected = new ArrayList<>();
+			for(List<Integer> t : tuples) {
+				if(t.get(0) == k)
+					expected.add(t.get(1));
+			}
+			Collections.sort(expected);
+			assertEquals(expected, lookup(k));
+		}
+
+		// inserts after the build go to the same buckets
+		insert(17, -1);
+		assertTrue(lookup(17).contains(-1));
+	}
+
+	/** @return the leaf of the plan that reads the table */
+	private static OpIterator findScan(OpIterator plan) {
+		if(!(plan instanceof Operator))
+			return plan;
+		return findScan(((Operator) plan).getChildren()[0]);
+	}
+
+	@Test
+	public void planUsesHashIndexForEquality() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 20000, 5000, null, tuples, "c");
+		File f = File.createTempFile("hash", ".idx");
+		f.deleteOnExit();
+		hf = HashIndexFile.create(tid, heap, 0, f, 1.0);
+		Database.getCatalog().addTable(hf, "t");
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("t", new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c0", Predicate.Op.EQUALS, "42");
+		lp.addProjectField("t.c1", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(findScan(plan) instanceof BTreeScan);
+		List<List<Integer>> expected = new ArrayList<>();
+		for(List<Integer> t : tuples) {
+			if(t.get(0) == 42)
+				expected.add(Collections.singletonList(t.get(1)));
+		}
+		SystemTestUtil.matchTuples(plan, expected);
+
+		// 哈希索引不能回答范围条件
+		lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c0", Predicate.Op.LESS_THAN, "42");
+		lp.addProjectField("t.c1", null);
+		plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(findScan(plan) instanceof SeqScan);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HashIndexFileTest.class);
+	}
+}
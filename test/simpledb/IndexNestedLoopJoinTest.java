@@ -0,0 +1,203 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.index.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private HeapFile outer;
+	private List<List<Integer>> outerTuples;
+	private HeapFile inner;
+	private List<List<Integer>> innerTuples;
+
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		outerTuples = new ArrayList<>();
+		outer = SystemTestUtil.createRandomHeapFile(2, 3000, 500, null, outerTuples, "c");
+		Database.getCatalog().addTable(outer, "o");
+		innerTuples = new ArrayList<>();
+		inner = SystemTestUtil.createRandomHeapFile(2, 20000, 2000, null, innerTuples, "c");
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private IndexFile btree() throws Exception {
+		File f = File.createTempFile("inl", ".idx");
+		f.deleteOnExit();
+		BTreeFile bf = BTreeBulkLoader.createIndex(tid, inner, 0, f, 1.0);
+		Database.getCatalog().addTable(bf, "t");
+		return bf;
+	}
+
+	private IndexFile hash() throws Exception {
+		File f = File.createTempFile("inl", ".idx");
+		f.deleteOnExit();
+		HashIndexFile hf = HashIndexFile.create(tid, inner, 0, f, 0.75);
+		Database.getCatalog().addTable(hf, "t");
+		return hf;
+	}
+
+	/** @return the join of outer and inner on outer.c1 op inner.c0 computed by brute force */
+	private List<List<Integer>> expected(Predicate.Op op, int filterMax) {
+		List<List<Integer>> result = new ArrayList<>();
+		for(List<Integer> o : outerTuples) {
+			for(List<Integer> i : innerTuples) {
+				if(i.get(1) >= filterMax)
+					continue;
+				if(new IntField(o.get(1)).compare(op, new IntField(i.get(0)))) {
+					List<Integer> t = new ArrayList<>(o);
+					t.addAll(i);
+					result.add(t);
+				}
+			}
+		}
+		return result;
+	}
+
+	private void checkJoin(IndexFile f, Predicate.Op op, int batchSize) throws Exception {
+		JoinPredicate p = new JoinPredicate(1, op, 0);
+		OpIterator innerScan = new SeqScan(tid, f.getId(), "t");
+		assertTrue(IndexNestedLoopJoin.canProbe(p, innerScan));
+		IndexNestedLoopJoin j = new IndexNestedLoopJoin(p, new SeqScan(tid, outer.getId(), "o"),
+				innerScan, batchSize);
+		SystemTestUtil.matchTuples(j, expected(op, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void equiJoinBTree() throws Exception {
+		checkJoin(btree(), Predicate.Op.EQUALS, IndexNestedLoopJoin.DEFAULT_BATCH_SIZE);
+	}
+
+	@Test
+	public void equiJoinHash() throws Exception {
+		checkJoin(hash(), Predicate.Op.EQUALS, IndexNestedLoopJoin.DEFAULT_BATCH_SIZE);
+	}
+
+	@Test
+	public void smallBatches() throws Exception {
+		// 外表有很多重复的key，批次边界落在相同key的中间
+		checkJoin(btree(), Predicate.Op.EQUALS, 7);
+	}
+
+	@Test
+	public void rangeJoinBTree() throws Exception {
+		outerTuples.clear();
+		outer = SystemTestUtil.createRandomHeapFile(2, 20, 500, null, outerTuples, "c");
+		Database.getCatalog().addTable(outer, "o");
+		checkJoin(btree(), Predicate.Op.GREATER_THAN, 8);
+	}
+
+	@Test
+	public void hashCannotProbeRanges() throws Exception {
+		IndexFile f = hash();
+		JoinPredicate p = new JoinPredicate(1, Predicate.Op.LESS_THAN, 0);
+		assertFalse(IndexNestedLoopJoin.canProbe(p, new SeqScan(tid, f.getId(), "t")));
+		// 连接字段不是索引的key
+		p = new JoinPredicate(1, Predicate.Op.EQUALS, 1);
+		assertFalse(IndexNestedLoopJoin.canProbe(p, new SeqScan(tid, f.getId(), "t")));
+		assertFalse(IndexNestedLoopJoin.canProbe(p, new SeqScan(tid, outer.getId(), "o")));
+	}
+
+	@Test
+	public void innerFiltersAndRewind() throws Exception {
+		IndexFile f = btree();
+		JoinPredicate p = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+		OpIterator innerScan = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(500)),
+				new SeqScan(tid, f.getId(), "t"));
+		IndexNestedLoopJoin j = new IndexNestedLoopJoin(p, new SeqScan(tid, outer.getId(), "o"), innerScan, 100);
+		List<List<Integer>> expected = expected(Predicate.Op.EQUALS, 500);
+		SystemTestUtil.matchTuples(j, expected);
+
+		j.open();
+		for(int i = 0; i < 10; i++)
+			j.next();
+		j.rewind();
+		int n = 0;
+		while(j.hasNext()) {
+			j.next();
+			n++;
+		}
+		j.close();
+		assertEquals(expected.size(), n);
+	}
+
+	/** @return true if some operator of the plan is an instance of c */
+	private static boolean contains(OpIterator plan, Class<?> c) {
+		if(c.isInstance(plan))
+			return true;
+		if(plan instanceof Operator) {
+			for(OpIterator child : ((Operator) plan).getChildren()) {
+				if(contains(child, c))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void planChoosesIndexJoinForSmallOuter() throws Exception {
+		IndexFile f = btree();
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("o", new TableStats(outer.getId(), TableStats.IOCOSTPERPAGE));
+		stats.put("t", new TableStats(f.getId(), TableStats.IOCOSTPERPAGE));
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(outer.getId(), "o");
+		lp.addScan(f.getId(), "t");
+		lp.addFilter("o.c0", Predicate.Op.EQUALS, "42");
+		lp.addJoin("o.c1", "t.c0", Predicate.Op.EQUALS);
+		lp.addProjectField("t.c1", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(contains(plan, IndexNestedLoopJoin.class));
+		List<List<Integer>> expected = new ArrayList<>();
+		for(List<Integer> o : outerTuples) {
+			if(o.get(0) != 42)
+				continue;
+			for(List<Integer> i : innerTuples) {
+				if(o.get(1).equals(i.get(0)))
+					expected.add(Collections.singletonList(i.get(1)));
+			}
+		}
+		SystemTestUtil.matchTuples(plan, expected);
+
+		// 外表没有过滤条件时，逐个查找不如哈希连接
+		lp = new LogicalPlan();
+		lp.addScan(outer.getId(), "o");
+		lp.addScan(f.getId(), "t");
+		lp.addJoin("o.c1", "t.c0", Predicate.Op.EQUALS);
+		lp.addProjectField("t.c1", null);
+		plan = lp.physicalPlan(tid, stats, false);
+		assertFalse(contains(plan, IndexNestedLoopJoin.class));
+		assertTrue(contains(plan, HashEquiJoin.class));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+	}
+}
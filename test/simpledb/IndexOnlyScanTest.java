@@ -0,0 +1,221 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.*;
+import simpledb.index.BTreeChecker;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.index.SecondaryIndex;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class IndexOnlyScanTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+    private static final int COLUMNS = 6;
+
+    private List<List<Integer>> tuples;
+    private HeapFile hf;
+    private SecondaryIndex index;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        tuples = new ArrayList<>();
+        hf = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, null, tuples, "c");
+        Database.getCatalog().addTable(hf, "t");
+        File f = File.createTempFile("covering", ".idx");
+        f.deleteOnExit();
+        tid = new TransactionId();
+        // 索引项带上c2，比堆上的tuple窄
+        index = SecondaryIndex.create(tid, "t_c0", hf, 0, new int[]{2}, f, 1.0);
+        Database.getCatalog().addIndex(index);
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** @return (c0, c2) of the tuples of the table whose c0 satisfies op v, in key order */
+    private List<List<Integer>> expected(Predicate.Op op, int v) {
+        List<List<Integer>> result = new ArrayList<>();
+        Field f = new IntField(v);
+        for (List<Integer> t : tuples) {
+            if (op == null || new IntField(t.get(0)).compare(op, f))
+                result.add(Arrays.asList(t.get(0), t.get(2)));
+        }
+        result.sort(Comparator.comparingInt(l -> l.get(0)));
+        return result;
+    }
+
+    private List<List<Integer>> scan(Predicate.Op op, int v) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        IndexOnlyScan scan = new IndexOnlyScan(tid, index, "t",
+                op == null ? null : new IndexPredicate(op, new IntField(v)));
+        scan.open();
+        while (scan.hasNext())
+            result.add(SystemTestUtil.tupleToList(scan.next()));
+        scan.close();
+        return result;
+    }
+
+    private void checkScan(Predicate.Op op, int v) throws Exception {
+        List<List<Integer>> result = scan(op, v);
+        List<List<Integer>> expected = expected(op, v);
+        assertEquals(expected.size(), result.size());
+        for (int i = 0; i < result.size(); i++)
+            assertEquals(expected.get(i).get(0), result.get(i).get(0));
+        Comparator<List<Integer>> order = Comparator.<List<Integer>>comparingInt(l -> l.get(0))
+                .thenComparingInt(l -> l.get(1));
+        result.sort(order);
+        expected.sort(order);
+        assertEquals(expected, result);
+    }
+
+    @Test
+    public void coveredFields() throws Exception {
+        IndexOnlyScan scan = new IndexOnlyScan(tid, index, "t", null);
+        TupleDesc td = scan.getTupleDesc();
+        assertEquals(2, td.numFields());
+        assertEquals("t.c0", td.getFieldName(0));
+        assertEquals("t.c2", td.getFieldName(1));
+        assertEquals(SecondaryIndex.KEY, index.entryField(0));
+        assertEquals(-1, index.entryField(1));
+        assertTrue(index.entryField(2) > SecondaryIndex.SLOT);
+        BTreeChecker.checkRep((BTreeFile) index.getFile(), tid, new HashMap<>(), true);
+
+        // 每个结果都带着它对应的堆上tuple的RecordId
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            RecordId rid = t.getRecordId();
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+            Tuple heap = page.getTuple(rid.getTupleNumber());
+            assertEquals(heap.getField(0), t.getField(0));
+            assertEquals(heap.getField(2), t.getField(1));
+        }
+        scan.close();
+    }
+
+    @Test
+    public void indexOnlyScan() throws Exception {
+        int key = tuples.get(ROWS / 2).get(0);
+        checkScan(null, 0);
+        for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ})
+            checkScan(op, key);
+    }
+
+    @Test
+    public void maintainedOnInsertAndDelete() throws Exception {
+        int key = BTreeUtility.MAX_RAND_VALUE + 1;
+        Tuple t = new Tuple(hf.getTupleDesc());
+        for (int i = 0; i < COLUMNS; i++)
+            t.setField(i, new IntField(i == 0 ? key : i * 10));
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(Collections.singletonList(Arrays.asList(key, 20)), scan(Predicate.Op.EQUALS, key));
+
+        // 通过索引读出的tuple可以直接删除
+        IndexOnlyScan scan = new IndexOnlyScan(tid, index, "t",
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        scan.open();
+        RecordId rid = scan.next().getRecordId();
+        scan.close();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+        Database.getBufferPool().deleteTuple(tid, page.getTuple(rid.getTupleNumber()));
+        assertTrue(scan(Predicate.Op.EQUALS, key).isEmpty());
+    }
+
+    /** @return the index-only scan the plan reads the table with, or null if there is none */
+    private static IndexOnlyScan findIndexOnlyScan(OpIterator plan) {
+        if (plan instanceof IndexOnlyScan)
+            return (IndexOnlyScan) plan;
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                IndexOnlyScan scan = child == null ? null : findIndexOnlyScan(child);
+                if (scan != null)
+                    return scan;
+            }
+        }
+        return null;
+    }
+
+    private static int count(OpIterator plan) throws Exception {
+        int count = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            plan.next();
+            count++;
+        }
+        plan.close();
+        return count;
+    }
+
+    @Test
+    public void planChoosesIndexOnlyScan() throws Exception {
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("t", new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+        int key = tuples.get(0).get(0);
+
+        // 只用到c0和c2：等值条件由索引回答，不读堆页
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c0", Predicate.Op.EQUALS, Integer.toString(key));
+        lp.addProjectField("t.c2", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        IndexOnlyScan scan = findIndexOnlyScan(plan);
+        assertNotNull(scan);
+        assertEquals(Predicate.Op.EQUALS, scan.getPredicate().getOp());
+        assertEquals(expected(Predicate.Op.EQUALS, key).size(), count(plan));
+
+        // 没有key上的条件时读整个索引，它比堆文件小
+        lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c2", Predicate.Op.GREATER_THAN, "100");
+        lp.addProjectField("t.c0", null);
+        plan = lp.physicalPlan(tid, stats, false);
+        scan = findIndexOnlyScan(plan);
+        assertNotNull(scan);
+        assertNull(scan.getPredicate());
+        int expected = 0;
+        for (List<Integer> t : tuples) {
+            if (t.get(2) > 100)
+                expected++;
+        }
+        assertEquals(expected, count(plan));
+
+        // 用到了不在索引里的c1
+        lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c0", Predicate.Op.EQUALS, Integer.toString(key));
+        lp.addProjectField("t.c1", null);
+        assertNull(findIndexOnlyScan(lp.physicalPlan(tid, stats, false)));
+        lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c0", Predicate.Op.EQUALS, Integer.toString(key));
+        lp.addProjectField("null.*", null);
+        assertNull(findIndexOnlyScan(lp.physicalPlan(tid, stats, false)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexOnlyScanTest.class);
+    }
+}
@@ -210,6 +210,40 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntegerAggregator over many int groups, including negative keys,
+   * so that its group table has to grow
+   */
+  @Test public void manyGroups() throws Exception {
+    int groups = 5000;
+    int[] data = new int[groups * 3 * width1];
+    for (int i = 0; i < groups * 3; i++) {
+      int key = (i % groups) * 37 - groups;
+      data[2 * i] = key;
+      data[2 * i + 1] = key + i / groups;
+    }
+    int[] expected = new int[groups * width1];
+    for (int g = 0; g < groups; g++) {
+      int key = g * 37 - groups;
+      expected[2 * g] = key;
+      expected[2 * g + 1] = 3 * key + 3;
+    }
+    OpIterator scan = TestUtil.createTupleList(width1, data);
+    scan.open();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    OpIterator it = agg.iterator();
+    it.open();
+    int count = 0;
+    while (it.hasNext()) {
+      it.next();
+      count++;
+    }
+    assertEquals(groups, count);
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1, expected), it);
+  }
+
   /**
    * JUnit suite target
    */
@@ -5,16 +5,22 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.common.Utility;
+import simpledb.execution.ExternalSort;
 import simpledb.execution.Join;
 import simpledb.execution.JoinPredicate;
 import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
 import simpledb.systemtest.SimpleDbTestBase;
 
 public class JoinTest extends SimpleDbTestBase {
@@ -112,6 +118,75 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for Join.getNext() with blocks of outer tuples smaller than the
+   * outer relation: the inner relation is scanned once per block
+   */
+  @Test public void blockJoin() throws Exception {
+    final int rows = 2000;
+    int[] outer = new int[rows * width1];
+    for (int i = 0; i < outer.length; i++)
+      outer[i] = (i * 7919) % 1000;
+    int[] inner = new int[50 * width2];
+    for (int i = 0; i < inner.length; i++)
+      inner[i] = (i * 31) % 1000;
+    final int[] rewinds = new int[1];
+    TupleIterator innerScan = new TupleIterator(Utility.getTupleDesc(width2),
+        tupleList(width2, inner)) {
+      private static final long serialVersionUID = 1L;
+
+      @Override public void rewind() {
+        rewinds[0]++;
+        super.rewind();
+      }
+    };
+    innerScan.open();
+
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+    Join op = new Join(pred, TestUtil.createTupleList(width1, outer), innerScan, 1);
+    int blockTuples = ExternalSort.memoryTuples(Utility.getTupleDesc(width1), 1);
+    assertTrue(blockTuples < rows);
+    int blocks = (rows + blockTuples - 1) / blockTuples;
+
+    int expected = 0;
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < inner.length / width2; j++) {
+        if (outer[i * width1] < inner[j * width2])
+          expected++;
+      }
+    }
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertTrue(((IntField) t.getField(0)).getValue() < ((IntField) t.getField(width1)).getValue());
+      count++;
+    }
+    assertEquals(expected, count);
+    assertEquals(blocks - 1, rewinds[0]);
+
+    // rewind后的结果和第一次相同
+    op.rewind();
+    count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(expected, count);
+    assertEquals(2 * blocks - 1, rewinds[0]);
+  }
+
+  private static List<Tuple> tupleList(int width, int[] data) {
+    List<Tuple> tuples = new ArrayList<>();
+    for (int i = 0; i < data.length; i += width) {
+      Tuple t = new Tuple(Utility.getTupleDesc(width));
+      for (int j = 0; j < width; j++)
+        t.setField(j, new IntField(data[i + j]));
+      tuples.add(t);
+    }
+    return tuples;
+  }
+
   /**
    * JUnit suite target
    */
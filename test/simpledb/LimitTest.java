@@ -0,0 +1,186 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class LimitTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private static List<List<Integer>> run(OpIterator it) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		while(it.hasNext())
+			result.add(SystemTestUtil.tupleToList(it.next()));
+		return result;
+	}
+
+	/** A TupleIterator counting the tuples read from it */
+	private static class CountingIterator extends TupleIterator {
+		private static final long serialVersionUID = 1L;
+		int read = 0;
+
+		CountingIterator(List<Tuple> tuples) {
+			super(Utility.getTupleDesc(2), tuples);
+		}
+
+		@Override
+		public Tuple next() {
+			read++;
+			return super.next();
+		}
+	}
+
+	private static List<Tuple> tuples(int n) {
+		List<Tuple> tuples = new ArrayList<>();
+		for(int i = 0; i < n; i++)
+			tuples.add(Utility.getHeapTuple(new int[]{i, i % 7}));
+		return tuples;
+	}
+
+	@Test
+	public void limitStopsEarly() throws Exception {
+		CountingIterator child = new CountingIterator(tuples(100));
+		Limit limit = new Limit(5, 3, child);
+		limit.open();
+		List<List<Integer>> result = run(limit);
+		assertEquals(5, result.size());
+		assertEquals(Arrays.asList(3, 3), result.get(0));
+		assertEquals(Arrays.asList(7, 0), result.get(4));
+		// 只读了offset+limit个tuple
+		assertEquals(8, child.read);
+		limit.rewind();
+		assertEquals(result, run(limit));
+		limit.close();
+
+		limit = new Limit(10, 95, new CountingIterator(tuples(100)));
+		limit.open();
+		assertEquals(5, run(limit).size());
+		limit.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeLimit() {
+		new Limit(-1, 0, new CountingIterator(tuples(1)));
+	}
+
+	@Test
+	public void topNMatchesSort() throws Exception {
+		int[] fields = new int[]{1, 0};
+		boolean[] ascs = new boolean[]{true, false};
+		OrderBy sort = new OrderBy(fields, ascs, new CountingIterator(tuples(500)), 1);
+		sort.open();
+		List<List<Integer>> sorted = run(sort);
+		sort.close();
+		for(int n : new int[]{0, 1, 40, 500, 600}) {
+			TopN top = new TopN(fields, ascs, n, new CountingIterator(tuples(500)));
+			top.open();
+			List<List<Integer>> result = run(top);
+			assertEquals(sorted.subList(0, Math.min(n, sorted.size())), result);
+			top.rewind();
+			assertEquals(result, run(top));
+			top.close();
+		}
+	}
+
+	@Test
+	public void topNIsStable() throws Exception {
+		// 按第二个字段排序，相等的tuple保持输入的顺序
+		TopN top = new TopN(new int[]{1}, new boolean[]{true}, 20, new CountingIterator(tuples(100)));
+		top.open();
+		List<List<Integer>> result = run(top);
+		top.close();
+		// 0到99中有15个key为0的tuple
+		assertEquals(20, result.size());
+		for(int i = 0; i < 15; i++)
+			assertEquals(Arrays.asList(7 * i, 0), result.get(i));
+		for(int i = 15; i < 20; i++)
+			assertEquals(Arrays.asList(7 * (i - 15) + 1, 1), result.get(i));
+	}
+
+	private static boolean contains(OpIterator plan, Class<?> c) {
+		if(c.isInstance(plan))
+			return true;
+		if(plan instanceof Operator) {
+			for(OpIterator child : ((Operator) plan).getChildren()) {
+				if(contains(child, c))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void planUsesTopN() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, 1000, null, tuples, "c");
+		Database.getCatalog().addTable(f, "t");
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("t", new TableStats(f.getId(), TableStats.IOCOSTPERPAGE));
+		List<List<Integer>> sorted = new ArrayList<>(tuples);
+		sorted.sort(Comparator.<List<Integer>>comparingInt(t -> -t.get(0)).thenComparingInt(t -> t.get(1)));
+
+		Parser p = new Parser();
+		LogicalPlan lp = p.generateLogicalPlan(tid,
+				"SELECT t.c0, t.c1 FROM t ORDER BY t.c0 DESC, t.c1 LIMIT 10 OFFSET 5;");
+		assertEquals(10, lp.getLimit());
+		assertEquals(5, lp.getOffset());
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(contains(plan, TopN.class));
+		assertFalse(contains(plan, OrderBy.class));
+		plan.open();
+		assertEquals(sorted.subList(5, 15), run(plan));
+		plan.close();
+
+		// 前limit个tuple放不进内存时，排序整个结果
+		lp = p.generateLogicalPlan(tid, "SELECT t.c0, t.c1 FROM t ORDER BY t.c0 DESC, t.c1 LIMIT 2000;");
+		lp.setMemoryPages(1);
+		plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(contains(plan, OrderBy.class));
+		assertTrue(contains(plan, Limit.class));
+		plan.open();
+		assertEquals(sorted.subList(0, 2000), run(plan));
+		plan.close();
+
+		// 不需要排序时只加Limit
+		lp = p.generateLogicalPlan(tid, "SELECT t.c0 FROM t WHERE t.c1 > 500 LIMIT 7;");
+		assertEquals(-1, p.generateLogicalPlan(tid, "SELECT t.c0 FROM t;").getLimit());
+		plan = lp.physicalPlan(tid, stats, false);
+		assertFalse(contains(plan, TopN.class));
+		plan.open();
+		List<List<Integer>> result = run(plan);
+		plan.close();
+		assertEquals(7, result.size());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(LimitTest.class);
+	}
+}
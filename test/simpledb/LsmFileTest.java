@@ -0,0 +1,341 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class LsmFileTest extends SimpleDbTestBase {
+	private static final Op[] OPS = {Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN,
+			Op.GREATER_THAN_OR_EQ, Op.NOT_EQUALS};
+
+	private TransactionId tid;
+	private File dir;
+	private LsmFile lf;
+
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		dir = Files.createTempDirectory("lsm").toFile();
+		// 小的段让测试中发生多次刷盘和合并
+		lf = new LsmFile(new File(dir, "t.lsm"), 0, Utility.getTupleDesc(2, "c"), 1);
+		Database.getCatalog().addTable(lf, "t");
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		File[] files = dir.listFiles();
+		for(File f : files == null ? new File[0] : files)
+			f.delete();
+		dir.delete();
+	}
+
+	private void commit() {
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+	}
+
+	/** Insert count random tuples with keys below maxKey, committing every 20 inserts */
+	private void insertRandom(List<List<Integer>> tuples, int count, int maxKey, Random r) throws Exception {
+		List<Tuple> inserts = new ArrayList<>();
+		for(int i=0; i<count; i++) {
+			int[] values = {r.nextInt(maxKey), r.nextInt(1000)};
+			inserts.add(Utility.getHeapTuple(values));
+			tuples.add(Arrays.asList(values[0], values[1]));
+		}
+		tid = BTreeUtility.insertTuples(tid, lf.getId(), inserts);
+	}
+
+	private static List<List<Integer>> read(DbFileIterator it) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			result.add(Arrays.asList(((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue()));
+		}
+		it.close();
+		return result;
+	}
+
+	/**
+	 * Check that the search for ipred returns the tuples matching it, in key order.
+	 */
+	private void checkSearch(IndexPredicate ipred, List<List<Integer>> tuples) throws Exception {
+		List<List<Integer>> found = read(ipred == null ? lf.iterator(tid) : lf.indexIterator(tid, ipred));
+		List<List<Integer>> expected = new ArrayList<>();
+		for(List<Integer> t : tuples) {
+			if(ipred == null || new IntField(t.get(0)).compare(ipred.getOp(), ipred.getField()))
+				expected.add(t);
+		}
+		String msg = ipred == null ? "all" : ipred.getOp() + " " + ipred.getField();
+		assertEquals(msg, expected.size(), found.size());
+		for(int i=1; i<found.size(); i++)
+			assertTrue(msg, found.get(i - 1).get(0) <= found.get(i).get(0));
+		Comparator<List<Integer>> order = Comparator.<List<Integer>>comparingInt(l -> l.get(0)).thenComparingInt(l -> l.get(1));
+		found.sort(order);
+		expected.sort(order);
+		assertEquals(msg, expected, found);
+	}
+
+	private void checkAll(List<List<Integer>> tuples) throws Exception {
+		checkSearch(null, tuples);
+		for(Op op : OPS) {
+			for(int v : new int[]{-1, 0, 37, 150, 299, 300})
+				checkSearch(new IndexPredicate(op, new IntField(v)), tuples);
+		}
+		commit();
+	}
+
+	@Test
+	public void insertAndSearch() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		insertRandom(tuples, 3000, 300, new Random(42));
+		// 一部分在memtable里，一部分已经在run里
+		checkAll(tuples);
+
+		lf.flush();
+		assertEquals(0, lf.sealedSegments());
+		checkAll(tuples);
+		lf.compact();
+		int[] levels = lf.runsPerLevel();
+		assertTrue(levels.length >= 2);
+		assertTrue(levels[0] <= LsmFile.LEVEL0_RUNS);
+		for(int l=1; l<levels.length; l++)
+			assertTrue(levels[l] <= 1);
+		checkAll(tuples);
+	}
+
+	@Test
+	public void deletesAcrossMemtableAndRuns() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		Random r = new Random(43);
+		insertRandom(tuples, 1500, 300, r);
+		lf.flush();
+		insertRandom(tuples, 500, 300, r);
+
+		// 删除每个key为偶数的元组：有的在memtable里，有的只能追加墓碑
+		int deleted = 0;
+		DbFileIterator it = lf.iterator(tid);
+		it.open();
+		List<Tuple> victims = new ArrayList<>();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			if(((IntField) t.getField(0)).getValue() % 2 == 0)
+				victims.add(t);
+		}
+		it.close();
+		for(Tuple t : victims) {
+			Database.getBufferPool().deleteTuple(tid, t);
+			tuples.remove(Arrays.asList(((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue()));
+			if(++deleted % 20 == 0)
+				commit();
+		}
+		commit();
+		checkAll(tuples);
+
+		lf.flush();
+		checkAll(tuples);
+		int before = lf.numPages();
+		// 合并到最深一层时墓碑和被删的元组一起消失
+		lf.compact();
+		while(lf.runsPerLevel().length > 0 && lf.runsPerLevel()[0] > 0) {
+			insertRandom(tuples, 200, 300, r);
+			lf.flush();
+			lf.compact();
+		}
+		checkAll(tuples);
+		assertTrue(lf.numPages() < before + 10);
+	}
+
+	@Test
+	public void abortDiscardsInserts() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		insertRandom(tuples, 100, 50, new Random(44));
+		for(int i=0; i<10; i++)
+			Database.getBufferPool().insertTuple(tid, lf.getId(), Utility.getHeapTuple(new int[]{i, -1}));
+		Database.getBufferPool().transactionComplete(tid, false);
+		tid = new TransactionId();
+		checkSearch(null, tuples);
+	}
+
+	@Test
+	public void reopen() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		Random r = new Random(45);
+		insertRandom(tuples, 1000, 300, r);
+		lf.flush();
+		// 这些元组只在memtable的段文件里
+		insertRandom(tuples, 50, 300, r);
+
+		Database.reset();
+		tid = new TransactionId();
+		lf = new LsmFile(new File(dir, "t.lsm"), 0, Utility.getTupleDesc(2, "c"), 1);
+		Database.getCatalog().addTable(lf, "t");
+		checkAll(tuples);
+		insertRandom(tuples, 500, 300, r);
+		lf.flush();
+		lf.compact();
+		checkAll(tuples);
+	}
+
+	@Test
+	public void concurrentWritersWithBackgroundFlushes() throws Exception {
+		// 每个线程插入自己的key，删除其中一半；刷盘和合并在后台进行
+		int threads = 4, perThread = 600;
+		List<Thread> workers = new ArrayList<>();
+		List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+		for(int w=0; w<threads; w++) {
+			final int base = w * perThread;
+			Thread thread = new Thread(() -> {
+				try {
+					for(int i=0; i<perThread; i+=10) {
+						while(true) {
+							TransactionId t = new TransactionId();
+							try {
+								for(int j=i; j<i+10; j++)
+									Database.getBufferPool().insertTuple(t, lf.getId(), Utility.getHeapTuple(new int[]{base + j, j}));
+								DbFileIterator it = lf.indexIterator(t, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(base + i)));
+								it.open();
+								List<Tuple> mine = new ArrayList<>();
+								while(it.hasNext()) {
+									Tuple tup = it.next();
+									int key = ((IntField) tup.getField(0)).getValue();
+									if(key >= base + i + 10)
+										break;
+									if(key % 2 == 0)
+										mine.add(tup);
+								}
+								it.close();
+								for(Tuple tup : mine)
+									Database.getBufferPool().deleteTuple(t, tup);
+								Database.getBufferPool().transactionComplete(t);
+								break;
+							} catch(simpledb.transaction.TransactionAbortedException e) {
+								Database.getBufferPool().transactionComplete(t, false);
+							}
+						}
+					}
+				} catch(Throwable e) {
+					errors.add(e);
+				}
+			});
+			workers.add(thread);
+			thread.start();
+		}
+		for(Thread thread : workers)
+			thread.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+
+		List<List<Integer>> tuples = new ArrayList<>();
+		for(int k=0; k<threads * perThread; k++) {
+			if(k % 2 == 1)
+				tuples.add(Arrays.asList(k, k % perThread));
+		}
+		checkSearch(null, tuples);
+		commit();
+		lf.flush();
+		lf.compact();
+		checkSearch(null, tuples);
+	}
+
+	@Test
+	public void backgroundFailureIsReported() throws Exception {
+		// 用目录占住接下来的run文件，后台刷盘写run时失败
+		List<File> blockers = new ArrayList<>();
+		for(int i=0; i<100; i++) {
+			File b = new File(dir, "t.lsm." + i + ".run");
+			assertTrue(b.mkdir());
+			blockers.add(b);
+		}
+		// 失败在之后的插入时报告，这次插入什么也没做
+		List<List<Integer>> tuples = new ArrayList<>();
+		Random r = new Random(47);
+		simpledb.common.DbException failure = null;
+		for(int i=0; i<5000 && failure == null; i++) {
+			int[] values = {r.nextInt(300), r.nextInt(1000)};
+			try {
+				Database.getBufferPool().insertTuple(tid, lf.getId(), Utility.getHeapTuple(values));
+				tuples.add(Arrays.asList(values[0], values[1]));
+			} catch(simpledb.common.DbException e) {
+				failure = e;
+			}
+			if(i % 20 == 19)
+				commit();
+		}
+		assertNotNull(failure);
+		assertTrue(failure.getCause() instanceof java.io.IOException);
+		assertTrue(lf.sealedSegments() > 0);
+		commit();
+
+		// 封存的段还在memtable里，之后的刷盘把它们写进run
+		for(File b : blockers)
+			b.delete();
+		try {
+			lf.flush();
+		} catch(simpledb.common.DbException e) {
+			// 报告失败时重新调度的刷盘可能在删掉目录之前又失败了一次
+			lf.flush();
+		}
+		assertEquals(0, lf.sealedSegments());
+		checkAll(tuples);
+	}
+
+	@Test
+	public void planUsesLsmSearch() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		insertRandom(tuples, 2000, 1000, new Random(46));
+		lf.flush();
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("t", new TableStats(lf.getId(), TableStats.IOCOSTPERPAGE));
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(lf.getId(), "t");
+		lp.addFilter("t.c0", Op.EQUALS, "17");
+		lp.addProjectField("t.c1", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		// 点查询从memtable和布隆过滤器放行的run中读取
+		OpIterator scan = plan;
+		while(scan instanceof Operator && !(scan instanceof BTreeScan))
+			scan = ((Operator) scan).getChildren()[0];
+		assertTrue(scan instanceof BTreeScan);
+		assertEquals(Op.EQUALS, ((BTreeScan) scan).getPredicate().getOp());
+		int expected = 0;
+		for(List<Integer> t : tuples) {
+			if(t.get(0) == 17)
+				expected++;
+		}
+		int n = 0;
+		plan.open();
+		while(plan.hasNext()) {
+			plan.next();
+			n++;
+		}
+		plan.close();
+		assertEquals(expected, n);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(LsmFileTest.class);
+	}
+}
@@ -0,0 +1,220 @@
+package simpledb;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class OptimisticTransactionTest extends TestUtil.CreateHeapFile {
+    private PageId p0;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        // populate the file with 10 committed tuples on a single page
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 10; ++i) {
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        bp.transactionComplete(tid, true);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        p0 = new HeapPageId(empty.getId(), 0);
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * An optimistic transaction takes no locks and its writes are not seen
+     * by anybody else until it has been validated and committed.
+     */
+    @Test public void writesArePrivateUntilValidation() throws Exception {
+        TransactionId occ = new TransactionId();
+        bp.beginOptimistic(occ);
+        bp.insertTuple(occ, empty.getId(), Utility.getHeapTuple(10, 2));
+        assertEquals(11, count(occ));
+        assertFalse(bp.holdsLock(occ, p0));
+
+        TransactionId other = new TransactionId();
+        assertEquals(10, count(other));
+        bp.transactionComplete(other, true);
+
+        bp.validate(occ);
+        bp.transactionComplete(occ, true);
+
+        other = new TransactionId();
+        assertEquals(11, count(other));
+        bp.transactionComplete(other, true);
+    }
+
+    /**
+     * Of two optimistic transactions writing the same page, the first one to
+     * validate wins and the other one must abort.
+     */
+    @Test public void firstCommitterWins() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.beginOptimistic(t1);
+        bp.beginOptimistic(t2);
+        bp.insertTuple(t1, empty.getId(), Utility.getHeapTuple(10, 2));
+        bp.insertTuple(t2, empty.getId(), Utility.getHeapTuple(11, 2));
+
+        bp.validate(t1);
+        bp.transactionComplete(t1, true);
+        try {
+            bp.validate(t2);
+            fail("expected validation to fail");
+        } catch (TransactionAbortedException expected) {
+        }
+        bp.transactionComplete(t2, false);
+
+        TransactionId reader = new TransactionId();
+        assertEquals(11, count(reader));
+        bp.transactionComplete(reader, true);
+    }
+
+    /**
+     * Validation fails if a page that was read has been committed since.
+     */
+    @Test public void staleReadFailsValidation() throws Exception {
+        TransactionId occ = new TransactionId();
+        bp.beginOptimistic(occ);
+        assertEquals(10, count(occ));
+
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, empty.getId(), Utility.getHeapTuple(10, 2));
+        bp.transactionComplete(writer, true);
+
+        try {
+            bp.validate(occ);
+            fail("expected validation to fail");
+        } catch (TransactionAbortedException expected) {
+        }
+    }
+
+    /**
+     * Validation does not wait for locking transactions: a page that is
+     * locked by one of them is a conflict.
+     */
+    @Test public void lockedPageFailsValidation() throws Exception {
+        TransactionId occ = new TransactionId();
+        bp.beginOptimistic(occ);
+        bp.insertTuple(occ, empty.getId(), Utility.getHeapTuple(10, 2));
+
+        TransactionId reader = new TransactionId();
+        bp.getPage(reader, p0, Permissions.READ_ONLY);
+        try {
+            bp.validate(occ);
+            fail("expected validation to fail");
+        } catch (TransactionAbortedException expected) {
+        }
+        assertFalse(bp.holdsLock(occ, p0));
+        bp.transactionComplete(reader, true);
+    }
+
+    /**
+     * Two transactions that each read the page the other one writes cannot
+     * both commit: once the first one is validated, it holds the lock on
+     * the page the second one read, even before its commit is visible.
+     */
+    @Test public void crossedReadAndWriteSets() throws Exception {
+        File f = File.createTempFile("other", ".dat");
+        f.deleteOnExit();
+        HeapFile other = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, other.getId(), Utility.getHeapTuple(0, 2));
+        bp.transactionComplete(tid, true);
+
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.beginOptimistic(t1);
+        bp.beginOptimistic(t2);
+        // t1读A写B，t2读B写A
+        bp.getPage(t1, p0, Permissions.READ_ONLY);
+        bp.insertTuple(t1, other.getId(), Utility.getHeapTuple(1, 2));
+        bp.getPage(t2, new HeapPageId(other.getId(), 0), Permissions.READ_ONLY);
+        bp.insertTuple(t2, empty.getId(), Utility.getHeapTuple(10, 2));
+
+        bp.validate(t1);
+        try {
+            bp.validate(t2);
+            fail("expected validation to fail");
+        } catch (TransactionAbortedException expected) {
+        }
+        bp.transactionComplete(t1, true);
+        bp.transactionComplete(t2, false);
+
+        TransactionId reader = new TransactionId();
+        assertEquals(10, count(reader));
+        bp.transactionComplete(reader, true);
+    }
+
+    /**
+     * Committing through the buffer pool requires an explicit validation;
+     * Transaction.commit() validates and reports a conflict as an abort.
+     */
+    @Test public void commitReportsFailedValidation() throws Exception {
+        TransactionId occ = new TransactionId();
+        bp.beginOptimistic(occ);
+        bp.insertTuple(occ, empty.getId(), Utility.getHeapTuple(10, 2));
+        try {
+            bp.transactionComplete(occ, true);
+            fail("expected commit without validation to fail");
+        } catch (IllegalStateException expected) {
+        }
+
+        Transaction t1 = new Transaction();
+        Transaction t2 = new Transaction();
+        t1.startOptimistic();
+        t2.startOptimistic();
+        bp.insertTuple(t1.getId(), empty.getId(), Utility.getHeapTuple(11, 2));
+        bp.insertTuple(t2.getId(), empty.getId(), Utility.getHeapTuple(12, 2));
+        t1.commit();
+        try {
+            t2.commit();
+            fail("expected validation to fail");
+        } catch (TransactionAbortedException expected) {
+        }
+
+        TransactionId reader = new TransactionId();
+        assertEquals(11, count(reader));
+        bp.transactionComplete(reader, true);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OptimisticTransactionTest.class);
+    }
+}
@@ -0,0 +1,183 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class OrderByTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private static final Comparator<List<Integer>> C1_DESC_C0_ASC =
+			Comparator.<List<Integer>>comparingInt(t -> -t.get(1)).thenComparingInt(t -> t.get(0));
+
+	private static List<List<Integer>> run(OpIterator it) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		while(it.hasNext())
+			result.add(SystemTestUtil.tupleToList(it.next()));
+		return result;
+	}
+
+	@Test
+	public void multiColumnSpills() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile f = SystemTestUtil.createRandomHeapFile(3, 6000, 50, null, tuples);
+		// c1降序，相同时c0升序，其余字段的顺序不确定
+		OrderBy o = new OrderBy(new int[]{1, 0}, new boolean[]{false, true},
+				new SeqScan(tid, f.getId(), "t"), 1);
+		o.open();
+		assertTrue(o.numRuns() > 1);
+		List<List<Integer>> result = run(o);
+		assertEquals(tuples.size(), result.size());
+		for(int i = 1; i < result.size(); i++)
+			assertTrue(C1_DESC_C0_ASC.compare(result.get(i - 1), result.get(i)) <= 0);
+		List<List<Integer>> sorted = new ArrayList<>(result);
+		sorted.sort(Comparator.comparing(Object::toString));
+		tuples.sort(Comparator.comparing(Object::toString));
+		assertEquals(tuples, sorted);
+		// rewind重新归并磁盘上的run
+		o.rewind();
+		assertEquals(result, run(o));
+		o.close();
+	}
+
+	private static int openFiles() {
+		String[] fds = new java.io.File("/proc/self/fd").list();
+		return fds == null ? -1 : fds.length;
+	}
+
+	@Test
+	public void rewindClosesRuns() throws Exception {
+		// 只在能数出打开的文件数的系统上检查
+		org.junit.Assume.assumeTrue(openFiles() >= 0);
+		HeapFile f = SystemTestUtil.createRandomHeapFile(2, 6000, 50, null, null);
+		OrderBy o = new OrderBy(new int[]{0}, new boolean[]{true}, new SeqScan(tid, f.getId(), "t"), 1);
+		o.open();
+		assertTrue(o.numRuns() > 1);
+		int before = openFiles();
+		// 每次只读几个tuple就rewind，像连接的内表一样
+		for(int i = 0; i < 50; i++) {
+			o.next();
+			o.next();
+			o.rewind();
+		}
+		assertTrue(openFiles() <= before + o.numRuns());
+		o.close();
+		assertTrue(openFiles() <= before);
+	}
+
+	@Test
+	public void multiPassMergeIsStable() throws Exception {
+		TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE});
+		// 只按第一个字段排序，第二个字段记录输入的顺序
+		ExternalSort sort = new ExternalSort(td, Comparator.comparingInt(t -> ((IntField) t.getField(0)).getValue()), 1);
+		Random r = new Random(3);
+		int n = 20000;
+		for(int i = 0; i < n; i++) {
+			Tuple t = new Tuple(td);
+			t.setField(0, new IntField(r.nextInt(100)));
+			t.setField(1, new StringField(String.valueOf(i), Type.STRING_LEN));
+			sort.add(t);
+		}
+		assertEquals(2, sort.fanIn());
+		assertTrue(sort.numRuns() > 4);
+		for(int pass = 0; pass < 2; pass++) {
+			Iterator<Tuple> it = sort.iterator();
+			int count = 0, lastKey = -1, lastSeq = -1;
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				int key = ((IntField) t.getField(0)).getValue();
+				int seq = Integer.parseInt(((StringField) t.getField(1)).getValue());
+				assertTrue(key >= lastKey);
+				if(key == lastKey)
+					assertTrue(seq > lastSeq);
+				lastKey = key;
+				lastSeq = seq;
+				count++;
+			}
+			assertEquals(n, count);
+			// 多趟归并之后只剩不超过fanIn个run
+			assertTrue(sort.numRuns() <= sort.fanIn());
+		}
+		sort.close();
+	}
+
+	@Test
+	public void spillFileIsCompact() throws Exception {
+		TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE});
+		SpillFile f = new SpillFile(td);
+		Tuple t = new Tuple(td);
+		t.setField(0, new IntField(-5));
+		t.setField(1, new StringField("abc", Type.STRING_LEN));
+		f.add(t);
+		// 非ASCII字符按UTF-8保存
+		Tuple t2 = new Tuple(td);
+		t2.setField(0, new IntField(7));
+		t2.setField(1, new StringField("数据库é", Type.STRING_LEN));
+		f.add(t2);
+		Iterator<Tuple> it = f.iterator();
+		Tuple read = it.next();
+		assertEquals(new IntField(-5), read.getField(0));
+		assertEquals(new StringField("abc", Type.STRING_LEN), read.getField(1));
+		assertEquals(new StringField("数据库é", Type.STRING_LEN), it.next().getField(1));
+		assertFalse(it.hasNext());
+		// 没读完的iterator不妨碍close删除文件
+		f.iterator().next();
+		assertTrue(f.getFile().exists());
+		f.close();
+		assertFalse(f.getFile().exists());
+	}
+
+	@Test
+	public void planOrdersByManyFields() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, 30, null, tuples, "c");
+		Database.getCatalog().addTable(f, "t");
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("t", new TableStats(f.getId(), TableStats.IOCOSTPERPAGE));
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(f.getId(), "t");
+		lp.addProjectField("t.c0", null);
+		lp.addProjectField("t.c1", null);
+		lp.addOrderBy("t.c1", false);
+		lp.addOrderBy("t.c0", true);
+		lp.setMemoryPages(1);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		plan.open();
+		List<List<Integer>> result = run(plan);
+		plan.close();
+		tuples.sort(C1_DESC_C0_ASC);
+		assertEquals(tuples, result);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(OrderByTest.class);
+	}
+}
@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageLatch;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+public class PageLatchTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    /**
+     * An exclusive latch keeps readers of other threads out until it is released.
+     */
+    @Test public void exclusiveBlocksShared() throws Exception {
+        PageLatch latch = new PageLatch();
+        AtomicBoolean entered = new AtomicBoolean(false);
+        latch.latchExclusive();
+        Thread reader = new Thread(() -> {
+            latch.latchShared();
+            entered.set(true);
+            latch.unlatchShared();
+        });
+        reader.start();
+        Thread.sleep(100);
+        assertFalse(entered.get());
+        assertTrue(latch.isLatched());
+
+        latch.unlatchExclusive();
+        reader.join();
+        assertTrue(entered.get());
+        assertFalse(latch.isLatched());
+    }
+
+    /**
+     * An optimistic read fails validation if a writer latched the page in
+     * between, and cannot even start while the writer is still there.
+     */
+    @Test public void optimisticVersion() {
+        PageLatch latch = new PageLatch();
+        long v = latch.getVersion();
+        assertTrue(v >= 0);
+        assertTrue(latch.validate(v));
+
+        // 读者之间互不影响
+        latch.latchShared();
+        latch.unlatchShared();
+        assertTrue(latch.validate(v));
+
+        latch.latchExclusive();
+        assertEquals(-1, latch.getVersion());
+        assertFalse(latch.validate(v));
+        latch.unlatchExclusive();
+        assertFalse(latch.validate(v));
+        assertTrue(latch.validate(latch.getVersion()));
+    }
+
+    /**
+     * Threads may insert into and iterate over the same HeapPage at the same
+     * time without the iterator ever seeing a half-written slot.
+     */
+    @Test public void concurrentInsertAndIterate() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        int slots = page.getNumEmptySlots();
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < slots; ++i)
+                    page.insertTuple(Utility.getHeapTuple(i, 2));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext())
+                assertNotNull(it.next().getRecordId());
+            page.getPageData();
+        }
+        writer.join();
+        assertEquals(0, page.getNumEmptySlots());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageLatchTest.class);
+    }
+}
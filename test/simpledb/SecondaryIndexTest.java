@@ -0,0 +1,348 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.*;
+import simpledb.index.BTreeChecker;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.index.SecondaryIndex;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+
+    private List<List<Integer>> tuples;
+    private HeapFile hf;
+    private SecondaryIndex index;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        tuples = new ArrayList<>();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples, "c");
+        Database.getCatalog().addTable(hf, "t");
+        File f = File.createTempFile("index", ".idx");
+        f.deleteOnExit();
+        tid = new TransactionId();
+        index = SecondaryIndex.create(tid, "t_c0", hf, 0, f, 1.0);
+        Database.getCatalog().addIndex(index);
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** @return the tuples of the table whose field 0 satisfies op v */
+    private List<List<Integer>> expected(Predicate.Op op, int v) {
+        List<List<Integer>> result = new ArrayList<>();
+        Field f = new IntField(v);
+        for (List<Integer> t : tuples) {
+            if (new IntField(t.get(0)).compare(op, f))
+                result.add(t);
+        }
+        return result;
+    }
+
+    private List<List<Integer>> lookup(Predicate.Op op, int v) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        IndexHeapScan scan = new IndexHeapScan(tid, index, "t", new IndexPredicate(op, new IntField(v)));
+        scan.open();
+        while (scan.hasNext())
+            result.add(SystemTestUtil.tupleToList(scan.next()));
+        scan.close();
+        return result;
+    }
+
+    @Test
+    public void build() throws Exception {
+        assertEquals(Collections.singletonList(index), Database.getCatalog().getIndexes(hf.getId()));
+        BTreeChecker.checkRep((BTreeFile) index.getFile(), tid, new HashMap<>(), true);
+
+        // every entry points at a tuple with the same key
+        DbFileIterator it = index.getFile().iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple entry = it.next();
+            RecordId rid = index.getRecordId(entry);
+            HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(),
+                    simpledb.common.Permissions.READ_ONLY);
+            assertEquals(entry.getField(SecondaryIndex.KEY), p.getTuple(rid.getTupleNumber()).getField(0));
+            count++;
+        }
+        it.close();
+        assertEquals(ROWS, count);
+    }
+
+    @Test
+    public void indexHeapScan() throws Exception {
+        int key = tuples.get(ROWS / 2).get(0);
+        for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ}) {
+            List<List<Integer>> result = lookup(op, key);
+            List<List<Integer>> expected = expected(op, key);
+            assertEquals(expected.size(), result.size());
+            assertTrue(result.containsAll(expected));
+        }
+    }
+
+    @Test
+    public void maintainedOnInsertAndDelete() throws Exception {
+        int key = BTreeUtility.MAX_RAND_VALUE + 1;
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(key));
+        t.setField(1, new IntField(7));
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(Collections.singletonList(Arrays.asList(key, 7)), lookup(Predicate.Op.EQUALS, key));
+
+        IndexHeapScan scan = new IndexHeapScan(tid, index, "t",
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        scan.open();
+        Database.getBufferPool().deleteTuple(tid, scan.next());
+        scan.close();
+        assertTrue(lookup(Predicate.Op.EQUALS, key).isEmpty());
+        BTreeChecker.checkRep((BTreeFile) index.getFile(), tid, new HashMap<>(), false);
+    }
+
+    @Test
+    public void abortRollsBackIndex() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        int key = BTreeUtility.MAX_RAND_VALUE + 1;
+        TransactionId t1 = new TransactionId();
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(key));
+        t.setField(1, new IntField(7));
+        Database.getBufferPool().insertTuple(t1, hf.getId(), t);
+        Database.getBufferPool().transactionComplete(t1, false);
+
+        tid = new TransactionId();
+        assertTrue(lookup(Predicate.Op.EQUALS, key).isEmpty());
+    }
+
+    @Test(expected = DbException.class)
+    public void deleteWithoutEntry() throws Exception {
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(BTreeUtility.MAX_RAND_VALUE + 5));
+        t.setField(1, new IntField(0));
+        index.delete(tid, t, new RecordId(new HeapPageId(hf.getId(), 0), 0));
+    }
+
+    /** @return whether the plan reads the table through an IndexHeapScan */
+    private static boolean usesIndex(OpIterator plan) {
+        if (plan instanceof IndexHeapScan)
+            return true;
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                if (child != null && usesIndex(child))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(OpIterator plan, Class<?> c) {
+        if (c.isInstance(plan))
+            return true;
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                if (child != null && contains(child, c))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void planChoosesIndex() throws Exception {
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("t", new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+        int key = tuples.get(0).get(0);
+
+        // 等值查询的选择性很高，走索引
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c0", Predicate.Op.EQUALS, Integer.toString(key));
+        lp.addProjectField("t.c1", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(usesIndex(plan));
+        plan.open();
+        int count = 0;
+        while (plan.hasNext()) {
+            plan.next();
+            count++;
+        }
+        plan.close();
+        assertEquals(expected(Predicate.Op.EQUALS, key).size(), count);
+
+        // 几乎所有的tuple都满足，全表扫描更便宜
+        lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c0", Predicate.Op.GREATER_THAN, "0");
+        lp.addProjectField("t.c1", null);
+        assertFalse(usesIndex(lp.physicalPlan(tid, stats, false)));
+    }
+
+    @Test
+    public void compositeIndex() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        HeapFile h = SystemTestUtil.createRandomHeapFile(3, 4 * ROWS, 100, null, rows, "d");
+        Database.getCatalog().addTable(h, "u");
+        new File(h.getFile().getAbsoluteFile().getParentFile(), "u_d0_d1.idx").deleteOnExit();
+        new Parser().handleCreateIndexStatement("u_d0_d1", "u", "d0, d1", null, false, 1.0, tid);
+        SecondaryIndex ci = Database.getCatalog().getIndexes(h.getId()).get(0);
+        assertArrayEquals(new int[]{0, 1}, ci.getKeyFields());
+        BTreeChecker.checkRep((BTreeFile) ci.getFile(), tid, new HashMap<>(), true);
+
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("u", new TableStats(h.getId(), TableStats.IOCOSTPERPAGE));
+
+        // 新插入的tuple也能按两个字段查到
+        Tuple t = new Tuple(h.getTupleDesc());
+        t.setField(0, new IntField(3));
+        t.setField(1, new IntField(125));
+        t.setField(2, new IntField(7));
+        Database.getBufferPool().insertTuple(tid, h.getId(), t);
+        rows.add(Arrays.asList(3, 125, 7));
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(h.getId(), "u");
+        lp.addFilter("u.d0", Predicate.Op.EQUALS, "3");
+        lp.addFilter("u.d1", Predicate.Op.GREATER_THAN, "90");
+        lp.addProjectField("u.d0", null);
+        lp.addProjectField("u.d1", null);
+        lp.addProjectField("u.d2", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(usesIndex(plan) || contains(plan, BitmapHeapScan.class));
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> r : rows) {
+            if (r.get(0) == 3 && r.get(1) > 90)
+                expected.add(r);
+        }
+        List<List<Integer>> result = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext())
+            result.add(SystemTestUtil.tupleToList(plan.next()));
+        plan.close();
+        assertEquals(expected.size(), result.size());
+        assertTrue(result.containsAll(expected));
+
+        // 删除时按整个键找到索引项
+        IndexHeapScan scan = new IndexHeapScan(tid, ci, "u", new IndexPredicate(Predicate.Op.EQUALS,
+                new simpledb.index.CompositeKey(new IntField(3), new IntField(125))));
+        scan.open();
+        Database.getBufferPool().deleteTuple(tid, scan.next());
+        assertFalse(scan.hasNext());
+        scan.close();
+        scan.open();
+        assertFalse(scan.hasNext());
+        scan.close();
+    }
+
+    @Test
+    public void hashIndex() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        HeapFile h = SystemTestUtil.createRandomHeapFile(2, 8 * ROWS, 20000, null, rows, "e");
+        Database.getCatalog().addTable(h, "v");
+        List<List<Integer>> outer = new ArrayList<>();
+        HeapFile o = SystemTestUtil.createRandomHeapFile(2, 5, 20000, null, outer, "f");
+        Database.getCatalog().addTable(o, "o");
+        new File(h.getFile().getAbsoluteFile().getParentFile(), "v_e0.idx").deleteOnExit();
+        new Parser().handleCreateIndexStatement("v_e0", "v", "e0", null, true, 1.0, tid);
+        SecondaryIndex hi = Database.getCatalog().getIndexes(h.getId()).get(0);
+        assertTrue(hi.isHash());
+        assertFalse(hi.canSearch(Predicate.Op.LESS_THAN));
+
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("v", new TableStats(h.getId(), TableStats.IOCOSTPERPAGE));
+        stats.put("o", new TableStats(o.getId(), TableStats.IOCOSTPERPAGE));
+
+        // 插入和删除都会更新哈希索引
+        int key = 20000 + 1;
+        Tuple t = new Tuple(h.getTupleDesc());
+        t.setField(0, new IntField(key));
+        t.setField(1, new IntField(7));
+        Database.getBufferPool().insertTuple(tid, h.getId(), t);
+        IndexHeapScan scan = new IndexHeapScan(tid, hi, "v", new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        scan.open();
+        assertEquals(Arrays.asList(key, 7), SystemTestUtil.tupleToList(scan.next()));
+        assertFalse(scan.hasNext());
+        scan.rewind();
+        Database.getBufferPool().deleteTuple(tid, scan.next());
+        scan.close();
+        scan.open();
+        assertFalse(scan.hasNext());
+        scan.close();
+
+        // 等值查询通过哈希索引，它是表上唯一的索引
+        int k = rows.get(0).get(0);
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(h.getId(), "v");
+        lp.addFilter("v.e0", Predicate.Op.EQUALS, Integer.toString(k));
+        lp.addProjectField("v.e1", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(usesIndex(plan) || contains(plan, BitmapHeapScan.class));
+        plan.open();
+        int count = 0;
+        while (plan.hasNext()) {
+            plan.next();
+            count++;
+        }
+        plan.close();
+        assertEquals(rows.stream().filter(r -> r.get(0) == k).count(), count);
+
+        // 外表很小时，用哈希索引查找内表的匹配
+        lp = new LogicalPlan();
+        lp.addScan(o.getId(), "o");
+        lp.addScan(h.getId(), "v");
+        lp.addJoin("o.f0", "v.e0", Predicate.Op.EQUALS);
+        lp.addProjectField("o.f0", null);
+        lp.addProjectField("v.e1", null);
+        plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(contains(plan, IndexNestedLoopJoin.class));
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> x : outer) {
+            for (List<Integer> y : rows) {
+                if (x.get(0).equals(y.get(0)))
+                    expected.add(Arrays.asList(x.get(0), y.get(1)));
+            }
+        }
+        List<List<Integer>> result = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext())
+            result.add(SystemTestUtil.tupleToList(plan.next()));
+        plan.close();
+        assertEquals(expected.size(), result.size());
+        assertTrue(result.containsAll(expected));
+    }
+
+    @Test(expected = ParsingException.class)
+    public void compositeCopyRejected() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10, null, null, 0);
+        new Parser().handleCreateIndexStatement("b_idx", Database.getCatalog().getTableName(bf.getId()),
+                "col_0, col_1", null, false, 1.0, tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
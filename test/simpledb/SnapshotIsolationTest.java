@@ -0,0 +1,114 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.TransactionId;
+
+public class SnapshotIsolationTest extends TestUtil.CreateHeapFile {
+    private PageId p0;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        // populate the file with 10 committed tuples on a single page
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 10; ++i) {
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        bp.transactionComplete(tid, true);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        p0 = new HeapPageId(empty.getId(), 0);
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * A snapshot reads the committed data even while a writer holds an
+     * exclusive lock on the page, and keeps seeing it after the writer commits.
+     */
+    @Test(timeout = 10000) public void writerDoesNotBlockSnapshot() throws Exception {
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, empty.getId(), Utility.getHeapTuple(10, 2));
+        assertTrue(bp.holdsLock(writer, p0));
+
+        TransactionId snapshot = new TransactionId();
+        bp.beginSnapshot(snapshot);
+        assertEquals(10, count(snapshot));
+        assertEquals(11, count(writer));
+
+        bp.transactionComplete(writer, true);
+        assertEquals(10, count(snapshot));
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(11, count(later));
+        assertEquals(1, bp.getVersionManager().getNumVersions());
+
+        bp.transactionComplete(later);
+        assertEquals(1, bp.getVersionManager().getNumVersions());
+        bp.transactionComplete(snapshot);
+        assertEquals(0, bp.getVersionManager().getNumVersions());
+    }
+
+    /**
+     * A snapshot takes no locks, so a writer can lock the page it is reading.
+     */
+    @Test(timeout = 10000) public void snapshotDoesNotBlockWriter() throws Exception {
+        TransactionId snapshot = new TransactionId();
+        bp.beginSnapshot(snapshot);
+        bp.getPage(snapshot, p0, Permissions.READ_ONLY);
+        assertTrue(!bp.holdsLock(snapshot, p0));
+
+        TransactionId writer = new TransactionId();
+        bp.getPage(writer, p0, Permissions.READ_WRITE);
+        assertTrue(bp.holdsLock(writer, p0));
+        bp.transactionComplete(writer, true);
+
+        // nothing was written, so no version had to be retired
+        assertEquals(0, bp.getVersionManager().getNumVersions());
+        bp.transactionComplete(snapshot);
+    }
+
+    /**
+     * Snapshot transactions are read-only.
+     */
+    @Test(expected = DbException.class) public void snapshotIsReadOnly() throws Exception {
+        TransactionId snapshot = new TransactionId();
+        bp.beginSnapshot(snapshot);
+        bp.getPage(snapshot, p0, Permissions.READ_WRITE);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotIsolationTest.class);
+    }
+}
@@ -0,0 +1,220 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/** @return rows random tuples of two fields with keys below maxKey, sorted on the first field */
+	private static List<List<Integer>> sortedTuples(Random r, int rows, int maxKey) {
+		List<List<Integer>> tuples = new ArrayList<>();
+		for(int i = 0; i < rows; i++)
+			tuples.add(Arrays.asList(r.nextInt(maxKey), r.nextInt(1000)));
+		tuples.sort(Comparator.comparingInt(t -> t.get(0)));
+		return tuples;
+	}
+
+	private static TupleIterator scan(List<List<Integer>> tuples) {
+		List<Tuple> list = new ArrayList<>();
+		for(List<Integer> t : tuples) {
+			Tuple tup = new Tuple(Utility.getTupleDesc(2));
+			tup.setField(0, new IntField(t.get(0)));
+			tup.setField(1, new IntField(t.get(1)));
+			list.add(tup);
+		}
+		TupleIterator it = new TupleIterator(Utility.getTupleDesc(2), list);
+		it.open();
+		return it;
+	}
+
+	private static Map<List<Integer>, Integer> run(OpIterator join) throws Exception {
+		Map<List<Integer>, Integer> result = new HashMap<>();
+		int last = Integer.MIN_VALUE;
+		while(join.hasNext()) {
+			List<Integer> t = SystemTestUtil.tupleToList(join.next());
+			// 输出按外表的连接字段升序排列
+			assertTrue(t.get(0) >= last);
+			last = t.get(0);
+			result.merge(t, 1, Integer::sum);
+		}
+		return result;
+	}
+
+	private void checkJoin(Predicate.Op op, List<List<Integer>> left, List<List<Integer>> right) throws Exception {
+		checkJoin(op, left, right, SortMergeJoin.DEFAULT_MEMORY_PAGES);
+	}
+
+	private void checkJoin(Predicate.Op op, List<List<Integer>> left, List<List<Integer>> right,
+			int memoryPages) throws Exception {
+		Map<List<Integer>, Integer> expected = new HashMap<>();
+		for(List<Integer> l : left) {
+			for(List<Integer> r : right) {
+				if(new IntField(l.get(0)).compare(op, new IntField(r.get(0)))) {
+					List<Integer> t = new ArrayList<>(l);
+					t.addAll(r);
+					expected.merge(t, 1, Integer::sum);
+				}
+			}
+		}
+		SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, op, 0), scan(left), scan(right), memoryPages);
+		join.open();
+		assertEquals(op.toString(), expected, run(join));
+		join.rewind();
+		assertEquals(op.toString(), expected, run(join));
+		join.close();
+	}
+
+	@Test
+	public void mergeJoin() throws Exception {
+		Random r = new Random(11);
+		// 两边都有大量重复的key
+		List<List<Integer>> left = sortedTuples(r, 400, 50);
+		List<List<Integer>> right = sortedTuples(r, 300, 60);
+		for(Predicate.Op op : new Predicate.Op[]{Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+				Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ})
+			checkJoin(op, left, right);
+		checkJoin(Predicate.Op.EQUALS, left, Collections.emptyList());
+		checkJoin(Predicate.Op.GREATER_THAN, Collections.emptyList(), right);
+	}
+
+	@Test
+	public void windowSpills() throws Exception {
+		Random r = new Random(5);
+		// 一页放不下匹配的内表tuple，窗口的前面部分写到磁盘上
+		List<List<Integer>> left = sortedTuples(r, 60, 1000);
+		List<List<Integer>> right = sortedTuples(r, 3000, 1000);
+		for(Predicate.Op op : new Predicate.Op[]{Predicate.Op.LESS_THAN, Predicate.Op.GREATER_THAN_OR_EQ})
+			checkJoin(op, left, right, 1);
+		// 重复的key也可能超过内存预算
+		List<List<Integer>> dups = sortedTuples(r, 2000, 3);
+		checkJoin(Predicate.Op.EQUALS, sortedTuples(r, 20, 3), dups, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void notEquals() {
+		new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0),
+				scan(Collections.emptyList()), scan(Collections.emptyList()));
+	}
+
+	@Test
+	public void sortedOn() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 100, null, null, 1);
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 100, null, null, "c");
+		Database.getCatalog().addTable(hf, "h");
+		SeqScan bscan = new SeqScan(tid, bf.getId(), "b");
+		assertEquals("b.col_1", SortMergeJoin.sortedOn(bscan));
+		assertEquals("b.col_1", SortMergeJoin.sortedOn(new Filter(
+				new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(3)), bscan)));
+		assertNull(SortMergeJoin.sortedOn(new Project(Collections.singletonList(0),
+				Collections.singletonList(bscan.getTupleDesc().getFieldType(0)), bscan)));
+		assertNull(SortMergeJoin.sortedOn(new SeqScan(tid, hf.getId(), "h")));
+		assertEquals("h.c1", SortMergeJoin.sortedOn(new OrderBy(1, true, new SeqScan(tid, hf.getId(), "h"))));
+		assertNull(SortMergeJoin.sortedOn(new OrderBy(1, false, new SeqScan(tid, hf.getId(), "h"))));
+	}
+
+	private static boolean contains(OpIterator plan, Class<?> c) {
+		if(c.isInstance(plan))
+			return true;
+		if(plan instanceof Operator) {
+			for(OpIterator child : ((Operator) plan).getChildren()) {
+				if(contains(child, c))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void planMergesSortedInputs() throws Exception {
+		List<List<Integer>> aTuples = new ArrayList<>();
+		List<List<Integer>> bTuples = new ArrayList<>();
+		BTreeFile a = BTreeUtility.createRandomBTreeFile(2, 3000, 1000, null, aTuples, 0);
+		BTreeFile b = BTreeUtility.createRandomBTreeFile(2, 2000, 1000, null, bTuples, 0);
+		HeapFile h = SystemTestUtil.createRandomHeapFile(2, 2000, 1000, null, null, "c");
+		Database.getCatalog().addTable(h, "h");
+		Map<String, TableStats> stats = new HashMap<>();
+		for(DbFile f : new DbFile[]{a, b, h})
+			stats.put(Database.getCatalog().getTableName(f.getId()), new TableStats(f.getId(), TableStats.IOCOSTPERPAGE));
+
+		// 两个B+树都按连接字段排好序，ORDER BY连接字段时也不用再排序
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(a.getId(), "a");
+		lp.addScan(b.getId(), "b");
+		lp.addJoin("a.col_0", "b.col_0", Predicate.Op.EQUALS);
+		lp.addProjectField("a.col_0", null);
+		lp.addProjectField("b.col_1", null);
+		lp.addOrderBy("a.col_0", true);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(contains(plan, SortMergeJoin.class));
+		assertFalse(contains(plan, OrderBy.class));
+		List<List<Integer>> expected = new ArrayList<>();
+		for(List<Integer> x : aTuples) {
+			for(List<Integer> y : bTuples) {
+				if(x.get(0).equals(y.get(0)))
+					expected.add(Arrays.asList(x.get(0), y.get(1)));
+			}
+		}
+		plan.open();
+		int last = Integer.MIN_VALUE;
+		while(plan.hasNext()) {
+			List<Integer> t = SystemTestUtil.tupleToList(plan.next());
+			assertTrue(t.get(0) >= last);
+			last = t.get(0);
+			assertTrue(expected.remove(t));
+		}
+		plan.close();
+		assertTrue(expected.isEmpty());
+
+		// 范围连接也可以归并
+		lp = new LogicalPlan();
+		lp.addScan(a.getId(), "a");
+		lp.addScan(b.getId(), "b");
+		lp.addJoin("a.col_0", "b.col_0", Predicate.Op.LESS_THAN);
+		lp.addProjectField("a.col_0", null);
+		assertTrue(contains(lp.physicalPlan(tid, stats, false), SortMergeJoin.class));
+
+		// 堆文件没有顺序
+		lp = new LogicalPlan();
+		lp.addScan(a.getId(), "a");
+		lp.addScan(h.getId(), "h");
+		lp.addJoin("a.col_0", "h.c0", Predicate.Op.EQUALS);
+		lp.addProjectField("a.col_0", null);
+		assertFalse(contains(lp.physicalPlan(tid, stats, false), SortMergeJoin.class));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SortMergeJoinTest.class);
+	}
+}
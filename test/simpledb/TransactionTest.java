@@ -3,11 +3,14 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
+import simpledb.common.DbException;
 import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
+import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionId;
 
 import java.util.Iterator;
@@ -118,6 +121,75 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  /**
+   * A transaction declared read-only writes no log records and releases
+   * all of its shared locks when it completes.
+   */
+  @Test public void readOnlyTransaction() throws Exception {
+    Transaction t = new Transaction();
+    t.setReadOnly(true);
+    int records = Database.getLogFile().getTotalRecords();
+    t.start();
+    bp.getPage(t.getId(), p0, Permissions.READ_ONLY);
+    bp.getPage(t.getId(), p1, Permissions.READ_ONLY);
+    t.commit();
+
+    assertEquals(records, Database.getLogFile().getTotalRecords());
+    assertFalse(bp.holdsLock(t.getId(), p0));
+    assertFalse(bp.holdsLock(t.getId(), p1));
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+  }
+
+  /**
+   * A transaction that turns out not to write anything writes no log
+   * records, whether it commits or aborts, so recovery never sees it.
+   */
+  @Test public void detectedReadOnlyTransaction() throws Exception {
+    Transaction t = new Transaction();
+    int records = Database.getLogFile().getTotalRecords();
+    t.start();
+    bp.getPage(t.getId(), p0, Permissions.READ_ONLY);
+    t.commit();
+
+    assertEquals(records, Database.getLogFile().getTotalRecords());
+    assertFalse(bp.holdsLock(t.getId(), p0));
+
+    t = new Transaction();
+    t.start();
+    bp.getPage(t.getId(), p1, Permissions.READ_ONLY);
+    t.abort();
+
+    assertEquals(records, Database.getLogFile().getTotalRecords());
+    assertFalse(bp.holdsLock(t.getId(), p1));
+  }
+
+  /**
+   * The BEGIN record is written together with the first UPDATE record,
+   * when the transaction's pages are flushed.
+   */
+  @Test public void beginIsLoggedWithFirstWrite() throws Exception {
+    Transaction t = new Transaction();
+    int records = Database.getLogFile().getTotalRecords();
+    t.start();
+    bp.getPage(t.getId(), p0, Permissions.READ_ONLY);
+    bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(2000, 2));
+    assertEquals(records, Database.getLogFile().getTotalRecords());
+
+    t.commit();
+    // BEGIN, UPDATE and COMMIT
+    assertEquals(records + 3, Database.getLogFile().getTotalRecords());
+  }
+
+  /**
+   * A read-only transaction may not ask for write access.
+   */
+  @Test(expected = DbException.class) public void readOnlyTransactionCannotWrite() throws Exception {
+    Transaction t = new Transaction();
+    t.setReadOnly(true);
+    t.start();
+    bp.getPage(t.getId(), p0, Permissions.READ_WRITE);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,66 @@
+package simpledb.bench;
+
+import java.io.File;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.storage.DbFileIterator;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Inserts increasing keys, like sequence numbers, into an empty B+ tree and
+ * reports insert throughput and how full the resulting leaf pages are.
+ * <p>
+ * Run with {@code java simpledb.bench.BTreeAppendBenchmark [rows] [rows per transaction]}.
+ */
+public class BTreeAppendBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int batch = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        File f = File.createTempFile("append", ".idx");
+        f.deleteOnExit();
+        BTreeFile bf = new BTreeFile(f, 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(bf);
+
+        TransactionId tid = new TransactionId();
+        long start = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            Database.getBufferPool().insertTuple(tid, bf.getId(), Utility.getHeapTuple(new int[]{i, i}));
+            // NO STEAL：定期提交，脏页才能被换出
+            if (i % batch == batch - 1) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        long elapsed = System.nanoTime() - start;
+
+        // 沿着叶子页的兄弟指针统计叶子页数和平均填充率
+        tid = new TransactionId();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        BTreePageId pid = it.hasNext() ? (BTreePageId) it.next().getRecordId().getPageId() : null;
+        it.close();
+        int leaves = 0;
+        long tuples = 0;
+        long slots = 0;
+        while (pid != null) {
+            BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            leaves++;
+            tuples += leaf.getNumTuples();
+            slots += leaf.getMaxTuples();
+            pid = leaf.getRightSiblingId();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        System.out.println(rows + " inserts, " + (long) (rows / (elapsed / 1e9)) + " inserts/s, "
+                + bf.numPages() + " pages, " + leaves + " leaf pages, "
+                + String.format("%.1f", 100.0 * tuples / slots) + "% leaf fill");
+    }
+}
@@ -0,0 +1,93 @@
+package simpledb.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures the throughput of concurrent B+ tree inserts and point lookups
+ * with 1, 2, 4 and 8 threads. Every operation runs in its own transaction
+ * and is retried if it is aborted by deadlock detection.
+ * <p>
+ * Run with {@code java simpledb.bench.BTreeConcurrencyBenchmark [rows] [seconds]}.
+ */
+public class BTreeConcurrencyBenchmark {
+
+    private static final int[] THREADS = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        // 小页让树更高，分裂和合并也更频繁
+        BufferPool.setPageSize(1024);
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, null, null, 0);
+        Database.resetBufferPool(500);
+
+        System.out.println("threads\tlookups/s\tinserts/s\taborts");
+        for (int n : THREADS) {
+            AtomicLong lookups = new AtomicLong();
+            AtomicLong inserts = new AtomicLong();
+            AtomicLong aborts = new AtomicLong();
+            long deadline = System.currentTimeMillis() + seconds * 1000L;
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                Random r = new Random(i);
+                Thread t = new Thread(() -> {
+                    while (System.currentTimeMillis() < deadline) {
+                        // 九成查找，一成插入
+                        boolean insert = r.nextInt(10) == 0;
+                        int key = r.nextInt(BTreeUtility.MAX_RAND_VALUE);
+                        try {
+                            run(bf, insert, key);
+                            (insert ? inserts : lookups).incrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            aborts.incrementAndGet();
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+                workers.add(t);
+                t.start();
+            }
+            for (Thread t : workers)
+                t.join();
+            System.out.println(n + "\t" + lookups.get() / seconds + "\t\t" + inserts.get() / seconds
+                    + "\t\t" + aborts.get());
+        }
+        BufferPool.resetPageSize();
+    }
+
+    private static void run(BTreeFile bf, boolean insert, int key) throws Exception {
+        TransactionId tid = new TransactionId();
+        try {
+            if (insert) {
+                Database.getBufferPool().insertTuple(tid, bf.getId(),
+                        BTreeUtility.getBTreeTuple(new int[]{key, key}));
+            } else {
+                DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+                it.open();
+                while (it.hasNext())
+                    it.next();
+                it.close();
+            }
+            Database.getBufferPool().transactionComplete(tid);
+        } catch (TransactionAbortedException e) {
+            Database.getBufferPool().transactionComplete(tid, false);
+            throw e;
+        }
+    }
+}
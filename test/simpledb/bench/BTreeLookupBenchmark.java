@@ -0,0 +1,63 @@
+package simpledb.bench;
+
+import java.util.Random;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures single-threaded B+ tree point lookups per second on a tree that
+ * fits in the buffer pool, so that the cost is dominated by the search
+ * within internal and leaf pages rather than by I/O. Lookups of uniformly
+ * distributed keys and of a small set of hot keys are run with and without
+ * the adaptive hash index.
+ * <p>
+ * Run with {@code java simpledb.bench.BTreeLookupBenchmark [rows] [lookups]}.
+ */
+public class BTreeLookupBenchmark {
+
+    private static void run(BTreeFile bf, String name, int lookups, int keys, boolean hashed) throws Exception {
+        bf.getAdaptiveHash().setEnabled(hashed);
+        Random r = new Random(0);
+        // 第一轮把所有页读入缓冲池并让JIT预热，只统计第二轮
+        for (int round = 0; round < 2; round++) {
+            TransactionId tid = new TransactionId();
+            long found = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                IntField key = new IntField(r.nextInt(keys));
+                DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+                it.open();
+                while (it.hasNext()) {
+                    it.next();
+                    found++;
+                }
+                it.close();
+            }
+            long elapsed = System.nanoTime() - start;
+            Database.getBufferPool().transactionComplete(tid);
+            if (round == 1)
+                System.out.println(name + (hashed ? ", adaptive hash: " : ": ") + lookups + " lookups, "
+                        + found + " tuples found, " + (long) (lookups / (elapsed / 1e9)) + " lookups/s");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, null, null, 0);
+        Database.resetBufferPool(bf.numPages() + 10);
+
+        for (boolean hashed : new boolean[]{false, true}) {
+            run(bf, "uniform keys", lookups, BTreeUtility.MAX_RAND_VALUE, hashed);
+            run(bf, "hot keys", lookups, BTreeUtility.MAX_RAND_VALUE / 100, hashed);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeBulkLoader;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Compares B+ trees on string keys sharing a long prefix, such as URLs, with
+ * and without key compression: the height and size of the tree, and point
+ * lookups per second when the whole tree is in the buffer pool.
+ * <p>
+ * Run with {@code java simpledb.bench.BTreeStringKeyBenchmark [rows] [lookups]}.
+ */
+public class BTreeStringKeyBenchmark {
+
+    private static final TupleDesc TD = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+    private static final String PREFIX = "https://www.example.com/catalog/products/";
+
+    /** @return the number of levels of the tree, counting the leaves */
+    private static int height(BTreeFile bf, TransactionId tid) throws Exception {
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        BTreePageId pid = rootPtr.getRootId();
+        int height = 1;
+        while (pid.pgcateg() == BTreePageId.INTERNAL) {
+            BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid,
+                    Permissions.READ_ONLY);
+            pid = page.iterator().next().getLeftChild();
+            height++;
+        }
+        return height;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        List<String> keys = new ArrayList<>();
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            String k = PREFIX + String.format("%08d", i) + ".html";
+            keys.add(k);
+            Tuple t = new Tuple(TD);
+            t.setField(0, new StringField(k, Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            tuples.add(t);
+        }
+
+        for (boolean compress : new boolean[]{false, true}) {
+            File f = File.createTempFile("strkeys", ".idx");
+            f.deleteOnExit();
+            BTreeFile bf = new BTreeBulkLoader(f, TD, new int[]{0}, 1.0, compress)
+                    .build(tuples.iterator(), tuples.size());
+            Database.getCatalog().addTable(bf);
+            Database.resetBufferPool(bf.numPages() + 10);
+            Random r = new Random(0);
+
+            // 第一轮把所有页读入缓冲池并让JIT预热，只统计第二轮
+            for (int round = 0; round < 2; round++) {
+                TransactionId tid = new TransactionId();
+                long found = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < lookups; i++) {
+                    StringField key = new StringField(keys.get(r.nextInt(rows)), Type.STRING_LEN);
+                    DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+                    it.open();
+                    while (it.hasNext()) {
+                        it.next();
+                        found++;
+                    }
+                    it.close();
+                }
+                long elapsed = System.nanoTime() - start;
+                if (round == 1)
+                    System.out.println((compress ? "compressed:   " : "uncompressed: ")
+                            + "height " + height(bf, tid) + ", " + bf.numPages() + " pages, "
+                            + found + " tuples found, " + (long) (lookups / (elapsed / 1e9)) + " lookups/s, "
+                            + String.format("%.2f", elapsed / 1e3 / lookups) + " us/lookup");
+                Database.getBufferPool().transactionComplete(tid);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import simpledb.common.Database;
+import simpledb.execution.BitmapHeapScan;
+import simpledb.execution.IndexHeapScan;
+import simpledb.execution.IndexOnlyScan;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate.Op;
+import simpledb.execution.SeqScan;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Compares reading the tuples matching a range predicate through a secondary
+ * index with an IndexHeapScan (one heap page fetch per match, in key order),
+ * with a BitmapHeapScan (every heap page once, in physical order) and with an
+ * IndexOnlyScan of a covering index (no heap page at all), on a buffer pool
+ * much smaller than the table.
+ * <p>
+ * Run with {@code java simpledb.bench.BitmapHeapScanBenchmark [rows] [selectivity%]}.
+ */
+public class BitmapHeapScanBenchmark {
+
+    private static long run(OpIterator scan) throws Exception {
+        long count = 0;
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        return count;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        double percent = args.length > 1 ? Double.parseDouble(args[1]) : 5;
+
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, null, new ArrayList<>());
+        TransactionId tid = new TransactionId();
+        File f = File.createTempFile("bench", ".idx");
+        f.deleteOnExit();
+        SecondaryIndex index = SecondaryIndex.create(tid, "bench_idx", hf, 0, f, 1.0);
+        Database.getCatalog().addIndex(index);
+        File cf = File.createTempFile("bench", ".idx");
+        cf.deleteOnExit();
+        SecondaryIndex covering = SecondaryIndex.create(tid, "bench_covering", hf, 0, new int[]{1}, cf, 1.0);
+        Database.getCatalog().addIndex(covering);
+        Database.getBufferPool().transactionComplete(tid);
+
+        IndexPredicate ipred = new IndexPredicate(Op.LESS_THAN,
+                new IntField((int) ((1 << 16) * percent / 100)));
+        System.out.println(rows + " rows on " + hf.numPages() + " pages, " + percent + "% selected");
+        for (int round = 0; round < 2; round++) {
+            for (String kind : new String[]{"seq", "index", "bitmap", "covering"}) {
+                // 缓冲池只有表的十分之一大，每轮都从冷缓存开始
+                Database.resetBufferPool(Math.max(20, hf.numPages() / 10));
+                tid = new TransactionId();
+                OpIterator scan;
+                if (kind.equals("seq"))
+                    scan = new SeqScan(tid, hf.getId());
+                else if (kind.equals("index"))
+                    scan = new IndexHeapScan(tid, index, "t", ipred);
+                else if (kind.equals("bitmap"))
+                    scan = new BitmapHeapScan(tid, "t", BitmapHeapScan.BitmapCondition.index(index, ipred));
+                else
+                    scan = new IndexOnlyScan(tid, covering, "t", ipred);
+                long start = System.nanoTime();
+                long count = run(scan);
+                long elapsed = System.nanoTime() - start;
+                Database.getBufferPool().transactionComplete(tid);
+                if (round == 1)
+                    System.out.printf("%-8s %8d tuples %8.1f ms%n", kind, count, elapsed / 1e6);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.execution.ExternalSort;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures the block nested-loop {@link Join} of two heap tables for several
+ * block sizes, against a tuple-at-a-time nested-loop join that scans the
+ * inner table once per outer tuple. The inner table does not fit in the
+ * buffer pool, so every scan of it reads it from disk again.
+ * <p>
+ * Run with {@code java simpledb.bench.BlockJoinBenchmark [outerRows] [innerRows]}.
+ */
+public class BlockJoinBenchmark {
+
+    private static long tupleAtATime(TransactionId tid, HeapFile outer, HeapFile inner) throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        SeqScan o = new SeqScan(tid, outer.getId(), "o");
+        SeqScan i = new SeqScan(tid, inner.getId(), "i");
+        long count = 0;
+        o.open();
+        i.open();
+        while (o.hasNext()) {
+            Tuple left = o.next();
+            i.rewind();
+            while (i.hasNext()) {
+                if (p.filter(left, i.next()))
+                    count++;
+            }
+        }
+        o.close();
+        i.close();
+        return count;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int outerRows = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int innerRows = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(2, outerRows, null, null);
+        HeapFile inner = SystemTestUtil.createRandomHeapFile(2, innerRows, null, null);
+        Database.getCatalog().addTable(outer, "outer");
+        Database.getCatalog().addTable(inner, "inner");
+        System.out.println("outer " + outer.numPages() + " pages, inner " + inner.numPages() + " pages");
+
+        Database.resetBufferPool(50);
+        TransactionId tid = new TransactionId();
+        long start = System.nanoTime();
+        long count = tupleAtATime(tid, outer, inner);
+        long elapsed = System.nanoTime() - start;
+        Database.getBufferPool().transactionComplete(tid);
+        System.out.printf("tuple at a time: %d scans of inner, %d tuples, %.1f ms%n",
+                outerRows, count, elapsed / 1e6);
+
+        for (int blockPages : new int[]{1, 4, 16}) {
+            Database.resetBufferPool(50);
+            tid = new TransactionId();
+            Join join = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                    new SeqScan(tid, outer.getId(), "o"), new SeqScan(tid, inner.getId(), "i"), blockPages);
+            int blockTuples = ExternalSort.memoryTuples(outer.getTupleDesc(), blockPages);
+            int blocks = (outerRows + blockTuples - 1) / blockTuples;
+            start = System.nanoTime();
+            count = 0;
+            join.open();
+            while (join.hasNext()) {
+                join.next();
+                count++;
+            }
+            join.close();
+            elapsed = System.nanoTime() - start;
+            Database.getBufferPool().transactionComplete(tid);
+            System.out.printf("%d block pages: %d scans of inner, %d tuples, %.1f ms%n",
+                    blockPages, blocks, count, elapsed / 1e6);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package simpledb.bench;
+
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.Field;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures the hybrid hash join of two heap tables whose build side does not
+ * fit in memory, against loading the build side in chunks of 20000 tuples
+ * and scanning the whole probe side once per chunk.
+ * <p>
+ * Run with {@code java simpledb.bench.HashJoinBenchmark [buildRows] [probeRows]}.
+ */
+public class HashJoinBenchmark {
+    private static final int CHUNK = 20000;
+
+    private static long chunked(TransactionId tid, HeapFile build, HeapFile probe) throws Exception {
+        SeqScan b = new SeqScan(tid, build.getId(), "b");
+        SeqScan p = new SeqScan(tid, probe.getId(), "p");
+        Map<Field, List<Tuple>> map = new HashMap<>();
+        long count = 0;
+        b.open();
+        p.open();
+        while (b.hasNext()) {
+            map.clear();
+            for (int i = 0; i < CHUNK && b.hasNext(); i++) {
+                Tuple t = b.next();
+                map.computeIfAbsent(t.getField(0), k -> new ArrayList<>()).add(t);
+            }
+            p.rewind();
+            while (p.hasNext()) {
+                List<Tuple> l = map.get(p.next().getField(0));
+                if (l != null)
+                    count += l.size();
+            }
+        }
+        b.close();
+        p.close();
+        return count;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int buildRows = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int probeRows = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+
+        HeapFile build = SystemTestUtil.createRandomHeapFile(2, buildRows, buildRows, null, null);
+        HeapFile probe = SystemTestUtil.createRandomHeapFile(2, probeRows, buildRows, null, null);
+        Database.getCatalog().addTable(build, "build");
+        Database.getCatalog().addTable(probe, "probe");
+        System.out.println("build " + build.numPages() + " pages, probe " + probe.numPages() + " pages");
+
+        Database.resetBufferPool(50);
+        TransactionId tid = new TransactionId();
+        long start = System.nanoTime();
+        long count = chunked(tid, build, probe);
+        long elapsed = System.nanoTime() - start;
+        Database.getBufferPool().transactionComplete(tid);
+        System.out.printf("chunks of %d tuples: %d tuples, %.1f ms%n", CHUNK, count, elapsed / 1e6);
+
+        for (int memoryPages : new int[]{16, 64, 1024}) {
+            Database.resetBufferPool(50);
+            tid = new TransactionId();
+            HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                    new SeqScan(tid, build.getId(), "b"), new SeqScan(tid, probe.getId(), "p"), memoryPages, false);
+            start = System.nanoTime();
+            count = 0;
+            join.open();
+            while (join.hasNext()) {
+                join.next();
+                count++;
+            }
+            join.close();
+            elapsed = System.nanoTime() - start;
+            Database.getBufferPool().transactionComplete(tid);
+            System.out.printf("hybrid hash join, %d pages: %d tuples, %s, %.1f ms%n", memoryPages, count,
+                    join.hasSpilled() ? "spilled" : "in memory", elapsed / 1e6);
+        }
+    }
+}
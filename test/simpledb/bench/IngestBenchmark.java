@@ -0,0 +1,74 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.LsmFile;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Inserts random keys into an empty HeapFile, BTreeFile and LsmFile and
+ * reports the insert throughput of each, including the time the LsmFile
+ * takes to write its memtable to runs at the end.
+ * <p>
+ * Run with {@code java simpledb.bench.IngestBenchmark [rows] [rows per transaction]}.
+ */
+public class IngestBenchmark {
+
+    private static long ingest(DbFile file, int rows, int batch) throws Exception {
+        Random r = new Random(0);
+        TransactionId tid = new TransactionId();
+        long start = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            Database.getBufferPool().insertTuple(tid, file.getId(), Utility.getHeapTuple(new int[]{r.nextInt(), i}));
+            // NO STEAL：定期提交，脏页才能被换出
+            if (i % batch == batch - 1) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        if (file instanceof LsmFile) {
+            ((LsmFile) file).flush();
+            ((LsmFile) file).compact();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String name, int rows, long elapsed, int pages) {
+        System.out.println(name + ": " + rows + " inserts, " + (long) (rows / (elapsed / 1e9)) + " inserts/s, "
+                + pages + " pages");
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int batch = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        File dir = Files.createTempDirectory("ingest").toFile();
+
+        HeapFile hf = Utility.createEmptyHeapFile(new File(dir, "heap.dat").getPath(), 2);
+        report("HeapFile", rows, ingest(hf, rows, batch), hf.numPages());
+
+        Database.reset();
+        BTreeFile bf = new BTreeFile(new File(dir, "btree.idx"), 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(bf);
+        report("BTreeFile", rows, ingest(bf, rows, batch), bf.numPages());
+
+        Database.reset();
+        LsmFile lf = new LsmFile(new File(dir, "t.lsm"), 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(lf);
+        report("LsmFile", rows, ingest(lf, rows, batch), lf.numPages());
+        System.out.println("LsmFile runs per level: " + Arrays.toString(lf.runsPerLevel()));
+
+        File[] files = dir.listFiles();
+        for (File f : files == null ? new File[0] : files)
+            f.delete();
+        dir.delete();
+    }
+}
@@ -0,0 +1,64 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.execution.SortMergeJoin;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures the sort-merge join of two B+ tree tables clustered on their join
+ * field against the hybrid hash join of the same scans, with the hash join
+ * given too little memory to hold its build side.
+ * <p>
+ * Run with {@code java simpledb.bench.MergeJoinBenchmark [leftRows] [rightRows]}.
+ */
+public class MergeJoinBenchmark {
+
+    private static long run(OpIterator join) throws Exception {
+        long count = 0;
+        join.open();
+        while (join.hasNext()) {
+            join.next();
+            count++;
+        }
+        join.close();
+        return count;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int leftRows = args.length > 0 ? Integer.parseInt(args[0]) : 300000;
+        int rightRows = args.length > 1 ? Integer.parseInt(args[1]) : 300000;
+
+        BTreeFile left = BTreeUtility.createRandomBTreeFile(2, leftRows, leftRows, null, null, 0);
+        BTreeFile right = BTreeUtility.createRandomBTreeFile(2, rightRows, leftRows, null, null, 0);
+        System.out.println("left " + left.numPages() + " pages, right " + right.numPages() + " pages");
+
+        for (int memoryPages : new int[]{16, 1024}) {
+            Database.resetBufferPool(50);
+            TransactionId tid = new TransactionId();
+            HashEquiJoin hash = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                    new SeqScan(tid, left.getId(), "l"), new SeqScan(tid, right.getId(), "r"), memoryPages, false);
+            long start = System.nanoTime();
+            long count = run(hash);
+            long elapsed = System.nanoTime() - start;
+            Database.getBufferPool().transactionComplete(tid);
+            System.out.printf("hybrid hash join, %d pages: %d tuples, %.1f ms%n", memoryPages, count, elapsed / 1e6);
+        }
+
+        Database.resetBufferPool(50);
+        TransactionId tid = new TransactionId();
+        SortMergeJoin merge = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, left.getId(), "l"), new SeqScan(tid, right.getId(), "r"));
+        long start = System.nanoTime();
+        long count = run(merge);
+        long elapsed = System.nanoTime() - start;
+        Database.getBufferPool().transactionComplete(tid);
+        System.out.printf("sort-merge join: %d tuples, %.1f ms%n", count, elapsed / 1e6);
+    }
+}
@@ -56,16 +56,17 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 			assertEquals(1, empty.numPages());
 		}
 
-		// the next 251 tuples should live on page 2 since they are greater than
-		// all existing tuples in the file
-		for (int i = 502; i < 753; ++i) {
+		// the next 501 tuples should live on page 2 since they are greater than
+		// all existing tuples in the file: appending splits the full page at the
+		// insertion point, moving only its last tuple to page 2
+		for (int i = 502; i < 1003; ++i) {
 			tup = BTreeUtility.getBTreeTuple(i, 2);
 			empty.insertTuple(tid, tup);
 			assertEquals(3, empty.numPages());
 		}
 
-		// one more insert greater than 502 should cause page 2 to split
-		tup = BTreeUtility.getBTreeTuple(753, 2);
+		// one more insert greater than 1002 should cause page 2 to split
+		tup = BTreeUtility.getBTreeTuple(1003, 2);
 		empty.insertTuple(tid, tup);
 		assertEquals(4, empty.numPages());
 